@@ -21,11 +21,71 @@
 */
 package io.seldon.spark
 
+import org.apache.hadoop.fs.Path
+import org.apache.spark.SparkContext
+import org.apache.spark.sql.Column
+import org.apache.spark.sql.DataFrame
+import org.apache.spark.sql.SQLContext
+import org.apache.spark.sql.functions.col
+import org.apache.spark.sql.types._
 import org.joda.time.DateTime
 import org.joda.time.Period
 
 object SparkUtils {
   
+ // the fields of the daily action json written by GroupActionsJob that the offline jobs use
+ val actionJsonSchema = StructType(Seq(
+     StructField("timestamp_utc", StringType),
+     StructField("client_userid", StringType),
+     StructField("userid", IntegerType),
+     StructField("itemid", IntegerType),
+     StructField("client_itemid", StringType),
+     StructField("rectag", StringType),
+     StructField("type", IntegerType),
+     StructField("value", DoubleType)))
+ 
+ /**
+  * Columns of the compacted actions, with the json timestamp turned into a typed time column
+  */
+ def actionColumns(json : DataFrame) : DataFrame = {
+   json.select(col("userid"),col("itemid"),col("type"),col("value"),col("timestamp_utc").cast(TimestampType).as("time"),
+       col("client_userid"),col("client_itemid"),col("rectag"))
+ }
+ 
+ /**
+  * @return whether a spark job has finished writing the given output path
+  */
+ def isComplete(sc : SparkContext,path : String) : Boolean = exists(sc, path + "/_SUCCESS")
+ 
+ def exists(sc : SparkContext,path : String) : Boolean = {
+   val p = new Path(path)
+   p.getFileSystem(sc.hadoopConfiguration).exists(p)
+ }
+ 
+ def getActionsJsonPath(inputPath : String,client : String,day : Int) = inputPath + "/" + client + "/actions/" + day
+ 
+ def getActionsParquetPath(inputPath : String,client : String,day : Int) = inputPath + "/" + client + "/actions-parquet/day=" + day
+ 
+ /**
+  * Read a client's actions for the days counting back from startDay. Days compacted by CompactActionsJob are read from
+  * parquet so only the given columns are read and the filter is pushed down to the files; other days fall back to the
+  * raw json.
+  * @param columns any of userid, itemid, type, value, time, client_userid, client_itemid and rectag
+  */
+ def readActions(sc : SparkContext,inputPath : String,client : String,startDay : Int,days : Int,columns : Seq[String],filter : Option[Column] = None) : DataFrame = {
+   val sqlContext = SQLContext.getOrCreate(sc)
+   val (parquetDays,jsonDays) = (startDay - days + 1 to startDay).partition(day => isComplete(sc, getActionsParquetPath(inputPath, client, day)))
+   println("loading actions for days "+parquetDays.mkString(",")+" from parquet and "+jsonDays.mkString(",")+" from json")
+   val parts = Seq(
+       if (parquetDays.nonEmpty) Some(sqlContext.read.parquet(parquetDays.map(getActionsParquetPath(inputPath, client, _)):_*)) else None,
+       if (jsonDays.nonEmpty) Some(actionColumns(sqlContext.read.schema(actionJsonSchema).json(jsonDays.map(getActionsJsonPath(inputPath, client, _)+"/*"):_*))) else None
+       ).flatten.map{ df =>
+         val filtered = filter.map(df.filter(_)).getOrElse(df)
+         filtered.select(columns.map(col):_*)
+       }
+   parts.reduce(_ unionAll _)
+ }
+  
  def getS3UnixGlob(start : Long,steps : Int): String = {
     val buf = new StringBuilder(100)
     buf ++= "{"
@@ -0,0 +1,118 @@
+/*
+ * Seldon -- open source prediction engine
+ * =======================================
+ * Copyright 2011-2015 Seldon Technologies Ltd and Rummble Ltd (http://www.seldon.io/)
+ *
+ **********************************************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at       
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ ********************************************************************************************** 
+*/
+package io.seldon.spark.actions
+
+import org.apache.log4j.Level
+import org.apache.log4j.Logger
+import org.apache.spark.SparkConf
+import org.apache.spark.SparkContext
+import org.apache.spark.sql.SQLContext
+import org.apache.spark.sql.SaveMode
+import io.seldon.spark.SparkUtils
+
+case class CompactActionsConfig(
+    client : String = "",
+    inputPath : String = "/seldon-models",
+    outputPath : String = "/seldon-models",
+    startDay : Int = 1,
+    days : Int = 1,
+    awsKey : String = "",
+    awsSecret : String = "",
+    local : Boolean = false,
+    partitions : Int = 4
+)
+
+/**
+ * Compacts the daily action json written by GroupActionsJob into parquet at <outputPath>/<client>/actions-parquet/day=<unixday>
+ * so the offline jobs reading actions through SparkUtils.readActions only read the columns they need.
+ */
+class CompactActionsJob(private val sc : SparkContext,config : CompactActionsConfig) {
+
+  def run()
+  {
+    val sqlContext = SQLContext.getOrCreate(sc)
+    sqlContext.setConf("spark.sql.parquet.compression.codec", "snappy")
+    for (day <- config.startDay - config.days + 1 to config.startDay)
+    {
+      val inPath = SparkUtils.getActionsJsonPath(config.inputPath, config.client, day)+"/*"
+      val outPath = SparkUtils.getActionsParquetPath(config.outputPath, config.client, day)
+      println("compacting "+inPath+" to "+outPath)
+      val json = sqlContext.read.schema(SparkUtils.actionJsonSchema).json(inPath)
+      SparkUtils.actionColumns(json)
+        .coalesce(config.partitions)
+        .sortWithinPartitions("itemid", "userid")
+        .write.mode(SaveMode.Overwrite).parquet(outPath)
+    }
+  }
+}
+
+object CompactActionsJob
+{
+  def main(args: Array[String]) 
+  {
+
+    Logger.getLogger("org.apache.spark").setLevel(Level.WARN)
+    Logger.getLogger("org.eclipse.jetty.server").setLevel(Level.OFF)
+
+    var c = new CompactActionsConfig()
+    val parser = new scopt.OptionParser[Unit]("CompactActionsJob") {
+    head("CompactActionsJob", "1.0")
+        opt[Unit]('l', "local") foreach { x => c = c.copy(local = true) } text("local mode - use local Master")
+        opt[String]('c', "client") required() valueName("<client>") foreach { x => c = c.copy(client = x) } text("client name (will be used as db and folder suffix)")
+        opt[String]('i', "inputPath") valueName("path url") foreach { x => c = c.copy(inputPath = x) } text("path prefix for input")
+        opt[String]('o', "outputPath") valueName("path url") foreach { x => c = c.copy(outputPath = x) } text("path prefix for output")
+        opt[Int]('r', "days") foreach { x =>c = c.copy(days = x) } text("number of days in past to compact")
+        opt[Int]("startDay") foreach { x =>c = c.copy(startDay = x) } text("start day in unix time")
+        opt[Int]("partitions") foreach { x =>c = c.copy(partitions = x) } text("number of parquet files per day")
+        opt[String]('a', "awskey") valueName("aws access key") foreach { x => c = c.copy(awsKey = x) } text("aws key")
+        opt[String]('s', "awssecret") valueName("aws secret") foreach { x => c = c.copy(awsSecret = x) } text("aws secret")
+    }
+    
+    if (parser.parse(args))
+    {
+      val conf = new SparkConf().setAppName("CompactActionsJob")
+
+      if (c.local)
+        conf.setMaster("local")
+        .set("spark.akka.frameSize", "300")
+
+      val sc = new SparkContext(conf)
+      try
+      {
+        sc.hadoopConfiguration.set("fs.s3.impl", "org.apache.hadoop.fs.s3native.NativeS3FileSystem")
+        if (c.awsKey.nonEmpty && c.awsSecret.nonEmpty)
+        {
+         sc.hadoopConfiguration.set("fs.s3n.awsAccessKeyId", c.awsKey)
+         sc.hadoopConfiguration.set("fs.s3n.awsSecretAccessKey", c.awsSecret)
+        }
+        println(c)
+        val job = new CompactActionsJob(sc,c)
+        job.run()
+      }
+      finally
+      {
+        println("Shutting down job")
+        sc.stop()
+      }
+    }
+  }
+}
@@ -93,18 +93,10 @@ class ClusterUsersByDimension(private val sc : SparkContext,config : ClusterConf
     rdd
   }
   
-   def parseJson(path : String) = {
+   def readActions() = {
     
-    val rdd = sc.textFile(path).map{line =>
-      import org.json4s._
-      import org.json4s.jackson.JsonMethods._
-      implicit val formats = DefaultFormats
-    
-      val json = parse(line)
-      val user = (json \ "userid").extract[Int]
-      val item = (json \ "itemid").extract[Int]
-      (user,item)
-      }
+    val rdd = SparkUtils.readActions(sc, config.inputPath, config.client, config.startDay, config.days, Seq("userid","itemid"))
+      .rdd.map(row => (row.getInt(0),row.getInt(1)))
     
     rdd
   }
@@ -220,11 +212,8 @@ class ClusterUsersByDimension(private val sc : SparkContext,config : ClusterConf
     println("Dimension map has size "+dimMap.size) 
     
     
-    val glob = config.inputPath + "/" + config.client+"/actions/"+SparkUtils.getS3UnixGlob(config.startDay,config.days)+"/*"
-    println("loading from "+glob)
-
-    // parse json from inputs
-    val rddJson = parseJson(glob)
+    // read actions from inputs
+    val rddJson = readActions()
     
     // get user->item actions and limit to users with enough actions
     val actionsFiltered = getFilteredActions(config.minActionsPerUser,rddJson)
@@ -22,6 +22,7 @@
 package io.seldon.spark.mllib
 
 import _root_.io.seldon.spark.rdd.FileUtils
+import _root_.io.seldon.spark.SparkUtils
 import io.seldon.spark.zookeeper.ZkCuratorHandler
 import java.io.File
 import java.text.SimpleDateFormat
@@ -29,7 +30,7 @@ import org.apache.curator.utils.EnsurePath
 import org.apache.spark._
 import org.apache.log4j.{Level, Logger}
 import org.apache.spark.SparkContext._
-import org.apache.spark.mllib.recommendation.{Rating, ALS, MatrixFactorizationModel}
+import org.apache.spark.mllib.recommendation.{Rating, MatrixFactorizationModel}
 import org.apache.spark.rdd._
 import org.jets3t.service.S3Service
 import org.jets3t.service.impl.rest.httpclient.RestS3Service
@@ -65,7 +66,13 @@ case class MfConfig(
     lambda : Double = 0.01,
     alpha : Double = 1,
     iterations : Int = 5,
-    actionWeightings: Option[List[ActionWeighting]] = None
+    actionWeightings: Option[List[ActionWeighting]] = None,
+    
+    partitions : Int = 0, // 0 to size from the number of user-item scores
+    ratingsPerPartition : Int = 500000,
+    warmStart : Boolean = false, // start from the previous day's item factors when they exist
+    warmStartIterations : Int = 2,
+    reportLoss : Boolean = false // compute the loss after each iteration, which costs two extra joins over the ratings
  )
  
 
@@ -134,52 +141,57 @@ class MfModelCreation(private val sc : SparkContext,config : MfConfig) {
     Logger.getLogger("org.eclipse.jetty.server").setLevel(Level.OFF)
     // set up environment
     val timeStart = System.currentTimeMillis()
-    val glob= toSparkResource(inputFilesLocation, inputDataSourceMode) + ((date - daysOfActions + 1) to date).mkString("{", ",", "}")
-    println("Looking at "+glob)
-    val actions:RDD[((Int, Int), Int)] = sc.textFile(glob)
-      .map { line =>
-        val json = parse(line)
-        import org.json4s._
-        implicit val formats = DefaultFormats
-        val user = (json \ "userid").extract[Int]
-        val item = (json \ "itemid").extract[Int]
-        val actionType = (json \"type").extract[Int]
-        ((item,user),actionType)
-      }.repartition(2).cache()
-
-    // group actions by user-item key
-    val actionsByType:RDD[((Int,Int),List[Int])] = actions.combineByKey((x:Int)=>List[Int](x),
-                                                                        (list:List[Int],y:Int)=>y :: list,
-                                                                        (l1:List[Int],l2:List[Int])=> l1 ::: l2)
-    // count the grouped actions by action type
-    val actionsByTypeCount:RDD[((Int,Int),Map[Int,Int])] = actionsByType.map{
-      case (key,value:List[Int]) => (key,value.groupBy(identity).mapValues(_.size).map(identity))
-    }
+    // count actions of each type for each user-item pair
+    val actionCounts:RDD[((Int, Int, Int), Int)] = SparkUtils.readActions(sc, toSparkResource(config.inputPath, inputDataSourceMode), client, date, daysOfActions, Seq("itemid","userid","type"))
+      .rdd.map { row =>
+        ((row.getInt(0),row.getInt(1),row.getInt(2)),1)
+      }.reduceByKey(_ + _)
 
-    // apply weigtings map
-    val actionsByScore:RDD[((Int,Int),Double)] = actionsByTypeCount.mapValues{
-      case x:Map[Int,Int]=> x.map {
-        case y: (Int, Int) => Math.min(weightingsMap(y._1)._1 * y._2, weightingsMap(y._1)._2)
-      }.reduce(_+_)
-    }
+    // apply weightings map to each type's count and sum them for the user-item score
+    val actionsByScore:RDD[((Int,Int),Double)] = actionCounts.map {
+      case ((item,user,actionType),count) => ((item,user),Math.min(weightingsMap(actionType)._1 * count, weightingsMap(actionType)._2))
+    }.reduceByKey(_ + _).cache()
 
     actionsByScore.take(10).foreach(println)
-    val itemsByCount: RDD[(Int, Int)] = actionsByScore.map(x => (x._1._1, 1)).reduceByKey(_ + _)
-    val itemsCount = itemsByCount.count()
-    println("total actions " + actions.count())
-    println("total items " + itemsByCount.count())
+    val itemsCount = actionsByScore.map(_._1._1).distinct().count()
+    println("total actions " + actionCounts.values.sum().toLong)
+    println("total items " + itemsCount)
 
-    val usersByCount = actionsByScore.map(x=>(x._1._2,1)).reduceByKey(_+_)
-    val usersCount = usersByCount.count()
+    val usersCount = actionsByScore.map(_._1._2).distinct().count()
     println("total users " + usersCount)
 
+    // size partitions from the data, but never fewer than the cluster can run at once
+    val numRatings = actionsByScore.count()
+    val numPartitions = if (config.partitions > 0) config.partitions else Math.max(sc.defaultParallelism, Math.ceil(numRatings / config.ratingsPerPartition.toDouble).toInt)
+    println("using "+numPartitions+" partitions for "+numRatings+" user-item scores")
+
     val ratings = actionsByScore.map{
       case ((product, user), rating) => Rating(user,product,rating)
-    }.repartition(2).cache()
+    }.repartition(numPartitions).cache()
+    // materialise the ratings before dropping the scores they are built from
+    ratings.count()
+    actionsByScore.unpersist()
 
     val timeFirst = System.currentTimeMillis()
     println("munging data took "+(timeFirst-timeStart)+"ms")
-    val model: MatrixFactorizationModel = ALS.trainImplicit(ratings, rank, iterations, lambda, alpha)
+    val previousItemsPath = toSparkResource(outputFilesLocation, outputDataSourceMode) + (date - 1) + "/productFeatures.txt"
+    // a random start is training with no previous factors, so both paths report each iteration the same way
+    val (previousItems, trainIterations) = if (config.warmStart && SparkUtils.exists(sc, previousItemsPath))
+    {
+      println("warm starting from "+previousItemsPath+" with "+config.warmStartIterations+" iterations")
+      (sc.textFile(previousItemsPath).map { line =>
+        val parts = line.split("\\|")
+        (parts(0).toInt, parts(1).split(",").map(_.toDouble))
+      }, config.warmStartIterations)
+    }
+    else
+    {
+      if (config.warmStart)
+        println("no previous model at "+previousItemsPath+" so training from a random start")
+      (sc.emptyRDD[(Int, Array[Double])], iterations)
+    }
+    val (users, items) = WarmStartAls.train(ratings, previousItems, rank, trainIterations, lambda, alpha, numPartitions, config.reportLoss)
+    val model = new MatrixFactorizationModel(rank, users, items)
     println("training model took "+(System.currentTimeMillis() - timeFirst)+"ms")
     outputModelToFile(model, toOutputResource(outputFilesLocation,outputDataSourceMode), outputDataSourceMode, client,date)
 
@@ -225,6 +237,13 @@ class MfModelCreation(private val sc : SparkContext,config : MfConfig) {
     val gzipUserFile:File = FileUtils.gzip(userFile.getAbsolutePath)
     println(gzipUserFile.getAbsolutePath)
     val gzipProdFile = FileUtils.gzip(productFile.getAbsolutePath)
+    outputToBinaryFile(model, new File(outputFilesLocation+yesterdayUnix+"/userFeatures.bin"),
+      new File(outputFilesLocation+yesterdayUnix+"/productFeatures.bin"))
+  }
+
+  def outputToBinaryFile(model: MatrixFactorizationModel, userFile: File, prodFile: File): Unit = {
+    FileUtils.writeBinaryFactorMatrix(model.userFeatures.collect(), model.rank, userFile)
+    FileUtils.writeBinaryFactorMatrix(model.productFeatures.collect(), model.rank, prodFile)
   }
 
   def outputToFile(model: MatrixFactorizationModel, userFile: File, prodFile: File): Unit = {
@@ -277,6 +296,19 @@ class MfModelCreation(private val sc : SparkContext,config : MfConfig) {
     objProdZip.setKey(s3Folder+yesterdayUnix+"/productFeatures.txt.gz")
     service.putObject(bucket, objProdZip)
     System.out.println("Uploading product features to " + bucketString + " bucket " + objProd.getKey + " file")
+
+    val tmpUserBinFile = File.createTempFile("mfmodelUser",".bin")
+    tmpUserBinFile.deleteOnExit()
+    val tmpProdBinFile = File.createTempFile("mfModelProduct",".bin")
+    tmpProdBinFile.deleteOnExit()
+    outputToBinaryFile(model, tmpUserBinFile, tmpProdBinFile)
+    val objUserBin = new S3Object(tmpUserBinFile)
+    objUserBin.setKey(s3Folder+yesterdayUnix+"/userFeatures.bin")
+    service.putObject(bucket, objUserBin)
+    val objProdBin = new S3Object(tmpProdBinFile)
+    objProdBin.setKey(s3Folder+yesterdayUnix+"/productFeatures.bin")
+    service.putObject(bucket, objProdBin)
+    System.out.println("Uploading binary features to " + bucketString + " bucket " + objProdBin.getKey + " file")
   }
 
   def outputModelToFile(model: MatrixFactorizationModel,outputFilesLocation:String, outputType:DataSourceMode, client:String, yesterdayUnix: Long) {
@@ -365,6 +397,11 @@ object MfModelCreation {
         opt[Double]('m', "lambda") foreach { x =>c = c.copy(lambda = x) } text("the regularization parameter in ALS to stop over-fitting")
         opt[Double]('m', "alpha") foreach { x =>c = c.copy(alpha = x) } text("governs the baseline confidence in preference observations")        
         opt[Int]('u', "iterations") foreach { x =>c = c.copy(iterations = x) } text("the number of iterations to run the modelling")
+        opt[Int]("partitions") foreach { x =>c = c.copy(partitions = x) } text("number of partitions for training, by default sized from the data")
+        opt[Int]("ratingsPerPartition") foreach { x =>c = c.copy(ratingsPerPartition = x) } text("user-item scores per partition when sizing partitions from the data")
+        opt[Unit]("warmStart") foreach { x => c = c.copy(warmStart = true) } text("start from the previous day's model when there is one")
+        opt[Int]("warmStartIterations") foreach { x =>c = c.copy(warmStartIterations = x) } text("the number of iterations to run when warm starting")
+        opt[Unit]("reportLoss") foreach { x => c = c.copy(reportLoss = true) } text("print the training loss after each iteration (slower)")
     }
     
     
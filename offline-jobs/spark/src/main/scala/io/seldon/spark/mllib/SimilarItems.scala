@@ -32,7 +32,11 @@ import org.apache.spark.mllib.linalg.Vectors._
 import org.apache.spark.mllib.linalg.SparseVector
 import org.apache.spark.mllib.linalg.distributed.RowMatrix
 import org.apache.spark.mllib.linalg.distributed.MatrixEntry
+import org.apache.spark.sql.SQLContext
+import org.apache.spark.sql.SaveMode
+import org.apache.spark.sql.functions.col
 import io.seldon.spark.SparkUtils
+import scala.collection.mutable
 import scala.util.Random
 import io.seldon.spark.zookeeper.ZkCuratorHandler
 
@@ -53,41 +57,52 @@ case class SimilarItemsConfig(
     minUsersPerItem : Int = 0,    
     maxUsersPerItem : Int = 2000000,    
     dimsumThreshold : Double = 0.1,
-    sample : Double = 1.0
+    sample : Double = 1.0,
+    
+    incremental : Boolean = false,
+    decay : Double = 0.95, // daily decay of co-occurrence counts in incremental mode
+    minCoOccurrence : Double = 0.1, // decayed co-occurrence counts below this are dropped from the incremental state
+    maxItemsPerUserPerDay : Int = 200 // users with more items than this in a day are ignored in incremental mode
 
 )
     
 class SimilarItems(private val sc : SparkContext,config : SimilarItemsConfig) {
 
   
-  def parseJson(path : String,itemType : Int,sample : Double) = {
+  def readActions(startDay : Int,days : Int,itemType : Int,sample : Double) = {
     
-    val rdd = sc.textFile(path).flatMap{line =>
-      import org.json4s._
-      import org.json4s.jackson.JsonMethods._
-      implicit val formats = DefaultFormats
-      val rand = new Random()    
-      val json = parse(line)
-      val user = (json \ "userid").extract[Int]
-      val item = (json \ "itemid").extract[Int]
-      val itype = (json \ "type").extract[Int]
-      if (itemType == -1 || itype == itemType)
-      {
-        if (rand.nextDouble() < sample)
-          Seq((item,user))
-        else
-          None
-      }
-      else
-        None
+    val filter = if (itemType == -1) None else Some(col("type") === itemType)
+    val rdd = SparkUtils.readActions(sc, config.inputPath, config.client, startDay, days, Seq("itemid","userid"), filter)
+      .rdd.mapPartitions{rows =>
+        val rand = new Random()
+        rows.filter(_ => rand.nextDouble() < sample).map(row => (row.getInt(0),row.getInt(1)))
       }
     
     rdd
   }
   
   def sortAndLimit(similarities : org.apache.spark.rdd.RDD[MatrixEntry],limit : Int) = {
-    val v = similarities.map{me => (me.i,(me.j,me.value))}.groupByKey().mapValues(_.toSeq.sortBy{ case (domain, count) => count }(Ordering[Double].reverse).take(limit)).flatMapValues(v => v)
-    v
+    topK(similarities.map{me => (me.i,(me.j,me.value))},limit)
+  }
+  
+  /**
+   * Keep the highest scoring limit values for each key, holding at most limit values per key while aggregating rather
+   * than grouping and sorting everything
+   */
+  def topK(similarities : org.apache.spark.rdd.RDD[(Long,(Long,Double))],limit : Int) = {
+    val ord = Ordering.by[(Long,Double),Double](_._2).reverse // head of the queue is the lowest score
+    val add = (q : mutable.PriorityQueue[(Long,Double)],v : (Long,Double)) => {
+      if (q.size < limit)
+        q.enqueue(v)
+      else if (v._2 > q.head._2)
+      {
+        q.dequeue()
+        q.enqueue(v)
+      }
+      q
+    }
+    similarities.aggregateByKey(new mutable.PriorityQueue[(Long,Double)]()(ord))(add, (q1,q2) => q2.foldLeft(q1)(add))
+      .flatMapValues(_.toSeq.sortBy(-_._2))
   }
   
   def convertJson(similarities : org.apache.spark.rdd.RDD[(Long,(Long,Double))]) = {
@@ -140,13 +155,89 @@ class SimilarItems(private val sc : SparkContext,config : SimilarItemsConfig) {
   
   
   
+  /**
+   * Co-occurrence counts of the items each user interacted with on a day, scaled by weight. Counts of an item with
+   * itself are the number of users for the item.
+   */
+  def dayCoOccurrences(day : Int,weight : Double) = {
+    val maxItems = config.maxItemsPerUserPerDay
+    readActions(day, 1, config.itemType, config.sample).map{case (item,user) => (user,item)}.distinct().groupByKey()
+      .flatMap{case (user,items) =>
+        val sorted = items.toArray.sorted
+        if (sorted.length > maxItems)
+          Seq()
+        else
+          for (a <- 0 until sorted.length; b <- a until sorted.length) yield ((sorted(a),sorted(b)),weight)
+      }.reduceByKey(_ + _)
+  }
+  
+  def getStatePath(day : Int) = config.outputPath + "/" + config.client + "/item-similarity-state/"+day
+  
+  def loadState(day : Int) = {
+    val sqlContext = SQLContext.getOrCreate(sc)
+    sqlContext.read.parquet(getStatePath(day)).rdd.map(row => ((row.getInt(0),row.getInt(1)),row.getDouble(2)))
+  }
+  
+  def saveState(state : org.apache.spark.rdd.RDD[((Int,Int),Double)],day : Int) = {
+    val sqlContext = SQLContext.getOrCreate(sc)
+    import sqlContext.implicits._
+    state.map{case ((i,j),c) => (i,j,c)}.toDF("item1","item2","count").write.mode(SaveMode.Overwrite).parquet(getStatePath(day))
+  }
+  
+  /**
+   * Cosine similarity of items from their co-occurrence counts, for item pairs with item1 < item2 as from dimsum
+   */
+  def similaritiesFromState(state : org.apache.spark.rdd.RDD[((Int,Int),Double)]) = {
+    val minUsers = config.minUsersPerItem
+    val norms = state.filter{case ((i,j),_) => i == j}.map{case ((i,_),n) => (i,n)}.filter(_._2 >= minUsers)
+    state.filter{case ((i,j),_) => i < j}
+      .map{case ((i,j),c) => (i,(j,c))}.join(norms)
+      .map{case (i,((j,c),ni)) => (j,(i,c,ni))}.join(norms)
+      .map{case (j,((i,c,ni),nj)) => (i.toLong,(j.toLong,c / math.sqrt(ni * nj)))}
+  }
+  
+  /**
+   * Update the decayed co-occurrence state from the previous day with the new day's actions and compute similarities
+   * from it. Without a previous state one is built from the whole window, weighting each day by its decay.
+   */
+  def runIncremental()
+  {
+    val day = config.startDay
+    val decay = config.decay
+    val state = if (SparkUtils.isComplete(sc, getStatePath(day - 1)))
+    {
+      println("updating similarity state from day "+(day - 1))
+      loadState(day - 1).mapValues(_ * decay).union(dayCoOccurrences(day, 1.0))
+    }
+    else
+    {
+      println("no similarity state for day "+(day - 1)+" so building it from "+config.days+" days")
+      sc.union((day - config.days + 1 to day).map(d => dayCoOccurrences(d, math.pow(decay, day - d))))
+    }
+    val minCount = config.minCoOccurrence
+    val newState = state.reduceByKey(_ + _).filter(_._2 >= minCount).cache()
+    saveState(newState, day)
+    
+    val json = convertJson(topK(similaritiesFromState(newState), config.limit))
+    
+    val outPath = config.outputPath + "/" + config.client + "/item-similarity/"+day
+    
+    json.saveAsTextFile(outPath)
+    newState.unpersist()
+  }
+  
   def run()
+  {
+    if (config.incremental)
+      runIncremental()
+    else
+      runFull()
+  }
+  
+  def runFull()
   {
 
-    val glob = config.inputPath + "/" + config.client+"/actions/"+SparkUtils.getS3UnixGlob(config.startDay,config.days)+"/*"
-    println("loading from "+glob)
-    
-    val rddJson = parseJson(glob,config.itemType,config.sample)
+    val rddJson = readActions(config.startDay,config.days,config.itemType,config.sample)
     
     val itemsFiltered = filterItems(rddJson, config.minUsersPerItem, config.maxUsersPerItem)
 
@@ -244,6 +335,10 @@ object SimilarItems
         opt[Int]('p', "minItemsPerUser") foreach { x =>c = c.copy(minItemsPerUser = x) } text("min number of items a user needs to interact with")
         opt[Int]('l', "limit") foreach { x =>c = c.copy(limit = x) } text("keep top N similarities per item")
         opt[Double]('d', "dimsumThreshold") foreach { x =>c = c.copy(dimsumThreshold = x) } text("min cosine similarity estimate for dimsum (soft limit)")
+        opt[Unit]("incremental") foreach { x => c = c.copy(incremental = true) } text("update decayed co-occurrence state from the previous day rather than running dimsum over all days")
+        opt[Double]("decay") foreach { x =>c = c.copy(decay = x) } text("daily decay of co-occurrence counts in incremental mode")
+        opt[Double]("minCoOccurrence") foreach { x =>c = c.copy(minCoOccurrence = x) } text("min decayed co-occurrence count kept in incremental state")
+        opt[Int]("maxItemsPerUserPerDay") foreach { x =>c = c.copy(maxItemsPerUserPerDay = x) } text("ignore users with more items in a day in incremental mode")
         opt[Double]('s', "sample") foreach { x =>c = c.copy(sample = x) } text("what percentage of the input data to use, values in range 0.0..1.0, defaults to 1.0 (use all the data)")        
         opt[String]('a', "awskey") valueName("aws access key") foreach { x => c = c.copy(awsKey = x) } text("aws key")
         opt[String]('s', "awssecret") valueName("aws secret") foreach { x => c = c.copy(awsSecret = x) } text("aws secret")
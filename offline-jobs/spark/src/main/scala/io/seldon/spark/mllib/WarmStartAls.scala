@@ -0,0 +1,176 @@
+/*
+ * Seldon -- open source prediction engine
+ * =======================================
+ * Copyright 2011-2015 Seldon Technologies Ltd and Rummble Ltd (http://www.seldon.io/)
+ *
+ **********************************************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at       
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ ********************************************************************************************** 
+*/
+package io.seldon.spark.mllib
+
+import breeze.linalg.{DenseMatrix => BDM, DenseVector => BDV}
+import org.apache.spark.SparkContext._
+import org.apache.spark.mllib.recommendation.Rating
+import org.apache.spark.rdd.RDD
+import org.apache.spark.storage.StorageLevel
+
+/**
+ * Implicit feedback ALS (Hu, Koren and Volinsky) that starts from existing factors, such as the previous day's model,
+ * so far fewer iterations are needed than from a random start. Regularisation is scaled by the number of ratings as in
+ * MLlib's ALS, so the factors and losses are comparable with its models.
+ */
+object WarmStartAls {
+
+  type Factors = RDD[(Int, Array[Double])]
+
+  /**
+   * Accumulates the normal equations for one user or item from the factors of the other side it has ratings for.
+   */
+  class NormalEquation(val rank : Int) extends Serializable {
+    val ata = new Array[Double](rank * rank)
+    val atb = new Array[Double](rank)
+    var n = 0
+
+    def add(y : Array[Double], r : Double, alpha : Double) : NormalEquation = {
+      val c1 = alpha * math.abs(r) // confidence - 1
+      addOuter(ata, y, c1)
+      if (r > 0)
+        for (k <- 0 until rank) atb(k) += (1.0 + c1) * y(k)
+      n += 1
+      this
+    }
+
+    def merge(o : NormalEquation) : NormalEquation = {
+      for (k <- 0 until ata.length) ata(k) += o.ata(k)
+      for (k <- 0 until rank) atb(k) += o.atb(k)
+      n += o.n
+      this
+    }
+
+    def solve(yty : Array[Double], lambda : Double) : Array[Double] = {
+      val a = new Array[Double](rank * rank)
+      for (k <- 0 until a.length) a(k) = yty(k) + ata(k)
+      for (k <- 0 until rank) a(k * rank + k) += lambda * n
+      (new BDM(rank, rank, a) \ new BDV(atb)).toArray
+    }
+  }
+
+  def addOuter(acc : Array[Double], y : Array[Double], scale : Double) {
+    val rank = y.length
+    for (i <- 0 until rank; j <- 0 until rank) acc(i * rank + j) += scale * y(i) * y(j)
+  }
+
+  def dot(x : Array[Double], y : Array[Double]) : Double = {
+    var s = 0.0
+    for (k <- 0 until x.length) s += x(k) * y(k)
+    s
+  }
+
+  /**
+   * @return Y^T Y of the factors, row major
+   */
+  def gram(factors : Factors, rank : Int) : Array[Double] = {
+    factors.treeAggregate(new Array[Double](rank * rank))(
+        (acc, f) => { addOuter(acc, f._2, 1.0); acc },
+        (a, b) => { for (k <- 0 until a.length) a(k) += b(k); a })
+  }
+
+  /**
+   * Solve one side given the fixed factors of the other.
+   * @param ratings (id to solve for, id of the fixed side, rating)
+   */
+  def solve(ratings : RDD[(Int, Int, Double)], fixed : Factors, rank : Int, lambda : Double, alpha : Double, partitions : Int) : Factors = {
+    val bYty = ratings.sparkContext.broadcast(gram(fixed, rank))
+    ratings.map{ case (s, d, r) => (d, (s, r)) }.join(fixed, partitions)
+      .map{ case (_, ((s, r), y)) => (s, (y, r)) }
+      .aggregateByKey(new NormalEquation(rank), partitions)((ne, v) => ne.add(v._1, v._2, alpha), (a, b) => a.merge(b))
+      .mapValues(_.solve(bYty.value, lambda))
+  }
+
+  /**
+   * Random non negative unit vectors for ids without factors, seeded by id.
+   */
+  def initialise(ids : RDD[Int], existing : Factors, rank : Int, partitions : Int) : Factors = {
+    ids.map(id => (id, ())).leftOuterJoin(existing, partitions).map{
+      case (id, (_, Some(f))) if f.length == rank => (id, f)
+      case (id, _) =>
+        val rand = new java.util.Random(id)
+        val f = Array.fill(rank)(math.abs(rand.nextGaussian()))
+        val norm = math.sqrt(dot(f, f))
+        (id, f.map(_ / norm))
+    }
+  }
+
+  /**
+   * The implicit ALS objective: the confidence weighted error over all user-item pairs, using
+   * sum over all pairs of (x.y)^2 = sum over users of x^T (Y^T Y) x so only observed pairs are visited, plus
+   * regularisation.
+   */
+  def loss(ratings : RDD[Rating], users : Factors, items : Factors, rank : Int, lambda : Double, alpha : Double) : Double = {
+    val bYty = ratings.sparkContext.broadcast(gram(items, rank))
+    val observed = ratings.map(r => (r.user, (r.product, r.rating))).join(users)
+      .map{ case (_, ((i, r), x)) => (i, (r, x)) }.join(items)
+      .map{ case (_, ((r, x), y)) =>
+        val p = if (r > 0) 1.0 else 0.0
+        val c = 1.0 + alpha * math.abs(r)
+        val xy = dot(x, y)
+        c * (p - xy) * (p - xy) - xy * xy + lambda * (dot(x, x) + dot(y, y))
+      }.sum()
+    val unobserved = users.map{ case (_, x) =>
+      val yty = bYty.value
+      var s = 0.0
+      for (i <- 0 until rank; j <- 0 until rank) s += x(i) * yty(i * rank + j) * x(j)
+      s
+    }.sum()
+    observed + unobserved
+  }
+
+  /**
+   * Train from previous item factors, printing the time of each iteration and, if asked, its loss. Only item factors
+   * are needed as each iteration starts by solving the users exactly from the items; items without previous factors,
+   * or all of them when there are none, start from random ones.
+   * @return user and item factors for the users and items in the ratings
+   */
+  def train(ratings : RDD[Rating], previousItems : Factors, rank : Int, iterations : Int,
+      lambda : Double, alpha : Double, partitions : Int, reportLoss : Boolean = false) : (Factors, Factors) = {
+    val byUser = ratings.map(r => (r.user, r.product, r.rating))
+    val byItem = ratings.map(r => (r.product, r.user, r.rating))
+    var items = initialise(ratings.map(_.product).distinct(partitions), previousItems, rank, partitions)
+      .persist(StorageLevel.MEMORY_AND_DISK)
+    var users : Factors = null
+    for (iteration <- 1 to math.max(1, iterations))
+    {
+      val start = System.currentTimeMillis()
+      val newUsers = solve(byUser, items, rank, lambda, alpha, partitions).persist(StorageLevel.MEMORY_AND_DISK)
+      val newItems = solve(byItem, newUsers, rank, lambda, alpha, partitions).persist(StorageLevel.MEMORY_AND_DISK)
+      newItems.count()
+      if (users != null)
+        users.unpersist(false)
+      items.unpersist(false)
+      users = newUsers
+      items = newItems
+      val trained = System.currentTimeMillis()
+      if (reportLoss)
+      {
+        val l = loss(ratings, users, items, rank, lambda, alpha)
+        println("iteration "+iteration+" took "+(trained - start)+"ms loss "+l+" (loss took "+(System.currentTimeMillis() - trained)+"ms)")
+      }
+      else
+        println("iteration "+iteration+" took "+(trained - start)+"ms")
+    }
+    (users, items)
+  }
+}
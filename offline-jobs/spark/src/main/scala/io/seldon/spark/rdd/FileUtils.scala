@@ -1,5 +1,6 @@
 package io.seldon.spark.rdd
 
+import java.nio.{ByteBuffer, ByteOrder}
 import java.util.zip.GZIPOutputStream
 
 import org.apache.spark.rdd.RDD
@@ -79,6 +80,41 @@ object FileUtils {
      service.putObject(bucket, obj)
   }
 
+  // must match io.seldon.recommendation.model.BinaryModelFile in the server
+  val BINARY_MODEL_MAGIC = 0x534C444E
+  val BINARY_MODEL_VERSION = 1
+  val BINARY_MODEL_HEADER_SIZE = 32
+  val BINARY_MODEL_FACTOR_MATRIX = 1
+
+  /**
+   * Write factors as a little-endian binary factor matrix the server can memory map:
+   * 32 byte header, long ids then row-major float factors.
+   */
+  def writeBinaryFactorMatrix(features: Array[(Int, Array[Double])], rank: Int, f: File) {
+    val out = new BufferedOutputStream(new FileOutputStream(f), 1 << 16)
+    try {
+      val header = ByteBuffer.allocate(BINARY_MODEL_HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN)
+      header.putInt(BINARY_MODEL_MAGIC).putInt(BINARY_MODEL_VERSION).putInt(BINARY_MODEL_FACTOR_MATRIX)
+        .putInt(rank).putLong(features.length.toLong).putLong(0L)
+      out.write(header.array())
+      val ids = ByteBuffer.allocate(8).order(ByteOrder.LITTLE_ENDIAN)
+      features.foreach { case (id, _) =>
+        ids.clear()
+        ids.putLong(id.toLong)
+        out.write(ids.array())
+      }
+      val row = ByteBuffer.allocate(4 * rank).order(ByteOrder.LITTLE_ENDIAN)
+      features.foreach { case (id, factors) =>
+        require(factors.length == rank, "Expected rank "+rank+" for id "+id+" but got "+factors.length)
+        row.clear()
+        factors.foreach(d => row.putFloat(d.toFloat))
+        out.write(row.array())
+      }
+    } finally {
+      out.close()
+    }
+  }
+
   def gzip(path: String):File = {
     val buf = new Array[Byte](1024)
     val src = new File(path)
@@ -75,18 +75,10 @@ class MostPopularByDimJob(private val sc : SparkContext,config : MostPopularByDi
     rdd
   }
   
-   def parseJson(path : String) = {
+   def readActions() = {
     
-    val rdd = sc.textFile(path).map{line =>
-      import org.json4s._
-      import org.json4s.jackson.JsonMethods._
-      implicit val formats = DefaultFormats
-    
-      val json = parse(line)
-      val item = (json \ "itemid").extract[Int]
-      val value = (json \ "value").extract[Float]
-      (item,value+1)
-      }
+    val rdd = SparkUtils.readActions(sc, config.inputPath, config.client, config.startDay, config.days, Seq("itemid","value"))
+      .rdd.map(row => (row.getInt(0),row.getDouble(1).toFloat+1))
     
     rdd
   }
@@ -120,11 +112,8 @@ class MostPopularByDimJob(private val sc : SparkContext,config : MostPopularByDi
 
     
 
-    val glob = config.inputPath + "/" + config.client+"/actions/"+SparkUtils.getS3UnixGlob(config.startDay,config.days)+"/*"
-    println("loading from "+glob)
-
-    // parse json from inputs
-    val rddItem = parseJson(glob)
+    // read actions from inputs
+    val rddItem = readActions()
     val k = config.k
     val minCount = config.minCount  
     val itemsDim = itemDimValid.join(rddItem).map{case (item, (dim,value)) => ((item,dim), value) }.
@@ -17,6 +17,7 @@ import scala.collection.mutable.ListBuffer
 import org.apache.spark.rdd.RDD
 import org.joda.time.DateTime
 import org.joda.time.Period
+import org.apache.spark.sql.functions.col
 import io.seldon.spark.SparkUtils
 
 
@@ -39,20 +40,10 @@ class MostPopularJob(private val sc : SparkContext,config : MostPopularConfig) {
   
   
   
-   def parseJson(path : String) = {
+   def readActions() = {
     
-    val rdd = sc.textFile(path).flatMap{line =>
-      import org.json4s._
-      import org.json4s.jackson.JsonMethods._
-      implicit val formats = DefaultFormats
-    
-      val json = parse(line)
-      val item = (json \ "itemid").extract[Int]
-      if (item > 0)
-        Seq((item,1))
-      else
-        None
-      }
+    val rdd = SparkUtils.readActions(sc, config.inputPath, config.client, config.startDay, config.days, Seq("itemid"), Some(col("itemid") > 0))
+      .rdd.map(row => (row.getInt(0),1))
     
     rdd
   }
@@ -76,11 +67,8 @@ class MostPopularJob(private val sc : SparkContext,config : MostPopularConfig) {
   
   def run()
   {
-    val glob = config.inputPath + "/" + config.client+"/actions/"+SparkUtils.getS3UnixGlob(config.startDay,config.days)+"/*"
-    println("loading from "+glob)
-
-    // parse json from inputs
-    val rddItem = parseJson(glob).reduceByKey{_+_}
+    // read actions from inputs
+    val rddItem = readActions().reduceByKey{_+_}
     
     val json = convertJson(rddItem)
     
@@ -0,0 +1,72 @@
+/*
+ * Seldon -- open source prediction engine
+ * =======================================
+ * Copyright 2011-2015 Seldon Technologies Ltd and Rummble Ltd (http://www.seldon.io/)
+ *
+ **********************************************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at       
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ ********************************************************************************************** 
+*/
+package io.seldon.spark.streaming
+
+import java.sql.Connection
+import java.sql.DriverManager
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.LinkedBlockingQueue
+
+/**
+ * Reuses JDBC connections within an executor so streaming jobs don't open a connection for every write.
+ */
+object JdbcConnectionPool {
+
+  private val pools = new ConcurrentHashMap[String, LinkedBlockingQueue[Connection]]()
+
+  private def pool(url : String) = {
+    val p = pools.get(url)
+    if (p != null) p else {
+      val created = new LinkedBlockingQueue[Connection]()
+      val existing = pools.putIfAbsent(url, created)
+      if (existing != null) existing else created
+    }
+  }
+
+  /**
+   * Run f with a pooled connection. A connection that fails is closed rather than returned to the pool.
+   */
+  def withConnection[T](url : String)(f : Connection => T) : T = {
+    classOf[com.mysql.jdbc.Driver]
+    val p = pool(url)
+    var conn = p.poll()
+    while (conn != null && !conn.isValid(1))
+    {
+      conn.close()
+      conn = p.poll()
+    }
+    if (conn == null)
+      conn = DriverManager.getConnection(url)
+    try
+    {
+      val result = f(conn)
+      p.offer(conn)
+      result
+    }
+    catch
+    {
+      case e : Exception =>
+        conn.close()
+        throw e
+    }
+  }
+}
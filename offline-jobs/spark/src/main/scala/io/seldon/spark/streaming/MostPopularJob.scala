@@ -23,12 +23,17 @@ package io.seldon.spark.streaming
 
 
 
+
 import kafka.producer._
 
+import scala.collection.mutable
+
+import org.apache.spark.rdd.RDD
 import org.apache.spark.streaming._
 import org.apache.spark.streaming.StreamingContext._
 import org.apache.spark.streaming.dstream.{DStream, ReceiverInputDStream}
 import org.apache.spark.streaming.kafka._
+import org.apache.spark.streaming.scheduler.{StreamingListener, StreamingListenerBatchCompleted}
 import org.apache.spark.SparkConf
 import org.apache.spark.streaming.{Minutes, StreamingContext}
 import org.apache.log4j.Level
@@ -52,7 +57,13 @@ case class MostPopularConfig(
     zkQuorum : String = "localhost",
     kafkaGroupId : String = "spark-impressions-group",
     kafka_topics : String = "impressionstopic",
-    kafka_numThreadPartitions : Int = 1
+    kafka_numThreadPartitions : Int = 1,
+    decay_secs : Int = 82400,
+    top_n : Int = 1000,
+    min_change : Double = 0.01,
+    write_batch_size : Int = 500,
+    checkpoint_dir : String = "",
+    backpressure : Boolean = true
     )
 
 
@@ -64,7 +75,10 @@ class MostPopularJob(private val sc : StreamingContext,config : MostPopularConfi
   
  
 
-  def run()
+  /**
+   * Define the streams. Only called when there is no checkpoint to recover them from.
+   */
+  def setup()
   {
     var lines:DStream[String] = null
     val connectionString:String = config.jdbc
@@ -77,7 +91,7 @@ class MostPopularJob(private val sc : StreamingContext,config : MostPopularConfi
       lines = KafkaUtils.createStream(sc, config.zkQuorum, config.kafkaGroupId, topicMap).map(_._2)
     }
 
-    val okClients= config.clients
+    val okClients = config.clients.split(",").map(_.trim).toSet
     val linesMapped = lines
       .map{
       case line =>
@@ -90,15 +104,36 @@ class MostPopularJob(private val sc : StreamingContext,config : MostPopularConfi
     } .filter(x => okClients.contains(x._1._1))
     val counts = linesMapped
       .reduceByKey(_+_)
-    val countsRemapped = counts.map(x=> (x._1._1,(x._1._2, x._2))).repartition(2)
-    countsRemapped.foreachRDD(x => {
-      
-      x.groupBy(_._1).foreach(x=>MostPopularJob.updateDb(x._1, x._2, connectionString))
-    })
-
 
+    // each (client, item) holds its score as of the last batch it was seen in, decayed by the batch clock
+    val decaySecs = config.decay_secs.toDouble
+    val updateScore = (time : Time, key : (String, Int), count : Option[Int], state : State[(Double, Long)]) => {
+      if (state.isTimingOut())
+        None
+      else
+      {
+        val now = time.milliseconds
+        val decayed = state.getOption.map{case (score, last) => MostPopularJob.decay(score, last, now, decaySecs)}.getOrElse(0.0)
+        val score = decayed + count.getOrElse(0)
+        state.update((score, now))
+        Some((key, score))
+      }
+    }
+    // after this long an item's score is under 0.1% of what it was so it is dropped from the state
+    val spec = StateSpec.function(updateScore).timeout(Seconds(config.decay_secs * 7))
+    val scores = counts.mapWithState(spec)
 
+    val topN = config.top_n
+    val minChange = config.min_change
+    val batchSize = config.write_batch_size
+    scores.stateSnapshots().foreachRDD((rdd, time) => {
+      MostPopularJob.writeTopN(rdd, time, okClients, decaySecs, topN, minChange, batchSize, connectionString)
+    })
+  }
 
+  def run()
+  {
+    sc.addStreamingListener(new BatchMetricsListener(config.mini_batch_secs * 1000L))
     sc.start()
     sc.awaitTermination()
   }
@@ -106,34 +141,119 @@ class MostPopularJob(private val sc : StreamingContext,config : MostPopularConfi
 
 }
 
+/**
+ * Prints each batch's delays so it is visible when the job falls behind its mini-batch interval.
+ */
+class BatchMetricsListener(batchMs : Long) extends StreamingListener {
+
+  override def onBatchCompleted(batchCompleted : StreamingListenerBatchCompleted) {
+    val info = batchCompleted.batchInfo
+    val processing = info.processingDelay.getOrElse(0L)
+    println("batch "+info.batchTime+" records "+info.numRecords+" scheduling delay ms "+info.schedulingDelay.getOrElse(0L)+
+        " processing ms "+processing+" total delay ms "+info.totalDelay.getOrElse(0L))
+    if (processing > batchMs)
+      println("WARNING: batch "+info.batchTime+" took "+processing+" ms which is longer than the batch interval of "+batchMs+" ms")
+  }
+}
+
 
 object MostPopularJob
 {
-   def updateDb(client: String, records: Iterable[(String, (Int, Int))], conn_str: String) {
-import java.sql.{ResultSet, DriverManager}
-    classOf[com.mysql.jdbc.Driver]
-    val dbclient:String = client 
-    // Setup the connection
-    val conn = DriverManager.getConnection(conn_str)
-    try {
-    // Configure to be Read Only
-    val statement = conn.createStatement(ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY)
-
-    var query: StringBuilder = new StringBuilder
-
-    query = query.append("insert into "+dbclient+".items_recent_popularity (item_id, score, decay_id) values ")
-    query =
-      ((records.tail foldLeft (query.append("("+ records.head._2._1 + "," + records.head._2._2+",1)"))) {(acc, e) => acc.append(", ").append("("+ e._2._1 + "," + e._2._2+",1)")})
-
-    query = query.append(" on duplicate key update score=VALUES(score)+exp(-(greatest(CURRENT_TIMESTAMP()-last_update,0)/82400))*score")
-    println(query)
-    // Execute Query
-    statement.execute(query.toString())
+  // scores last written for each client's top items so each batch only writes what has changed
+  private val written = mutable.Map[String, Map[Int, Double]]()
+  // clients whose existing rows have been zeroed since this driver started, rows written by an earlier run
+  // aren't in written so they would otherwise never be zeroed when they leave the top
+  private val reset = mutable.Set[String]()
 
+  def decay(score : Double, from : Long, to : Long, decaySecs : Double) : Double = {
+    score * math.exp(-math.max(to - from, 0L) / 1000.0 / decaySecs)
   }
-    finally {
-    conn.close
+
+  /**
+   * Find each client's top items as of the batch time and write those whose score has moved by more than
+   * minChange since it was last written. Items that have left the top are written with a zero score. The
+   * first write for a client after the driver starts zeroes all its rows before writing its whole top.
+   */
+  def writeTopN(rdd : RDD[((String, Int), (Double, Long))], time : Time, clients : Set[String], decaySecs : Double, topN : Int, minChange : Double, batchSize : Int, connStr : String) {
+    val now = time.milliseconds
+    val ord = Ordering.by[(Int, Double), Double](_._2).reverse
+    val add = (q : mutable.PriorityQueue[(Int, Double)], v : (Int, Double)) => {
+      if (q.size < topN)
+        q.enqueue(v)
+      else if (v._2 > q.head._2)
+      {
+        q.dequeue()
+        q.enqueue(v)
+      }
+      q
+    }
+    val tops = rdd.map{case ((client, item), (score, last)) => (client, (item, decay(score, last, now, decaySecs)))}
+      .aggregateByKey(new mutable.PriorityQueue[(Int, Double)]()(ord))(add, (q1, q2) => q2.foldLeft(q1)(add))
+      .mapValues(_.toMap)
+      .collect().toMap
+
+    val changes = (clients ++ tops.keySet ++ written.keySet).toList.map { client =>
+      val top = tops.getOrElse(client, Map[Int, Double]())
+      val previous = written.getOrElse(client, Map[Int, Double]())
+      val changed = top.filter{case (item, score) => previous.get(item).forall(p => math.abs(score - p) > minChange * p)}
+      val dropped = previous.keys.filterNot(top.contains).map((_, 0.0))
+      (client, changed, dropped, !reset.contains(client))
+    }.filter(c => c._2.nonEmpty || c._3.nonEmpty || c._4)
+
+    if (changes.nonEmpty)
+    {
+      val rows = changes.map(c => (c._1, (c._2 ++ c._3).toList, c._4)).toList
+      rdd.sparkContext.parallelize(rows, rows.size).foreachPartition(_.foreach{case (client, r, zero) => upsert(client, r, zero, batchSize, connStr)})
+      for ((client, changed, dropped, zero) <- changes)
+      {
+        written(client) = written.getOrElse(client, Map[Int, Double]()) -- dropped.map(_._1) ++ changed
+        reset += client
+      }
+    }
+    println("batch "+time+" wrote "+changes.map(c => c._2.size + c._3.size).sum+" changed scores for "+changes.size+" clients")
   }
+
+  /**
+   * Write scores for a client in one transaction, first zeroing all its rows if zeroExisting is set.
+   */
+  def upsert(client : String, rows : Seq[(Int, Double)], zeroExisting : Boolean, batchSize : Int, connStr : String) {
+    JdbcConnectionPool.withConnection(connStr) { conn =>
+      conn.setAutoCommit(false)
+      if (zeroExisting)
+      {
+        val statement = conn.prepareStatement("update "+client+".items_recent_popularity set score=0 where decay_id=1 and score<>0")
+        try
+        {
+          statement.executeUpdate()
+        }
+        finally
+        {
+          statement.close()
+        }
+      }
+      for (batch <- rows.grouped(batchSize))
+      {
+        val sql = "insert into "+client+".items_recent_popularity (item_id, score, decay_id) values "+
+          Seq.fill(batch.size)("(?,?,1)").mkString(",")+" on duplicate key update score=VALUES(score)"
+        val statement = conn.prepareStatement(sql)
+        try
+        {
+          var i = 1
+          for ((item, score) <- batch)
+          {
+            statement.setInt(i, item)
+            statement.setFloat(i + 1, score.toFloat)
+            i += 2
+          }
+          statement.executeUpdate()
+        }
+        finally
+        {
+          statement.close()
+        }
+      }
+      conn.commit()
+    }
   }
   
   def main(args: Array[String]) 
@@ -153,16 +273,30 @@ import java.sql.{ResultSet, DriverManager}
     opt[Int]("kafka-thread-partitions") valueName("kafka thread partitions") action { (x, c) => c.copy(kafka_numThreadPartitions = x) } text("kafka number of thread partitions")                        
     opt[Int]("mini-batch-secs") valueName("mini-batch secs") action { (x, c) => c.copy(mini_batch_secs = x) } text("time interval between streaming runs")         
     opt[String]('j', "jdbc") required() valueName("<JDBC URL>") action { (x, c) => c.copy(jdbc = x) } text("jdbc url")    
+    opt[Int]("decay-secs") valueName("decay secs") action { (x, c) => c.copy(decay_secs = x) } text("time constant for the exponential decay of scores")
+    opt[Int]("top-n") valueName("top n") action { (x, c) => c.copy(top_n = x) } text("number of most popular items to keep in the db for each client")
+    opt[Double]("min-change") valueName("min change") action { (x, c) => c.copy(min_change = x) } text("relative change in score before it is written again")
+    opt[Int]("write-batch-size") valueName("write batch size") action { (x, c) => c.copy(write_batch_size = x) } text("rows per insert statement")
+    opt[String]("checkpoint-dir") required() valueName("checkpoint dir") action { (x, c) => c.copy(checkpoint_dir = x) } text("directory for streaming state checkpoints on storage shared by the cluster, e.g. hdfs or s3n; the job recovers its state from it on restart")
+    opt[Boolean]("backpressure") valueName("true/false") action { (x, c) => c.copy(backpressure = x) } text("limit the receive rate when batches fall behind")
     }
     
     parser.parse(args, MostPopularConfig()) map { config =>
     val conf = new SparkConf()
       .setAppName("InfluxDbImpressionsStatsJob")
+      .set("spark.streaming.backpressure.enabled", config.backpressure.toString)
     
     if (config.local)
       conf.setMaster("local[2]")
     
-    val sc = new StreamingContext(conf, Seconds(config.mini_batch_secs)) 
+    // recover the streams and their state from the checkpoint if there is one, any changed options that
+    // shape the streams (decay, top n, clients, jdbc) only apply once the checkpoint dir is cleared
+    val sc = StreamingContext.getOrCreate(config.checkpoint_dir, () => {
+      val ssc = new StreamingContext(conf, Seconds(config.mini_batch_secs))
+      ssc.checkpoint(config.checkpoint_dir)
+      new MostPopularJob(ssc,config).setup()
+      ssc
+    })
     
     try
     {
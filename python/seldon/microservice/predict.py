@@ -17,22 +17,10 @@ def extract_input():
     }
     return input
 
-@predict_blueprint.route('/predict',methods=['GET','POST'])
-def do_predict():
-    """
-    prediction endpoint
-
-    - get recommeder from Flask app config
-    - create dataframe from JSON in call
-    - call prediction pipeline 
-    - get class id mapping
-    - construct result
-    """
-    input = extract_input()
-    print input
+def predict_one(j):
     pw = current_app.config["seldon_pipeline_wrapper"]
     pipeline = current_app.config["seldon_pipeline"]
-    df = pw.create_dataframe(input["json"]["data"])
+    df = pw.create_dataframe(j["data"])
     preds = pipeline.predict_proba(df)
     idMap = pipeline._final_estimator.get_class_id_map()
     formatted_recs_list=[]
@@ -46,6 +34,25 @@ def do_predict():
             "predictedClass": indexName,
             "confidence" : str(proba)
         })
-    ret = { "predictions": formatted_recs_list , "meta": {"modelName" : current_app.config['seldon_model_name']}}
+    return { "predictions": formatted_recs_list , "meta": {"modelName" : current_app.config['seldon_model_name']}}
+
+@predict_blueprint.route('/predict',methods=['GET','POST'])
+def do_predict():
+    """
+    prediction endpoint
+
+    - get recommeder from Flask app config
+    - create dataframe from JSON in call
+    - call prediction pipeline 
+    - get class id mapping
+    - construct result
+
+    A JSON list of requests is a batch and gets a list of results in the same order
+    """
+    input = extract_input()
+    if isinstance(input["json"], list):
+        ret = { "results": [predict_one(j) for j in input["json"]] }
+    else:
+        ret = predict_one(input["json"])
     json = jsonify(ret)
     return json
@@ -5,20 +5,20 @@ import json
 recommend_blueprint = Blueprint('recommend', __name__)
 
 def extract_input():
-    user_id = long(request.args.get('user_id'))
-    client = request.args.get('client')
-    limit = int(request.args.get('limit'))
-    exclusion_items = request.args.get('exclusion_items')
+    user_id = long(request.values.get('user_id'))
+    client = request.values.get('client')
+    limit = int(request.values.get('limit'))
+    exclusion_items = request.values.get('exclusion_items')
     if not exclusion_items is None and len(exclusion_items) > 0:
         exclusion_items_list = map(lambda x: long(x), exclusion_items.split(","))
     else:
         exclusion_items_list = []
-    recent_interactions = request.args.get('recent_interactions')
+    recent_interactions = request.values.get('recent_interactions')
     if not recent_interactions is None and len(recent_interactions) > 0:
         recent_interactions_list = map(lambda x: long(x), recent_interactions.split(","))
     else:
         recent_interactions_list = []
-    data_keys = request.args.get('data_key')
+    data_keys = request.values.get('data_key')
     if not data_keys is None:
         data_keys_list = map(lambda x: str(x), data_keys.split(","))
     else:
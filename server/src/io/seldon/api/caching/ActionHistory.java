@@ -24,10 +24,17 @@ package io.seldon.api.caching;
 import io.seldon.api.APIException;
 import io.seldon.general.Action;
 
+import java.util.Collection;
 import java.util.List;
+import java.util.Map;
 
 public interface ActionHistory {
 	public List<Long> getRecentActions(String clientName,long userId,int numActions);
+	/**
+	 * Recent actions for many users at once, for bulk scoring.
+	 * @return the most recent item ids for each user, most recent first
+	 */
+	public Map<Long,List<Long>> getRecentActions(String clientName,Collection<Long> userIds,int numActions);
 	public List<Action> getRecentFullActions(String clientName,long userId,int numActions);
 	public void addFullAction(String clientName,final Action a) throws APIException;
 	public void addAction(String clientName,long userId,final long itemId) throws APIException;
@@ -27,6 +27,7 @@ import io.seldon.api.state.ClientConfigUpdateListener;
 import io.seldon.general.Action;
 
 import java.io.IOException;
+import java.util.Collection;
 import java.util.List;
 import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
@@ -121,6 +122,16 @@ public class ActionHistoryProvider implements ApplicationContextAware,ClientConf
 			return defaultProvider.getRecentActions(clientName, userId, numActions);
 	}
 
+	@Override
+	public Map<Long,List<Long>> getRecentActions(String clientName, Collection<Long> userIds,
+			int numActions) {
+		ActionProvider ap = providers.get(clientName);
+		if (ap != null)
+			return ap.provider.getRecentActions(clientName, userIds, numActions);
+		else
+			return defaultProvider.getRecentActions(clientName, userIds, numActions);
+	}
+
 	@Override
 	public List<Action> getRecentFullActions(String clientName, long userId,
 			int numActions) {
@@ -26,7 +26,16 @@ package io.seldon.api.caching;
 import io.seldon.api.state.NewClientListener;
 import io.seldon.api.state.options.DefaultOptions;
 import io.seldon.api.state.zk.ZkClientConfigHandler;
+import io.seldon.db.jdbc.JDBCConnectionFactory;
+import io.seldon.db.jdo.DbConfigHandler;
+import io.seldon.db.jdo.DbConfigListener;
 
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Collection;
+import java.util.HashMap;
 import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
 
@@ -34,14 +43,21 @@ import javax.annotation.PostConstruct;
 
 import org.apache.log4j.Logger;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Component;
 
+/**
+ * Client to internal id caches. Users and, by default, items are held in small LRU caches. When the item
+ * dictionary is enabled every item id of a client is loaded into a {@link ClientIdDictionary} once its database
+ * is set up, and kept complete as ids are added, so item ids can be translated without leaving the process.
+ */
 @Component
-public class ClientIdCacheStore implements NewClientListener {
+public class ClientIdCacheStore implements NewClientListener, DbConfigListener {
 	private static Logger logger = Logger.getLogger(ClientIdCacheStore.class.getName());
 	
 	private ConcurrentHashMap<String,ClientIdCache> userCaches = new ConcurrentHashMap<>();
 	private ConcurrentHashMap<String,ClientIdCache> itemCaches = new ConcurrentHashMap<>();
+	private ConcurrentHashMap<String,ClientIdDictionary> itemDictionaries = new ConcurrentHashMap<>();
 	
 	private static final String PROP_PREFIX = "io.seldon.idstore";
 	private static final int DEF_USER_CACHE_SIZE = 10000;
@@ -50,11 +66,76 @@ public class ClientIdCacheStore implements NewClientListener {
 	DefaultOptions options;
 	ZkClientConfigHandler clientConfigHandler;
 	
+	@Value("${idstore.items.dictionary.enabled:false}")
+	boolean itemDictionaryEnabled;
+	
+	@Value("${idstore.items.dictionary.offheap:false}")
+	boolean itemDictionaryOffHeap;
+	
 	@Autowired
-	public ClientIdCacheStore(DefaultOptions options,ZkClientConfigHandler clientConfigHandler)
+	public ClientIdCacheStore(DefaultOptions options,ZkClientConfigHandler clientConfigHandler,DbConfigHandler dbConfigHandler)
 	{
 		this.options = options;
 		this.clientConfigHandler = clientConfigHandler;
+		dbConfigHandler.addDbConfigListener(this);
+	}
+	
+	@PostConstruct
+	private void init()
+	{
+		clientConfigHandler.addNewClientListener(this, true);
+	}
+	
+	@Override
+	public void dbConfigInitialised(final String client) {
+		if (!itemDictionaryEnabled || itemDictionaries.containsKey(client))
+			return;
+		Thread loader = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				try
+				{
+					long t1 = System.currentTimeMillis();
+					ClientIdDictionary dictionary = loadItemDictionary(client);
+					itemDictionaries.put(client, dictionary);
+					logger.info("Loaded item id dictionary for "+client+" with "+dictionary.size()+" ids in "+(System.currentTimeMillis()-t1)+" msec");
+				}
+				catch (Exception e)
+				{
+					logger.error("Failed to load item id dictionary for "+client+" will use item id cache", e);
+				}
+			}
+		}, "item-dictionary-"+client);
+		loader.setDaemon(true);
+		loader.start();
+	}
+	
+	private ClientIdDictionary loadItemDictionary(String client) throws SQLException
+	{
+		ClientIdDictionary dictionary = new ClientIdDictionary(itemDictionaryOffHeap);
+		Connection connection = JDBCConnectionFactory.get().getConnection(client);
+		try
+		{
+			Statement statement = connection.createStatement();
+			try
+			{
+				// stream rows rather than buffer the whole table in the driver
+				statement.setFetchSize(Integer.MIN_VALUE);
+				ResultSet rs = statement.executeQuery("select item_id,client_item_id from items");
+				while (rs.next())
+					dictionary.put(rs.getString(2), rs.getLong(1));
+				rs.close();
+			}
+			finally
+			{
+				statement.close();
+			}
+		}
+		finally
+		{
+			connection.close();
+		}
+		return dictionary;
 	}
 	
 	private void addClient(String client)
@@ -76,6 +157,7 @@ public class ClientIdCacheStore implements NewClientListener {
 	public void clientDeleted(String client) {
 		logger.info("Removing client: "+client);
 		itemCaches.remove(client);
+		itemDictionaries.remove(client);
 		userCaches.remove(client);
 	}
 	
@@ -99,7 +181,10 @@ public class ClientIdCacheStore implements NewClientListener {
 	
 	public void putItemId(String client,String external,Long internal)
 	{
-		if (itemCaches.containsKey(client))
+		ClientIdDictionary dictionary = itemDictionaries.get(client);
+		if (dictionary != null)
+			dictionary.put(external, internal);
+		else if (itemCaches.containsKey(client))
 			itemCaches.get(client).add(external, internal);
 	}
 	
@@ -121,7 +206,13 @@ public class ClientIdCacheStore implements NewClientListener {
 	
 	public Long getInternalItemId(String client,String clientId)
 	{
-		if (itemCaches.containsKey(client))
+		ClientIdDictionary dictionary = itemDictionaries.get(client);
+		if (dictionary != null)
+		{
+			long itemId = dictionary.get(clientId);
+			return itemId != ClientIdDictionary.NOT_FOUND ? itemId : null;
+		}
+		else if (itemCaches.containsKey(client))
 			return itemCaches.get(client).getInternal(clientId);
 		else
 			return null;
@@ -129,12 +220,47 @@ public class ClientIdCacheStore implements NewClientListener {
 	
 	public String getExternalItemId(String client,Long itemId)
 	{
-		if (itemCaches.containsKey(client))
+		ClientIdDictionary dictionary = itemDictionaries.get(client);
+		if (dictionary != null)
+			return dictionary.reverse(itemId);
+		else if (itemCaches.containsKey(client))
 			return itemCaches.get(client).getExternal(itemId);
 		else
 			return null;
 	}
 	
+	/**
+	 * @return internal ids of the client item ids that are cached
+	 */
+	public Map<String,Long> getInternalItemIds(String client,Collection<String> clientIds)
+	{
+		ClientIdDictionary dictionary = itemDictionaries.get(client);
+		if (dictionary != null)
+			return dictionary.resolve(clientIds);
+		Map<String,Long> res = new HashMap<>();
+		for (String clientId : clientIds)
+		{
+			Long itemId = getInternalItemId(client, clientId);
+			if (itemId != null)
+				res.put(clientId, itemId);
+		}
+		return res;
+	}
+	
+	/**
+	 * @return client item ids in the same order, null for those not cached
+	 */
+	public String[] getExternalItemIds(String client,long[] itemIds)
+	{
+		ClientIdDictionary dictionary = itemDictionaries.get(client);
+		if (dictionary != null)
+			return dictionary.reverse(itemIds);
+		String[] res = new String[itemIds.length];
+		for (int i = 0; i < itemIds.length; i++)
+			res[i] = getExternalItemId(client, itemIds[i]);
+		return res;
+	}
+	
 	
 	
 }
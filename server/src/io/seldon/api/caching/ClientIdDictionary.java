@@ -0,0 +1,303 @@
+/*
+ * Seldon -- open source prediction engine
+ * =======================================
+ *
+ * Copyright 2011-2015 Seldon Technologies Ltd and Rummble Ltd (http://www.seldon.io/)
+ *
+ * ********************************************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * ********************************************************************************************
+ */
+
+
+package io.seldon.api.caching;
+
+import it.unimi.dsi.fastutil.longs.Long2IntOpenHashMap;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Complete two way map between a client's ids and internal ids, compact enough to hold every item of a client.
+ * <p>
+ * Client ids are interned as UTF-8 bytes appended to one buffer, which can be allocated off the heap, and
+ * located through an open addressing table of entry numbers. Internal ids are held in a primitive array by entry
+ * and mapped back to entries with a primitive hash map, so there is no object per id beyond what a lookup creates.
+ */
+public class ClientIdDictionary {
+
+	public static final long NOT_FOUND = -1;
+
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+	private static final int INITIAL_CAPACITY = 1024;
+
+	private final boolean offHeap;
+	private ByteBuffer keys;
+	private int[] keyOffsets = new int[INITIAL_CAPACITY];
+	private int[] keyLengths = new int[INITIAL_CAPACITY];
+	private long[] values = new long[INITIAL_CAPACITY];
+	private int size = 0;
+	private int[] table = new int[INITIAL_CAPACITY * 2]; // entry + 1, 0 is empty
+	private final Long2IntOpenHashMap reverse = new Long2IntOpenHashMap();
+	private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+
+	/**
+	 * @param offHeap hold the client id bytes in a direct buffer
+	 */
+	public ClientIdDictionary(boolean offHeap)
+	{
+		this.offHeap = offHeap;
+		this.keys = allocate(INITIAL_CAPACITY * 16);
+		reverse.defaultReturnValue(-1);
+	}
+
+	/**
+	 * Add an id or change the internal id a client id maps to.
+	 */
+	public void put(String clientId, long internalId)
+	{
+		byte[] key = clientId.getBytes(UTF8);
+		lock.writeLock().lock();
+		try
+		{
+			int slot = find(key);
+			int entry = table[slot] - 1;
+			if (entry >= 0)
+			{
+				if (values[entry] != internalId)
+				{
+					reverse.remove(values[entry]);
+					values[entry] = internalId;
+					reverse.put(internalId, entry);
+				}
+				return;
+			}
+			if (size == values.length)
+				growEntries();
+			if (keys.capacity() - keys.position() < key.length)
+				growKeys(key.length);
+			entry = size++;
+			keyOffsets[entry] = keys.position();
+			keyLengths[entry] = key.length;
+			keys.put(key);
+			values[entry] = internalId;
+			reverse.put(internalId, entry);
+			table[slot] = entry + 1;
+			if (size * 2 > table.length)
+				rehash();
+		}
+		finally
+		{
+			lock.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * @return the internal id, or {@link #NOT_FOUND}
+	 */
+	public long get(String clientId)
+	{
+		byte[] key = clientId.getBytes(UTF8);
+		lock.readLock().lock();
+		try
+		{
+			int entry = table[find(key)] - 1;
+			return entry >= 0 ? values[entry] : NOT_FOUND;
+		}
+		finally
+		{
+			lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * @return the client id, or null if not held
+	 */
+	public String reverse(long internalId)
+	{
+		lock.readLock().lock();
+		try
+		{
+			int entry = reverse.get(internalId);
+			return entry >= 0 ? key(entry) : null;
+		}
+		finally
+		{
+			lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * @return internal ids of the client ids held
+	 */
+	public Map<String,Long> resolve(Collection<String> clientIds)
+	{
+		byte[][] keys = new byte[clientIds.size()][];
+		int i = 0;
+		for (String clientId : clientIds)
+			keys[i++] = clientId.getBytes(UTF8);
+		Map<String,Long> res = new HashMap<>();
+		lock.readLock().lock();
+		try
+		{
+			i = 0;
+			for (String clientId : clientIds)
+			{
+				int entry = table[find(keys[i++])] - 1;
+				if (entry >= 0)
+					res.put(clientId, values[entry]);
+			}
+		}
+		finally
+		{
+			lock.readLock().unlock();
+		}
+		return res;
+	}
+
+	/**
+	 * @return client ids in the same order, null for those not held
+	 */
+	public String[] reverse(long[] internalIds)
+	{
+		String[] res = new String[internalIds.length];
+		lock.readLock().lock();
+		try
+		{
+			for (int i = 0; i < internalIds.length; i++)
+			{
+				int entry = reverse.get(internalIds[i]);
+				if (entry >= 0)
+					res[i] = key(entry);
+			}
+		}
+		finally
+		{
+			lock.readLock().unlock();
+		}
+		return res;
+	}
+
+	public int size()
+	{
+		lock.readLock().lock();
+		try
+		{
+			return size;
+		}
+		finally
+		{
+			lock.readLock().unlock();
+		}
+	}
+
+	private ByteBuffer allocate(int capacity)
+	{
+		return offHeap ? ByteBuffer.allocateDirect(capacity) : ByteBuffer.allocate(capacity);
+	}
+
+	private String key(int entry)
+	{
+		byte[] bytes = new byte[keyLengths[entry]];
+		int offset = keyOffsets[entry];
+		for (int i = 0; i < bytes.length; i++)
+			bytes[i] = keys.get(offset + i);
+		return new String(bytes, UTF8);
+	}
+
+	private static int hash(byte[] key)
+	{
+		return mix(Arrays.hashCode(key));
+	}
+
+	/**
+	 * The same hash as {@link #hash(byte[])} of an entry's key, read from the buffer.
+	 */
+	private int hash(int entry)
+	{
+		int h = 1;
+		int offset = keyOffsets[entry];
+		for (int i = 0; i < keyLengths[entry]; i++)
+			h = 31 * h + keys.get(offset + i);
+		return mix(h);
+	}
+
+	private static int mix(int h)
+	{
+		h *= 0x9E3779B9;
+		return h ^ (h >>> 16);
+	}
+
+	/**
+	 * @return the slot holding the key, or the empty slot it would go in
+	 */
+	private int find(byte[] key)
+	{
+		int mask = table.length - 1;
+		int slot = hash(key) & mask;
+		while (table[slot] != 0 && !matches(table[slot] - 1, key))
+			slot = (slot + 1) & mask;
+		return slot;
+	}
+
+	private boolean matches(int entry, byte[] key)
+	{
+		if (keyLengths[entry] != key.length)
+			return false;
+		int offset = keyOffsets[entry];
+		for (int i = 0; i < key.length; i++)
+			if (keys.get(offset + i) != key[i])
+				return false;
+		return true;
+	}
+
+	private void growEntries()
+	{
+		int capacity = values.length * 2;
+		keyOffsets = Arrays.copyOf(keyOffsets, capacity);
+		keyLengths = Arrays.copyOf(keyLengths, capacity);
+		values = Arrays.copyOf(values, capacity);
+	}
+
+	private void growKeys(int needed)
+	{
+		int capacity = keys.capacity();
+		while (capacity - keys.position() < needed)
+			capacity *= 2;
+		ByteBuffer grown = allocate(capacity);
+		keys.flip();
+		grown.put(keys);
+		keys = grown;
+	}
+
+	private void rehash()
+	{
+		int[] grown = new int[table.length * 2];
+		int mask = grown.length - 1;
+		for (int entry = 0; entry < size; entry++)
+		{
+			int slot = hash(entry) & mask;
+			while (grown[slot] != 0)
+				slot = (slot + 1) & mask;
+			grown[slot] = entry + 1;
+		}
+		table = grown;
+	}
+}
@@ -27,7 +27,10 @@ import io.seldon.memcache.ExceptionSwallowingMemcachedClient;
 import io.seldon.memcache.MemCacheKeys;
 
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 
 import net.spy.memcached.CASMutation;
 
@@ -65,6 +68,15 @@ public class MemcacheActionHistory implements ActionHistory {
 		return res;
 	}
 
+	@Override
+	public Map<Long,List<Long>> getRecentActions(String clientName,Collection<Long> userIds,int numActions)
+	{
+		Map<Long,List<Long>> res = new HashMap<>();
+		for (Long userId : userIds)
+			res.put(userId, getRecentActions(clientName, userId, numActions));
+		return res;
+	}
+
 	@Override
 	public List<Action> getRecentFullActions(String clientName,long userId,int numActions)
 	{
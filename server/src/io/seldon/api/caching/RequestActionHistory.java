@@ -0,0 +1,115 @@
+/*
+ * Seldon -- open source prediction engine
+ * =======================================
+ *
+ * Copyright 2011-2015 Seldon Technologies Ltd and Rummble Ltd (http://www.seldon.io/)
+ *
+ * ********************************************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * ********************************************************************************************
+ */
+
+package io.seldon.api.caching;
+
+import io.seldon.api.statsd.StatsdPeer;
+import io.seldon.general.Action;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Action history for a single user, scoped to one recommendation request. The first lookup of each kind
+ * goes to the backing {@link ActionHistory}; later lookups are answered from the fetched list as long as
+ * they ask for no more actions than were already fetched (or the user has fewer actions than that), so the
+ * backend is normally hit at most once per request for ids and once for full actions.
+ *
+ * Callers get their own copy of the list and are free to modify it. Safe to share between algorithms
+ * running in parallel for the same request. Lookups are counted per client in the metrics as backend calls and
+ * calls saved.
+ */
+public class RequestActionHistory {
+
+	private final ActionHistory actionHistory;
+	private final String client;
+	private final long user;
+
+	private List<Long> actions;
+	private int actionsLimit;
+	private List<Action> fullActions;
+	private int fullActionsLimit;
+	private int calls;
+	private int callsSaved;
+
+	public RequestActionHistory(ActionHistory actionHistory, String client, long user) {
+		this.actionHistory = actionHistory;
+		this.client = client;
+		this.user = user;
+	}
+
+	public synchronized List<Long> getRecentActions(int numActions)
+	{
+		if (actions == null || !covers(actions, actionsLimit, numActions))
+		{
+			actions = new ArrayList<>(actionHistory.getRecentActions(client, user, numActions));
+			actionsLimit = numActions;
+			recordCall();
+		}
+		else
+			recordSaved();
+		return new ArrayList<>(actions.subList(0, Math.min(numActions, actions.size())));
+	}
+
+	public synchronized List<Action> getRecentFullActions(int numActions)
+	{
+		if (fullActions == null || !covers(fullActions, fullActionsLimit, numActions))
+		{
+			fullActions = new ArrayList<>(actionHistory.getRecentFullActions(client, user, numActions));
+			fullActionsLimit = numActions;
+			recordCall();
+		}
+		else
+			recordSaved();
+		return new ArrayList<>(fullActions.subList(0, Math.min(numActions, fullActions.size())));
+	}
+
+	/**
+	 * A fetched list answers a request if it was fetched with at least that limit, or if it came back
+	 * short of its own limit, in which case it already holds the user's whole history.
+	 */
+	private static boolean covers(List<?> fetched, int fetchedLimit, int numActions)
+	{
+		return numActions <= fetchedLimit || fetched.size() < fetchedLimit;
+	}
+
+	private void recordCall()
+	{
+		calls++;
+		StatsdPeer.logActionHistoryLookup(client, true);
+	}
+
+	private void recordSaved()
+	{
+		callsSaved++;
+		StatsdPeer.logActionHistoryLookup(client, false);
+	}
+
+	public synchronized int getBackendCalls() {
+		return calls;
+	}
+
+	public synchronized int getBackendCallsSaved() {
+		return callsSaved;
+	}
+}
@@ -28,28 +28,53 @@ import io.seldon.db.redis.RedisPoolManager;
 import io.seldon.general.Action;
 import io.seldon.memcache.MemCacheKeys;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.IOException;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
 
 import org.apache.log4j.Logger;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Component;
 
 import redis.clients.jedis.Jedis;
 import redis.clients.jedis.JedisPool;
+import redis.clients.jedis.Pipeline;
+import redis.clients.jedis.Response;
 
-import com.fasterxml.jackson.core.JsonProcessingException;
 import com.fasterxml.jackson.databind.ObjectMapper;
 
+/**
+ * Action history held in a sorted set per user, scored by action time. Reads fetch only the most recent
+ * entries they need and writes trim each set to a maximum size and refresh its expiry in the same round trip.
+ * Full actions are stored in a compact binary form; entries written as JSON by earlier versions are still read.
+ */
 @Component
 public class RedisActionHistory implements ActionHistory {
 	private static Logger logger = Logger.getLogger(RedisActionHistory.class.getName());
 	
+	private static final byte FULL_ACTION_VERSION = 1;
+	
 	final private RedisPoolManager poolManager;
 	private ObjectMapper mapper = new ObjectMapper();
 	
+	@Value("${redis.actionhistory.max:1000}")
+	private int maxActions = 1000;
+	
+	@Value("${redis.actionhistory.ttl.secs:2592000}")
+	private int ttlSecs = 2592000;
+	
 	@Autowired
 	public RedisActionHistory(RedisPoolManager poolManager)
 	{
@@ -69,14 +94,7 @@ public class RedisActionHistory implements ActionHistory {
 			{
 				jedis = pool.getResource();
 				String key = MemCacheKeys.getActionHistory(clientName, userId);
-				Set<String> itemSet = jedis.zrange(key, 0, -1);
-				for (String item : itemSet)
-				{
-					item = item.replaceAll("\"", "");
-					res.add(0,Long.parseLong(item));// reverse order so last ones are earliest in time
-				}
-				if (res.size() > numActions)
-					res = res.subList(0, numActions);
+				res = toItemIds(jedis.zrevrange(key, 0, numActions-1));
 			}
 			finally
 			{
@@ -94,6 +112,55 @@ public class RedisActionHistory implements ActionHistory {
 		return res;
 	}
 
+	@Override
+	public Map<Long,List<Long>> getRecentActions(String clientName, Collection<Long> userIds, int numActions) {
+		Map<Long,List<Long>> res = new HashMap<>();
+		JedisPool pool = poolManager.get(clientName);
+		if (pool != null)
+		{
+			Jedis jedis = null;
+			try
+			{
+				jedis = pool.getResource();
+				Pipeline p = jedis.pipelined();
+				Map<Long,Response<Set<String>>> responses = new LinkedHashMap<>();
+				for (Long userId : userIds)
+					responses.put(userId, p.zrevrange(MemCacheKeys.getActionHistory(clientName, userId), 0, numActions-1));
+				p.sync();
+				for (Map.Entry<Long,Response<Set<String>>> e : responses.entrySet())
+					res.put(e.getKey(), toItemIds(e.getValue().get()));
+			}
+			finally
+			{
+			 if (jedis != null) {
+				    jedis.close();
+				  }
+			}
+		}
+		else
+		{
+			logger.error("No redis pool found for "+clientName);
+		}
+		if (logger.isDebugEnabled())
+			logger.debug("Found actions for "+res.size()+" users of "+userIds.size());
+		return res;
+	}
+
+	/**
+	 * @param items most recent first
+	 */
+	private static List<Long> toItemIds(Set<String> items)
+	{
+		List<Long> res = new ArrayList<Long>(items.size());
+		for (String item : items)
+		{
+			if (item.length() > 1 && item.charAt(0) == '"')
+				item = item.substring(1, item.length()-1);
+			res.add(Long.parseLong(item));
+		}
+		return res;
+	}
+
 	@Override
 	public List<Action> getRecentFullActions(String clientName, long userId,int numActions) {
 		List<Action> actions = new ArrayList<Action>();
@@ -104,15 +171,10 @@ public class RedisActionHistory implements ActionHistory {
 			try
 			{
 				jedis = pool.getResource();
-				String key = MemCacheKeys.getActionFullHistory(clientName, userId);
-				Set<String> actionSet = jedis.zrange(key, 0, -1);
-				for (String val : actionSet)
-				{
-	                ActionLogEntry ale = mapper.readValue(val, ActionLogEntry.class);
-	                actions.add(0,ale.toAction());
-				}
-				if (actions.size() > numActions)
-					actions = actions.subList(0, numActions);
+				byte[] key = MemCacheKeys.getActionFullHistory(clientName, userId).getBytes(StandardCharsets.UTF_8);
+				Set<byte[]> actionSet = jedis.zrevrange(key, 0, numActions-1);
+				for (byte[] val : actionSet)
+					actions.add(decodeAction(val));
 			}
 			catch (IOException e) {
 				logger.error("Failed to convert values to actions ",e);
@@ -142,16 +204,19 @@ public class RedisActionHistory implements ActionHistory {
 			Jedis jedis = null;
 			try 
 			{
-				ActionLogEntry al = new ActionLogEntry(clientName,a);
-				String val = mapper.writeValueAsString(al);
-				String key = MemCacheKeys.getActionFullHistory(clientName, a.getUserId());
+				byte[] key = MemCacheKeys.getActionFullHistory(clientName, a.getUserId()).getBytes(StandardCharsets.UTF_8);
+				byte[] val = encodeAction(a);
 				jedis = pool.getResource();
-				jedis.zadd(key, a.getDate().getTime()/1000, val);
-				//zremrangebyscore needed
+				Pipeline p = jedis.pipelined();
+				p.zadd(key, a.getDate().getTime()/1000, val);
+				p.zremrangeByRank(key, 0, -(maxActions+1));
+				if (ttlSecs > 0)
+					p.expire(key, ttlSecs);
+				p.sync();
 			}
-			catch (JsonProcessingException e) 
+			catch (IOException e) 
 			{
-				logger.error("Failed to convert action to json ",e);
+				logger.error("Failed to encode action ",e);
 			}
 			finally
 			{
@@ -179,8 +244,12 @@ public class RedisActionHistory implements ActionHistory {
 				long now = System.currentTimeMillis()/1000;
 				String key = MemCacheKeys.getActionHistory(clientName, userId);
 				jedis = pool.getResource();
-				jedis.zadd(key, now, ""+itemId);
-				//zremrangebyscore needed
+				Pipeline p = jedis.pipelined();
+				p.zadd(key, now, ""+itemId);
+				p.zremrangeByRank(key, 0, -(maxActions+1));
+				if (ttlSecs > 0)
+					p.expire(key, ttlSecs);
+				p.sync();
 			}
 			finally
 			{
@@ -196,7 +265,50 @@ public class RedisActionHistory implements ActionHistory {
 		}
 		
 	}
-	
-	
+
+	public void setMaxActions(int maxActions) {
+		this.maxActions = maxActions;
+	}
+
+	public void setTtlSecs(int ttlSecs) {
+		this.ttlSecs = ttlSecs;
+	}
+
+	static byte[] encodeAction(Action a) throws IOException
+	{
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream(64);
+		DataOutputStream out = new DataOutputStream(bytes);
+		out.writeByte(FULL_ACTION_VERSION);
+		out.writeLong(a.getUserId());
+		out.writeLong(a.getItemId());
+		out.writeInt(a.getType() != null ? a.getType() : 0);
+		out.writeBoolean(a.getValue() != null);
+		if (a.getValue() != null)
+			out.writeDouble(a.getValue());
+		// the time keeps repeated actions on the same item distinct in the set
+		out.writeLong(a.getDate() != null ? a.getDate().getTime() : -1);
+		out.writeUTF(a.getClientUserId() != null ? a.getClientUserId() : "");
+		out.writeUTF(a.getClientItemId() != null ? a.getClientItemId() : "");
+		out.close();
+		return bytes.toByteArray();
+	}
+
+	Action decodeAction(byte[] val) throws IOException
+	{
+		if (val.length > 0 && val[0] == '{')
+			return mapper.readValue(val, ActionLogEntry.class).toAction();
+		DataInputStream in = new DataInputStream(new ByteArrayInputStream(val));
+		byte version = in.readByte();
+		if (version != FULL_ACTION_VERSION)
+			throw new IOException("Unknown action encoding version "+version);
+		long userId = in.readLong();
+		long itemId = in.readLong();
+		int type = in.readInt();
+		Double value = in.readBoolean() ? in.readDouble() : null;
+		long time = in.readLong();
+		String clientUserId = in.readUTF();
+		String clientItemId = in.readUTF();
+		return new Action(0L, userId, itemId, type, 1, time >= 0 ? new Date(time) : null, value, clientUserId, clientItemId);
+	}
 
 }
@@ -276,17 +276,12 @@ public class JsClientController {
         Set<Long> scoreItemsInternal = null;
         if (scoreItems != null && !scoreItems.isEmpty())
         {
-        	String[] parts = scoreItems.split(",");
-        	scoreItemsInternal = new HashSet<Long>();
+        	List<String> parts = Arrays.asList(scoreItems.split(","));
+        	Map<String,Long> internalSortIds = itemService.getInternalItemIds(consumerBean, parts);
+        	scoreItemsInternal = new HashSet<Long>(internalSortIds.values());
         	for(String externalSortId : parts)
-        	{
-        		try {
-        			Long internalSortId = itemService.getInternalItemId(consumerBean, externalSortId);
-        			scoreItemsInternal.add(internalSortId);
-        		} catch (APIException e) {
+        		if (!internalSortIds.containsKey(externalSortId))
         			logger.warn("userRecommendations: sort item not found."+externalSortId);
-        		}
-        	}
         }
         
         List<String> algList = null;
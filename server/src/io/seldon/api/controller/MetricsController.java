@@ -0,0 +1,58 @@
+/*
+ * Seldon -- open source prediction engine
+ * =======================================
+ *
+ * Copyright 2011-2015 Seldon Technologies Ltd and Rummble Ltd (http://www.seldon.io/)
+ *
+ * ********************************************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * ********************************************************************************************
+ */
+
+
+package io.seldon.api.controller;
+
+import io.seldon.api.resource.ConsumerBean;
+import io.seldon.api.resource.ResourceBean;
+import io.seldon.api.service.ResourceServer;
+import io.seldon.api.statsd.StatsdPeer;
+
+import javax.servlet.http.HttpServletRequest;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Controller;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.ResponseBody;
+
+/**
+ * A client's aggregated metrics for monitoring systems that pull rather than listen for statsd. Requests are
+ * authenticated like the other resources and only see the calling consumer's metrics, plus server-wide counts such
+ * as the event log's.
+ */
+@Controller
+public class MetricsController {
+
+    @Autowired
+    private ResourceServer resourceServer;
+
+    @RequestMapping("/metrics")
+    public @ResponseBody Object getMetrics(HttpServletRequest req) {
+        ResourceBean con = resourceServer.validateResourceRequest(req);
+        if (con instanceof ConsumerBean)
+            return StatsdPeer.getMetrics().getValues(((ConsumerBean) con).getShort_name());
+        return con;
+    }
+
+}
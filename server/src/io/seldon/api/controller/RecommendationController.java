@@ -23,7 +23,6 @@
 
 package io.seldon.api.controller;
 
-import io.seldon.api.APIException;
 import io.seldon.api.Constants;
 import io.seldon.api.Util;
 import io.seldon.api.locale.DimensionsMappingManager;
@@ -40,6 +39,7 @@ import io.seldon.recommendation.userdimensionmapping.UserDimensionMappingModelMa
 import java.util.Date;
 import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
 
 import javax.servlet.http.HttpServletRequest;
@@ -97,17 +97,11 @@ public class RecommendationController {
 			Set<Long> sortItems = null;
 			if (sort != null && sort.size() > 0)
 			{
-				sortItems = new HashSet<Long>();
-				ConsumerBean c = (ConsumerBean) con;
+				Map<String,Long> internalSortIds = itemService.getInternalItemIds((ConsumerBean) con, sort);
+				sortItems = new HashSet<Long>(internalSortIds.values());
 				for(String item : sort)
-				{
-					try {
-						Long internalSortId = itemService.getInternalItemId(c, item);
-		        			sortItems.add(internalSortId);
-		        		} catch (APIException e) {
-		        			logger.warn("userRecommendations: sort item not found."+item);
-		        		}
-				}
+					if (!internalSortIds.containsKey(item))
+						logger.warn("userRecommendations: sort item not found."+item);
 			}
 			
 			String attributes = Util.getAttributes(req);
@@ -32,10 +32,36 @@ import org.apache.log4j.Logger;
 
 public class ActionLogger {
 	private static Logger actionLogger = Logger.getLogger( "ActionLogger" );
+	private static final ObjectMapper mapper = new ObjectMapper();
 	
+	private static final AsyncEventLog.Encoder encoder = new AsyncEventLog.Encoder() {
+		@Override
+		public void encode(AsyncEventLog.Event e, StringBuilder line) throws IOException {
+			line.append(getActionLogAsJson(e.str1, e.long1, e.long2, (Integer) e.obj1, (Double) e.obj2, e.str2, e.str3, e.str4, e.str5));
+		}
+	};
+	
+	/**
+	 * Log the action; the JSON is built on the event log's writer thread.
+	 */
 	public static void logAsJson(String client,long userId,long itemId,Integer type,Double value,String clientUserId,String clientItemId,String recTag, String extra_data) throws IOException {
-	    String actionEvent = getActionLogAsJson(client, userId, itemId, type, value, clientUserId, clientItemId, recTag, extra_data);
-		actionLogger.info(actionEvent);
+		AsyncEventLog log = AsyncEventLog.get();
+		AsyncEventLog.Event e = log.claim();
+		if (e != null)
+		{
+			e.target = actionLogger;
+			e.encoder = encoder;
+			e.str1 = client;
+			e.long1 = userId;
+			e.long2 = itemId;
+			e.obj1 = type;
+			e.obj2 = value;
+			e.str2 = clientUserId;
+			e.str3 = clientItemId;
+			e.str4 = recTag;
+			e.str5 = extra_data;
+			log.publish(e);
+		}
 	}
 	
     public static String getActionLogAsJson(String client,long userId,long itemId,Integer type,Double value,String clientUserId,String clientItemId,String recTag, String extra_data) throws IOException {
@@ -48,7 +74,6 @@ public class ActionLogger {
         Object extra_data_object = null;
         { // check if extra_data is actually a json object, else use the extra_data as is
             try {
-                ObjectMapper mapper = new ObjectMapper();
                 HashMap<String,Object> o = mapper.readValue(extra_data, HashMap.class);
                 extra_data_object = o;
             } catch (IOException e) {
@@ -70,8 +95,6 @@ public class ActionLogger {
             keyVals.put("value", String.valueOf(value));
             keyVals.put("extra_data", extra_data_object);
             
-            ObjectMapper mapper = new ObjectMapper();
-                
             json = mapper.writeValueAsString(keyVals);
         }
 
@@ -0,0 +1,260 @@
+/*
+ * Seldon -- open source prediction engine
+ * =======================================
+ *
+ * Copyright 2011-2015 Seldon Technologies Ltd and Rummble Ltd (http://www.seldon.io/)
+ *
+ * ********************************************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * ********************************************************************************************
+ */
+
+
+package io.seldon.api.logging;
+
+import io.seldon.api.statsd.MetricsRegistry;
+import io.seldon.api.statsd.StatsdPeer;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Moves event logging off the request path. Events are written into a ring of records that are allocated once and
+ * reused, and a background thread turns them into log lines and writes them in batches, so the request thread only
+ * copies a few references and the appenders are only ever used by one thread.
+ * <p>
+ * When the ring is full events are dropped rather than making requests wait; drops are counted and reported, and
+ * the dropped and written counts are in the metrics as eventlog.dropped and eventlog.written.
+ */
+public class AsyncEventLog {
+	private static Logger logger = Logger.getLogger(AsyncEventLog.class.getName());
+
+	private static final int DEFAULT_CAPACITY = 1 << 16;
+	private static final int BATCH_SIZE = 256;
+	private static final long IDLE_PARK_NANOS = 1000000;
+	private static final long DROP_REPORT_MSECS = 60000;
+
+	private static final AsyncEventLog instance = new AsyncEventLog(Integer.getInteger("io.seldon.logging.events.buffer", DEFAULT_CAPACITY));
+
+	static {
+		StatsdPeer.getMetrics().registerServerCount("eventlog.dropped", new MetricsRegistry.Count() {
+			@Override
+			public long get() {
+				return instance.getDropped();
+			}
+		});
+		StatsdPeer.getMetrics().registerServerCount("eventlog.written", new MetricsRegistry.Count() {
+			@Override
+			public long get() {
+				return instance.getWritten();
+			}
+		});
+	}
+
+	public static AsyncEventLog get()
+	{
+		return instance;
+	}
+
+	/**
+	 * Turns an event's fields into its log line. Only called on the writer thread.
+	 */
+	interface Encoder {
+		void encode(Event event, StringBuilder line) throws Exception;
+	}
+
+	/**
+	 * A reusable event record. Each logger decides what its fields mean; they are cleared once written.
+	 */
+	static final class Event {
+		long sequence;
+		Logger target;
+		Encoder encoder;
+		boolean flag;
+		int int1, int2;
+		long long1, long2;
+		String str1, str2, str3, str4, str5, str6, str7;
+		Object obj1, obj2;
+
+		void clear()
+		{
+			target = null;
+			encoder = null;
+			str1 = str2 = str3 = str4 = str5 = str6 = str7 = null;
+			obj1 = obj2 = null;
+		}
+	}
+
+	private final int mask;
+	private final Event[] events;
+	private final AtomicLongArray sequences;
+	private final AtomicLong tail = new AtomicLong();
+	private long head = 0; // only used by the writer
+	private final AtomicLong dropped = new AtomicLong();
+	private final AtomicLong written = new AtomicLong();
+	private final Thread writer;
+	private volatile boolean running = true;
+
+	/**
+	 * @param capacity rounded up to a power of two
+	 */
+	AsyncEventLog(int capacity)
+	{
+		int size = Integer.highestOneBit(Math.max(capacity, 2) - 1) << 1;
+		mask = size - 1;
+		events = new Event[size];
+		sequences = new AtomicLongArray(size);
+		for (int i = 0; i < size; i++)
+		{
+			events[i] = new Event();
+			sequences.set(i, i);
+		}
+		writer = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				writeLoop();
+			}
+		}, "AsyncEventLog");
+		writer.setDaemon(true);
+		writer.start();
+		Runtime.getRuntime().addShutdownHook(new Thread() {
+			@Override
+			public void run() {
+				shutdown();
+			}
+		});
+	}
+
+	/**
+	 * Claim a record to fill in. A claimed record must always be passed to {@link #publish(Event)}.
+	 * @return the record, or null if the ring is full and the event is dropped
+	 */
+	Event claim()
+	{
+		while (true)
+		{
+			long pos = tail.get();
+			int index = (int) (pos & mask);
+			long diff = sequences.get(index) - pos;
+			if (diff == 0)
+			{
+				if (tail.compareAndSet(pos, pos + 1))
+				{
+					Event event = events[index];
+					event.sequence = pos;
+					return event;
+				}
+			}
+			else if (diff < 0)
+			{
+				dropped.incrementAndGet();
+				return null;
+			}
+		}
+	}
+
+	/**
+	 * Hand a filled in record to the writer.
+	 */
+	void publish(Event event)
+	{
+		sequences.set((int) (event.sequence & mask), event.sequence + 1);
+	}
+
+	public long getDropped()
+	{
+		return dropped.get();
+	}
+
+	public long getWritten()
+	{
+		return written.get();
+	}
+
+	/**
+	 * Stop the writer once it has written the events already published.
+	 */
+	void shutdown()
+	{
+		running = false;
+		try
+		{
+			writer.join(5000);
+		}
+		catch (InterruptedException e)
+		{
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	/**
+	 * Write a line to the event's logger. Only called on the writer thread.
+	 */
+	void write(Logger target, String line)
+	{
+		target.info(line);
+	}
+
+	private void writeLoop()
+	{
+		StringBuilder line = new StringBuilder(512);
+		long reportedDropped = 0;
+		long lastReport = System.currentTimeMillis();
+		while (true)
+		{
+			int n = 0;
+			while (n < BATCH_SIZE)
+			{
+				int index = (int) (head & mask);
+				if (sequences.get(index) != head + 1)
+					break;
+				Event event = events[index];
+				try
+				{
+					line.setLength(0);
+					event.encoder.encode(event, line);
+					write(event.target, line.toString());
+				}
+				catch (Exception e)
+				{
+					logger.error("Failed to write event ", e);
+				}
+				event.clear();
+				sequences.set(index, head + mask + 1);
+				head++;
+				n++;
+			}
+			written.addAndGet(n);
+			long now = System.currentTimeMillis();
+			if (now - lastReport >= DROP_REPORT_MSECS)
+			{
+				long d = dropped.get();
+				if (d > reportedDropped)
+					logger.warn("Dropped " + (d - reportedDropped) + " events in the last " + ((now - lastReport) / 1000) + " secs as the event log buffer was full");
+				reportedDropped = d;
+				lastReport = now;
+			}
+			if (n == 0)
+			{
+				if (!running)
+					break;
+				LockSupport.parkNanos(IDLE_PARK_NANOS);
+			}
+		}
+	}
+}
@@ -21,6 +21,7 @@
  * ********************************************************************************************
  */
 
+
 package io.seldon.api.logging;
 
 import org.apache.log4j.Logger;
@@ -28,11 +29,29 @@ import org.apache.log4j.Logger;
 public class CtrFullLogger {
 
 private static Logger ctrLogger = Logger.getLogger( "CtrFullLogger" );
+
+	private static final AsyncEventLog.Encoder encoder = new AsyncEventLog.Encoder() {
+		@Override
+		public void encode(AsyncEventLog.Event e, StringBuilder line) {
+			line.append(e.flag ? "CTR" : "IMP").append(',').append(e.str1).append(',').append(e.str2).append(',').append(e.str3).append(',').append(e.str4);
+		}
+	};
 	
 	public static void log(boolean isCTR,String client,String userId,String itemId,String recTag)
 	{
-		String event = String.format("%s,%s,%s,%s,%s",isCTR ? "CTR" : "IMP",client,userId,itemId,recTag);
-		ctrLogger.info(event);
+		AsyncEventLog log = AsyncEventLog.get();
+		AsyncEventLog.Event e = log.claim();
+		if (e != null)
+		{
+			e.target = ctrLogger;
+			e.encoder = encoder;
+			e.flag = isCTR;
+			e.str1 = client;
+			e.str2 = userId;
+			e.str3 = itemId;
+			e.str4 = recTag;
+			log.publish(e);
+		}
 	}
 
 }
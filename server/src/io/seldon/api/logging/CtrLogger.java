@@ -21,8 +21,11 @@
  * ********************************************************************************************
  */
 
+
 package io.seldon.api.logging;
 
+import java.util.List;
+
 import org.apache.log4j.Logger;
 
 import io.seldon.api.statsd.StatsdPeer;
@@ -31,13 +34,70 @@ public class CtrLogger {
 
 	private static Logger ctrLogger = Logger.getLogger( "CtrLogger" );
 	
+	static final AsyncEventLog.Encoder encoder = new AsyncEventLog.Encoder() {
+		@Override
+		public void encode(AsyncEventLog.Event e, StringBuilder line) {
+			line.append(e.flag ? "CTR" : "IMP").append(',').append(e.str1).append(',').append(e.str2).append(',').append(e.int1)
+				.append(',').append(e.str3).append(',').append(e.str4).append(',').append(e.obj1).append(',').append(e.int2).append(',');
+			if (e.obj2 != null)
+				appendRecs((List<?>) e.obj2, line);
+			else
+				line.append(e.str5);
+			line.append(',').append(e.str6).append(',').append(e.str7);
+		}
+	};
+	
 	public static void log(boolean isCTR,String client,String algKey,int pos,String clientUserId,String uuid,Long itemId,int numRecentActions,String recsList,String abTestingKey,String recTag)
+	{
+		log(isCTR, client, algKey, pos, clientUserId, uuid, itemId, numRecentActions, recsList, null, abTestingKey, recTag);
+	}
+	
+	/**
+	 * Log an impression or click with the recommended items, which are joined with ":" when the line is written so
+	 * the list must not be changed afterwards.
+	 */
+	public static void log(boolean isCTR,String client,String algKey,int pos,String clientUserId,String uuid,Long itemId,int numRecentActions,List<Long> recs,String abTestingKey,String recTag)
+	{
+		log(isCTR, client, algKey, pos, clientUserId, uuid, itemId, numRecentActions, null, recs, abTestingKey, recTag);
+	}
+	
+	private static void log(boolean isCTR,String client,String algKey,int pos,String clientUserId,String uuid,Long itemId,int numRecentActions,String recsList,List<Long> recs,String abTestingKey,String recTag)
 	{
 		if (abTestingKey == null)
 			abTestingKey = "A";
-		String event = String.format("%s,%s,%s,%d,%s,%s,%s,%d,%s,%s,%s",isCTR ? "CTR" : "IMP",client,algKey,pos,clientUserId,uuid,itemId,numRecentActions,recsList,abTestingKey,recTag);
-		ctrLogger.info(event);
+		AsyncEventLog log = AsyncEventLog.get();
+		AsyncEventLog.Event e = log.claim();
+		if (e != null)
+		{
+			e.target = ctrLogger;
+			e.encoder = encoder;
+			e.flag = isCTR;
+			e.str1 = client;
+			e.str2 = algKey;
+			e.int1 = pos;
+			e.str3 = clientUserId;
+			e.str4 = uuid;
+			e.obj1 = itemId;
+			e.int2 = numRecentActions;
+			e.str5 = recsList;
+			e.obj2 = recs;
+			e.str6 = abTestingKey;
+			e.str7 = recTag;
+			log.publish(e);
+		}
 		StatsdPeer.logCTR(client, algKey,isCTR,abTestingKey,recTag);
 	}
+	
+	private static void appendRecs(List<?> recs, StringBuilder line)
+	{
+		for (int i = 0; i < recs.size(); i++)
+		{
+			if (i > 0)
+				line.append(':');
+			Object r = recs.get(i);
+			if (r != null)
+				line.append(r);
+		}
+	}
 
 }
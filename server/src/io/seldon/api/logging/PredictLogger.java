@@ -39,28 +39,56 @@ import io.seldon.rpc.ClientRpcStore;
 public class PredictLogger {
 
 	private static Logger predictLogger = Logger.getLogger( "PredictLogger" );
+	private static final ObjectMapper mapper = new ObjectMapper();
 	
 	@Autowired 
 	ClientRpcStore rpcStore;
 	
+	// the input and prediction are converted to JSON on the event log's writer thread
+	private final AsyncEventLog.Encoder jsonEncoder = new AsyncEventLog.Encoder() {
+		@Override
+		public void encode(AsyncEventLog.Event e, StringBuilder line) {
+			ObjectNode topNode = mapper.createObjectNode();
+			topNode.put("consumer", e.str1);
+			topNode.put("input", (JsonNode) e.obj1);
+			topNode.put("prediction", (JsonNode) mapper.valueToTree(e.obj2));
+			line.append(topNode.toString());
+		}
+	};
+	
+	private final AsyncEventLog.Encoder rpcEncoder = new AsyncEventLog.Encoder() {
+		@Override
+		public void encode(AsyncEventLog.Event e, StringBuilder line) {
+			ObjectNode topNode = mapper.createObjectNode();
+			topNode.put("consumer", e.str1);
+			topNode.put("input", rpcStore.getJSONForRequest(e.str1, (ClassificationRequest) e.obj1));
+			topNode.put("prediction", rpcStore.getJSONForReply(e.str1, (ClassificationReply) e.obj2));
+			line.append(topNode.toString());
+		}
+	};
+	
 	public void log(String client,JsonNode input,PredictionServiceResult response)
 	{
-		ObjectMapper mapper = new ObjectMapper();
-		JsonNode prediction = mapper.valueToTree(response);
-		ObjectNode topNode = mapper.createObjectNode();
-		topNode.put("consumer", client);
-		topNode.put("input", input);
-		topNode.put("prediction", prediction);
-		predictLogger.info(topNode.toString());
+		log(jsonEncoder, client, input, response);
 	}
 	
 	public void log(String client,ClassificationRequest request,ClassificationReply reply)
 	{
-		ObjectMapper mapper = new ObjectMapper();
-		ObjectNode topNode = mapper.createObjectNode();
-		topNode.put("consumer", client);
-		topNode.put("input", rpcStore.getJSONForRequest(client, request));
-		topNode.put("prediction", rpcStore.getJSONForReply(client, reply));
-		predictLogger.info(topNode.toString());
+		log(rpcEncoder, client, request, reply);
+	}
+	
+	private void log(AsyncEventLog.Encoder encoder,String client,Object input,Object prediction)
+	{
+		AsyncEventLog log = AsyncEventLog.get();
+		AsyncEventLog.Event e = log.claim();
+		if (e != null)
+		{
+			e.target = predictLogger;
+			e.encoder = encoder;
+			e.str1 = client;
+			e.obj1 = input;
+			e.obj2 = prediction;
+			log.publish(e);
+		}
 	}
 }
@@ -106,8 +106,16 @@ public class ActionService {
         int numActions = limit;
         long internalUserId = userService.getInternalUserId(c, userId);
         List<Long> recentActionsItemIdList = actionProvider.getRecentActions(clientName, internalUserId, numActions);
+        long[] internalItemIds = new long[recentActionsItemIdList.size()];
+        int i = 0;
         for (Long internalItemId : recentActionsItemIdList) {
-            String clientItemId = itemService.getClientItemId(c, internalItemId);
+            if (internalItemId == null)
+                throw new APIException(APIException.ITEM_NOT_FOUND);
+            internalItemIds[i++] = internalItemId;
+        }
+        for (String clientItemId : itemService.getClientItemIds(c, internalItemIds)) {
+            if (clientItemId == null)
+                throw new APIException(APIException.ITEM_NOT_FOUND);
             ActionBean actionBean = new ActionBean(null, userId, clientItemId, 1, null, null, 0);
             bean.addBean(actionBean);
         }
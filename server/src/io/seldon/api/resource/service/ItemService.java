@@ -40,6 +40,8 @@ import io.seldon.general.ItemAttr;
 import io.seldon.general.ItemStorage;
 import io.seldon.general.ItemType;
 import io.seldon.general.RecommendationStorage;
+import io.seldon.items.ItemIndex;
+import io.seldon.items.ItemIndexFactory;
 import io.seldon.memcache.MemCacheKeys;
 import io.seldon.memcache.MemCachePeer;
 import io.seldon.recommendation.RecommendationPeer;
@@ -81,6 +83,9 @@ public class ItemService {
     @Autowired
     private ClientIdCacheStore idCache;
     
+    @Autowired
+    private ItemIndexFactory itemIndexFactory;
+    
     public ItemBean getItem(final ConsumerBean c, final String iid, final boolean full) throws APIException
     {
     	String memKey = MemCacheKeys.getItemBeanKey(c.getShort_name(), iid,full);
@@ -292,6 +297,45 @@ public class ItemService {
 		return res;
 	}
 
+    /**
+     * Translate many client item ids at once, going to memcache and the database only for those not in the id cache.
+     * @return internal ids of the items found, items not found are left out
+     */
+    public Map<String,Long> getInternalItemIds(ConsumerBean c, Collection<String> ids) {
+        Map<String,Long> res = idCache.getInternalItemIds(c.getShort_name(), ids);
+        if (res.size() < ids.size())
+            for (String id : ids)
+                if (!res.containsKey(id))
+                    try
+                    {
+                        res.put(id, getInternalItemId(c, id));
+                    }
+                    catch (APIException e)
+                    {
+                        // left out of the result
+                    }
+        return res;
+    }
+
+    /**
+     * Translate many internal item ids at once, going to memcache and the database only for those not in the id cache.
+     * @return client ids in the same order, null for items not found
+     */
+    public String[] getClientItemIds(ConsumerBean c, long[] ids) {
+        String[] res = idCache.getExternalItemIds(c.getShort_name(), ids);
+        for (int i = 0; i < ids.length; i++)
+            if (res[i] == null)
+                try
+                {
+                    res[i] = getClientItemId(c, ids[i]);
+                }
+                catch (APIException e)
+                {
+                    // left null
+                }
+        return res;
+    }
+
     /**
      * Cache an item's client ID keyed by item ID
      * @param consumerBean -
@@ -496,6 +540,13 @@ public class ItemService {
     
     public Map<String,Integer> getDimensionIdsForItem(ConsumerBean c,long itemId)
     {
+    	ItemIndex index = itemIndexFactory.get(c.getShort_name());
+    	if (index != null)
+    	{
+    		Map<String,Integer> res = index.getDimensionIdsForItem(itemId);
+    		if (res != null)
+    			return res;
+    	}
     	final String key = MemCacheKeys.getItemAttrDims(c.getShort_name(), itemId);
     	Map<String,Integer> res = (Map<String,Integer>)MemCachePeer.get(key);
 		if(res==null) {
@@ -182,8 +182,12 @@ public class RecommendationService {
             List<Recommendation> recommendations = recResult.getRecs();
             List<ItemBean> itemRecs = new ArrayList<>();
             final boolean isExplanationNeeded = explanationPeer.isExplanationNeededForClient(shortName);
-            for (Recommendation recommendation : recommendations) {
-                long internalId = recommendation.getContent();
+            long[] internalIds = new long[recommendations.size()];
+            for (int i = 0; i < internalIds.length; i++)
+                internalIds[i] = recommendations.get(i).getContent();
+            final String[] recommendedItemIds = itemService.getClientItemIds(consumerBean, internalIds);
+            for (int i = 0; i < internalIds.length; i++) {
+                long internalId = internalIds[i];
                 String recExplanation = null;
                 if (isExplanationNeeded) {
                     if (item_recommender_lookup != null) { ///
@@ -204,13 +208,11 @@ public class RecommendationService {
                         recExplanation = explanationPeer.explainRecommendationResult(shortName, algKey, locale);
                     }
                 }
-                String recommendedItemId = null;
-                try {
-                    recommendedItemId = itemService.getClientItemId(consumerBean, internalId);
-                } catch (APIException e) {
-                    logger.info("Item with internal ID " + internalId + " not found; ignoring..." , e);
+                String recommendedItemId = recommendedItemIds[i];
+                if (recommendedItemId == null) {
+                    logger.info("Item with internal ID " + internalId + " not found; ignoring...");
                 }
-                if (recommendedItemId != null) {
+                else {
                     final ItemBean itemBean = itemService.getItemLocalized(consumerBean, recommendedItemId, full,locale);
                     if (isExplanationNeeded) {
                         addExplanationAttribute(itemBean, recExplanation);
@@ -0,0 +1,251 @@
+/*
+ * Seldon -- open source prediction engine
+ * =======================================
+ *
+ * Copyright 2011-2015 Seldon Technologies Ltd and Rummble Ltd (http://www.seldon.io/)
+ *
+ * ********************************************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * ********************************************************************************************
+ */
+
+package io.seldon.api.service.async;
+
+import io.seldon.general.Action;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Local files holding actions that could not be queued or written to the database, so they can be
+ * replayed later rather than lost. Actions are appended to an open file; once that file is rolled it is
+ * closed and becomes available for replay. Actions that can't be replayed are moved aside to quarantine files
+ * that are kept for inspection but not replayed.
+ */
+class ActionSpool {
+
+	private static Logger logger = Logger.getLogger(ActionSpool.class.getName());
+
+	private static final String SUFFIX = ".spool";
+	private static final String OPEN_SUFFIX = ".open";
+	private static final String QUARANTINE_SUFFIX = ".bad";
+	private static final int FORMAT_VERSION = 1;
+
+	private final File dir;
+	private final String client;
+	private DataOutputStream out;
+	private File current;
+	private int currentCount = 0;
+	private long seq = 0;
+
+	ActionSpool(File dir, String client)
+	{
+		this.dir = dir;
+		this.client = client;
+		if (!dir.exists() && !dir.mkdirs())
+			logger.error("Unable to create action spool directory "+dir);
+		// files left open by a previous process hold whatever was flushed before it stopped
+		for (File f : listFiles(OPEN_SUFFIX))
+		{
+			File closed = new File(f.getPath().substring(0, f.getPath().length() - OPEN_SUFFIX.length()) + SUFFIX);
+			if (!f.renameTo(closed))
+				logger.error("Unable to recover action spool file "+f);
+		}
+	}
+
+	synchronized void append(Collection<Action> actions) throws IOException
+	{
+		if (out == null)
+		{
+			current = new File(dir, client + "-" + System.currentTimeMillis() + "-" + (seq++) + OPEN_SUFFIX);
+			out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(current)));
+			out.writeInt(FORMAT_VERSION);
+		}
+		for (Action a : actions)
+			write(out, a);
+		currentCount += actions.size();
+	}
+
+	/**
+	 * Push appended actions out to the open file. Appends are left buffered so a burst of overflow doesn't
+	 * cost a write per action; callers flush when they go idle.
+	 */
+	synchronized void flush() throws IOException
+	{
+		if (out != null)
+			out.flush();
+	}
+
+	synchronized int getOpenCount() {
+		return currentCount;
+	}
+
+	/**
+	 * Close the file being appended to so it can be replayed.
+	 */
+	synchronized void roll() throws IOException
+	{
+		if (out != null)
+		{
+			out.close();
+			out = null;
+			File closed = new File(dir, current.getName().replace(OPEN_SUFFIX, SUFFIX));
+			if (!current.renameTo(closed))
+				throw new IOException("Unable to rename action spool file "+current);
+			currentCount = 0;
+		}
+	}
+
+	/**
+	 * Move a spool file that can't be replayed aside so it doesn't block the files after it.
+	 */
+	synchronized void quarantine(File f) throws IOException
+	{
+		File bad = new File(dir, f.getName().replace(SUFFIX, QUARANTINE_SUFFIX));
+		if (!f.renameTo(bad))
+			throw new IOException("Unable to quarantine action spool file "+f);
+	}
+
+	/**
+	 * Write actions that can't be replayed to a quarantine file.
+	 */
+	synchronized void quarantine(Collection<Action> actions) throws IOException
+	{
+		File bad = new File(dir, client + "-" + System.currentTimeMillis() + "-" + (seq++) + QUARANTINE_SUFFIX);
+		DataOutputStream o = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(bad)));
+		try
+		{
+			o.writeInt(FORMAT_VERSION);
+			for (Action a : actions)
+				write(o, a);
+		}
+		finally
+		{
+			o.close();
+		}
+	}
+
+	List<File> getQuarantinedFiles()
+	{
+		List<File> files = listFiles(QUARANTINE_SUFFIX);
+		Collections.sort(files);
+		return files;
+	}
+
+	/**
+	 * @return closed files waiting to be replayed, oldest first
+	 */
+	List<File> getSpooledFiles()
+	{
+		List<File> files = listFiles(SUFFIX);
+		Collections.sort(files);
+		return files;
+	}
+
+	static List<Action> read(File f) throws IOException
+	{
+		List<Action> actions = new ArrayList<>();
+		DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(f)));
+		try
+		{
+			int version = in.readInt();
+			if (version != FORMAT_VERSION)
+				throw new IOException("Unsupported action spool version "+version+" in "+f);
+			while (true)
+			{
+				try
+				{
+					actions.add(readAction(in));
+				}
+				catch (EOFException e)
+				{
+					// a partly written last record is dropped along with the end of file
+					break;
+				}
+			}
+		}
+		finally
+		{
+			in.close();
+		}
+		return actions;
+	}
+
+	private List<File> listFiles(final String suffix)
+	{
+		File[] files = dir.listFiles(new FilenameFilter() {
+			@Override
+			public boolean accept(File d, String name) {
+				return name.startsWith(client + "-") && name.endsWith(suffix);
+			}
+		});
+		return files == null ? new ArrayList<File>() : new ArrayList<>(Arrays.asList(files));
+	}
+
+	private static void write(DataOutputStream out, Action a) throws IOException
+	{
+		out.writeLong(a.getUserId());
+		out.writeLong(a.getItemId());
+		writeNullableInt(out, a.getType());
+		writeNullableInt(out, a.getTimes());
+		out.writeLong(a.getDate() != null ? a.getDate().getTime() : -1);
+		out.writeBoolean(a.getValue() != null);
+		if (a.getValue() != null)
+			out.writeDouble(a.getValue());
+		out.writeUTF(a.getClientUserId());
+		out.writeUTF(a.getClientItemId());
+	}
+
+	private static Action readAction(DataInputStream in) throws IOException
+	{
+		long userId = in.readLong();
+		long itemId = in.readLong();
+		Integer type = readNullableInt(in);
+		Integer times = readNullableInt(in);
+		long date = in.readLong();
+		Double value = in.readBoolean() ? in.readDouble() : null;
+		String clientUserId = in.readUTF();
+		String clientItemId = in.readUTF();
+		return new Action(null, userId, itemId, type, times, date >= 0 ? new Date(date) : null, value, clientUserId, clientItemId);
+	}
+
+	private static void writeNullableInt(DataOutputStream out, Integer v) throws IOException
+	{
+		out.writeBoolean(v != null);
+		if (v != null)
+			out.writeInt(v);
+	}
+
+	private static Integer readNullableInt(DataInputStream in) throws IOException
+	{
+		return in.readBoolean() ? in.readInt() : null;
+	}
+}
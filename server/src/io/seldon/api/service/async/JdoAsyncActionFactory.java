@@ -27,6 +27,7 @@ import io.seldon.api.state.NewClientListener;
 import io.seldon.api.state.options.DefaultOptions;
 import io.seldon.api.state.zk.ZkClientConfigHandler;
 
+import java.io.File;
 import java.util.Map;
 import java.util.Properties;
 import java.util.concurrent.ConcurrentHashMap;
@@ -37,6 +38,7 @@ import io.seldon.db.jdo.DbConfigHandler;
 import io.seldon.db.jdo.DbConfigListener;
 import org.apache.log4j.Logger;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Component;
 
 @Component
@@ -69,6 +71,15 @@ public class JdoAsyncActionFactory implements DbConfigListener{
 	}
 
 	DefaultOptions options;
+
+	@Value("${asyncactions.pipeline.enabled:false}")
+	private boolean pipelineEnabled;
+
+	@Value("${asyncactions.pipeline.writers:4}")
+	private int pipelineWriters;
+
+	@Value("${asyncactions.spool.dir:}")
+	private String spoolDir;
 	
 	@Autowired
 	public JdoAsyncActionFactory(DefaultOptions options,DbConfigHandler dbConfigHandler)
@@ -105,8 +116,15 @@ public class JdoAsyncActionFactory implements DbConfigListener{
 		return create(client,qTimeout,batchSize,maxqSize,dbRetries,runUserItemUpdates,runUpdateIdsActionTable,insertActions);
 	}
 	
-	private static AsyncActionQueue create(String client,int qtimeoutSecs,int batchSize,int qSize,int dbRetries,boolean runUserItemUpdates,boolean runUpdateIdsActionTable,boolean insertActions)
+	private AsyncActionQueue create(String client,int qtimeoutSecs,int batchSize,int qSize,int dbRetries,boolean runUserItemUpdates,boolean runUpdateIdsActionTable,boolean insertActions)
 	{
+		if (pipelineEnabled)
+		{
+			File dir = spoolDir == null || spoolDir.isEmpty() ? new File(System.getProperty("java.io.tmpdir"), "seldon-action-spool") : new File(spoolDir);
+			PipelinedAsyncActionQueue q = new PipelinedAsyncActionQueue(client,qtimeoutSecs,batchSize,qSize,dbRetries,pipelineWriters,runUserItemUpdates,runUpdateIdsActionTable,insertActions,dir);
+			q.start();
+			return q;
+		}
 		JdoAsyncActionQueue q = new JdoAsyncActionQueue(client,qtimeoutSecs,batchSize,qSize,dbRetries,runUserItemUpdates,runUpdateIdsActionTable,insertActions);
 		Thread t = new Thread(q);
 		t.start();
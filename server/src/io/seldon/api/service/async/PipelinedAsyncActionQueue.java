@@ -0,0 +1,759 @@
+/*
+ * Seldon -- open source prediction engine
+ * =======================================
+ *
+ * Copyright 2011-2015 Seldon Technologies Ltd and Rummble Ltd (http://www.seldon.io/)
+ *
+ * ********************************************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * ********************************************************************************************
+ */
+
+package io.seldon.api.service.async;
+
+import io.seldon.api.Constants;
+import io.seldon.db.jdbc.JDBCConnectionFactory;
+import io.seldon.general.Action;
+
+import java.io.File;
+import java.io.IOException;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.SQLNonTransientConnectionException;
+import java.sql.SQLNonTransientException;
+import java.sql.SQLRecoverableException;
+import java.sql.SQLTransientException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Batched insert of Actions spread over several writer threads.
+ *
+ * <ul>
+ * <li> actions are put on a lock-free ring buffer; when it is full they go to a bounded overflow queue that the
+ * writers append to a local spool file in batches, and only when that is full too are they spooled by the caller
+ * <li> each writer drains up to a batch of actions and writes them with multi-row insert statements
+ * <li> new users and items (user_id or item_id of 0) are inserted first and their ids looked up and cached, so
+ * actions are written with their real ids rather than fixed up afterwards with update joins
+ * <li> a batch that still fails after the retries is spooled to a local file and replayed when a writer is idle,
+ * backing off while the database stays unavailable; spooled batches the database rejects are quarantined
+ * <li> queue depth, batch sizes and commit latency are tracked and logged
+ * </ul>
+ */
+public class PipelinedAsyncActionQueue implements AsyncActionQueue {
+
+	private static Logger logger = Logger.getLogger(PipelinedAsyncActionQueue.class.getName());
+
+	private static final int ROWS_PER_STATEMENT = 500;
+	private static final int MAX_CACHED_IDS = 500000;
+	private static final long IDLE_PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(5);
+	private static final long STATS_INTERVAL_MSECS = 60000;
+	private static final long REPLAY_CHECK_MSECS = 1000;
+	private static final long MIN_REPLAY_BACKOFF_MSECS = 1000;
+	private static final long MAX_REPLAY_BACKOFF_MSECS = 300000;
+
+	private static final String ACTION_COLUMNS = "insert into actions (action_id,user_id,item_id,type,times,date,value,client_user_id,client_item_id) values ";
+	private static final String ACTION_ROW = "(0,?,?,?,?,?,?,?,?)";
+	private static final String USER_COLUMNS = "insert ignore into users (user_id,username,first_op,last_op,type,num_op,active,client_user_id,avgrating,stddevrating) values ";
+	private static final String USER_ROW = "(0,'',?,?,"+Constants.DEFAULT_USER_TYPE+",1,1,?,0,0)";
+	private static final String ITEM_COLUMNS = "insert ignore into items (item_id,name,first_op,last_op,popular,client_item_id,type,avgrating,stddevrating,num_op) values ";
+	private static final String ITEM_ROW = "(0,'',?,?,0,?,0,0,0,0)";
+	private static final String FIX_USER_IDS = "update actions a join users u on a.client_user_id=u.client_user_id set a.user_id=u.user_id where a.user_id=0 and a.client_user_id in (";
+	private static final String FIX_ITEM_IDS = "update actions a join items i on a.client_item_id=i.client_item_id set a.item_id=i.item_id where a.item_id=0 and a.client_item_id in (";
+
+	private final String client;
+	private final RingBuffer<Action> buffer;
+	private final BlockingQueue<Action> overflow;
+	private final ActionSpool spool;
+	private final int batchSize;
+	private final long timeoutMsecs;
+	private final int maxDBRetries;
+	private final boolean runUserItemUpdates;
+	private volatile boolean runUpdateIdsInActionTable;
+	private final boolean insertActions;
+	private volatile boolean keepRunning = true;
+	private final Thread[] writers;
+	private final AtomicBoolean replaying = new AtomicBoolean(false);
+	// only read and written by the writer holding replaying
+	private volatile long nextReplayTime = 0;
+	private long replayBackoffMsecs = 0;
+
+	private final ConcurrentHashMap<String,Long> userIds = new ConcurrentHashMap<>();
+	private final ConcurrentHashMap<String,Long> itemIds = new ConcurrentHashMap<>();
+
+	private final AtomicLong actionsWritten = new AtomicLong();
+	private final AtomicLong batchesWritten = new AtomicLong();
+	private final AtomicLong commitMsecs = new AtomicLong();
+	private final AtomicLong maxCommitMsecs = new AtomicLong();
+	private final AtomicLong actionsSpooled = new AtomicLong();
+	private final AtomicLong badActions = new AtomicLong();
+	private final AtomicLong actionsQuarantined = new AtomicLong();
+	private final AtomicLong missingIdsFixed = new AtomicLong();
+	private volatile long lastStatsTime = System.currentTimeMillis();
+
+	public PipelinedAsyncActionQueue(String client, int qTimeoutSecs, int batchSize, int maxQSize, int maxDBRetries, int numWriters,
+			boolean runUserItemUpdates, boolean runUpdateIdsInActionTable, boolean insertActions, File spoolDir)
+	{
+		this.client = client;
+		this.buffer = new RingBuffer<>(maxQSize);
+		this.overflow = new ArrayBlockingQueue<>(buffer.capacity());
+		this.spool = new ActionSpool(spoolDir, client);
+		this.batchSize = batchSize;
+		this.timeoutMsecs = qTimeoutSecs * 1000L;
+		this.maxDBRetries = Math.max(maxDBRetries, 1);
+		this.runUserItemUpdates = runUserItemUpdates;
+		this.runUpdateIdsInActionTable = runUpdateIdsInActionTable;
+		this.insertActions = insertActions;
+		this.writers = new Thread[numWriters];
+		for (int i = 0; i < numWriters; i++)
+		{
+			writers[i] = new Thread(new Writer(), "async-actions-"+client+"-"+i);
+			writers[i].setDaemon(true);
+		}
+		logger.info("Pipelined AsyncQ created for client "+client+" qTimeout:"+qTimeoutSecs+" batchSize:"+batchSize+" maxQSize:"+buffer.capacity()+" maxDBRetries:"+maxDBRetries+" writers:"+numWriters+" userItemUpdates:"+runUserItemUpdates+" runActionIdUpdates:"+runUpdateIdsInActionTable+" insertActions:"+insertActions+" spool:"+spoolDir);
+	}
+
+	public void start()
+	{
+		for (Thread t : writers)
+			t.start();
+	}
+
+	@Override
+	public void put(Action action) {
+		if (!checkActionOK(action))
+		{
+			logger.warn("Bad Action "+action.toString());
+			return;
+		}
+		if (!buffer.offer(action) && !overflow.offer(action))
+			spool(Collections.singletonList(action));
+	}
+
+	@Override
+	public void setRunUpdateIdsInActionTable(boolean val) {
+		this.runUpdateIdsInActionTable = val;
+	}
+
+	@Override
+	public boolean isRunUpdateIdsInActionTable() {
+		return runUpdateIdsInActionTable;
+	}
+
+	@Override
+	public void setKeepRunning(boolean keepRunning) {
+		this.keepRunning = keepRunning;
+	}
+
+	public String getClient() {
+		return client;
+	}
+
+	public int getQueueDepth() {
+		return buffer.size() + overflow.size();
+	}
+
+	public long getActionsWritten() {
+		return actionsWritten.get();
+	}
+
+	public long getActionsSpooled() {
+		return actionsSpooled.get();
+	}
+
+	public long getBadActions() {
+		return badActions.get();
+	}
+
+	public long getActionsQuarantined() {
+		return actionsQuarantined.get();
+	}
+
+	public long getMissingIdsFixed() {
+		return missingIdsFixed.get();
+	}
+
+	public double getAvgBatchSize() {
+		long batches = batchesWritten.get();
+		return batches > 0 ? actionsWritten.get() / (double) batches : 0;
+	}
+
+	public double getAvgCommitMsecs() {
+		long batches = batchesWritten.get();
+		return batches > 0 ? commitMsecs.get() / (double) batches : 0;
+	}
+
+	public long getMaxCommitMsecs() {
+		return maxCommitMsecs.get();
+	}
+
+	/**
+	 * Allowed operations to fill in nulls in Action
+	 */
+	private void repairAction(Action action)
+	{
+		if (action.getTimes() == null)
+			action.setTimes(1);
+	}
+
+	/**
+	 * Check the values of an action to ensure we don't try to manipulate bad data
+	 */
+	private boolean checkActionOK(Action action)
+	{
+		repairAction(action);
+		if (action.getType() == null
+				|| action.getClientUserId() == null
+				|| action.getClientItemId() == null
+				|| action.getClientUserId().length() > JdoAsyncActionQueue.MAX_CLIENT_USER_ID_LEN
+				|| action.getClientItemId().length() > JdoAsyncActionQueue.MAX_CLIENT_ITEM_ID_LEN)
+		{
+			badActions.incrementAndGet();
+			return false;
+		}
+		else
+			return true;
+	}
+
+	private void spool(List<Action> actions)
+	{
+		try
+		{
+			spool.append(actions);
+			actionsSpooled.addAndGet(actions.size());
+		}
+		catch (IOException e)
+		{
+			logger.error("Failed to spool "+actions.size()+" actions for client "+client+" - they are lost", e);
+		}
+	}
+
+	/**
+	 * Spool whatever has overflowed the ring buffer with a single append.
+	 */
+	private void spoolOverflow(List<Action> actions)
+	{
+		if (overflow.drainTo(actions) > 0)
+		{
+			spool(actions);
+			actions.clear();
+		}
+	}
+
+	private void quarantine(List<Action> actions)
+	{
+		try
+		{
+			spool.quarantine(actions);
+			actionsQuarantined.addAndGet(actions.size());
+		}
+		catch (IOException e)
+		{
+			logger.error("Failed to quarantine "+actions.size()+" actions for client "+client+" - they are lost", e);
+		}
+	}
+
+	/**
+	 * @return true if the failure is likely to go away on a later attempt, e.g. the database is unreachable or a
+	 * deadlock, rather than the database rejecting the data
+	 */
+	static boolean isTransient(SQLException e)
+	{
+		if (e instanceof SQLTransientException || e instanceof SQLRecoverableException || e instanceof SQLNonTransientConnectionException)
+			return true;
+		if (e instanceof SQLNonTransientException)
+			return false;
+		String state = e.getSQLState();
+		// data exceptions, integrity violations and syntax errors
+		return state == null || !(state.startsWith("22") || state.startsWith("23") || state.startsWith("42"));
+	}
+
+	private void logStats()
+	{
+		long now = System.currentTimeMillis();
+		if (now - lastStatsTime > STATS_INTERVAL_MSECS)
+		{
+			lastStatsTime = now;
+			logger.info("AsyncAction Q for "+client+" depth:"+getQueueDepth()+" written:"+getActionsWritten()+" avg batch:"+String.format("%.1f", getAvgBatchSize())
+					+" avg commit msecs:"+String.format("%.1f", getAvgCommitMsecs())+" max commit msecs:"+getMaxCommitMsecs()+" spooled:"+getActionsSpooled()+" quarantined:"+getActionsQuarantined()+" ids fixed:"+getMissingIdsFixed()+" bad:"+getBadActions());
+		}
+	}
+
+	private class Writer implements Runnable {
+
+		private Connection connection;
+
+		@Override
+		public void run() {
+			List<Action> batch = new ArrayList<>(batchSize);
+			List<Action> overflowed = new ArrayList<>();
+			long batchStarted = 0;
+			while (true)
+			{
+				try
+				{
+					spoolOverflow(overflowed);
+					int drained = buffer.drainTo(batch, batchSize - batch.size());
+					if (drained > 0 && batchStarted == 0)
+						batchStarted = System.currentTimeMillis();
+					if (batch.size() >= batchSize || (!batch.isEmpty() && (drained == 0 || System.currentTimeMillis() - batchStarted > timeoutMsecs)))
+					{
+						write(batch);
+						batch.clear();
+						batchStarted = 0;
+					}
+					else if (drained == 0)
+					{
+						spool.flush();
+						if (!keepRunning)
+						{
+							logger.warn("Asked to stop as keepRunning is false");
+							closeConnection();
+							return;
+						}
+						replaySpool();
+						LockSupport.parkNanos(IDLE_PARK_NANOS);
+					}
+					logStats();
+				}
+				catch (Throwable t)
+				{
+					logger.error("Caught throwable while running ", t);
+					if (!batch.isEmpty())
+					{
+						spool(batch);
+						batch.clear();
+					}
+					if (!overflowed.isEmpty())
+					{
+						spool(overflowed);
+						overflowed.clear();
+					}
+					batchStarted = 0;
+					closeConnection();
+				}
+			}
+		}
+
+		/**
+		 * Write a batch, retrying on failure and spooling it if every attempt fails.
+		 * @return true if written to the database
+		 */
+		private boolean write(List<Action> batch)
+		{
+			for (int i = 0; i < maxDBRetries; i++)
+			{
+				try
+				{
+					long t1 = System.currentTimeMillis();
+					writeBatch(batch);
+					long time = System.currentTimeMillis() - t1;
+					actionsWritten.addAndGet(batch.size());
+					batchesWritten.incrementAndGet();
+					commitMsecs.addAndGet(time);
+					long max;
+					while (time > (max = maxCommitMsecs.get()) && !maxCommitMsecs.compareAndSet(max, time));
+					if (logger.isDebugEnabled())
+						logger.debug("AsyncAction Q for "+client+" wrote "+batch.size()+" actions in "+time+" msecs, depth "+getQueueDepth());
+					return true;
+				}
+				catch (SQLException e)
+				{
+					logger.error("Failed to write batch of "+batch.size()+" actions for client "+client+" attempt "+(i+1), e);
+					rollBack();
+					closeConnection();
+					if (!isTransient(e))
+						break;
+				}
+			}
+			logger.error("Spooling batch of "+batch.size()+" actions for client "+client+" after failed attempts");
+			spool(batch);
+			return false;
+		}
+
+		/**
+		 * Replay spooled actions if no other writer is doing so and the backoff since the last failed replay
+		 * has passed. Stops at the first file that can't be written because the database is unavailable.
+		 */
+		private void replaySpool() throws IOException
+		{
+			if (System.currentTimeMillis() < nextReplayTime || !replaying.compareAndSet(false, true))
+				return;
+			boolean ok = false;
+			try
+			{
+				if (spool.getOpenCount() > 0 && buffer.size() == 0)
+					spool.roll();
+				ok = true;
+				for (File f : spool.getSpooledFiles())
+					if (!replayFile(f))
+					{
+						ok = false;
+						break;
+					}
+			}
+			finally
+			{
+				if (ok)
+					replayBackoffMsecs = 0;
+				else
+				{
+					replayBackoffMsecs = Math.min(Math.max(replayBackoffMsecs * 2, MIN_REPLAY_BACKOFF_MSECS), MAX_REPLAY_BACKOFF_MSECS);
+					logger.warn("Replay of spooled actions for client "+client+" failed, next attempt in "+replayBackoffMsecs+" msecs");
+				}
+				nextReplayTime = System.currentTimeMillis() + Math.max(replayBackoffMsecs, REPLAY_CHECK_MSECS);
+				replaying.set(false);
+			}
+		}
+
+		/**
+		 * Write the actions in a spool file and delete it. Batches the database rejects are quarantined so they
+		 * don't block the rest of the spool.
+		 * @return false if the database was unavailable, in which case the unwritten actions are kept for later
+		 */
+		private boolean replayFile(File f) throws IOException
+		{
+			List<Action> actions;
+			try
+			{
+				actions = ActionSpool.read(f);
+			}
+			catch (IOException e)
+			{
+				logger.error("Unable to read spool file "+f+", quarantining it", e);
+				spool.quarantine(f);
+				return true;
+			}
+			logger.info("Replaying "+actions.size()+" spooled actions from "+f);
+			for (int i = 0; i < actions.size(); i += batchSize)
+			{
+				List<Action> batch = actions.subList(i, Math.min(i + batchSize, actions.size()));
+				if (!replayBatch(batch, f))
+				{
+					if (i > 0)
+					{
+						// keep only the rest for later so written batches aren't replayed again
+						spool.append(new ArrayList<>(actions.subList(i, actions.size())));
+						spool.roll();
+						if (!f.delete())
+							logger.error("Unable to delete replayed spool file "+f);
+					}
+					return false;
+				}
+			}
+			if (!f.delete())
+				logger.error("Unable to delete replayed spool file "+f);
+			return true;
+		}
+
+		/**
+		 * @return true if the batch was written or quarantined, false if the database was unavailable
+		 */
+		private boolean replayBatch(List<Action> batch, File f) throws IOException
+		{
+			for (int j = 0; j < maxDBRetries; j++)
+			{
+				try
+				{
+					writeBatch(batch);
+					actionsWritten.addAndGet(batch.size());
+					batchesWritten.incrementAndGet();
+					return true;
+				}
+				catch (SQLException e)
+				{
+					rollBack();
+					closeConnection();
+					if (!isTransient(e))
+					{
+						logger.error("Database rejected "+batch.size()+" spooled actions from "+f+", quarantining them", e);
+						quarantine(batch);
+						return true;
+					}
+					logger.error("Failed to replay spooled actions from "+f, e);
+				}
+				catch (RuntimeException e)
+				{
+					rollBack();
+					closeConnection();
+					logger.error("Failed to replay "+batch.size()+" spooled actions from "+f+", quarantining them", e);
+					quarantine(batch);
+					return true;
+				}
+			}
+			return false;
+		}
+
+		private void writeBatch(List<Action> batch) throws SQLException
+		{
+			getConnectionIfNeeded();
+			if (runUserItemUpdates)
+			{
+				resolveIds(batch, true);
+				resolveIds(batch, false);
+			}
+			if (insertActions)
+			{
+				insertActions(batch);
+				if (runUserItemUpdates && runUpdateIdsInActionTable)
+				{
+					fixMissingIds(batch, true);
+					fixMissingIds(batch, false);
+				}
+			}
+			connection.commit();
+		}
+
+		/**
+		 * Insert users (or items) that are new in this batch and set the ids of the batch's actions from the
+		 * in-memory cache, looking up any ids it does not yet hold.
+		 */
+		private void resolveIds(List<Action> batch, boolean users) throws SQLException
+		{
+			ConcurrentHashMap<String,Long> cache = users ? userIds : itemIds;
+			Map<String,Action> missing = new LinkedHashMap<>();
+			for (Action a : batch)
+			{
+				if ((users ? a.getUserId() : a.getItemId()) != 0)
+					continue;
+				String clientId = users ? a.getClientUserId() : a.getClientItemId();
+				if (!cache.containsKey(clientId) && !missing.containsKey(clientId))
+					missing.put(clientId, a);
+			}
+			if (!missing.isEmpty())
+			{
+				List<Action> newRows = new ArrayList<>(missing.values());
+				for (int i = 0; i < newRows.size(); i += ROWS_PER_STATEMENT)
+				{
+					List<Action> rows = newRows.subList(i, Math.min(i + ROWS_PER_STATEMENT, newRows.size()));
+					insertUsersOrItems(rows, users);
+				}
+				if (runUpdateIdsInActionTable)
+				{
+					if (cache.size() + missing.size() > MAX_CACHED_IDS)
+						cache.clear();
+					List<String> clientIds = new ArrayList<>(missing.keySet());
+					for (int i = 0; i < clientIds.size(); i += ROWS_PER_STATEMENT)
+						lookupIds(clientIds.subList(i, Math.min(i + ROWS_PER_STATEMENT, clientIds.size())), users, cache);
+				}
+			}
+			if (runUpdateIdsInActionTable)
+				for (Action a : batch)
+				{
+					if (users && a.getUserId() == 0)
+					{
+						Long id = cache.get(a.getClientUserId());
+						if (id != null)
+							a.setUserId(id);
+					}
+					else if (!users && a.getItemId() == 0)
+					{
+						Long id = cache.get(a.getClientItemId());
+						if (id != null)
+							a.setItemId(id);
+					}
+				}
+		}
+
+		/**
+		 * Set the ids of actions just inserted with a user (or item) id of 0 because the lookup missed, e.g. after the
+		 * id cache was cleared, by joining on the client id as the update joins used to.
+		 */
+		private void fixMissingIds(List<Action> batch, boolean users) throws SQLException
+		{
+			List<String> clientIds = new ArrayList<>();
+			for (Action a : batch)
+				if ((users ? a.getUserId() : a.getItemId()) == 0)
+					clientIds.add(users ? a.getClientUserId() : a.getClientItemId());
+			if (clientIds.isEmpty())
+				return;
+			missingIdsFixed.addAndGet(clientIds.size());
+			for (int i = 0; i < clientIds.size(); i += ROWS_PER_STATEMENT)
+			{
+				List<String> ids = clientIds.subList(i, Math.min(i + ROWS_PER_STATEMENT, clientIds.size()));
+				StringBuilder sql = new StringBuilder(users ? FIX_USER_IDS : FIX_ITEM_IDS);
+				for (int j = 0; j < ids.size(); j++)
+					sql.append(j == 0 ? "?" : ",?");
+				sql.append(")");
+				PreparedStatement s = connection.prepareStatement(sql.toString());
+				try
+				{
+					for (int j = 0; j < ids.size(); j++)
+						s.setString(j + 1, ids.get(j));
+					s.executeUpdate();
+				}
+				finally
+				{
+					s.close();
+				}
+			}
+		}
+
+		private void insertUsersOrItems(List<Action> rows, boolean users) throws SQLException
+		{
+			PreparedStatement s = connection.prepareStatement(multiRow(users ? USER_COLUMNS : ITEM_COLUMNS, users ? USER_ROW : ITEM_ROW, rows.size()));
+			try
+			{
+				int p = 1;
+				for (Action a : rows)
+				{
+					setTimestamp(s, p++, a);
+					setTimestamp(s, p++, a);
+					s.setString(p++, users ? a.getClientUserId() : a.getClientItemId());
+				}
+				s.executeUpdate();
+			}
+			finally
+			{
+				s.close();
+			}
+		}
+
+		private void lookupIds(List<String> clientIds, boolean users, Map<String,Long> cache) throws SQLException
+		{
+			StringBuilder sql = new StringBuilder(users ? "select client_user_id,user_id from users where client_user_id in (" : "select client_item_id,item_id from items where client_item_id in (");
+			for (int i = 0; i < clientIds.size(); i++)
+				sql.append(i == 0 ? "?" : ",?");
+			sql.append(")");
+			PreparedStatement s = connection.prepareStatement(sql.toString());
+			try
+			{
+				for (int i = 0; i < clientIds.size(); i++)
+					s.setString(i + 1, clientIds.get(i));
+				ResultSet rs = s.executeQuery();
+				while (rs.next())
+					cache.put(rs.getString(1), rs.getLong(2));
+				rs.close();
+			}
+			finally
+			{
+				s.close();
+			}
+		}
+
+		private void insertActions(List<Action> batch) throws SQLException
+		{
+			for (int i = 0; i < batch.size(); i += ROWS_PER_STATEMENT)
+			{
+				List<Action> rows = batch.subList(i, Math.min(i + ROWS_PER_STATEMENT, batch.size()));
+				PreparedStatement s = connection.prepareStatement(multiRow(ACTION_COLUMNS, ACTION_ROW, rows.size()));
+				try
+				{
+					int p = 1;
+					for (Action a : rows)
+					{
+						s.setLong(p++, a.getUserId());
+						s.setLong(p++, a.getItemId());
+						if (a.getType() != null)
+							s.setInt(p++, a.getType());
+						else
+							s.setNull(p++, java.sql.Types.INTEGER);
+						if (a.getTimes() != null)
+							s.setInt(p++, a.getTimes());
+						else
+							s.setNull(p++, java.sql.Types.INTEGER);
+						setTimestamp(s, p++, a);
+						if (a.getValue() != null)
+							s.setDouble(p++, a.getValue());
+						else
+							s.setNull(p++, java.sql.Types.DOUBLE);
+						s.setString(p++, a.getClientUserId());
+						s.setString(p++, a.getClientItemId());
+					}
+					s.executeUpdate();
+				}
+				finally
+				{
+					s.close();
+				}
+			}
+		}
+
+		private void setTimestamp(PreparedStatement s, int p, Action a) throws SQLException
+		{
+			if (a.getDate() != null)
+				s.setTimestamp(p, new java.sql.Timestamp(a.getDate().getTime()));
+			else
+				s.setNull(p, java.sql.Types.TIMESTAMP);
+		}
+
+		private void getConnectionIfNeeded() throws SQLException
+		{
+			if (connection == null)
+			{
+				connection = JDBCConnectionFactory.get().getConnection(client);
+				connection.setAutoCommit(false);
+			}
+		}
+
+		private void rollBack()
+		{
+			if (connection != null)
+			{
+				try
+				{
+					connection.rollback();
+				}
+				catch (SQLException re)
+				{
+					logger.error("Can't roll back transaction", re);
+				}
+			}
+		}
+
+		private void closeConnection()
+		{
+			if (connection != null)
+			{
+				try
+				{
+					connection.close();
+				}
+				catch (SQLException e)
+				{
+					logger.error("Unable to close connection", e);
+				}
+				connection = null;
+			}
+		}
+	}
+
+	static String multiRow(String insert, String row, int rows)
+	{
+		StringBuilder sql = new StringBuilder(insert.length() + rows * (row.length() + 1));
+		sql.append(insert);
+		for (int i = 0; i < rows; i++)
+		{
+			if (i > 0)
+				sql.append(',');
+			sql.append(row);
+		}
+		return sql.toString();
+	}
+}
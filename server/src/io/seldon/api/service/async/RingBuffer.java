@@ -0,0 +1,129 @@
+/*
+ * Seldon -- open source prediction engine
+ * =======================================
+ *
+ * Copyright 2011-2015 Seldon Technologies Ltd and Rummble Ltd (http://www.seldon.io/)
+ *
+ * ********************************************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * ********************************************************************************************
+ */
+
+package io.seldon.api.service.async;
+
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Bounded lock-free multi-producer multi-consumer ring buffer. Each slot carries a sequence number that tells
+ * producers and consumers whether it is free to write or ready to read, so neither side takes a lock and
+ * a full buffer is reported to the producer rather than blocking it.
+ */
+class RingBuffer<T> {
+
+	private final int mask;
+	private final AtomicReferenceArray<T> slots;
+	private final AtomicLongArray sequences;
+	private final AtomicLong head = new AtomicLong(); // next position to read
+	private final AtomicLong tail = new AtomicLong(); // next position to write
+
+	/**
+	 * @param capacity rounded up to a power of two
+	 */
+	RingBuffer(int capacity)
+	{
+		int size = Integer.highestOneBit(Math.max(capacity, 2) - 1) << 1;
+		this.mask = size - 1;
+		this.slots = new AtomicReferenceArray<>(size);
+		this.sequences = new AtomicLongArray(size);
+		for (int i = 0; i < size; i++)
+			sequences.set(i, i);
+	}
+
+	int capacity() {
+		return mask + 1;
+	}
+
+	int size() {
+		return (int) Math.max(0, tail.get() - head.get());
+	}
+
+	/**
+	 * @return false if the buffer is full
+	 */
+	boolean offer(T value)
+	{
+		while (true)
+		{
+			long pos = tail.get();
+			int index = (int) (pos & mask);
+			long diff = sequences.get(index) - pos;
+			if (diff == 0)
+			{
+				if (tail.compareAndSet(pos, pos + 1))
+				{
+					slots.lazySet(index, value);
+					sequences.set(index, pos + 1);
+					return true;
+				}
+			}
+			else if (diff < 0)
+				return false;
+		}
+	}
+
+	/**
+	 * @return the next value or null if the buffer is empty
+	 */
+	T poll()
+	{
+		while (true)
+		{
+			long pos = head.get();
+			int index = (int) (pos & mask);
+			long diff = sequences.get(index) - (pos + 1);
+			if (diff == 0)
+			{
+				if (head.compareAndSet(pos, pos + 1))
+				{
+					T value = slots.get(index);
+					slots.lazySet(index, null);
+					sequences.set(index, pos + mask + 1);
+					return value;
+				}
+			}
+			else if (diff < 0)
+				return null;
+		}
+	}
+
+	/**
+	 * Move up to max values into the list.
+	 * @return number of values moved
+	 */
+	int drainTo(List<T> into, int max)
+	{
+		int n = 0;
+		T value;
+		while (n < max && (value = poll()) != null)
+		{
+			into.add(value);
+			n++;
+		}
+		return n;
+	}
+}
@@ -0,0 +1,105 @@
+/*
+ * Seldon -- open source prediction engine
+ * =======================================
+ *
+ * Copyright 2011-2015 Seldon Technologies Ltd and Rummble Ltd (http://www.seldon.io/)
+ *
+ * ********************************************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * ********************************************************************************************
+ */
+
+
+package io.seldon.api.statsd;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Counts of non negative values in log-linear buckets: exact below 16 and otherwise within 1/16th of the value, in
+ * the style of an HDR histogram. Recording is one atomic increment; counts only grow so readers take differences
+ * between copies to see an interval.
+ */
+final class LatencyHistogram {
+
+	private static final int SUB_BUCKET_BITS = 4;
+	private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+	static final int BUCKETS = (32 - SUB_BUCKET_BITS) * SUB_BUCKETS; // enough for any non negative int
+
+	private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+	private final StripedCounter sum = new StripedCounter();
+
+	void record(int value)
+	{
+		if (value < 0)
+			value = 0;
+		counts.incrementAndGet(indexOf(value));
+		sum.add(value);
+	}
+
+	long[] getCounts()
+	{
+		long[] c = new long[BUCKETS];
+		for (int i = 0; i < BUCKETS; i++)
+			c[i] = counts.get(i);
+		return c;
+	}
+
+	long getSum()
+	{
+		return sum.sum();
+	}
+
+	static int indexOf(int value)
+	{
+		if (value < SUB_BUCKETS)
+			return value;
+		int exp = 31 - Integer.numberOfLeadingZeros(value);
+		return (exp - SUB_BUCKET_BITS + 1) * SUB_BUCKETS + ((value >>> (exp - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1));
+	}
+
+	static long lowestValue(int index)
+	{
+		if (index < SUB_BUCKETS)
+			return index;
+		int exp = index / SUB_BUCKETS + SUB_BUCKET_BITS - 1;
+		return (long) (SUB_BUCKETS + index % SUB_BUCKETS) << (exp - SUB_BUCKET_BITS);
+	}
+
+	static long highestValue(int index)
+	{
+		return lowestValue(index + 1) - 1;
+	}
+
+	/**
+	 * @return the highest value in the bucket holding the given percentile (0-1) of the counts, or 0 if empty
+	 */
+	static long percentile(long[] counts, double p)
+	{
+		long total = 0;
+		for (long c : counts)
+			total += c;
+		if (total == 0)
+			return 0;
+		long rank = Math.max(1, (long) Math.ceil(p * total));
+		long seen = 0;
+		for (int i = 0; i < counts.length; i++)
+		{
+			seen += counts[i];
+			if (seen >= rank)
+				return highestValue(i);
+		}
+		return highestValue(counts.length - 1);
+	}
+}
@@ -0,0 +1,328 @@
+/*
+ * Seldon -- open source prediction engine
+ * =======================================
+ *
+ * Copyright 2011-2015 Seldon Technologies Ltd and Rummble Ltd (http://www.seldon.io/)
+ *
+ * ********************************************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * ********************************************************************************************
+ */
+
+
+package io.seldon.api.statsd;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Aggregates the metrics that used to be sent to statsd one datagram per event. Request threads only update
+ * striped counters and histograms keyed by client, algorithm, test and rec tag; the statsd names are built when the
+ * metrics are flushed or read.
+ * <p>
+ * Everything is cumulative. {@link #getStatsdLines()} returns what changed since it was last called and
+ * {@link #getValues()} returns the totals. Components that already keep their own server-wide totals register them
+ * with {@link #registerServerCount(String, Count)} and they are reported alongside every client's metrics.
+ */
+public class MetricsRegistry {
+
+	private static final double[] PERCENTILES = {0.5, 0.95, 0.99};
+
+	private static final class Key {
+		final String a, b, c, d;
+		final int hash;
+
+		Key(String a, String b, String c, String d)
+		{
+			this.a = a;
+			this.b = b;
+			this.c = c;
+			this.d = d;
+			this.hash = Objects.hash(a, b, c, d);
+		}
+
+		@Override
+		public int hashCode() {
+			return hash;
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			if (this == obj)
+				return true;
+			if (!(obj instanceof Key))
+				return false;
+			Key o = (Key) obj;
+			return hash == o.hash && Objects.equals(a, o.a) && Objects.equals(b, o.b) && Objects.equals(c, o.c) && Objects.equals(d, o.d);
+		}
+	}
+
+	/**
+	 * A cumulative count kept by another component.
+	 */
+	public interface Count {
+		long get();
+	}
+
+	private static final class CtrStats {
+		final StripedCounter total = new StripedCounter();
+		final StripedCounter positive = new StripedCounter();
+	}
+
+	private static final class ApiStats {
+		final StripedCounter count = new StripedCounter();
+		final LatencyHistogram time = new LatencyHistogram();
+		// state at the last statsd flush
+		long[] lastCounts = new long[LatencyHistogram.BUCKETS];
+		long lastSum;
+	}
+
+	private final ConcurrentMap<Key, CtrStats> ctr = new ConcurrentHashMap<>();
+	private final ConcurrentMap<Key, StripedCounter> clicks = new ConcurrentHashMap<>();
+	private final ConcurrentMap<Key, StripedCounter> impressions = new ConcurrentHashMap<>();
+	private final ConcurrentMap<Key, StripedCounter> timeouts = new ConcurrentHashMap<>();
+	private final ConcurrentMap<Key, StripedCounter> actionHistoryLookups = new ConcurrentHashMap<>();
+	private final ConcurrentMap<Key, ApiStats> api = new ConcurrentHashMap<>();
+	private final ConcurrentMap<String, Count> serverCounts = new ConcurrentHashMap<>();
+	private final Map<String, Long> lastCounters = new HashMap<>(); // guarded by this
+
+	/**
+	 * @param name the statsd name after the install id, e.g. eventlog.dropped
+	 */
+	public void registerServerCount(String name, Count count)
+	{
+		serverCounts.put(name, count);
+	}
+
+	public void logCTR(String consumerName,String algKey,boolean success,String abTestingKey,String recTag)
+	{
+		if (algKey == null)
+			return;
+		Key key = new Key(consumerName, algKey, abTestingKey, recTag);
+		CtrStats stats = ctr.get(key);
+		if (stats == null)
+			stats = putIfAbsent(ctr, key, new CtrStats());
+		stats.total.increment();
+		if (success)
+			stats.positive.increment();
+	}
+
+	public void logClick(String consumerName,String recTag)
+	{
+		counter(clicks, consumerName, recTag).increment();
+	}
+
+	public void logImpression(String consumerName,String recTag)
+	{
+		counter(impressions, consumerName, recTag).increment();
+	}
+
+	public void logAlgorithmTimeout(String consumerName,String algorithm)
+	{
+		counter(timeouts, consumerName, algorithm).increment();
+	}
+
+	public void logActionHistoryLookup(String consumerName,boolean backend)
+	{
+		counter(actionHistoryLookups, consumerName, backend ? "backend" : "saved").increment();
+	}
+
+	public void logAPICall(String consumerName,String apiKey,String httpMethod,int time)
+	{
+		Key key = new Key(consumerName, apiKey, httpMethod, null);
+		ApiStats stats = api.get(key);
+		if (stats == null)
+			stats = putIfAbsent(api, key, new ApiStats());
+		stats.count.increment();
+		stats.time.record(time);
+	}
+
+	/**
+	 * @return statsd lines for everything that changed since the last call: counter increments, and for each api
+	 * timer its mean plus gauges for percentiles and max
+	 */
+	public synchronized List<String> getStatsdLines()
+	{
+		List<String> lines = new ArrayList<>();
+		for (Map.Entry<String, Long> e : getCounterTotals(null).entrySet())
+		{
+			Long last = lastCounters.get(e.getKey());
+			long delta = e.getValue() - (last == null ? 0 : last);
+			if (delta > 0)
+			{
+				lines.add(e.getKey() + ":" + delta + "|c");
+				lastCounters.put(e.getKey(), e.getValue());
+			}
+		}
+		for (Map.Entry<Key, ApiStats> e : api.entrySet())
+		{
+			ApiStats stats = e.getValue();
+			long[] counts = stats.time.getCounts();
+			long sum = stats.time.getSum();
+			long[] interval = new long[counts.length];
+			long n = 0;
+			for (int i = 0; i < counts.length; i++)
+			{
+				interval[i] = counts[i] - stats.lastCounts[i];
+				n += interval[i];
+			}
+			if (n == 0)
+				continue;
+			String base = StatsdKeys.getAPIKey(e.getKey().a, e.getKey().b, e.getKey().c) + ".time";
+			// the interval's call count goes in the .count counter so the mean is sent as a single unsampled timing
+			lines.add(base + ":" + Math.round((sum - stats.lastSum) / (double) n) + "|ms");
+			for (double p : PERCENTILES)
+				lines.add(base + ".p" + Math.round(p * 100) + ":" + LatencyHistogram.percentile(interval, p) + "|g");
+			lines.add(base + ".max:" + LatencyHistogram.percentile(interval, 1.0) + "|g");
+			stats.lastCounts = counts;
+			stats.lastSum = sum;
+		}
+		return lines;
+	}
+
+	/**
+	 * @return totals since startup by statsd name: counters as numbers and api timers as maps of count, mean,
+	 * percentiles and max
+	 */
+	public Map<String, Object> getValues()
+	{
+		return getValues(null);
+	}
+
+	/**
+	 * @return the totals for one client, or for every client if client is null
+	 */
+	public Map<String, Object> getValues(String client)
+	{
+		Map<String, Object> values = new TreeMap<>();
+		values.putAll(getCounterTotals(client));
+		for (Map.Entry<Key, ApiStats> e : api.entrySet())
+		{
+			if (client != null && !client.equals(e.getKey().a))
+				continue;
+			long[] counts = e.getValue().time.getCounts();
+			long n = 0;
+			for (long c : counts)
+				n += c;
+			Map<String, Object> timer = new LinkedHashMap<>();
+			timer.put("count", n);
+			timer.put("mean", n == 0 ? 0 : e.getValue().time.getSum() / (double) n);
+			for (double p : PERCENTILES)
+				timer.put("p" + Math.round(p * 100), LatencyHistogram.percentile(counts, p));
+			timer.put("max", LatencyHistogram.percentile(counts, 1.0));
+			values.put(StatsdKeys.getAPIKey(e.getKey().a, e.getKey().b, e.getKey().c) + ".time", timer);
+		}
+		return values;
+	}
+
+	/**
+	 * Counter totals by statsd name, matching the keys the per event calls used to increment, plus the registered
+	 * server-wide counts.
+	 * @param client only count this client, or every client if null
+	 */
+	private Map<String, Long> getCounterTotals(String client)
+	{
+		Map<String, Long> totals = new TreeMap<>();
+		for (Map.Entry<String, Count> e : serverCounts.entrySet())
+			add(totals, StatsdKeys.getServerCount(e.getKey()), e.getValue().get());
+		for (Map.Entry<Key, CtrStats> e : ctr.entrySet())
+		{
+			Key k = e.getKey();
+			if (client != null && !client.equals(k.a))
+				continue;
+			long total = e.getValue().total.sum();
+			long positive = e.getValue().positive.sum();
+			add(totals, StatsdKeys.getClick(k.a, k.b), total);
+			add(totals, StatsdKeys.getPositiveClick(k.a, k.b), positive);
+			if (k.c != null)
+			{
+				if (k.d == null)
+				{
+					add(totals, StatsdKeys.getClickABTesting(k.a, k.b, k.c), total);
+					add(totals, StatsdKeys.getPositiveClickABTesting(k.a, k.b, k.c), positive);
+				}
+				else
+				{
+					add(totals, StatsdKeys.getClickABTesting(k.a, k.b, k.c, k.d), total);
+					add(totals, StatsdKeys.getPositiveClickABTesting(k.a, k.b, k.c, k.d), positive);
+				}
+			}
+		}
+		for (Map.Entry<Key, StripedCounter> e : clicks.entrySet())
+		{
+			Key k = e.getKey();
+			if (client != null && !client.equals(k.a))
+				continue;
+			add(totals, k.b != null ? StatsdKeys.getClick(k.a, k.b) : StatsdKeys.getClick(k.a), e.getValue().sum());
+		}
+		for (Map.Entry<Key, StripedCounter> e : impressions.entrySet())
+		{
+			Key k = e.getKey();
+			if (client != null && !client.equals(k.a))
+				continue;
+			add(totals, k.b != null ? StatsdKeys.getImpression(k.a, k.b) : StatsdKeys.getImpression(k.a), e.getValue().sum());
+		}
+		for (Map.Entry<Key, StripedCounter> e : timeouts.entrySet())
+		{
+			Key k = e.getKey();
+			if (client != null && !client.equals(k.a))
+				continue;
+			add(totals, StatsdKeys.getAlgorithmTimeout(k.a, k.b), e.getValue().sum());
+		}
+		for (Map.Entry<Key, StripedCounter> e : actionHistoryLookups.entrySet())
+		{
+			Key k = e.getKey();
+			if (client != null && !client.equals(k.a))
+				continue;
+			add(totals, StatsdKeys.getActionHistoryLookups(k.a, "backend".equals(k.b)), e.getValue().sum());
+		}
+		for (Map.Entry<Key, ApiStats> e : api.entrySet())
+		{
+			Key k = e.getKey();
+			if (client != null && !client.equals(k.a))
+				continue;
+			add(totals, StatsdKeys.getAPIKey(k.a, k.b, k.c) + ".count", e.getValue().count.sum());
+		}
+		return totals;
+	}
+
+	private static void add(Map<String, Long> totals, String name, long value)
+	{
+		Long current = totals.get(name);
+		totals.put(name, current == null ? value : current + value);
+	}
+
+	private static StripedCounter counter(ConcurrentMap<Key, StripedCounter> counters, String consumerName, String recTag)
+	{
+		Key key = new Key(consumerName, recTag, null, null);
+		StripedCounter counter = counters.get(key);
+		if (counter == null)
+			counter = putIfAbsent(counters, key, new StripedCounter());
+		return counter;
+	}
+
+	private static <V> V putIfAbsent(ConcurrentMap<Key, V> map, Key key, V value)
+	{
+		V existing = map.putIfAbsent(key, value);
+		return existing != null ? existing : value;
+	}
+}
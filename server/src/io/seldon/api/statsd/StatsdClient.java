@@ -59,6 +59,9 @@ import java.net.InetSocketAddress;
 import java.net.UnknownHostException;
 import java.nio.ByteBuffer;
 import java.nio.channels.DatagramChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Locale;
 import java.util.Random;
 
@@ -75,6 +78,9 @@ public class StatsdClient {
 	
 	private static final Logger log = Logger.getLogger(StatsdClient.class.getName());
 
+	// keeps packets inside a typical MTU
+	static final int MAX_PACKET_BYTES = 1432;
+
 	private final InetSocketAddress _address;
 	private final DatagramChannel _channel;
 
@@ -152,6 +158,42 @@ public class StatsdClient {
 		return send(sampleRate, stat);
 	}
 
+	/**
+	 * Send stats several to a datagram, separated by newlines, rather than one datagram each.
+	 */
+	public boolean sendBatched(List<String> stats) {
+		boolean retval = false;
+		for (String packet : pack(stats, MAX_PACKET_BYTES)) {
+			if (doSend(packet)) {
+				retval = true;
+			}
+		}
+		return retval;
+	}
+
+	static List<String> pack(List<String> stats, int maxBytes) {
+		List<String> packets = new ArrayList<String>();
+		StringBuilder packet = new StringBuilder();
+		int bytes = 0;
+		for (String stat : stats) {
+			int len = stat.getBytes(StandardCharsets.UTF_8).length;
+			if (bytes > 0 && bytes + 1 + len > maxBytes) {
+				packets.add(packet.toString());
+				packet.setLength(0);
+				bytes = 0;
+			}
+			if (bytes > 0) {
+				packet.append('\n');
+				bytes++;
+			}
+			packet.append(stat);
+			bytes += len;
+		}
+		if (bytes > 0)
+			packets.add(packet.toString());
+		return packets;
+	}
+
 	private boolean send(double sampleRate, String... stats) {
 
 		boolean retval = false; // didn't send anything
@@ -79,5 +79,17 @@ public class StatsdKeys {
 		return "api."+StatsdPeer.installId+"."+client+"."+recTag+".clicks.positive";
 	}
 
+	public static String getAlgorithmTimeout(String client,String algorithm) {
+		return "api."+StatsdPeer.installId+"."+client+".timeout."+algorithm.toLowerCase();
+	}
+
+	public static String getServerCount(String name) {
+		return "api."+StatsdPeer.installId+"."+name;
+	}
+
+	public static String getActionHistoryLookups(String client,boolean backend) {
+		return "api."+StatsdPeer.installId+"."+client+".actionhistory."+(backend ? "backend" : "saved");
+	}
+
 
 }
@@ -28,7 +28,12 @@ import io.seldon.api.state.GlobalConfigUpdateListener;
 
 import java.io.IOException;
 import java.net.UnknownHostException;
+import java.util.List;
 import java.util.Properties;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
 
 import org.apache.log4j.Logger;
 import org.springframework.beans.factory.annotation.Autowired;
@@ -44,6 +49,7 @@ public class StatsdPeer {
         public int port;
         public String id = "sandbox";
         public float sample_rate = 1.0f;
+        public int flush_interval_secs = DEFAULT_FLUSH_INTERVAL_SECS;
         
         @Override
         public String toString() {
@@ -51,8 +57,9 @@ public class StatsdPeer {
                     + "server[%s], "
                     + "port[%s], "
                     + "id[%s], "
-                    + "sample_rate[%s]"
-                    + "", server,port,id,sample_rate);
+                    + "sample_rate[%s], "
+                    + "flush_interval_secs[%s]"
+                    + "", server,port,id,sample_rate,flush_interval_secs);
         }
     }
     
@@ -86,9 +93,58 @@ public class StatsdPeer {
 
 	private static Logger logger = Logger.getLogger(StatsdPeer.class.getName());
 	
-	private static StatsdClient client;
+	private static final int DEFAULT_FLUSH_INTERVAL_SECS = 10;
+	
+	private static volatile StatsdClient client;
 	static String installId = "sandbox";
 	static float sampleRate = 1.0f;
+	
+	// metrics are aggregated here and sent to statsd on a timer rather than a datagram per event
+	private static final MetricsRegistry metrics = new MetricsRegistry();
+	private static ScheduledExecutorService flusher;
+	
+	public static MetricsRegistry getMetrics()
+	{
+		return metrics;
+	}
+	
+	private static synchronized void startFlushing(int intervalSecs)
+	{
+		if (flusher != null)
+			return;
+		if (intervalSecs <= 0)
+			intervalSecs = DEFAULT_FLUSH_INTERVAL_SECS;
+		logger.info("Flushing metrics to statsd every "+intervalSecs+" secs");
+		flusher = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "StatsdFlusher");
+				t.setDaemon(true);
+				return t;
+			}
+		});
+		flusher.scheduleAtFixedRate(new Runnable() {
+			@Override
+			public void run() {
+				flush();
+			}
+		}, intervalSecs, intervalSecs, TimeUnit.SECONDS);
+	}
+	
+	static void flush()
+	{
+		try
+		{
+			List<String> lines = metrics.getStatsdLines();
+			StatsdClient c = client;
+			if (c != null && !lines.isEmpty())
+				c.sendBatched(lines);
+		}
+		catch (Exception e)
+		{
+			logger.error("Failed to flush metrics to statsd",e);
+		}
+	}
 
 	public static boolean initialise(StatsdConfig statsdConfig) {
 
@@ -101,6 +157,7 @@ public class StatsdPeer {
 				sampleRate = statsdConfig.sample_rate;
 				logger.info("Creating statsd client for host "+statsdServer+" on port "+port+" and using install id of "+installId+" and default sampling of "+sampleRate);
 				client = new StatsdClient(statsdServer, port);
+				startFlushing(statsdConfig.flush_interval_secs);
 				return true;
 			} catch (UnknownHostException e) {
 				logger.error("Failed to create statsdClient ",e);
@@ -126,12 +183,14 @@ public class StatsdPeer {
 			installId = props.getProperty("statsd.id");
 		if (props.containsKey("statsd.sample.rate"))
 			sampleRate = Float.parseFloat(props.getProperty("statsd.sample.rate"));
+		int flushIntervalSecs = Integer.parseInt(props.getProperty("statsd.flush.interval.secs", ""+DEFAULT_FLUSH_INTERVAL_SECS));
 		if (statsdServer != null && portStr != null)
 		{
 			int port = Integer.parseInt(portStr);
 			try {
 				logger.info("Creating statsd client for host "+statsdServer+" on port "+port+" and using install id of "+installId+" and default sampling of "+sampleRate);
 				client = new StatsdClient(statsdServer, port);
+				startFlushing(flushIntervalSecs);
 				return true;
 			} catch (UnknownHostException e) {
 				logger.error("Failed to create statsdClient ",e);
@@ -150,90 +209,37 @@ public class StatsdPeer {
 	
 	public static void logCTR(String consumerName,String algKey,boolean success,String abTestingKey,String recTag)
 	{
-		if (client != null)
-		{
-			try
-			{
-				client.increment(StatsdKeys.getClick(consumerName, algKey));
-				if (abTestingKey != null)
-				{
-					if (recTag == null)
-						client.increment(StatsdKeys.getClickABTesting(consumerName, algKey,abTestingKey));
-					else
-						client.increment(StatsdKeys.getClickABTesting(consumerName, algKey,abTestingKey,recTag));
-				}
-				if (success) {
-					client.increment(StatsdKeys.getPositiveClick(consumerName, algKey));
-					if (abTestingKey != null)
-					{
-						if (recTag == null)
-							client.increment(StatsdKeys.getPositiveClickABTesting(consumerName, algKey,abTestingKey));
-						else
-							client.increment(StatsdKeys.getPositiveClickABTesting(consumerName, algKey,abTestingKey,recTag));
-					}
-				}
-			}
-			catch (Exception e)
-			{
-				logger.error("Failed to call statsd to log for consumer "+consumerName+" alg "+algKey);
-			}
-		}
+		metrics.logCTR(consumerName, algKey, success, abTestingKey, recTag);
 	}
 	
 	//Log when a click has been generated from the RL recommendations
 	public static void logClick(String consumerName,String recTag)
 	{
-		if (client != null)
-		{
-			try
-			{
-				if (recTag != null)
-					client.increment(StatsdKeys.getClick(consumerName,recTag));
-				else
-					client.increment(StatsdKeys.getClick(consumerName));
-			}
-			catch (Exception e)
-			{
-				logger.error("Failed to call statsd to log for consumer "+consumerName);
-			}
-		}
+		metrics.logClick(consumerName, recTag);
 	}
 	
 	//Log when a recommendations set has been shown/retrieved
 	public static void logImpression(String consumerName,String recTag)
 	{
-		if (client != null)
-		{
-			try
-			{
-				if (recTag != null)
-					client.increment(StatsdKeys.getImpression(consumerName,recTag));
-				else
-					client.increment(StatsdKeys.getImpression(consumerName));
-			}
-			catch (Exception e)
-			{
-				logger.error("Failed to call statsd to log for consumer "+consumerName);
-			}
-		}
+		metrics.logImpression(consumerName, recTag);
 	}
 	
 	
+	//Log when a recommendation algorithm missed its deadline and was left out of the results
+	public static void logAlgorithmTimeout(String consumerName,String algorithm)
+	{
+		metrics.logAlgorithmTimeout(consumerName, algorithm);
+	}
+
+	//Log an action history lookup for a request, either sent to the backend or answered from the request's own cache
+	public static void logActionHistoryLookup(String consumerName,boolean backend)
+	{
+		metrics.logActionHistoryLookup(consumerName, backend);
+	}
+
 	public static void logAPICall(String consumerName,String apiKey,String httpMethod,int time)
 	{
-		if (client != null)
-		{
-			try
-			{
-				String baseKey = StatsdKeys.getAPIKey(consumerName, apiKey, httpMethod);
-				client.increment(baseKey+".count",1,sampleRate);
-				client.timing(baseKey+".time", time, sampleRate);
-			}
-			catch (Exception e)
-			{
-				logger.error("Failed to call statsd to log for consumer "+consumerName+" apikey "+apiKey+" httpMethod "+httpMethod+" time "+time,e);
-			}
-		}
+		metrics.logAPICall(consumerName, apiKey, httpMethod, time);
 	}
 
 
@@ -0,0 +1,59 @@
+/*
+ * Seldon -- open source prediction engine
+ * =======================================
+ *
+ * Copyright 2011-2015 Seldon Technologies Ltd and Rummble Ltd (http://www.seldon.io/)
+ *
+ * ********************************************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * ********************************************************************************************
+ */
+
+
+package io.seldon.api.statsd;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A counter spread over cache line padded cells so threads updating it at the same time rarely touch the same cell.
+ * Reads add up the cells.
+ */
+final class StripedCounter {
+
+	private static final int PAD = 8; // longs per cache line
+	private static final int STRIPES = Integer.highestOneBit(Math.max(1, Runtime.getRuntime().availableProcessors() * 2 - 1)) << 1;
+
+	private final AtomicLongArray cells = new AtomicLongArray(STRIPES * PAD);
+
+	void increment()
+	{
+		add(1);
+	}
+
+	void add(long x)
+	{
+		long id = Thread.currentThread().getId();
+		int stripe = (int) (id ^ (id >>> 16)) & (STRIPES - 1);
+		cells.getAndAdd(stripe * PAD, x);
+	}
+
+	long sum()
+	{
+		long sum = 0;
+		for (int i = 0; i < STRIPES; i++)
+			sum += cells.get(i * PAD);
+		return sum;
+	}
+}
@@ -94,7 +94,8 @@ public class AssocRuleRecommender implements ItemRecommendationAlgorithm {
 		 List<Long> basket = null;
 		 if (useActionTypes)
 		 {
-			 List<Action> actions = actionProvider.getRecentFullActions(client, user, maxBasketSize*2);
+			 List<Action> actions = ctxt.getActionHistory() != null ? ctxt.getActionHistory().getRecentFullActions(maxBasketSize*2) :
+				 actionProvider.getRecentFullActions(client, user, maxBasketSize*2);
 			 Collections.reverse(actions);
 			 basket = new ArrayList<Long>();
 			 int addBasketType = optionsHolder.getIntegerOption(ADD_BASKET_ACTION_TYPE_OPTION);
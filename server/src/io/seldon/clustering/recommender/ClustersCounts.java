@@ -23,10 +23,12 @@
 
 package io.seldon.clustering.recommender;
 
+import io.seldon.memcache.NearCache;
+
 import java.io.Serializable;
 import java.util.Map;
 
-public class ClustersCounts implements Serializable {
+public class ClustersCounts implements Serializable, NearCache.Weighted {
 
 	Map<Long,Double> itemCounts;
 	long timestamp;
@@ -48,6 +50,10 @@ public class ClustersCounts implements Serializable {
 	public void setTimestamp(long timestamp) {
 		this.timestamp = timestamp;
 	}
+	@Override
+	public int getCacheWeight() {
+		return itemCounts == null ? 1 : 1 + itemCounts.size();
+	}
 	
 	
 }
@@ -378,6 +378,8 @@ public class CountRecommender {
 				itemCounts = new HashMap<>();
 			}
 		}
+		// filter a copy as the counts may be a cached map shared with other requests
+		itemCounts = new HashMap<>(itemCounts);
 		int excluded = 0;
 		for(Iterator<Map.Entry<Long, Double>> i = itemCounts.entrySet().iterator();i.hasNext();)
 		{
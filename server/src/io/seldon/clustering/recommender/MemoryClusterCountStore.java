@@ -0,0 +1,866 @@
+/*
+ * Seldon -- open source prediction engine
+ * =======================================
+ *
+ * Copyright 2011-2015 Seldon Technologies Ltd and Rummble Ltd (http://www.seldon.io/)
+ *
+ * ********************************************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * ********************************************************************************************
+ */
+
+package io.seldon.clustering.recommender;
+
+import io.seldon.api.Util;
+import io.seldon.api.resource.ConsumerBean;
+import io.seldon.api.resource.service.ItemService;
+import io.seldon.clustering.recommender.jdo.AsyncClusterCountStore.ClusterCount;
+import it.unimi.dsi.fastutil.longs.Long2IntOpenHashMap;
+import it.unimi.dsi.fastutil.longs.Long2ObjectOpenHashMap;
+import it.unimi.dsi.fastutil.longs.LongOpenHashSet;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Cluster counts for one client held in memory so top-N queries need no database round trip.
+ * <p>
+ * Counts decay exponentially with the store's alpha. Decay is applied lazily: every weight is stored scaled by
+ * exp((t - landmark)/alpha), so stored values only ever grow and their ordering is the ordering of the decayed
+ * counts at any single point in time. The real count is recovered by multiplying by exp(-(now - landmark)/alpha).
+ * The landmark is moved forward, rescaling everything, before the scale factor gets large enough to lose precision.
+ * <p>
+ * Each cluster, and the global sum over clusters, keeps an incrementally maintained top-K. Per dimension top-Ks
+ * are built the first time a dimension is asked for and maintained from then on. Queries with more than one
+ * restriction (two dimensions, tags, significance) scan the cluster's counts, which is still all in memory.
+ * <p>
+ * Weights added since the last checkpoint are kept separately so they can be written back to the
+ * cluster_counts table with {@link #drainPending(long)}.
+ * <p>
+ * The decay passed to the query methods is ignored; counts always decay at the rate set with {@link #setAlpha(double)}.
+ */
+public class MemoryClusterCountStore implements ClusterCountStore {
+
+	private static Logger logger = Logger.getLogger(MemoryClusterCountStore.class.getName());
+
+	public static final int DEF_TOP_K = 500;
+	// move the landmark once the scale factor reaches e^30
+	private static final double MAX_SCALE_EXPONENT = 30;
+	// decayed counts below this are dropped when the landmark is moved
+	private static final double MIN_COUNT = 1e-6;
+	private static final int[] NO_DIMENSIONS = new int[0];
+	private static final String[] NO_TAGS = new String[0];
+
+	private final String client;
+	private final int topK;
+	private double alpha;
+	private long landmark;
+	private final ClusterState global;
+	private final Map<Integer,ClusterState> clusters = new HashMap<>();
+	private final Long2ObjectOpenHashMap<int[]> itemDimensions = new Long2ObjectOpenHashMap<>();
+	// items added whose dimensions are not yet known
+	private final LongOpenHashSet unresolved = new LongOpenHashSet();
+	private final Map<Integer,Long2ObjectOpenHashMap<String[]>> itemTags = new HashMap<>();
+	private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+
+	public MemoryClusterCountStore(String client, double alpha, int topK)
+	{
+		this.client = client;
+		this.alpha = alpha;
+		this.topK = topK;
+		this.landmark = currentTime();
+		this.global = new ClusterState(topK);
+	}
+
+	public String getClient() {
+		return client;
+	}
+
+	/**
+	 * @return time in secs used for decaying counts
+	 */
+	protected long currentTime()
+	{
+		return System.currentTimeMillis() / 1000;
+	}
+
+	/**
+	 * Dimensions of an item the store has not seen before, called from {@link #resolveDimensions()}.
+	 */
+	protected Collection<Integer> loadItemDimensions(long itemId)
+	{
+		return ItemService.getItemDimensions(new ConsumerBean(client), itemId);
+	}
+
+	/**
+	 * Tags held in a varchar attribute for items whose tags have not yet been loaded.
+	 */
+	protected Map<Long,List<String>> loadItemTags(Set<Long> itemIds, int tagAttrId)
+	{
+		return Util.getItemPeer(client).getRecentItemTags(itemIds, tagAttrId, "varchar");
+	}
+
+	@Override
+	public void setAlpha(double alpha) {
+		lock.writeLock().lock();
+		try
+		{
+			// bring stored values to real counts so the new rate applies from now on
+			moveLandmark(currentTime());
+			this.alpha = alpha;
+		}
+		finally
+		{
+			lock.writeLock().unlock();
+		}
+	}
+
+	public double getAlpha() {
+		return alpha;
+	}
+
+	@Override
+	public void add(int clusterId, long itemId, double weight, long clusterTimestamp) {
+		add(clusterId, itemId, weight, clusterTimestamp, currentTime());
+	}
+
+	/**
+	 * @param time - in secs
+	 */
+	@Override
+	public void add(int clusterId, long itemId, double weight, long clusterTimestamp, long time) {
+		lock.writeLock().lock();
+		try
+		{
+			// new items are counted straight away and join the dimension top items once resolved
+			int[] dims = itemDimensions.get(itemId);
+			if (dims == null)
+				unresolved.add(itemId);
+			if ((time - landmark) / alpha > MAX_SCALE_EXPONENT)
+				moveLandmark(time);
+			double scaled = weight * Math.exp((time - landmark) / alpha);
+			getOrCreate(clusterId).add(itemId, dims, scaled, true);
+			global.add(itemId, dims, scaled, false);
+		}
+		finally
+		{
+			lock.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * Load a count read back from the database. Not recorded as pending.
+	 * @param time - in secs, when the count was last updated
+	 */
+	public void restore(int clusterId, long itemId, double count, long time)
+	{
+		lock.writeLock().lock();
+		try
+		{
+			int[] dims = itemDimensions.get(itemId);
+			double scaled = count * Math.exp((time - landmark) / alpha);
+			getOrCreate(clusterId).add(itemId, dims, scaled, false);
+			global.add(itemId, dims, scaled, false);
+		}
+		finally
+		{
+			lock.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * Look up the dimensions of items first seen by add() since the last call and offer them to the dimension
+	 * top items. Run off the request path so adding a count never waits on the database. Items whose lookup fails
+	 * are retried on the next call.
+	 * @return the number of items resolved
+	 */
+	public int resolveDimensions()
+	{
+		long[] items;
+		lock.writeLock().lock();
+		try
+		{
+			if (unresolved.isEmpty())
+				return 0;
+			items = unresolved.toLongArray();
+			unresolved.clear();
+		}
+		finally
+		{
+			lock.writeLock().unlock();
+		}
+		int[][] loaded = new int[items.length][];
+		for (int i = 0; i < items.length; i++)
+		{
+			try
+			{
+				loaded[i] = toArray(loadItemDimensions(items[i]));
+			}
+			catch (Exception e)
+			{
+				logger.error("Failed to get dimensions for item "+items[i]+" for client "+client, e);
+			}
+		}
+		int resolved = 0;
+		lock.writeLock().lock();
+		try
+		{
+			for (int i = 0; i < items.length; i++)
+			{
+				if (loaded[i] == null)
+				{
+					unresolved.add(items[i]);
+					continue;
+				}
+				itemDimensions.put(items[i], loaded[i]);
+				for (ClusterState state : clusters.values())
+					state.offerDimensions(items[i], loaded[i]);
+				global.offerDimensions(items[i], loaded[i]);
+				resolved++;
+			}
+		}
+		finally
+		{
+			lock.writeLock().unlock();
+		}
+		return resolved;
+	}
+
+	/**
+	 * Set the dimensions of an item, used when bulk loading so each item does not need a lookup on first add.
+	 */
+	public void setItemDimensions(long itemId, Collection<Integer> dimensions)
+	{
+		int[] dims = toArray(dimensions);
+		lock.writeLock().lock();
+		try
+		{
+			itemDimensions.put(itemId, dims);
+		}
+		finally
+		{
+			lock.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * Remove the weights added since the last call.
+	 * @param time - in secs
+	 * @return the weights added for each cluster and item, decayed to time
+	 */
+	public List<ClusterCount> drainPending(long time)
+	{
+		List<ClusterCount> res = new ArrayList<>();
+		lock.writeLock().lock();
+		try
+		{
+			double factor = Math.exp(-(time - landmark) / alpha);
+			for (Map.Entry<Integer,ClusterState> e : clusters.entrySet())
+				e.getValue().drainPending(e.getKey(), factor, res);
+		}
+		finally
+		{
+			lock.writeLock().unlock();
+		}
+		return res;
+	}
+
+	/**
+	 * Put back weights returned by {@link #drainPending(long)} that could not be written.
+	 */
+	public void restorePending(List<ClusterCount> counts, long time)
+	{
+		lock.writeLock().lock();
+		try
+		{
+			double factor = Math.exp((time - landmark) / alpha);
+			for (ClusterCount count : counts)
+				getOrCreate(count.clusterId).addPending(count.itemId, count.weight * factor);
+		}
+		finally
+		{
+			lock.writeLock().unlock();
+		}
+	}
+
+	@Override
+	public double getCount(int clusterId, long itemId, long timestamp) {
+		lock.readLock().lock();
+		try
+		{
+			ClusterState state = clusters.get(clusterId);
+			return state == null ? 0D : state.get(itemId) * decayFactor();
+		}
+		finally
+		{
+			lock.readLock().unlock();
+		}
+	}
+
+	@Override
+	public Map<Long, Double> getTopCounts(int limit, double decay) {
+		return top(global, limit);
+	}
+
+	@Override
+	public Map<Long, Double> getTopCounts(int clusterId, long timestamp, int limit, double decay) {
+		return top(getState(clusterId), limit);
+	}
+
+	@Override
+	public Map<Long, Double> getTopCountsByDimension(Set<Integer> dimensions, int limit, double decay) {
+		return topByDimension(global, dimensions, limit);
+	}
+
+	@Override
+	public Map<Long, Double> getTopCountsByDimension(int clusterId, Set<Integer> dimensions, long timestamp, int limit, double decay) {
+		return topByDimension(getState(clusterId), dimensions, limit);
+	}
+
+	@Override
+	public Map<Long, Double> getTopCountsByTwoDimensions(Set<Integer> dimensions, int dimension2, int limit, double decay) {
+		return scan(global, limit, new DimensionMatcher(dimensions, dimension2), null);
+	}
+
+	@Override
+	public Map<Long, Double> getTopCountsByTwoDimensions(int clusterId, Set<Integer> dimensions, int dimension2, long timestamp,
+			int limit, double decay) {
+		return scan(getState(clusterId), limit, new DimensionMatcher(dimensions, dimension2), null);
+	}
+
+	@Override
+	public Map<Long, Double> getTopCountsByTag(String tag, int tagAttrId, int limit, double decay) {
+		return scan(global, limit, new TagMatcher(tag, loadTags(tagAttrId), null), null);
+	}
+
+	@Override
+	public Map<Long, Double> getTopCountsByTagAndDimension(String tag, int tagAttrId, Set<Integer> dimensions, int limit, double decay) {
+		return scan(global, limit, new TagMatcher(tag, loadTags(tagAttrId), new DimensionMatcher(dimensions, null)), null);
+	}
+
+	@Override
+	public Map<Long, Double> getTopCountsByTagAndTwoDimensions(String tag, int tagAttrId, Set<Integer> dimensions,
+			int dimension2, int limit, double decay) {
+		return scan(global, limit, new TagMatcher(tag, loadTags(tagAttrId), new DimensionMatcher(dimensions, dimension2)), null);
+	}
+
+	/**
+	 * Items scored by how much more popular they are in the cluster than globally, as the SQL version does
+	 * but with the cluster and global totals taken from the in-memory counts.
+	 */
+	@Override
+	public Map<Long, Double> getTopSignificantCountsByDimension(int clusterId, Set<Integer> dimensions, long timestamp,
+			int limit, double decay) {
+		return scan(getState(clusterId), limit, new DimensionMatcher(dimensions, null), global);
+	}
+
+	@Override
+	public boolean needsExternalCaching() {
+		return false;
+	}
+
+	public int getNumClusters()
+	{
+		lock.readLock().lock();
+		try
+		{
+			return clusters.size();
+		}
+		finally
+		{
+			lock.readLock().unlock();
+		}
+	}
+
+	private ClusterState getState(int clusterId)
+	{
+		lock.readLock().lock();
+		try
+		{
+			return clusters.get(clusterId);
+		}
+		finally
+		{
+			lock.readLock().unlock();
+		}
+	}
+
+	private ClusterState getOrCreate(int clusterId)
+	{
+		ClusterState state = clusters.get(clusterId);
+		if (state == null)
+		{
+			state = new ClusterState(topK);
+			clusters.put(clusterId, state);
+		}
+		return state;
+	}
+
+	private double decayFactor()
+	{
+		return Math.exp(-(currentTime() - landmark) / alpha);
+	}
+
+	private static int[] toArray(Collection<Integer> dimensions)
+	{
+		if (dimensions == null || dimensions.isEmpty())
+			return NO_DIMENSIONS;
+		int[] dims = new int[dimensions.size()];
+		int i = 0;
+		for (Integer d : dimensions)
+			dims[i++] = d;
+		Arrays.sort(dims);
+		return dims;
+	}
+
+	/**
+	 * Rescale all stored values so the landmark becomes time, dropping counts that have decayed to nothing.
+	 * Caller must hold the write lock.
+	 */
+	private void moveLandmark(long time)
+	{
+		double factor = Math.exp(-(time - landmark) / alpha);
+		for (ClusterState state : clusters.values())
+			state.scale(factor, itemDimensions);
+		global.scale(factor, itemDimensions);
+		landmark = time;
+		if (logger.isDebugEnabled())
+			logger.debug("Moved cluster count landmark for client "+client+" to "+time);
+	}
+
+	private Map<Long,Double> top(ClusterState state, int limit)
+	{
+		if (state == null)
+			return new HashMap<>();
+		if (limit > topK)
+			return scan(state, limit, null, null);
+		if (!isExact(state.top))
+			rebuild(state, null);
+		lock.readLock().lock();
+		try
+		{
+			if (state.top.isExact())
+				return state.top.top(limit, decayFactor());
+		}
+		finally
+		{
+			lock.readLock().unlock();
+		}
+		return scan(state, limit, null, null);
+	}
+
+	private Map<Long,Double> topByDimension(ClusterState state, Set<Integer> dimensions, int limit)
+	{
+		if (state == null)
+			return new HashMap<>();
+		if (limit > topK)
+			return scan(state, limit, new DimensionMatcher(dimensions, null), null);
+		for (Integer dimension : dimensions)
+		{
+			TopKItems dimTop;
+			lock.readLock().lock();
+			try
+			{
+				dimTop = state.dimensionTops.get(dimension);
+			}
+			finally
+			{
+				lock.readLock().unlock();
+			}
+			if (dimTop == null || !isExact(dimTop))
+				rebuild(state, dimension);
+		}
+		lock.readLock().lock();
+		try
+		{
+			// the top items across the dimensions are all within the union of each dimension's top items
+			TopKItems merged = new TopKItems(limit);
+			boolean exact = true;
+			for (Integer dimension : dimensions)
+			{
+				TopKItems dimTop = state.dimensionTops.get(dimension);
+				if (dimTop == null || !dimTop.isExact())
+				{
+					exact = false;
+					break;
+				}
+				for (Map.Entry<Long,Double> e : dimTop.top(limit, 1D).entrySet())
+					merged.offer(e.getKey(), e.getValue());
+			}
+			if (exact)
+				return merged.top(limit, decayFactor());
+		}
+		finally
+		{
+			lock.readLock().unlock();
+		}
+		return scan(state, limit, new DimensionMatcher(dimensions, null), null);
+	}
+
+	private boolean isExact(TopKItems top)
+	{
+		lock.readLock().lock();
+		try
+		{
+			return top.isExact();
+		}
+		finally
+		{
+			lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * Rebuild a cluster's top items, or its top items for a dimension, from the full counts.
+	 */
+	private void rebuild(ClusterState state, Integer dimension)
+	{
+		lock.writeLock().lock();
+		try
+		{
+			state.rebuild(dimension, itemDimensions);
+		}
+		finally
+		{
+			lock.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * Load tags for any counted items whose tags are not yet known.
+	 */
+	private Long2ObjectOpenHashMap<String[]> loadTags(int tagAttrId)
+	{
+		Set<Long> missing = new HashSet<>();
+		lock.readLock().lock();
+		try
+		{
+			Long2ObjectOpenHashMap<String[]> tags = itemTags.get(tagAttrId);
+			for (int i = 0; i < global.size; i++)
+				if (tags == null || !tags.containsKey(global.items[i]))
+					missing.add(global.items[i]);
+			if (missing.isEmpty())
+				return tags;
+		}
+		finally
+		{
+			lock.readLock().unlock();
+		}
+		Map<Long,List<String>> loaded;
+		try
+		{
+			loaded = loadItemTags(missing, tagAttrId);
+		}
+		catch (Exception e)
+		{
+			logger.error("Failed to load tags for attr "+tagAttrId+" for client "+client, e);
+			loaded = new HashMap<>();
+		}
+		lock.writeLock().lock();
+		try
+		{
+			Long2ObjectOpenHashMap<String[]> tags = itemTags.get(tagAttrId);
+			if (tags == null)
+			{
+				tags = new Long2ObjectOpenHashMap<>();
+				itemTags.put(tagAttrId, tags);
+			}
+			for (Long itemId : missing)
+			{
+				List<String> itemTagList = loaded.get(itemId);
+				tags.put(itemId.longValue(), itemTagList == null ? NO_TAGS : itemTagList.toArray(new String[itemTagList.size()]));
+			}
+			return tags;
+		}
+		finally
+		{
+			lock.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * Top items of a cluster that pass the matcher. If significance is given the scores are the cluster count
+	 * weighted by how much more popular the item is in the cluster than in the significance state.
+	 */
+	private Map<Long,Double> scan(ClusterState state, int limit, ItemMatcher matcher, ClusterState significance)
+	{
+		if (state == null || limit <= 0)
+			return new HashMap<>();
+		lock.readLock().lock();
+		try
+		{
+			TopKItems top = new TopKItems(Math.min(limit, state.size));
+			for (int i = 0; i < state.size; i++)
+			{
+				long item = state.items[i];
+				if (matcher != null && !matcher.matches(item))
+					continue;
+				double score = state.counts[i];
+				if (significance != null)
+				{
+					double local = state.total > 0 ? score / state.total : 0;
+					double global = significance.total > 0 ? significance.get(item) / significance.total : 0;
+					double max = Math.max(local, global);
+					score = max > 0 ? score * (local - global) / max : 0;
+				}
+				if (top.capacity() > 0)
+					top.offer(item, score);
+			}
+			return top.top(limit, decayFactor());
+		}
+		finally
+		{
+			lock.readLock().unlock();
+		}
+	}
+
+	private interface ItemMatcher {
+		boolean matches(long itemId);
+	}
+
+	/**
+	 * Items in any of a set of dimensions and, optionally, also in a second dimension. Called under the read lock.
+	 */
+	private class DimensionMatcher implements ItemMatcher {
+		final int[] dimensions;
+		final Integer dimension2;
+
+		DimensionMatcher(Set<Integer> dimensions, Integer dimension2)
+		{
+			this.dimensions = toArray(dimensions);
+			this.dimension2 = dimension2;
+		}
+
+		@Override
+		public boolean matches(long itemId) {
+			int[] dims = itemDimensions.get(itemId);
+			if (dims == null)
+				return false;
+			if (dimension2 != null && Arrays.binarySearch(dims, dimension2) < 0)
+				return false;
+			for (int d : dimensions)
+				if (Arrays.binarySearch(dims, d) >= 0)
+					return true;
+			return false;
+		}
+	}
+
+	/**
+	 * Items with a tag, matched case insensitively as the SQL regexp does. Called under the read lock.
+	 */
+	private static class TagMatcher implements ItemMatcher {
+		final String tag;
+		final Long2ObjectOpenHashMap<String[]> tags;
+		final ItemMatcher next;
+
+		TagMatcher(String tag, Long2ObjectOpenHashMap<String[]> tags, ItemMatcher next)
+		{
+			this.tag = tag.trim();
+			this.tags = tags;
+			this.next = next;
+		}
+
+		@Override
+		public boolean matches(long itemId) {
+			String[] itemTags = tags == null ? null : tags.get(itemId);
+			if (itemTags == null)
+				return false;
+			for (String t : itemTags)
+				if (t.equalsIgnoreCase(tag))
+					return next == null || next.matches(itemId);
+			return false;
+		}
+	}
+
+	/**
+	 * Scaled counts of one cluster held in parallel primitive arrays indexed through a slot map.
+	 */
+	private static class ClusterState {
+		final int topK;
+		final Long2IntOpenHashMap slots = new Long2IntOpenHashMap();
+		long[] items = new long[16];
+		double[] counts = new double[16];
+		double[] pending = new double[16];
+		boolean[] dirty = new boolean[16];
+		int size = 0;
+		int[] dirtySlots = new int[16];
+		int numDirty = 0;
+		double total = 0;
+		TopKItems top;
+		final Map<Integer,TopKItems> dimensionTops = new HashMap<>();
+
+		ClusterState(int topK)
+		{
+			this.topK = topK;
+			this.top = new TopKItems(topK);
+			slots.defaultReturnValue(-1);
+		}
+
+		double get(long itemId)
+		{
+			int slot = slots.get(itemId);
+			return slot < 0 ? 0D : counts[slot];
+		}
+
+		void add(long itemId, int[] dims, double scaled, boolean trackPending)
+		{
+			int slot = slotFor(itemId);
+			counts[slot] += scaled;
+			total += scaled;
+			top.offer(itemId, counts[slot]);
+			if (dims != null)
+				for (int d : dims)
+				{
+					TopKItems dimTop = dimensionTops.get(d);
+					if (dimTop != null)
+						dimTop.offer(itemId, counts[slot]);
+				}
+			if (trackPending)
+				addPending(slot, scaled);
+		}
+
+		/**
+		 * Offer an already counted item to the top items of its dimensions.
+		 */
+		void offerDimensions(long itemId, int[] dims)
+		{
+			int slot = slots.get(itemId);
+			if (slot < 0)
+				return;
+			for (int d : dims)
+			{
+				TopKItems dimTop = dimensionTops.get(d);
+				if (dimTop != null)
+					dimTop.offer(itemId, counts[slot]);
+			}
+		}
+
+		void addPending(long itemId, double scaled)
+		{
+			addPending(slotFor(itemId), scaled);
+		}
+
+		private void addPending(int slot, double scaled)
+		{
+			if (!dirty[slot])
+			{
+				dirty[slot] = true;
+				if (numDirty == dirtySlots.length)
+					dirtySlots = Arrays.copyOf(dirtySlots, numDirty * 2);
+				dirtySlots[numDirty++] = slot;
+			}
+			pending[slot] += scaled;
+		}
+
+		private int slotFor(long itemId)
+		{
+			int slot = slots.get(itemId);
+			if (slot < 0)
+			{
+				if (size == items.length)
+				{
+					int capacity = size * 2;
+					items = Arrays.copyOf(items, capacity);
+					counts = Arrays.copyOf(counts, capacity);
+					pending = Arrays.copyOf(pending, capacity);
+					dirty = Arrays.copyOf(dirty, capacity);
+				}
+				slot = size++;
+				items[slot] = itemId;
+				slots.put(itemId, slot);
+			}
+			return slot;
+		}
+
+		void drainPending(int clusterId, double factor, List<ClusterCount> into)
+		{
+			for (int i = 0; i < numDirty; i++)
+			{
+				int slot = dirtySlots[i];
+				into.add(new ClusterCount(clusterId, items[slot], pending[slot] * factor));
+				pending[slot] = 0;
+				dirty[slot] = false;
+			}
+			numDirty = 0;
+		}
+
+		/**
+		 * Multiply all values by factor and compact away items whose count is negligible and not pending.
+		 */
+		void scale(double factor, Long2ObjectOpenHashMap<int[]> itemDimensions)
+		{
+			int kept = 0;
+			total = 0;
+			slots.clear();
+			for (int i = 0; i < size; i++)
+			{
+				double count = counts[i] * factor;
+				if (Math.abs(count) < MIN_COUNT && !dirty[i])
+					continue;
+				items[kept] = items[i];
+				counts[kept] = count;
+				pending[kept] = pending[i] * factor;
+				dirty[kept] = dirty[i];
+				slots.put(items[kept], kept);
+				total += count;
+				kept++;
+			}
+			for (int i = kept; i < size; i++)
+			{
+				pending[i] = 0;
+				dirty[i] = false;
+			}
+			size = kept;
+			numDirty = 0;
+			for (int i = 0; i < size; i++)
+				if (dirty[i])
+					dirtySlots[numDirty++] = i;
+			rebuild(null, itemDimensions);
+			// dimension tops are rebuilt on demand
+			dimensionTops.clear();
+		}
+
+		/**
+		 * Rebuild the overall top items, or the top items for one dimension, by scanning all counts.
+		 */
+		void rebuild(Integer dimension, Long2ObjectOpenHashMap<int[]> itemDimensions)
+		{
+			TopKItems rebuilt = new TopKItems(topK);
+			for (int i = 0; i < size; i++)
+			{
+				if (dimension != null)
+				{
+					int[] dims = itemDimensions.get(items[i]);
+					if (dims == null || Arrays.binarySearch(dims, dimension) < 0)
+						continue;
+				}
+				rebuilt.offer(items[i], counts[i]);
+			}
+			if (dimension == null)
+				top = rebuilt;
+			else
+				dimensionTops.put(dimension, rebuilt);
+		}
+	}
+}
@@ -23,6 +23,7 @@
 
 package io.seldon.clustering.recommender;
 
+import io.seldon.api.caching.RequestActionHistory;
 import io.seldon.api.state.options.DefaultOptions;
 import io.seldon.recommendation.AlgorithmStrategy;
 import io.seldon.recommendation.ItemFilter;
@@ -67,9 +68,15 @@ public class RecommendationContext {
     private final Set<Long> exclusionItems;
     private final List<String> inclusionKeys;
     private final Long currentItem;
+    private final RequestActionHistory actionHistory;
 
     public RecommendationContext(MODE mode, Set<Long> contextItems, Set<Long> exclusionItems, List<String> inclusionKeys, Long currentItem,
                                  String lastRecListUUID, OptionsHolder optsHolder) {
+        this(mode, contextItems, exclusionItems, inclusionKeys, currentItem, lastRecListUUID, optsHolder, null);
+    }
+
+    public RecommendationContext(MODE mode, Set<Long> contextItems, Set<Long> exclusionItems, List<String> inclusionKeys, Long currentItem,
+                                 String lastRecListUUID, OptionsHolder optsHolder, RequestActionHistory actionHistory) {
     	if (logger.isDebugEnabled())
     		logger.debug("Built new rec context object in mode " +mode.name());
 
@@ -80,6 +87,7 @@ public class RecommendationContext {
         this.inclusionKeys = inclusionKeys;
         this.lastRecListUUID = lastRecListUUID;
         this.optsHolder = optsHolder;
+        this.actionHistory = actionHistory;
     }
 
     public String getLastRecListUUID() {
@@ -110,10 +118,19 @@ public class RecommendationContext {
     public OptionsHolder getOptsHolder() {
         return optsHolder;
     }
+
+    /**
+     * @return the user's action history cached for this request, or null for anonymous users
+     */
+    public RequestActionHistory getActionHistory() {
+        return actionHistory;
+    }
+
     public static RecommendationContext buildContext(String client, AlgorithmStrategy strategy, Long user, String clientUserId,
                                                      Long currentItem, Set<Integer> dimensions,
                                                      String lastRecListUUID, int numRecommendations,
-                                                     DefaultOptions defaultOptions, FilteredItems includedItems){
+                                                     DefaultOptions defaultOptions, FilteredItems includedItems,
+                                                     RequestActionHistory actionHistory){
 
         OptionsHolder optsHolder = new OptionsHolder(defaultOptions, strategy.config);
         List<String> inclusionKeys = new ArrayList<String>();
@@ -123,7 +140,7 @@ public class RecommendationContext {
         {
         	contextItems.addAll(includedItems.getItems());
         	inclusionKeys.add(includedItems.getCachingKey());
-        	return new RecommendationContext(MODE.INCLUSION, contextItems, Collections.<Long>emptySet(),  inclusionKeys, currentItem, lastRecListUUID,optsHolder);
+        	return new RecommendationContext(MODE.INCLUSION, contextItems, Collections.<Long>emptySet(),  inclusionKeys, currentItem, lastRecListUUID,optsHolder,actionHistory);
         }
         
 
@@ -132,13 +149,13 @@ public class RecommendationContext {
         if(inclusionProducers == null || inclusionProducers.size() ==0){
             if (itemFilters==null || itemFilters.size() == 0){
                 logger.warn("No filters or includers present in strategy");
-                return new RecommendationContext(MODE.NONE, Collections.<Long>emptySet(), Collections.<Long>emptySet(), Collections.<String>emptyList(),currentItem, lastRecListUUID,optsHolder);
+                return new RecommendationContext(MODE.NONE, Collections.<Long>emptySet(), Collections.<Long>emptySet(), Collections.<String>emptyList(),currentItem, lastRecListUUID,optsHolder,actionHistory);
             }
             for (ItemFilter filter : itemFilters){
                 contextItems.addAll(filter.produceExcludedItems(client, user,clientUserId, optsHolder,currentItem, lastRecListUUID,
-                        numRecommendations));
+                        numRecommendations, actionHistory));
             }
-            return new RecommendationContext(MODE.EXCLUSION, contextItems, contextItems, inclusionKeys, currentItem, lastRecListUUID,optsHolder);
+            return new RecommendationContext(MODE.EXCLUSION, contextItems, contextItems, inclusionKeys, currentItem, lastRecListUUID,optsHolder,actionHistory);
         }
 
         Integer itemsPerIncluder = optsHolder.getIntegerOption(ITEMS_PER_INCLUDER_OPTION_NAME);
@@ -148,14 +165,14 @@ public class RecommendationContext {
                 contextItems.addAll(filteredItems.getItems());
                 inclusionKeys.add(filteredItems.getCachingKey());
             }
-            return new RecommendationContext(MODE.INCLUSION, contextItems, Collections.<Long>emptySet(),  inclusionKeys, currentItem, lastRecListUUID,optsHolder);
+            return new RecommendationContext(MODE.INCLUSION, contextItems, Collections.<Long>emptySet(),  inclusionKeys, currentItem, lastRecListUUID,optsHolder,actionHistory);
         }
 
         Set<Long> included = new HashSet<>();
         Set<Long> excluded = new HashSet<>();
         for (ItemFilter filter : itemFilters){
             excluded.addAll(filter.produceExcludedItems(client, user,clientUserId,optsHolder, currentItem, lastRecListUUID,
-                    numRecommendations));
+                    numRecommendations, actionHistory));
         }
         for (ItemIncluder producer : inclusionProducers){
         	FilteredItems filteredItems = producer.generateIncludedItems(client, dimensions,itemsPerIncluder); 
@@ -165,7 +182,7 @@ public class RecommendationContext {
         included.removeAll(excluded); // ok to do this as the excluded items that weren't in "included" will never
                                       // be recommended
 
-        return new RecommendationContext(MODE.INCLUSION, included, excluded, inclusionKeys,currentItem, lastRecListUUID,optsHolder);
+        return new RecommendationContext(MODE.INCLUSION, included, excluded, inclusionKeys,currentItem, lastRecListUUID,optsHolder,actionHistory);
     }
 
     public static class OptionsHolder{
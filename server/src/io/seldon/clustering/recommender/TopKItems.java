@@ -0,0 +1,178 @@
+/*
+ * Seldon -- open source prediction engine
+ * =======================================
+ *
+ * Copyright 2011-2015 Seldon Technologies Ltd and Rummble Ltd (http://www.seldon.io/)
+ *
+ * ********************************************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * ********************************************************************************************
+ */
+
+package io.seldon.clustering.recommender;
+
+import it.unimi.dsi.fastutil.longs.Long2IntOpenHashMap;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Indexed min-heap holding the K highest scoring items. Scores of items already held can be raised in place,
+ * so the heap stays exact for counts that only grow. Lowering the score of a held item once the heap is full
+ * means an evicted item might now belong in it, so the heap is flagged as inexact and should be rebuilt.
+ */
+class TopKItems {
+
+	private final long[] items;
+	private final double[] scores;
+	private final Long2IntOpenHashMap positions;
+	private int size = 0;
+	private boolean exact = true;
+
+	TopKItems(int capacity)
+	{
+		this.items = new long[capacity];
+		this.scores = new double[capacity];
+		this.positions = new Long2IntOpenHashMap(capacity);
+		this.positions.defaultReturnValue(-1);
+	}
+
+	int capacity() {
+		return items.length;
+	}
+
+	int size() {
+		return size;
+	}
+
+	boolean isExact() {
+		return exact;
+	}
+
+	/**
+	 * Add an item or update the score of an item already held.
+	 */
+	void offer(long item, double score)
+	{
+		int pos = positions.get(item);
+		if (pos >= 0)
+		{
+			double old = scores[pos];
+			scores[pos] = score;
+			if (score >= old)
+				siftDown(pos);
+			else
+			{
+				if (size == items.length)
+					exact = false;
+				siftUp(pos);
+			}
+		}
+		else if (size < items.length)
+		{
+			items[size] = item;
+			scores[size] = score;
+			positions.put(item, size);
+			siftUp(size++);
+		}
+		else if (size > 0 && score > scores[0])
+		{
+			positions.remove(items[0]);
+			items[0] = item;
+			scores[0] = score;
+			positions.put(item, 0);
+			siftDown(0);
+		}
+	}
+
+	/**
+	 * @return the highest scoring items, at most limit of them, with scores multiplied by factor
+	 */
+	Map<Long,Double> top(int limit, double factor)
+	{
+		int n = Math.min(limit, size);
+		Map<Long,Double> res = new HashMap<>(n * 2);
+		if (n == size)
+		{
+			for (int i = 0; i < size; i++)
+				res.put(items[i], scores[i] * factor);
+			return res;
+		}
+		// pop the lowest scores from a copy until only the top n remain
+		TopKItems copy = new TopKItems(size);
+		for (int i = 0; i < size; i++)
+			copy.offer(items[i], scores[i]);
+		while (copy.size > n)
+			copy.removeMin();
+		for (int i = 0; i < copy.size; i++)
+			res.put(copy.items[i], copy.scores[i] * factor);
+		return res;
+	}
+
+	private void removeMin()
+	{
+		positions.remove(items[0]);
+		size--;
+		if (size > 0)
+		{
+			items[0] = items[size];
+			scores[0] = scores[size];
+			positions.put(items[0], 0);
+			siftDown(0);
+		}
+	}
+
+	private void siftUp(int i)
+	{
+		while (i > 0)
+		{
+			int parent = (i - 1) >>> 1;
+			if (scores[parent] <= scores[i])
+				break;
+			swap(i, parent);
+			i = parent;
+		}
+	}
+
+	private void siftDown(int i)
+	{
+		while (true)
+		{
+			int left = 2 * i + 1;
+			if (left >= size)
+				break;
+			int smallest = left;
+			int right = left + 1;
+			if (right < size && scores[right] < scores[left])
+				smallest = right;
+			if (scores[i] <= scores[smallest])
+				break;
+			swap(i, smallest);
+			i = smallest;
+		}
+	}
+
+	private void swap(int a, int b)
+	{
+		long item = items[a];
+		double score = scores[a];
+		items[a] = items[b];
+		scores[a] = scores[b];
+		items[b] = item;
+		scores[b] = score;
+		positions.put(items[a], a);
+		positions.put(items[b], b);
+	}
+}
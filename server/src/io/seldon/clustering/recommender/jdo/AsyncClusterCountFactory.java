@@ -35,6 +35,7 @@ import javax.annotation.PostConstruct;
 
 import org.apache.log4j.Logger;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Component;
 
 @Component
@@ -57,6 +58,9 @@ public class AsyncClusterCountFactory implements DbConfigListener, ClientConfigU
 	private ClientConfigHandler configHandler;
 	
 	DefaultOptions options;
+
+	@Value("${clustercounts.async.shards:4}")
+	private int numShards = 1;
 	
 	@Autowired
 	public AsyncClusterCountFactory(DefaultOptions options, DbConfigHandler dbConfigHandler,ClientConfigHandler configHandler)
@@ -97,11 +101,10 @@ public class AsyncClusterCountFactory implements DbConfigListener, ClientConfigU
 	
 	
 	
-	private static AsyncClusterCountStore create(String client,int qtimeoutSecs,int batchSize,int qSize,int dbRetries,double decay,boolean useDBTime)
+	private AsyncClusterCountStore create(String client,int qtimeoutSecs,int batchSize,int qSize,int dbRetries,double decay,boolean useDBTime)
 	{
-		AsyncClusterCountStore q = new AsyncClusterCountStore(client,qtimeoutSecs,batchSize,qSize,dbRetries,decay,useDBTime);
-		Thread t = new Thread(q);
-		t.start();
+		AsyncClusterCountStore q = new AsyncClusterCountStore(client,qtimeoutSecs,batchSize,qSize,dbRetries,decay,useDBTime,Math.max(numShards, 1));
+		q.start();
 		return q;
 	}
 	
@@ -24,19 +24,30 @@
 package io.seldon.clustering.recommender.jdo;
 
 import io.seldon.db.jdbc.JDBCConnectionFactory;
-import io.seldon.general.Action;
+import it.unimi.dsi.fastutil.ints.Int2ObjectMap;
+import it.unimi.dsi.fastutil.ints.Int2ObjectOpenHashMap;
+import it.unimi.dsi.fastutil.longs.Long2DoubleMap;
+import it.unimi.dsi.fastutil.longs.Long2DoubleOpenHashMap;
 
 import java.sql.Connection;
 import java.sql.PreparedStatement;
 import java.sql.SQLException;
-import java.util.Map;
-import java.util.TreeMap;
-import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
 
 import org.apache.log4j.Logger;
 
-public class AsyncClusterCountStore implements Runnable {
+/**
+ * Aggregates cluster count updates in memory and periodically upserts them into the cluster_counts table.
+ * <p>
+ * Counts are striped by cluster id over a number of shards. Producers add directly into a shard's map
+ * under that shard's lock, so there is no queue between them and the writers. Each shard has its own writer
+ * thread and connection which swaps out the shard's counts and writes them with multi-row upserts. If a
+ * write still fails after the retries the counts are merged back into the shard and written with the next flush.
+ */
+public class AsyncClusterCountStore {
 
 	public static class ClusterCount {
 		public int clusterId;
@@ -54,311 +65,411 @@ public class AsyncClusterCountStore implements Runnable {
 	}
 	
 	private static Logger logger = Logger.getLogger(AsyncClusterCountStore.class.getName());
+
+	private static final int ROWS_PER_STATEMENT = 500;
+	private static final String DB_TIME_INSERT = "insert into cluster_counts values ";
+	private static final String DB_TIME_ROW = "(?,?,?,unix_timestamp())";
+	private static final String DB_TIME_UPDATE = " on duplicate key update count=values(count)+exp(-(greatest(unix_timestamp()-t,0)/?))*count,t=unix_timestamp()";
+	private static final String LOCAL_TIME_ROW = "(?,?,?,?)";
+	private static final String LOCAL_TIME_UPDATE = " on duplicate key update count=values(count)+exp(-(greatest(values(t)-t,0)/?))*count,t=values(t)";
+
     private String client;
     private int timeout; 
-    private LinkedBlockingQueue<ClusterCount> queue;
-    private int batchSize; // batch size for sql statements
+    private int batchSize; // pending unique counts in a shard that trigger a flush
     private int maxDBRetries = 1; // max # of times to try sql statement on exception
-    boolean keepRunning;
-    double decay = 3600;
-    Connection connection = null;
-    
-    PreparedStatement countPreparedStatement;
-    private int countsAdded = 0; // actions added so far to sql statement
-    private int countsAddedTotal = 0; // total actions added including counts for same cluster and item (will be different than counts added for cached version that uses db time)
-     
-    long lastSqlRunTime = 0;
-    int badActions = 0;
+    private final int maxPendingPerShard;
+    volatile boolean keepRunning;
+    volatile double decay = 3600;
     boolean useDBTime = true;
-    TreeMap<Integer,TreeMap<Long,Double>> clusterCounts;
+    private final Shard[] shards;
+
+    private final AtomicLong countsAddedTotal = new AtomicLong(); // all counts added including those for the same cluster and item
+    private final AtomicLong rowsWritten = new AtomicLong(); // unique cluster and item rows upserted
+    private final AtomicLong droppedCounts = new AtomicLong();
     
     public AsyncClusterCountStore(String client, int qTimeoutSecs, int batchSize, int maxQSize,int maxDBRetries,double decay,boolean useDBTime) {
+    	this(client, qTimeoutSecs, batchSize, maxQSize, maxDBRetries, decay, useDBTime, 1);
+    }
+
+    public AsyncClusterCountStore(String client, int qTimeoutSecs, int batchSize, int maxQSize,int maxDBRetries,double decay,boolean useDBTime,int numShards) {
         this.client = client;
         this.batchSize = batchSize;
-        this.maxDBRetries = maxDBRetries;
-        this.queue = new LinkedBlockingQueue<>(maxQSize);
+        this.maxDBRetries = Math.max(maxDBRetries, 1);
         this.timeout = qTimeoutSecs;
         this.decay = decay;
-        clusterCounts = new TreeMap<>();
         this.useDBTime = useDBTime;
-        logger.info("Async cluster count created for client "+client+" qTimeout:"+qTimeoutSecs+" batchSize:"+batchSize+" maxQSize:"+maxQSize+" maxDBRetries:"+maxDBRetries+" decay:"+decay+" use DB Time:"+useDBTime);
+        this.maxPendingPerShard = Math.max(maxQSize / numShards, 1);
+        this.shards = new Shard[numShards];
+        for (int i = 0; i < numShards; i++)
+        	shards[i] = new Shard(i);
+        logger.info("Async cluster count created for client "+client+" qTimeout:"+qTimeoutSecs+" batchSize:"+batchSize+" maxQSize:"+maxQSize+" maxDBRetries:"+maxDBRetries+" decay:"+decay+" use DB Time:"+useDBTime+" shards:"+numShards);
     }
 
-    public void run() {
+    /**
+     * Start a writer thread for each shard.
+     */
+    public void start()
+    {
     	keepRunning = true;
-    	this.lastSqlRunTime = System.currentTimeMillis();
-        while (true) 
-        {
-            try 
-            {
-                ClusterCount count = queue.poll(timeout, TimeUnit.SECONDS);
-                if (count != null)
-                {
-                	if (useDBTime)
-                		addCount(count);
-                	else
-                		addSQL(count);
-                }
-                long timeSinceLastSQLRun = (System.currentTimeMillis() - this.lastSqlRunTime)/1000;
-                boolean runSQL = false;
-                if ((count == null && countsAdded > 0))
-                {
-                	runSQL = true;
-                	logger.info("Run sql as timeout on poll and actionsAdded > 0");
-                }
-                else if (countsAdded >= batchSize)
-                {
-                	runSQL = true;
-                	logger.info("Run sql as batch size exceeded");
-                }
-                else if (timeSinceLastSQLRun > timeout && countsAdded > 0)
-                {
-                	runSQL = true;
-                	logger.info("Run sql as time between sql runs exceeded");
-                }
-                if (runSQL)
-                    runSQL();
-                if (!keepRunning && count == null)
-                {
-                	logger.warn("Asked to stop as keepRunning is false");
-                	return;
-                }
-
-            } 
-            catch (InterruptedException e) {
-            	logger.error("Received interrupted exception - will stop",e);
-                return;
-            }
-            catch (Exception e)
-            {
-            	logger.error("Caught exception while running ", e);
-                resetState();
-                logger.warn("\\-> Reset buffers.");
-            }
-            catch (Throwable t)
-            {
-                logger.error("Caught throwable while running ", t);
-                resetState();
-                logger.warn("\\-> Reset buffers.");
-            }
-        }
+    	for (Shard shard : shards)
+    	{
+    		Thread t = new Thread(shard, "cluster-counts-"+client+"-"+shard.index);
+    		t.setDaemon(true);
+    		t.start();
+    	}
     }
 
-    private void resetState() {
-    	clusterCounts = new TreeMap<>();
-        clearSQLState();
-        countsAdded = 0;
-        countsAddedTotal = 0;
-        this.lastSqlRunTime = System.currentTimeMillis();
+    public void put(ClusterCount count) {
+    	shards[shardFor(count.clusterId)].add(count.clusterId, count.itemId, count.weight);
     }
-    
-    private void clearSQLState()
+
+    /**
+     * Write all pending counts now.
+     * @return true if every shard was written successfully
+     */
+    public boolean flush()
+    {
+    	boolean success = true;
+    	for (Shard shard : shards)
+    		success &= shard.flush();
+    	return success;
+    }
+
+    private int shardFor(int clusterId)
+    {
+    	return (clusterId & Integer.MAX_VALUE) % shards.length;
+    }
+
+    /**
+     * Counts swapped out of a shard to be written.
+     */
+    static class Batch {
+    	final int[] clusters;
+    	final long[] items;
+    	final double[] counts;
+    	int size;
+
+    	Batch(int capacity)
+    	{
+    		clusters = new int[capacity];
+    		items = new long[capacity];
+    		counts = new double[capacity];
+    	}
+    }
+
+    /**
+     * @return a new connection, not auto committing, for a shard's writer
+     */
+    protected Connection getConnection() throws SQLException
     {
+    	Connection connection = JDBCConnectionFactory.get().getConnection(client);
+    	connection.setAutoCommit( false );
+    	return connection;
+    }
+
+    /**
+     * Upsert a batch of counts and commit.
+     */
+    protected void write(Connection connection, Batch batch) throws SQLException
+    {
+    	double decay = this.decay;
+    	long time = System.currentTimeMillis()/1000;
+    	PreparedStatement full = null;
     	try
-		{
-    		if (connection != null)
+    	{
+    		for (int start = 0; start < batch.size; start += ROWS_PER_STATEMENT)
     		{
-    			try{connection.close();}
-    			catch( SQLException exception )
+    			int rows = Math.min(ROWS_PER_STATEMENT, batch.size - start);
+    			PreparedStatement s;
+    			if (rows == ROWS_PER_STATEMENT)
     			{
-    				logger.error("Unable to close connection",exception);
+    				if (full == null)
+    					full = connection.prepareStatement(upsertSQL(rows));
+    				s = full;
     			}
-    		}
-    		if (countPreparedStatement != null)
-    		{
-    			try{countPreparedStatement.close();}
-    			catch( SQLException exception )
+    			else
+    				s = connection.prepareStatement(upsertSQL(rows));
+    			try
     			{
-    				logger.error("Unable to close action perpared statment",exception);
+    				int p = 1;
+    				for (int i = start; i < start + rows; i++)
+    				{
+    					s.setInt(p++, batch.clusters[i]);
+    					s.setLong(p++, batch.items[i]);
+    					s.setDouble(p++, batch.counts[i]);
+    					if (!useDBTime)
+    						s.setLong(p++, time);
+    				}
+    				s.setDouble(p, decay);
+    				s.executeUpdate();
+    			}
+    			finally
+    			{
+    				if (s != full)
+    					s.close();
     			}
     		}
-
-		}
-		finally
-		{
-			connection = null;
-			countPreparedStatement = null;
-		}
-		
-    }
-    
-    private void executeBatch() throws SQLException
-    {
-    	if (countsAdded > 0)
-    	{
-    		countPreparedStatement.executeBatch();
-    		countPreparedStatement.close();
-			countsAdded = 0;
-
     		connection.commit();
     	}
+    	finally
+    	{
+    		if (full != null)
+    			full.close();
+    	}
     }
-    
-    private void rollBack()
+
+    private String upsertSQL(int rows)
     {
-    	try
-		{
-			connection.rollback();
-		}
-		catch( SQLException re )
-		{
-			logger.error("Can't roll back transaction",re);
-		}
+    	String row = useDBTime ? DB_TIME_ROW : LOCAL_TIME_ROW;
+    	StringBuilder sql = new StringBuilder(DB_TIME_INSERT.length() + rows * (row.length() + 1) + LOCAL_TIME_UPDATE.length());
+    	sql.append(DB_TIME_INSERT);
+    	for (int i = 0; i < rows; i++)
+    	{
+    		if (i > 0)
+    			sql.append(',');
+    		sql.append(row);
+    	}
+    	sql.append(useDBTime ? DB_TIME_UPDATE : LOCAL_TIME_UPDATE);
+    	return sql.toString();
     }
-   
-    private void runSQL() throws SQLException 
-    {
-    	int sqlAdded = 0;
-    	int localActionsAdded = this.countsAdded;
-    	if (useDBTime)
+
+    private class Shard implements Runnable {
+
+    	final int index;
+    	final ReentrantLock lock = new ReentrantLock();
+    	final Condition batchFull = lock.newCondition();
+    	Int2ObjectOpenHashMap<Long2DoubleOpenHashMap> counts = new Int2ObjectOpenHashMap<>();
+    	int pending = 0; // unique cluster and item pairs in counts
+    	int added = 0; // all counts added since the last flush
+    	long lastFlushTime = System.currentTimeMillis();
+    	Connection connection;
+
+    	Shard(int index)
     	{
-    		addSQLs();
-    		sqlAdded = this.countsAdded; 
-        	localActionsAdded = this.countsAddedTotal;
+    		this.index = index;
     	}
-    	else
+
+    	void add(int clusterId, long itemId, double weight)
     	{
-    		sqlAdded = this.countsAdded;
-        	localActionsAdded = this.countsAdded;
+    		lock.lock();
+    		try
+    		{
+    			if (!merge(clusterId, itemId, weight))
+    			{
+    				droppedCounts.incrementAndGet();
+    				return;
+    			}
+    			added++;
+    			if (pending == batchSize)
+    				batchFull.signal();
+    		}
+    		finally
+    		{
+    			lock.unlock();
+    		}
+    		countsAddedTotal.incrementAndGet();
     	}
-    	long t1 = System.currentTimeMillis();
 
-    	boolean success = false;
-        for (int i = 0; i < this.maxDBRetries; i++)
-        {
-        	try
+    	/**
+    	 * Add to the count for a cluster and item. Must hold the lock.
+    	 * @return false if this is a new pair and the shard is already holding as many as it may
+    	 */
+    	private boolean merge(int clusterId, long itemId, double weight)
+    	{
+    		Long2DoubleOpenHashMap clusterMap = counts.get(clusterId);
+    		if (clusterMap == null)
     		{
-    			executeBatch();
-    			success = true;
-    			break;
-            }
-    		catch (SQLException e) {
-                logger.error("Failed to run update ",e);
-			}
+    			if (pending >= maxPendingPerShard)
+    				return false;
+    			clusterMap = new Long2DoubleOpenHashMap();
+    			counts.put(clusterId, clusterMap);
+    		}
+    		else if (!clusterMap.containsKey(itemId) && pending >= maxPendingPerShard)
+    			return false;
+    		int size = clusterMap.size();
+    		clusterMap.addTo(itemId, weight);
+    		pending += clusterMap.size() - size;
+    		return true;
     	}
-        if (!success)
-        {
-        	rollBack();
-        	localActionsAdded = 0;
-        }
-        resetState();
-        long t2 = System.currentTimeMillis();
-        //log q size
-        float compression = localActionsAdded > 0 ? (1.0f-(sqlAdded/(float)localActionsAdded)) : 0.0f;
-        logger.info("Asyn count for "+client+" at size:"+queue.size()+" actions added "+localActionsAdded+" unique sql inserts "+sqlAdded + " compression " + compression +" time to process:"+(t2-t1));
-    }
-    
-    /**
-     * Allowed operations to fill in nulls in Action
-     * @param action
-     */
-    private void repairAction(Action action)
-    {
-        if (action.getTimes() == null)
-                action.setTimes(1);
-    }
 
-    
-    private void getConnectionIfNeeded() throws SQLException
-    {
-    	if (connection == null)
+    	@Override
+    	public void run()
     	{
-    		connection = JDBCConnectionFactory.get().getConnection(client);
-    		connection.setAutoCommit( false );
+    		while (true)
+    		{
+    			try
+    			{
+    				boolean stop = !keepRunning;
+    				lock.lock();
+    				try
+    				{
+    					if (!stop && pending < batchSize)
+    						batchFull.await(timeout, TimeUnit.SECONDS);
+    				}
+    				finally
+    				{
+    					lock.unlock();
+    				}
+    				long timeSinceLastFlush = (System.currentTimeMillis() - lastFlushTime)/1000;
+    				if (stop || getPending() >= batchSize || timeSinceLastFlush >= timeout)
+    					flush();
+    				if (stop)
+    				{
+    					logger.warn("Asked to stop as keepRunning is false");
+    					closeConnection();
+    					return;
+    				}
+    			}
+    			catch (InterruptedException e) {
+    				logger.error("Received interrupted exception - will stop",e);
+    				closeConnection();
+    				return;
+    			}
+    			catch (Throwable t)
+    			{
+    				logger.error("Caught throwable while running ", t);
+    				closeConnection();
+    			}
+    		}
     	}
-    }
-    
-   
 
-    private void addCount(ClusterCount count)
-    {
-    	TreeMap<Long,Double> clusterMap = clusterCounts.get(count.clusterId);
-    	if (clusterMap == null)
+    	int getPending()
     	{
-    		clusterMap = new TreeMap<>();
-    		clusterMap.put(count.itemId, count.weight);
-    		clusterCounts.put(count.clusterId, clusterMap);
-    		countsAdded++;
+    		lock.lock();
+    		try
+    		{
+    			return pending;
+    		}
+    		finally
+    		{
+    			lock.unlock();
+    		}
     	}
-    	else
+
+    	private Batch swap()
     	{
-    		Double presValue = clusterMap.get(count.itemId);
-    		if (presValue == null)
+    		Int2ObjectOpenHashMap<Long2DoubleOpenHashMap> toWrite;
+    		int size;
+    		int localAdded;
+    		lock.lock();
+    		try
+    		{
+    			toWrite = counts;
+    			size = pending;
+    			localAdded = added;
+    			counts = new Int2ObjectOpenHashMap<>();
+    			pending = 0;
+    			added = 0;
+    		}
+    		finally
     		{
-    			clusterMap.put(count.itemId, count.weight);
-    			countsAdded++;
+    			lock.unlock();
     		}
-    		else
-    			clusterMap.put(count.itemId, presValue + count.weight);
+    		Batch batch = new Batch(size);
+    		for (Int2ObjectMap.Entry<Long2DoubleOpenHashMap> c : toWrite.int2ObjectEntrySet())
+    			for (Long2DoubleMap.Entry e : c.getValue().long2DoubleEntrySet())
+    			{
+    				batch.clusters[batch.size] = c.getIntKey();
+    				batch.items[batch.size] = e.getLongKey();
+    				batch.counts[batch.size] = e.getDoubleValue();
+    				batch.size++;
+    			}
+    		if (localAdded > 0 && logger.isDebugEnabled())
+    			logger.debug("Swapped "+batch.size+" unique counts from "+localAdded+" added in shard "+index+" for "+client);
+    		return batch;
     	}
-    	this.countsAddedTotal++;
-    }
-    
-    private synchronized int addSQLs() throws SQLException
-    {
-    	getConnectionIfNeeded();
-		
-		// Add action batch
-		if (countPreparedStatement == null)
-			countPreparedStatement = connection.prepareStatement("insert into cluster_counts values (?,?,?,unix_timestamp()) on duplicate key update count=?+exp(-(greatest(unix_timestamp()-t,0)/?))*count,t=unix_timestamp()");
-		int added = 0;
-    	for(Map.Entry<Integer,TreeMap<Long,Double>> m : clusterCounts.entrySet())
+
+    	/**
+    	 * Put back counts that could not be written so they go out with the next flush.
+    	 */
+    	private void restore(Batch batch)
     	{
-    		for(Map.Entry<Long, Double> e : m.getValue().entrySet())
+    		int lost = 0;
+    		lock.lock();
+    		try
     		{
-    			countPreparedStatement.setInt(1, m.getKey());
-    			countPreparedStatement.setLong(2, e.getKey());
-    			countPreparedStatement.setDouble(3, e.getValue());
-    			countPreparedStatement.setDouble(4, e.getValue());
-    			countPreparedStatement.setDouble(5, decay);
-    			
-    			countPreparedStatement.addBatch();
-    			added++;
+    			for (int i = 0; i < batch.size; i++)
+    				if (!merge(batch.clusters[i], batch.items[i], batch.counts[i]))
+    					lost++;
+    		}
+    		finally
+    		{
+    			lock.unlock();
+    		}
+    		if (lost > 0)
+    		{
+    			droppedCounts.addAndGet(lost);
+    			logger.error("Dropped "+lost+" cluster counts for "+client+" as shard "+index+" is full");
     		}
     	}
-    	logger.info("Added "+added+" sql inserts to run ");
-    	clusterCounts = new TreeMap<>();
-    	return added;
-    }
-    
-    
-    
-    private synchronized void addActionBatch(ClusterCount count) throws SQLException
-    {
-    	long time = System.currentTimeMillis();
-    	countPreparedStatement.setInt(1, count.clusterId);
-		countPreparedStatement.setLong(2, count.itemId);
-		countPreparedStatement.setDouble(3, count.weight);
-		countPreparedStatement.setLong(4,  time);
-		countPreparedStatement.setDouble(5, count.weight);
-		countPreparedStatement.setLong(6, time);
-		countPreparedStatement.setDouble(7, decay);
-		countPreparedStatement.setLong(8,  time);
-    }
 
-    private void addSQL(ClusterCount count) throws SQLException {
-    	
-    		getConnectionIfNeeded();
-    		
-    		// Add action batch
-    		if (countPreparedStatement == null)
-    			countPreparedStatement = connection.prepareStatement("insert into cluster_counts values (?,?,?,?) on duplicate key update count=?+exp(-(greatest(?-t,0)/?))*count,t=?");
-    		addActionBatch(count);
-    		countPreparedStatement.addBatch();
-    		countsAdded++;
-    		
-    		
-       
-    }
-    
+    	synchronized boolean flush()
+    	{
+    		lastFlushTime = System.currentTimeMillis();
+    		Batch batch = swap();
+    		if (batch.size == 0)
+    			return true;
+    		long t1 = System.currentTimeMillis();
+    		for (int i = 0; i < maxDBRetries; i++)
+    		{
+    			try
+    			{
+    				if (connection == null)
+    					connection = getConnection();
+    				write(connection, batch);
+    				rowsWritten.addAndGet(batch.size);
+    				logger.info("Async count for "+client+" shard "+index+" wrote "+batch.size+" unique counts in "+(System.currentTimeMillis()-t1)+" msecs, pending "+getQSize());
+    				return true;
+    			}
+    			catch (SQLException e) {
+    				logger.error("Failed to run update ",e);
+    				rollBack();
+    				closeConnection();
+    			}
+    		}
+    		logger.warn("Keeping "+batch.size+" unique counts for "+client+" shard "+index+" to retry on next flush");
+    		restore(batch);
+    		return false;
+    	}
 
-    public void put(ClusterCount count) {
-        queue.add(count);
+    	private void rollBack()
+    	{
+    		if (connection != null)
+    		{
+    			try
+    			{
+    				connection.rollback();
+    			}
+    			catch( SQLException re )
+    			{
+    				logger.error("Can't roll back transaction",re);
+    			}
+    		}
+    	}
+
+    	private void closeConnection()
+    	{
+    		if (connection != null)
+    		{
+    			try{connection.close();}
+    			catch( SQLException exception )
+    			{
+    				logger.error("Unable to close connection",exception);
+    			}
+    			connection = null;
+    		}
+    	}
     }
-    
+
+    /**
+     * @return unique cluster and item counts waiting to be written
+     */
     public int getQSize()
     {
-    	return queue.size();
+    	int size = 0;
+    	for (Shard shard : shards)
+    		size += shard.getPending();
+    	return size;
     }
 
     public String getClient() {
@@ -377,8 +488,16 @@ public class AsyncClusterCountStore implements Runnable {
         this.timeout = timeout;
     }
 
-    public int getActionsAdded() {
-        return countsAdded;
+    public long getActionsAdded() {
+        return countsAddedTotal.get();
+    }
+
+    public long getRowsWritten() {
+    	return rowsWritten.get();
+    }
+
+    public long getDroppedCounts() {
+    	return droppedCounts.get();
     }
 
     public int getBatchSize() {
@@ -397,26 +516,37 @@ public class AsyncClusterCountStore implements Runnable {
 		this.maxDBRetries = maxDBRetries;
 	}
 
+	public int getNumShards() {
+		return shards.length;
+	}
+
 	public boolean isKeepRunning() {
 		return keepRunning;
 	}
 
 	public void setKeepRunning(boolean keepRunning) {
 		this.keepRunning = keepRunning;
-	}
-
-	public int getBadActions() {
-		return badActions;
+		if (!keepRunning)
+			for (Shard shard : shards)
+			{
+				shard.lock.lock();
+				try
+				{
+					shard.batchFull.signal();
+				}
+				finally
+				{
+					shard.lock.unlock();
+				}
+			}
 	}
 
 	public double getDecay() {
 		return decay;
 	}
 
-	public synchronized void setDecay(double decay) {
+	public void setDecay(double decay) {
 		this.decay = decay;
 	}
-    
-	
 
 }
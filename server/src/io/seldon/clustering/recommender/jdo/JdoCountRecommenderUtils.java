@@ -40,14 +40,19 @@ public class JdoCountRecommenderUtils {
 	
 	@Autowired
 	ClusterFromReferrerPeer clusterFromReferrerPeer;
+
+	@Autowired
+	MemoryClusterCountFactory memoryClusterCountFactory;
 	
 	public JdoCountRecommenderUtils() {
 	}
 
 	public CountRecommender getCountRecommender(String client)
 	{
-		// Get cluster counter
-		ClusterCountStore counter = new JdoClusterCountStore(client,asyncClusterCountFactory); // Database backed count store
+		// Get cluster counter - in memory if loaded for the client, otherwise database backed
+		ClusterCountStore counter = memoryClusterCountFactory.get(client);
+		if (counter == null)
+			counter = new JdoClusterCountStore(client,asyncClusterCountFactory);
 
 		// get user clusters
 		UserClusterStore userClusters = null;
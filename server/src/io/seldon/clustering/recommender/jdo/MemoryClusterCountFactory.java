@@ -0,0 +1,363 @@
+/*
+ * Seldon -- open source prediction engine
+ * =======================================
+ *
+ * Copyright 2011-2015 Seldon Technologies Ltd and Rummble Ltd (http://www.seldon.io/)
+ *
+ * ********************************************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * ********************************************************************************************
+ */
+
+package io.seldon.clustering.recommender.jdo;
+
+import io.seldon.api.state.ClientConfigHandler;
+import io.seldon.api.state.ClientConfigUpdateListener;
+import io.seldon.clustering.recommender.MemoryClusterCountStore;
+import io.seldon.clustering.recommender.jdo.AsyncClusterCountStore.ClusterCount;
+import io.seldon.db.jdbc.JDBCConnectionFactory;
+import io.seldon.db.jdo.DbConfigHandler;
+import io.seldon.db.jdo.DbConfigListener;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.concurrent.ConcurrentHashMap;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+
+import org.apache.log4j.Logger;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+/**
+ * Creates an in-memory cluster count store per client when enabled. Each store is loaded from the
+ * cluster_counts table before it is used and the weights added to it are periodically written back with
+ * the same decayed upsert the async counter uses, so a restart sees them. The store is reloaded from the
+ * table every clustercounts.memory.reload.secs (0 to disable) so counts written by other servers are
+ * picked up. Dimensions of newly seen items are looked up by the timer rather than on the add path.
+ */
+@Component
+public class MemoryClusterCountFactory implements DbConfigListener, ClientConfigUpdateListener {
+
+	private static Logger logger = Logger.getLogger(MemoryClusterCountFactory.class.getName());
+
+	private static final String DECAY_RATE_KEY = "cluster_decay_rate";
+	private static final double DEF_DECAY = 10800;
+	private static final int BATCH_SIZE = 4000;
+	private static final long RESOLVE_MSECS = 1000;
+
+	private final ConcurrentHashMap<String,MemoryClusterCountStore> stores = new ConcurrentHashMap<>();
+	private final ConcurrentHashMap<String,Timer> timers = new ConcurrentHashMap<>();
+	private final ConcurrentHashMap<String,Double> decayRates = new ConcurrentHashMap<>();
+	private final ClientConfigHandler configHandler;
+
+	@Value("${clustercounts.memory.enabled:false}")
+	boolean enabled;
+
+	@Value("${clustercounts.memory.topk:500}")
+	int topK = MemoryClusterCountStore.DEF_TOP_K;
+
+	@Value("${clustercounts.memory.checkpoint.secs:60}")
+	int checkpointSecs = 60;
+
+	@Value("${clustercounts.memory.reload.secs:600}")
+	int reloadSecs = 600;
+
+	@Autowired
+	public MemoryClusterCountFactory(DbConfigHandler dbConfigHandler, ClientConfigHandler configHandler)
+	{
+		this.configHandler = configHandler;
+		dbConfigHandler.addDbConfigListener(this);
+	}
+
+	@PostConstruct
+	private void init() {
+		configHandler.addListener(this);
+	}
+
+	/**
+	 * @return the client's in-memory store, or null if not enabled or not yet loaded
+	 */
+	public MemoryClusterCountStore get(String client)
+	{
+		return stores.get(client);
+	}
+
+	@Override
+	public void dbConfigInitialised(final String client) {
+		if (!enabled || timers.containsKey(client))
+			return;
+		Timer timer = new Timer(true);
+		if (timers.putIfAbsent(client, timer) != null)
+		{
+			timer.cancel();
+			return;
+		}
+		timer.schedule(new TimerTask() {
+			public void run()
+			{
+				try
+				{
+					long t1 = System.currentTimeMillis();
+					MemoryClusterCountStore store = createStore(client);
+					load(store);
+					updateDecayRate(client, store);
+					stores.put(client, store);
+					logger.info("Loaded in-memory cluster counts for client "+client+" with "+store.getNumClusters()+" clusters in "+(System.currentTimeMillis()-t1)+" msec");
+				}
+				catch (Exception e)
+				{
+					logger.error("Failed to load cluster counts for client "+client+" will keep using database counts until the next reload", e);
+				}
+			}
+		}, 0);
+		timer.scheduleAtFixedRate(new TimerTask() {
+			public void run()
+			{
+				MemoryClusterCountStore store = stores.get(client);
+				if (store == null)
+					return;
+				try
+				{
+					store.resolveDimensions();
+				}
+				catch (Exception e)
+				{
+					logger.error("Failed to resolve item dimensions for client "+client, e);
+				}
+			}
+		}, RESOLVE_MSECS, RESOLVE_MSECS);
+		long period = checkpointSecs * 1000L;
+		timer.scheduleAtFixedRate(new TimerTask() {
+			public void run()
+			{
+				MemoryClusterCountStore store = stores.get(client);
+				if (store != null)
+					checkpoint(store);
+			}
+		}, period, period);
+		if (reloadSecs > 0)
+		{
+			long reloadPeriod = reloadSecs * 1000L;
+			timer.scheduleAtFixedRate(new TimerTask() {
+				public void run()
+				{
+					reload(client);
+				}
+			}, reloadPeriod, reloadPeriod);
+		}
+	}
+
+	private MemoryClusterCountStore createStore(String client)
+	{
+		Double decay = decayRates.get(client);
+		return new MemoryClusterCountStore(client, decay != null ? decay : DEF_DECAY, topK);
+	}
+
+	// the decay rate may have been updated while the store was loading
+	private void updateDecayRate(String client, MemoryClusterCountStore store)
+	{
+		Double decayRate = decayRates.get(client);
+		if (decayRate != null && decayRate != store.getAlpha())
+			store.setAlpha(decayRate);
+	}
+
+	/**
+	 * Replace the client's store with one freshly loaded from the database so it picks up the counts
+	 * checkpointed by other servers. The current store is checkpointed first and anything added to it
+	 * while the new one loads is carried over. On failure the current store is kept.
+	 */
+	void reload(String client)
+	{
+		MemoryClusterCountStore current = stores.get(client);
+		try
+		{
+			long t1 = System.currentTimeMillis();
+			if (current != null)
+				checkpoint(current);
+			MemoryClusterCountStore fresh = createStore(client);
+			load(fresh);
+			updateDecayRate(client, fresh);
+			stores.put(client, fresh);
+			int carried = 0;
+			if (current != null)
+			{
+				long time = System.currentTimeMillis() / 1000;
+				for (ClusterCount count : current.drainPending(time))
+				{
+					fresh.add(count.clusterId, count.itemId, count.weight, 0, time);
+					carried++;
+				}
+			}
+			logger.info("Reloaded in-memory cluster counts for client "+client+" with "+fresh.getNumClusters()+" clusters carrying over "+carried+" counts in "+(System.currentTimeMillis()-t1)+" msec");
+		}
+		catch (Exception e)
+		{
+			logger.error("Failed to reload cluster counts for client "+client+" will keep the current counts", e);
+		}
+	}
+
+	@PreDestroy
+	public void shutdown()
+	{
+		for (Map.Entry<String,Timer> e : timers.entrySet())
+		{
+			e.getValue().cancel();
+			MemoryClusterCountStore store = stores.get(e.getKey());
+			if (store != null)
+				checkpoint(store);
+		}
+	}
+
+	private void load(MemoryClusterCountStore store) throws SQLException
+	{
+		Connection connection = JDBCConnectionFactory.get().getConnection(store.getClient());
+		try
+		{
+			Statement statement = connection.createStatement();
+			try
+			{
+				ResultSet rs = statement.executeQuery("select e.item_id,d.dim_id from item_map_enum e join dimension d on (e.attr_id=d.attr_id and e.value_id=d.value_id) where e.item_id in (select distinct item_id from cluster_counts) order by e.item_id");
+				long lastItem = -1;
+				Collection<Integer> dims = new ArrayList<>();
+				while (rs.next())
+				{
+					long itemId = rs.getLong(1);
+					if (itemId != lastItem && lastItem != -1)
+					{
+						store.setItemDimensions(lastItem, dims);
+						dims = new ArrayList<>();
+					}
+					dims.add(rs.getInt(2));
+					lastItem = itemId;
+				}
+				if (lastItem != -1)
+					store.setItemDimensions(lastItem, dims);
+				rs.close();
+
+				rs = statement.executeQuery("select id,item_id,count,t from cluster_counts");
+				while (rs.next())
+					store.restore(rs.getInt(1), rs.getLong(2), rs.getDouble(3), rs.getLong(4));
+				rs.close();
+			}
+			finally
+			{
+				statement.close();
+			}
+		}
+		finally
+		{
+			connection.close();
+		}
+	}
+
+	/**
+	 * Write the weights added since the last checkpoint. If the write fails they are put back for the next one.
+	 */
+	void checkpoint(MemoryClusterCountStore store)
+	{
+		long time = System.currentTimeMillis() / 1000;
+		List<ClusterCount> counts = store.drainPending(time);
+		if (counts.isEmpty())
+			return;
+		long t1 = System.currentTimeMillis();
+		Connection connection = null;
+		try
+		{
+			connection = JDBCConnectionFactory.get().getConnection(store.getClient());
+			connection.setAutoCommit(false);
+			PreparedStatement statement = connection.prepareStatement("insert into cluster_counts values (?,?,?,?) on duplicate key update count=?+exp(-(greatest(?-t,0)/?))*count,t=?");
+			try
+			{
+				int added = 0;
+				for (ClusterCount count : counts)
+				{
+					statement.setInt(1, count.clusterId);
+					statement.setLong(2, count.itemId);
+					statement.setDouble(3, count.weight);
+					statement.setLong(4, time);
+					statement.setDouble(5, count.weight);
+					statement.setLong(6, time);
+					statement.setDouble(7, store.getAlpha());
+					statement.setLong(8, time);
+					statement.addBatch();
+					if (++added % BATCH_SIZE == 0)
+						statement.executeBatch();
+				}
+				statement.executeBatch();
+				connection.commit();
+			}
+			finally
+			{
+				statement.close();
+			}
+			logger.info("Checkpointed "+counts.size()+" cluster counts for client "+store.getClient()+" in "+(System.currentTimeMillis()-t1)+" msec");
+		}
+		catch (SQLException e)
+		{
+			logger.error("Failed to checkpoint cluster counts for client "+store.getClient()+" will retry", e);
+			if (connection != null)
+			{
+				try {connection.rollback();}
+				catch (SQLException re) { logger.error("Can't roll back transaction", re); }
+			}
+			store.restorePending(counts, time);
+		}
+		finally
+		{
+			if (connection != null)
+			{
+				try {connection.close();}
+				catch (SQLException e) { logger.error("Unable to close connection", e); }
+			}
+		}
+	}
+
+	@Override
+	public void configUpdated(String client, String configKey, String configValue) {
+		if (configKey.equals(DECAY_RATE_KEY))
+		{
+			try
+			{
+				Double decayRate = Double.parseDouble(configValue);
+				decayRates.put(client, decayRate);
+				MemoryClusterCountStore store = stores.get(client);
+				if (store != null)
+					store.setAlpha(decayRate);
+				logger.info("Updated in-memory cluster count decay rate for client "+client+" to "+decayRate);
+			}
+			catch (NumberFormatException e)
+			{
+				logger.error("Failed to parse decay rate for "+client+" value "+configValue);
+			}
+		}
+	}
+
+	@Override
+	public void configRemoved(String client, String configKey) {
+		//DO NOTHING
+	}
+}
@@ -0,0 +1,293 @@
+/*
+ * Seldon -- open source prediction engine
+ * =======================================
+ *
+ * Copyright 2011-2015 Seldon Technologies Ltd and Rummble Ltd (http://www.seldon.io/)
+ *
+ * ********************************************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * ********************************************************************************************
+ */
+
+
+package io.seldon.external;
+
+import io.seldon.api.state.GlobalConfigHandler;
+import io.seldon.api.state.GlobalConfigUpdateListener;
+
+import java.io.IOException;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import javax.annotation.PreDestroy;
+
+import org.apache.http.Consts;
+import org.apache.http.HttpResponse;
+import org.apache.http.NameValuePair;
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.client.entity.UrlEncodedFormEntity;
+import org.apache.http.client.methods.HttpPost;
+import org.apache.http.client.utils.URIBuilder;
+import org.apache.http.concurrent.FutureCallback;
+import org.apache.http.impl.nio.client.CloseableHttpAsyncClient;
+import org.apache.http.impl.nio.client.HttpAsyncClients;
+import org.apache.http.impl.nio.conn.PoolingNHttpClientConnectionManager;
+import org.apache.http.impl.nio.reactor.DefaultConnectingIOReactor;
+import org.apache.http.nio.reactor.IOReactorException;
+import org.apache.log4j.Logger;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+/**
+ * Non-blocking HTTP client shared by the external algorithms. Requests are multiplexed over a small number of I/O
+ * threads rather than holding a pooled connection thread each. Every endpoint has a limit on requests in flight and
+ * a circuit breaker, so when an external microservice slows down or fails, calls to it fail fast instead of
+ * queueing behind it.
+ */
+@Component
+public class ExternalHttpClient implements GlobalConfigUpdateListener {
+	private static Logger logger = Logger.getLogger(ExternalHttpClient.class.getName());
+	private static final String ZK_CONFIG_TEMP = "prediction_server";
+
+	private static final int DEFAULT_MAX_CONNECTIONS = 150;
+	private static final int DEFAULT_REQ_TIMEOUT = 200;
+	private static final int DEFAULT_CON_TIMEOUT = 500;
+	private static final int DEFAULT_SOCKET_TIMEOUT = 2000;
+	static final int REQUEST_TIMEOUT = DEFAULT_REQ_TIMEOUT + DEFAULT_CON_TIMEOUT + DEFAULT_SOCKET_TIMEOUT;
+	private static final int DEFAULT_MAX_CONCURRENT_PER_ENDPOINT = 100;
+	private static final int DEFAULT_FAILURE_THRESHOLD = 5;
+	private static final int DEFAULT_OPEN_MSECS = 5000;
+
+	private final PoolingNHttpClientConnectionManager cm;
+	private final CloseableHttpAsyncClient httpClient;
+	private final ObjectMapper mapper = new ObjectMapper();
+	private final ConcurrentHashMap<String,Endpoint> endpoints = new ConcurrentHashMap<>();
+	private volatile HttpClientConfig config = new HttpClientConfig();
+
+	public static class HttpClientConfig {
+		public int maxConnections = DEFAULT_MAX_CONNECTIONS;
+		public int maxConcurrentPerEndpoint = DEFAULT_MAX_CONCURRENT_PER_ENDPOINT;
+		public int failureThreshold = DEFAULT_FAILURE_THRESHOLD;
+		public int openMsecs = DEFAULT_OPEN_MSECS;
+	}
+
+	@Autowired
+	public ExternalHttpClient(GlobalConfigHandler globalConfigHandler) throws IOReactorException
+	{
+		cm = new PoolingNHttpClientConnectionManager(new DefaultConnectingIOReactor());
+		cm.setMaxTotal(DEFAULT_MAX_CONNECTIONS);
+		cm.setDefaultMaxPerRoute(DEFAULT_MAX_CONNECTIONS);
+
+		RequestConfig requestConfig = RequestConfig.custom()
+				.setConnectionRequestTimeout(DEFAULT_REQ_TIMEOUT)
+				.setConnectTimeout(DEFAULT_CON_TIMEOUT)
+				.setSocketTimeout(DEFAULT_SOCKET_TIMEOUT).build();
+
+		httpClient = HttpAsyncClients.custom()
+				.setConnectionManager(cm)
+				.setDefaultRequestConfig(requestConfig)
+				.build();
+		httpClient.start();
+		globalConfigHandler.addSubscriber(ZK_CONFIG_TEMP, this);
+	}
+
+	@PreDestroy
+	public void shutdown() throws IOException
+	{
+		httpClient.close();
+	}
+
+	@Override
+	public void configUpdated(String configKey, String configValue) {
+		if (configValue != null && configValue.length() > 0)
+		{
+			try {
+				HttpClientConfig newConfig = mapper.readValue(configValue, HttpClientConfig.class);
+				// the pool is resized in place so connections and requests in flight are kept
+				cm.setMaxTotal(newConfig.maxConnections);
+				cm.setDefaultMaxPerRoute(newConfig.maxConnections);
+				config = newConfig;
+				endpoints.clear();
+				logger.info("Updated external http client to use "+newConfig.maxConnections+" max connections and "+newConfig.maxConcurrentPerEndpoint+" max requests per endpoint");
+			} catch (Exception e) {
+				throw new RuntimeException(String.format("* Error * parsing prediction server configValue[%s]", configValue),e);
+			}
+		}
+	}
+
+	/**
+	 * POST a form to an endpoint. The calling thread waits for the response but no thread is held on the connection.
+	 * @return the JSON response
+	 * @throws IOException if the endpoint's circuit is open, it has too many requests in flight, or the request
+	 * fails, times out or does not return 200
+	 */
+	public JsonNode post(String url,List<NameValuePair> form) throws IOException
+	{
+		final Endpoint endpoint = getEndpoint(url);
+		endpoint.acquire(System.currentTimeMillis());
+		HttpPost post = new HttpPost(url);
+		post.setEntity(new UrlEncodedFormEntity(form, Consts.UTF_8));
+		Future<HttpResponse> future;
+		try
+		{
+			future = httpClient.execute(post, new FutureCallback<HttpResponse>() {
+				@Override
+				public void completed(HttpResponse result) {
+					endpoint.release();
+				}
+
+				@Override
+				public void failed(Exception ex) {
+					endpoint.release();
+				}
+
+				@Override
+				public void cancelled() {
+					endpoint.release();
+				}
+			});
+		}
+		catch (RuntimeException e)
+		{
+			endpoint.release();
+			throw e;
+		}
+		try
+		{
+			HttpResponse resp = future.get(REQUEST_TIMEOUT, TimeUnit.MILLISECONDS);
+			if (resp.getStatusLine().getStatusCode() != 200)
+			{
+				endpoint.failure(System.currentTimeMillis());
+				throw new IOException("Bad http return code " + resp.getStatusLine().getStatusCode() + " from " + url);
+			}
+			JsonNode res = mapper.readTree(resp.getEntity().getContent());
+			endpoint.success();
+			return res;
+		}
+		catch (ExecutionException e)
+		{
+			endpoint.failure(System.currentTimeMillis());
+			throw new IOException("Request to " + url + " failed", e.getCause());
+		}
+		catch (TimeoutException e)
+		{
+			future.cancel(true);
+			endpoint.failure(System.currentTimeMillis());
+			throw new IOException("Request to " + url + " timed out");
+		}
+		catch (InterruptedException e)
+		{
+			future.cancel(true);
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted waiting for " + url);
+		}
+	}
+
+	/**
+	 * @return the http url of an algorithm's configured endpoint, without any query
+	 */
+	public static String getEndpointUrl(String baseUrl) throws URISyntaxException
+	{
+		URI uri = URI.create(baseUrl);
+		return new URIBuilder().setScheme("http")
+				.setHost(uri.getHost())
+				.setPort(uri.getPort())
+				.setPath(uri.getPath())
+				.build().toString();
+	}
+
+	private Endpoint getEndpoint(String url)
+	{
+		Endpoint endpoint = endpoints.get(url);
+		if (endpoint == null)
+		{
+			HttpClientConfig c = config;
+			Endpoint created = new Endpoint(url, c.maxConcurrentPerEndpoint, c.failureThreshold, c.openMsecs);
+			endpoint = endpoints.putIfAbsent(url, created);
+			if (endpoint == null)
+				endpoint = created;
+		}
+		return endpoint;
+	}
+
+	/**
+	 * Requests in flight and circuit breaker state of one endpoint. After a run of failures the circuit opens and
+	 * requests fail at once; when it has been open long enough a single request is let through, closing the circuit
+	 * if it succeeds.
+	 */
+	static class Endpoint {
+		private final String url;
+		private final Semaphore permits;
+		private final int failureThreshold;
+		private final int openMsecs;
+		private int failures = 0;
+		private long openUntil = 0;
+
+		Endpoint(String url,int maxConcurrent,int failureThreshold,int openMsecs)
+		{
+			this.url = url;
+			this.permits = new Semaphore(maxConcurrent);
+			this.failureThreshold = failureThreshold;
+			this.openMsecs = openMsecs;
+		}
+
+		void acquire(long now) throws IOException
+		{
+			if (!allow(now))
+				throw new IOException("Circuit open for " + url);
+			if (!permits.tryAcquire())
+				throw new IOException("Too many requests in flight to " + url);
+		}
+
+		void release()
+		{
+			permits.release();
+		}
+
+		synchronized boolean allow(long now)
+		{
+			if (failures < failureThreshold)
+				return true;
+			if (now < openUntil)
+				return false;
+			// let one request try the endpoint while the rest keep failing fast
+			openUntil = now + openMsecs;
+			return true;
+		}
+
+		synchronized void success()
+		{
+			failures = 0;
+			openUntil = 0;
+		}
+
+		synchronized void failure(long now)
+		{
+			failures++;
+			if (failures >= failureThreshold)
+				openUntil = now + openMsecs;
+		}
+	}
+}
@@ -31,7 +31,6 @@ import io.seldon.clustering.recommender.ItemRecommendationResultSet;
 import io.seldon.clustering.recommender.RecommendationContext;
 
 import java.io.IOException;
-import java.net.URI;
 import java.net.URISyntaxException;
 import java.util.ArrayList;
 import java.util.List;
@@ -40,15 +39,8 @@ import java.util.Set;
 
 import org.apache.commons.collections.CollectionUtils;
 import org.apache.commons.lang3.StringUtils;
-import org.apache.http.client.config.RequestConfig;
-import org.apache.http.client.methods.CloseableHttpResponse;
-import org.apache.http.client.methods.HttpGet;
-import org.apache.http.client.protocol.HttpClientContext;
-import org.apache.http.client.utils.URIBuilder;
-import org.apache.http.impl.client.CloseableHttpClient;
-import org.apache.http.impl.client.HttpClients;
-import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
-import org.apache.http.protocol.HttpContext;
+import org.apache.http.NameValuePair;
+import org.apache.http.message.BasicNameValuePair;
 import org.apache.log4j.Logger;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Component;
@@ -68,33 +60,16 @@ public class ExternalItemRecommendationAlgorithm implements ItemRecommendationAl
     private static Logger logger = Logger.getLogger(ExternalItemRecommendationAlgorithm.class.getName());
     private static final String URL_PROPERTY_NAME="io.seldon.algorithm.external.url";
     private static final String ALG_NAME_PROPERTY_NAME ="io.seldon.algorithm.external.name";
-    private final PoolingHttpClientConnectionManager cm;
-    private final CloseableHttpClient httpClient;
+    private final ExternalHttpClient httpClient;
     ObjectMapper mapper = new ObjectMapper();
-
-    private static final int DEFAULT_REQ_TIMEOUT = 200;
-    private static final int DEFAULT_CON_TIMEOUT = 500;
-    private static final int DEFAULT_SOCKET_TIMEOUT = 2000;
+    private final ObjectReader reader = mapper.reader(AlgsResult.class);
     
     ItemService itemService;
     
     @Autowired
-    public ExternalItemRecommendationAlgorithm(ItemService itemService){
-        cm = new PoolingHttpClientConnectionManager();
-        cm.setMaxTotal(100);
-        cm.setDefaultMaxPerRoute(20);
-        
-        RequestConfig requestConfig = RequestConfig.custom()
-                .setConnectionRequestTimeout(DEFAULT_REQ_TIMEOUT)
-                .setConnectTimeout(DEFAULT_CON_TIMEOUT)
-                .setSocketTimeout(DEFAULT_SOCKET_TIMEOUT).build();
-        
-        httpClient = HttpClients.custom()
-                .setConnectionManager(cm)
-                .setDefaultRequestConfig(requestConfig)
-                .build();
-        
+    public ExternalItemRecommendationAlgorithm(ItemService itemService,ExternalHttpClient httpClient){
         this.itemService = itemService;
+        this.httpClient = httpClient;
     }
 
 
@@ -108,66 +83,46 @@ public class ExternalItemRecommendationAlgorithm implements ItemRecommendationAl
             logger.warn("Cannot get external recommendations are no includers were used. Returning 0 results");
             return new ItemRecommendationResultSet(recommenderName);
         }
-        URI uri = URI.create(baseUrl);
+        String url;
         try {
-            URIBuilder builder = new URIBuilder().setScheme("http")
-                                                    .setHost(uri.getHost())
-                                                    .setPort(uri.getPort())
-                                                    .setPath(uri.getPath())
-                                                    .setParameter("client", client)
-                                                    .setParameter("user_id", user.toString())
-                                                    .setParameter("recent_interactions",StringUtils.join(recentItemInteractions,","))
-                                                    .setParameter("dimensions", StringUtils.join(dimensions, ","))
-                                                    .setParameter("exclusion_items", StringUtils.join(ctxt.getExclusionItems(),","))
-                                                    .setParameter("data_key", StringUtils.join(ctxt.getInclusionKeys(),","))
-                                                    .setParameter("limit", String.valueOf(maxRecsCount));
-            if (ctxt.getCurrentItem() != null)
-                builder.setParameter("item_id", ctxt.getCurrentItem().toString());
-            uri = builder.build();
+            url = ExternalHttpClient.getEndpointUrl(baseUrl);
         } catch (URISyntaxException e) {
             logger.error("Couldn't create URI for external recommender with name " + recommenderName, e);
             return new ItemRecommendationResultSet(recommenderName);
         }
-        HttpContext context = HttpClientContext.create();
-        HttpGet httpGet = new HttpGet(uri);
+        List<NameValuePair> form = new ArrayList<>();
+        form.add(new BasicNameValuePair("client", client));
+        form.add(new BasicNameValuePair("user_id", user.toString()));
+        form.add(new BasicNameValuePair("recent_interactions", StringUtils.join(recentItemInteractions,",")));
+        form.add(new BasicNameValuePair("dimensions", StringUtils.join(dimensions, ",")));
+        form.add(new BasicNameValuePair("exclusion_items", StringUtils.join(ctxt.getExclusionItems(),",")));
+        form.add(new BasicNameValuePair("data_key", StringUtils.join(ctxt.getInclusionKeys(),",")));
+        form.add(new BasicNameValuePair("limit", String.valueOf(maxRecsCount)));
+        if (ctxt.getCurrentItem() != null)
+            form.add(new BasicNameValuePair("item_id", ctxt.getCurrentItem().toString()));
         try  {
         	if (logger.isDebugEnabled())
-        		logger.debug("Requesting " + httpGet.getURI().toString());
-            CloseableHttpResponse resp = httpClient.execute(httpGet, context);
-            try
-            {
-            	if(resp.getStatusLine().getStatusCode() == 200) 
-            	{
-            		ConsumerBean c = new ConsumerBean(client);
-            		ObjectReader reader = mapper.reader(AlgsResult.class);
-            		AlgsResult recs = reader.readValue(resp.getEntity().getContent());
-            		List<ItemRecommendationResultSet.ItemRecommendationResult> results = new ArrayList<>(recs.recommended.size());
-            		for (AlgResult rec : recs.recommended) {
-            			Map<String,Integer> attrDimsCandidate = itemService.getDimensionIdsForItem(c, rec.item);
-						if (CollectionUtils.containsAny(dimensions, attrDimsCandidate.values()) || dimensions.contains(Constants.DEFAULT_DIMENSION))
-						{
-							if (logger.isDebugEnabled())
-								logger.debug("Adding item "+rec.item);
-							results.add(new ItemRecommendationResultSet.ItemRecommendationResult(rec.item, rec.score));
-						}
-						else
-						{
-							if (logger.isDebugEnabled())
-								logger.debug("Rejecting item "+rec.item+" as not in dimensions "+dimensions);
-						}
-            		}
-            		if (logger.isDebugEnabled())
-            			logger.debug("External recommender took "+(System.currentTimeMillis()-timeNow) + "ms");
-            		return new ItemRecommendationResultSet(results,recommenderName);
-            	} else {
-            		logger.error("Couldn't retrieve recommendations from external recommender -- bad http return code: " + resp.getStatusLine().getStatusCode());
-            	}
-            }
-            finally
-            {
-            	if (resp != null)
-					resp.close();
-            }
+        		logger.debug("Requesting " + url);
+        	ConsumerBean c = new ConsumerBean(client);
+        	AlgsResult recs = reader.readValue(httpClient.post(url, form));
+        	List<ItemRecommendationResultSet.ItemRecommendationResult> results = new ArrayList<>(recs.recommended.size());
+        	for (AlgResult rec : recs.recommended) {
+        		Map<String,Integer> attrDimsCandidate = itemService.getDimensionIdsForItem(c, rec.item);
+        		if (CollectionUtils.containsAny(dimensions, attrDimsCandidate.values()) || dimensions.contains(Constants.DEFAULT_DIMENSION))
+        		{
+        			if (logger.isDebugEnabled())
+        				logger.debug("Adding item "+rec.item);
+        			results.add(new ItemRecommendationResultSet.ItemRecommendationResult(rec.item, rec.score));
+        		}
+        		else
+        		{
+        			if (logger.isDebugEnabled())
+        				logger.debug("Rejecting item "+rec.item+" as not in dimensions "+dimensions);
+        		}
+        	}
+        	if (logger.isDebugEnabled())
+        		logger.debug("External recommender took "+(System.currentTimeMillis()-timeNow) + "ms");
+        	return new ItemRecommendationResultSet(results,recommenderName);
         } catch (IOException e) {
             logger.error("Couldn't retrieve recommendations from external recommender - ", e);
         }
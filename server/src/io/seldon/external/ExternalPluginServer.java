@@ -25,7 +25,6 @@ import io.seldon.api.APIException;
 import io.seldon.api.state.GlobalConfigHandler;
 import io.seldon.api.state.GlobalConfigUpdateListener;
 import io.seldon.clustering.recommender.RecommendationContext.OptionsHolder;
-import io.seldon.external.ExternalPredictionServer.PredictionServerConfig;
 import io.seldon.plugins.PluginService;
 
 import java.io.IOException;
@@ -87,7 +86,7 @@ public class ExternalPluginServer implements GlobalConfigUpdateListener, PluginS
 		{
 			ObjectMapper mapper = new ObjectMapper();
             try {
-            	PredictionServerConfig config = mapper.readValue(configValue, PredictionServerConfig.class);
+            	PluginServerConfig config = mapper.readValue(configValue, PluginServerConfig.class);
             	cm = new PoolingHttpClientConnectionManager();
                 cm.setMaxTotal(config.maxConnections);
                 cm.setDefaultMaxPerRoute(config.maxConnections);
@@ -22,34 +22,26 @@
 package io.seldon.external;
 
 import java.io.IOException;
-import java.net.URI;
 import java.net.URISyntaxException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
 
-import org.apache.http.client.config.RequestConfig;
-import org.apache.http.client.methods.CloseableHttpResponse;
-import org.apache.http.client.methods.HttpGet;
-import org.apache.http.client.protocol.HttpClientContext;
-import org.apache.http.client.utils.URIBuilder;
-import org.apache.http.impl.client.CloseableHttpClient;
-import org.apache.http.impl.client.HttpClients;
-import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
-import org.apache.http.protocol.HttpContext;
+import org.apache.http.NameValuePair;
+import org.apache.http.message.BasicNameValuePair;
 import org.apache.log4j.Logger;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Component;
 
-import com.fasterxml.jackson.core.JsonFactory;
-import com.fasterxml.jackson.core.JsonParser;
 import com.fasterxml.jackson.core.JsonProcessingException;
 import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import com.fasterxml.jackson.databind.ObjectReader;
+import com.fasterxml.jackson.databind.node.ArrayNode;
 
 import io.seldon.api.APIException;
 import io.seldon.api.rpc.ClassificationReply;
 import io.seldon.api.rpc.ClassificationRequest;
-import io.seldon.api.state.GlobalConfigHandler;
-import io.seldon.api.state.GlobalConfigUpdateListener;
 import io.seldon.clustering.recommender.RecommendationContext.OptionsHolder;
 import io.seldon.prediction.PredictionAlgorithm;
 import io.seldon.prediction.PredictionServiceResult;
@@ -57,145 +49,95 @@ import io.seldon.rpc.ClientRpcStore;
 
 
 @Component
-public class ExternalPredictionServer implements GlobalConfigUpdateListener, PredictionAlgorithm  {
+public class ExternalPredictionServer implements PredictionAlgorithm  {
 	private static Logger logger = Logger.getLogger(ExternalPredictionServer.class.getName());
 	private static final String name = ExternalPredictionServer.class.getName();
     private static final String URL_PROPERTY_NAME="io.seldon.algorithm.external.url";
     private static final String ALG_NAME_PROPERTY_NAME ="io.seldon.algorithm.external.name";
-    private static final String ZK_CONFIG_TEMP = "prediction_server"; 
-    private PoolingHttpClientConnectionManager cm;
-    private CloseableHttpClient httpClient;
+    private static final String BATCH_WINDOW_PROPERTY_NAME="io.seldon.algorithm.external.batch.window.ms";
+    private static final String BATCH_MAX_PROPERTY_NAME="io.seldon.algorithm.external.batch.max";
     ObjectMapper mapper = new ObjectMapper();
-    
-    private static final int DEFAULT_REQ_TIMEOUT = 200;
-    private static final int DEFAULT_CON_TIMEOUT = 500;
-    private static final int DEFAULT_SOCKET_TIMEOUT = 2000;
+    private final ObjectReader resultReader = mapper.reader(PredictionServiceResult.class);
     
     private final ClientRpcStore rpcStore;
+    private final ExternalHttpClient httpClient;
+    private final PredictionBatcher batcher;
     
     public String getName()
     {
     	return name;
     }
     
-    public static class PredictionServerConfig {
-    	public int maxConnections;
-    }
-    
     @Autowired
-    public ExternalPredictionServer(GlobalConfigHandler globalConfigHandler,ClientRpcStore rpcStore){
-        cm = new PoolingHttpClientConnectionManager();
-        cm.setMaxTotal(150);
-        cm.setDefaultMaxPerRoute(150);
-        
-        RequestConfig requestConfig = RequestConfig.custom()
-                .setConnectionRequestTimeout(DEFAULT_REQ_TIMEOUT)
-                .setConnectTimeout(DEFAULT_CON_TIMEOUT)
-                .setSocketTimeout(DEFAULT_SOCKET_TIMEOUT).build();
-        
-        httpClient = HttpClients.custom()
-                .setConnectionManager(cm)
-                .setDefaultRequestConfig(requestConfig)
-                .build();
-        globalConfigHandler.addSubscriber(ZK_CONFIG_TEMP, this);
+    public ExternalPredictionServer(ExternalHttpClient httpClient,ClientRpcStore rpcStore){
+        this.httpClient = httpClient;
         this.rpcStore = rpcStore;
+        this.batcher = new PredictionBatcher(new PredictionBatcher.Sender() {
+			@Override
+			public List<JsonNode> send(String client, String url, List<JsonNode> inputs) throws IOException {
+				return sendBatch(client, url, inputs);
+			}
+		}, ExternalHttpClient.REQUEST_TIMEOUT);
     }
     
-
-	@Override
-	public void configUpdated(String configKey, String configValue) {
-		if (configValue != null && configValue.length() > 0)
-		{
-			ObjectMapper mapper = new ObjectMapper();
-            try {
-            	PredictionServerConfig config = mapper.readValue(configValue, PredictionServerConfig.class);
-            	cm = new PoolingHttpClientConnectionManager();
-                cm.setMaxTotal(config.maxConnections);
-                cm.setDefaultMaxPerRoute(config.maxConnections);
-                
-                RequestConfig requestConfig = RequestConfig.custom()
-                        .setConnectionRequestTimeout(DEFAULT_REQ_TIMEOUT)
-                        .setConnectTimeout(DEFAULT_CON_TIMEOUT)
-                        .setSocketTimeout(DEFAULT_SOCKET_TIMEOUT).build();
-                
-
-                httpClient = HttpClients.custom()
-                        .setConnectionManager(cm)
-                        .setDefaultRequestConfig(requestConfig)
-                        .build();
-                logger.info("Updated httpclient to use "+config.maxConnections+" max connections");
-            } catch (Exception e) {
-                throw new RuntimeException(String.format("* Error * parsing statsd configValue[%s]", configValue),e);
-            }
-		}
-		
-	}
-
+    private static List<NameValuePair> form(String client,String json)
+    {
+    	List<NameValuePair> form = new ArrayList<>(2);
+    	form.add(new BasicNameValuePair("client", client));
+    	form.add(new BasicNameValuePair("json", json));
+    	return form;
+    }
+    
+    /**
+     * Send several requests as a JSON array, to which the prediction server replies with one result per request
+     * in a results array. A batch of one is sent as a normal request.
+     */
+    private List<JsonNode> sendBatch(String client,String url,List<JsonNode> inputs) throws IOException
+    {
+    	if (inputs.size() == 1)
+    		return Collections.singletonList(httpClient.post(url, form(client, inputs.get(0).toString())));
+    	ArrayNode batch = mapper.createArrayNode();
+    	batch.addAll(inputs);
+    	JsonNode res = httpClient.post(url, form(client, batch.toString()));
+    	JsonNode results = res.get("results");
+    	if (results == null || !results.isArray())
+    		throw new IOException("No results array in batch response from " + url);
+    	List<JsonNode> list = new ArrayList<>(results.size());
+    	for (JsonNode result : results)
+    		list.add(result);
+    	return list;
+    }
 	
     public JsonNode predict(String client, JsonNode jsonNode, OptionsHolder options) 
     {
     		long timeNow = System.currentTimeMillis();
-    		URI uri = URI.create(options.getStringOption(URL_PROPERTY_NAME));
+    		String url;
     		try {
-    			URIBuilder builder = new URIBuilder().setScheme("http")
-    					.setHost(uri.getHost())
-    					.setPort(uri.getPort())
-    					.setPath(uri.getPath())
-    					.setParameter("client", client)
-    					.setParameter("json", jsonNode.toString());
-
-    			uri = builder.build();
+    			url = ExternalHttpClient.getEndpointUrl(options.getStringOption(URL_PROPERTY_NAME));
     		} catch (URISyntaxException e) 
     		{
     			throw new APIException(APIException.GENERIC_ERROR);
     		}
-    		HttpContext context = HttpClientContext.create();
-    		HttpGet httpGet = new HttpGet(uri);
     		try  
     		{
     			if (logger.isDebugEnabled())
-    				logger.debug("Requesting " + httpGet.getURI().toString());
-    			CloseableHttpResponse resp = httpClient.execute(httpGet, context);
-    			try
-    			{
-    				if(resp.getStatusLine().getStatusCode() == 200) 
-    				{
-    					ObjectMapper mapper = new ObjectMapper();
-    				    JsonFactory factory = mapper.getFactory();
-    				    JsonParser parser = factory.createParser(resp.getEntity().getContent());
-    				    JsonNode actualObj = mapper.readTree(parser);
-    				    
-    				    return actualObj;
-    				} 
-    				else 
-    				{
-    					logger.error("Couldn't retrieve prediction from external prediction server -- bad http return code: " + resp.getStatusLine().getStatusCode());
-    					throw new APIException(APIException.GENERIC_ERROR);
-    				}
-    			}
-    			finally
-    			{
-    				if (resp != null)
-    					resp.close();
-    				if (logger.isDebugEnabled())
-    					logger.debug("External prediction server took "+(System.currentTimeMillis()-timeNow) + "ms");
-    			}
+    				logger.debug("Requesting " + url);
+    			int windowMsecs = options.getIntegerOption(BATCH_WINDOW_PROPERTY_NAME);
+    			if (windowMsecs > 0)
+    				return batcher.predict(client, url, jsonNode, windowMsecs, options.getIntegerOption(BATCH_MAX_PROPERTY_NAME));
+    			else
+    				return httpClient.post(url, form(client, jsonNode.toString()));
     		} 
     		catch (IOException e) 
     		{
     			logger.error("Couldn't retrieve prediction from external prediction server - ", e);
     			throw new APIException(APIException.GENERIC_ERROR);
     		}
-    		catch (Exception e)
-            {
-    			logger.error("Couldn't retrieve prediction from external prediction server - ", e);
-    			throw new APIException(APIException.GENERIC_ERROR);
-            }
     		finally
     		{
-    			
+    			if (logger.isDebugEnabled())
+    				logger.debug("External prediction server took "+(System.currentTimeMillis()-timeNow) + "ms");
     		}
-
     }
 
     @Override
@@ -204,9 +146,7 @@ public class ExternalPredictionServer implements GlobalConfigUpdateListener, Pre
     	try
     	{
     		JsonNode actualObj = predict(client, jsonNode, options);
-    		ObjectMapper mapper = new ObjectMapper();
-			ObjectReader reader = mapper.reader(PredictionServiceResult.class);
-			PredictionServiceResult res = reader.readValue(actualObj);
+			PredictionServiceResult res = resultReader.readValue(actualObj);
 			return res;
     		} catch (JsonProcessingException e) {
     			logger.error("Couldn't retrieve prediction from external prediction server - ", e);
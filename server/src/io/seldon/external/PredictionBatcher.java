@@ -0,0 +1,173 @@
+/*
+ * Seldon -- open source prediction engine
+ * =======================================
+ *
+ * Copyright 2011-2015 Seldon Technologies Ltd and Rummble Ltd (http://www.seldon.io/)
+ *
+ * ********************************************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * ********************************************************************************************
+ */
+
+
+package io.seldon.external;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import com.fasterxml.jackson.databind.JsonNode;
+
+/**
+ * Coalesces concurrent prediction requests for the same client and endpoint into one call.
+ * <p>
+ * The first request to arrive opens a batch and waits up to the batch window, or until the batch is full, for
+ * others to join. It then sends the whole batch on its own thread and hands each waiting request its result, so
+ * no extra threads are needed and a lone request is delayed by at most the window.
+ */
+class PredictionBatcher {
+
+	interface Sender {
+		/**
+		 * @return one result per input, in order
+		 */
+		List<JsonNode> send(String client,String url,List<JsonNode> inputs) throws IOException;
+	}
+
+	private final Sender sender;
+	private final long timeoutMsecs;
+	private final ConcurrentHashMap<String,Batch> open = new ConcurrentHashMap<>();
+
+	/**
+	 * @param timeoutMsecs how long a request waits, after the batch window, for the batch it joined to be answered
+	 */
+	PredictionBatcher(Sender sender,long timeoutMsecs)
+	{
+		this.sender = sender;
+		this.timeoutMsecs = timeoutMsecs;
+	}
+
+	/**
+	 * @param maxBatch the most inputs sent in one call, treated as 1 if less
+	 */
+	JsonNode predict(String client,String url,JsonNode input,int windowMsecs,int maxBatch) throws IOException
+	{
+		maxBatch = Math.max(maxBatch, 1);
+		final String key = client + " " + url;
+		while (true)
+		{
+			Batch batch = open.get(key);
+			if (batch == null)
+			{
+				Batch created = new Batch();
+				created.add(input, maxBatch);
+				if (open.putIfAbsent(key, created) == null)
+					return lead(key, created, client, url, windowMsecs);
+			}
+			else
+			{
+				int index = batch.add(input, maxBatch);
+				if (index >= 0)
+					return batch.await(index, windowMsecs + timeoutMsecs);
+				// the open batch is full or being sent so start the next one
+				Batch created = new Batch();
+				created.add(input, maxBatch);
+				if (open.replace(key, batch, created))
+					return lead(key, created, client, url, windowMsecs);
+			}
+		}
+	}
+
+	private JsonNode lead(String key,Batch batch,String client,String url,int windowMsecs) throws IOException
+	{
+		try
+		{
+			batch.full.await(windowMsecs, TimeUnit.MILLISECONDS);
+		}
+		catch (InterruptedException e)
+		{
+			Thread.currentThread().interrupt();
+		}
+		open.remove(key, batch);
+		List<JsonNode> inputs = batch.close();
+		try
+		{
+			List<JsonNode> results = sender.send(client, url, inputs);
+			if (results == null || results.size() != inputs.size())
+				throw new IOException("Expected " + inputs.size() + " results from " + url + " but got " + (results == null ? 0 : results.size()));
+			batch.complete(results, null);
+		}
+		catch (IOException | RuntimeException e)
+		{
+			batch.complete(null, e instanceof IOException ? (IOException) e : new IOException(e));
+		}
+		return batch.await(0, timeoutMsecs);
+	}
+
+	private static class Batch {
+		final List<JsonNode> inputs = new ArrayList<>();
+		final CountDownLatch full = new CountDownLatch(1);
+		final CountDownLatch done = new CountDownLatch(1);
+		boolean closed = false;
+		volatile List<JsonNode> results;
+		volatile IOException error;
+
+		/**
+		 * @return the index of the input in the batch, or -1 if the batch has been sent or is full
+		 */
+		synchronized int add(JsonNode input,int maxBatch)
+		{
+			if (closed || inputs.size() >= maxBatch)
+				return -1;
+			inputs.add(input);
+			if (inputs.size() >= maxBatch)
+				full.countDown();
+			return inputs.size() - 1;
+		}
+
+		synchronized List<JsonNode> close()
+		{
+			closed = true;
+			return new ArrayList<>(inputs);
+		}
+
+		void complete(List<JsonNode> results,IOException error)
+		{
+			this.results = results;
+			this.error = error;
+			done.countDown();
+		}
+
+		JsonNode await(int index,long timeoutMsecs) throws IOException
+		{
+			try
+			{
+				if (!done.await(timeoutMsecs, TimeUnit.MILLISECONDS))
+					throw new IOException("Timed out waiting for batched prediction");
+			}
+			catch (InterruptedException e)
+			{
+				Thread.currentThread().interrupt();
+				throw new IOException("Interrupted waiting for batched prediction");
+			}
+			if (error != null)
+				throw new IOException("Batched prediction failed", error);
+			return results.get(index);
+		}
+	}
+}
@@ -25,6 +25,8 @@ package io.seldon.general;
 
 import io.seldon.api.resource.service.PersistenceProvider;
 import io.seldon.general.jdo.SqlItemPeer;
+import io.seldon.items.ItemIndex;
+import io.seldon.items.ItemIndexFactory;
 import io.seldon.memcache.DogpileHandler;
 import io.seldon.memcache.MemCacheKeys;
 import io.seldon.memcache.MemCachePeer;
@@ -61,11 +63,13 @@ public class ItemStorage {
     private static final int MEMCACHE_EXCLUSIONS_EXPIRE_SECS = 30 * 60;
     private final PersistenceProvider provider;
     private final DogpileHandler dogpileHandler;
+    private final ItemIndexFactory itemIndexFactory;
 
     @Autowired
-    public ItemStorage(PersistenceProvider provider, DogpileHandler dogpileHandler) {
+    public ItemStorage(PersistenceProvider provider, DogpileHandler dogpileHandler, ItemIndexFactory itemIndexFactory) {
         this.provider = provider;
         this.dogpileHandler = dogpileHandler;
+        this.itemIndexFactory = itemIndexFactory;
     }
 
     private String getMostPopularCacheKey(String client,Set<Integer> dimensions, int numItems)
@@ -103,6 +107,13 @@ public class ItemStorage {
     
     public FilteredItems retrieveRecentlyAddedItemsWithTags(final String client, final int numItems, final int tagAttrId, final Set<String> tags, final int tagsKey){
         final String key = MemCacheKeys.getRecentItemsWithTags(client, tagAttrId, tagsKey, numItems);
+        ItemIndex index = itemIndexFactory.get(client);
+        if (index != null)
+        {
+            List<Long> items = index.getRecentItemIdsWithTags(tagAttrId, tags, numItems);
+            if (items != null)
+                return new FilteredItems(items, SecurityHashPeer.md5(key));
+        }
         List<Long> retrievedItems = retrieveUsingJSON(key, numItems, new UpdateRetriever<List<Long>>() {
             @Override
             public List<Long> retrieve() throws Exception {
@@ -114,6 +125,9 @@ public class ItemStorage {
     
     public FilteredItems retrieveRecentlyAddedItems(final String client, final int numItems, final Set<Integer> dimensions){
         final String key = MemCacheKeys.getRecentItems(client, dimensions, numItems);
+        ItemIndex index = itemIndexFactory.get(client);
+        if (index != null)
+            return new FilteredItems(index.getRecentItemIds(dimensions, numItems), SecurityHashPeer.md5(key));
         List<Long> retrievedItems = retrieveUsingJSON(key, numItems, new UpdateRetriever<List<Long>>() {
             @Override
             public List<Long> retrieve() throws Exception {
@@ -125,6 +139,9 @@ public class ItemStorage {
     
     public FilteredItems retrieveRecentlyAddedItemsTwoDimensions(final String client, final int numItems, final Set<Integer> dimensions,final int dimension2){
         final String key = MemCacheKeys.getRecentItemsInDimension(client, dimensions, dimension2, numItems);
+        ItemIndex index = itemIndexFactory.get(client);
+        if (index != null)
+            return new FilteredItems(index.getRecentItemIdsTwoDimensions(dimensions, dimension2, numItems), SecurityHashPeer.md5(key));
         List<Long> retrievedItems = retrieveUsingJSON(key, numItems, new UpdateRetriever<List<Long>>() {
             @Override
             public List<Long> retrieve() throws Exception {
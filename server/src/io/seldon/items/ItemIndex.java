@@ -0,0 +1,415 @@
+/*
+ * Seldon -- open source prediction engine
+ * =======================================
+ *
+ * Copyright 2011-2015 Seldon Technologies Ltd and Rummble Ltd (http://www.seldon.io/)
+ *
+ * ********************************************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * ********************************************************************************************
+ */
+
+
+package io.seldon.items;
+
+import io.seldon.api.Constants;
+import it.unimi.dsi.fastutil.ints.Int2ObjectOpenHashMap;
+import it.unimi.dsi.fastutil.longs.Long2IntOpenHashMap;
+import it.unimi.dsi.fastutil.longs.LongArrayList;
+import it.unimi.dsi.fastutil.objects.ObjectArrayList;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import org.roaringbitmap.IntIterator;
+import org.roaringbitmap.RoaringBitmap;
+
+/**
+ * The dimensions and tags of one client's items held in memory so recent item and item dimension lookups need
+ * no database joins.
+ * <p>
+ * Items are given ordinals in the order they are added, which is item id order when they are loaded and refreshed
+ * in id order, so the most recent items are those with the highest ordinals. Each dimension, and each tag of an
+ * indexed tag attribute, maps to a compressed bitmap of the ordinals of its items, and each ordinal has the array of
+ * its item's dimensions. Queries combine the bitmaps and walk the result from the highest ordinal down.
+ * <p>
+ * Tag attributes are only indexed once asked for: a query for an attribute that isn't indexed returns null and
+ * records the attribute in {@link #getRequestedTagAttrs()} so it can be loaded.
+ */
+public class ItemIndex {
+
+	private static final int[] NO_DIMENSIONS = new int[0];
+
+	private final String client;
+	private final Long2IntOpenHashMap ordinals = new Long2IntOpenHashMap();
+	private final LongArrayList itemIds = new LongArrayList();
+	private final ObjectArrayList<int[]> itemDimensions = new ObjectArrayList<>();
+	private final Int2ObjectOpenHashMap<RoaringBitmap> dimensionItems = new Int2ObjectOpenHashMap<>();
+	private final Int2ObjectOpenHashMap<String> dimensionAttrs = new Int2ObjectOpenHashMap<>();
+	private final Int2ObjectOpenHashMap<TagIndex> tagIndexes = new Int2ObjectOpenHashMap<>();
+	private final Set<Integer> requestedTagAttrs = Collections.newSetFromMap(new ConcurrentHashMap<Integer,Boolean>());
+	private long maxItemId = 0;
+	private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+
+	public ItemIndex(String client)
+	{
+		this.client = client;
+		ordinals.defaultReturnValue(-1);
+	}
+
+	public String getClient() {
+		return client;
+	}
+
+	/**
+	 * Add an item or replace its dimensions. Any tags held for it are removed as they are reloaded with it.
+	 * @param dimAttrs attribute name by dimension id
+	 */
+	public void setItem(long itemId, Map<Integer,String> dimAttrs)
+	{
+		lock.writeLock().lock();
+		try
+		{
+			int ordinal = ordinals.get(itemId);
+			if (ordinal < 0)
+			{
+				ordinal = itemIds.size();
+				ordinals.put(itemId, ordinal);
+				itemIds.add(itemId);
+				itemDimensions.add(NO_DIMENSIONS);
+				maxItemId = Math.max(maxItemId, itemId);
+			}
+			else
+			{
+				for (int dim : itemDimensions.get(ordinal))
+					dimensionItems.get(dim).remove(ordinal);
+				for (TagIndex tags : tagIndexes.values())
+					tags.remove(ordinal);
+			}
+			int[] dims = new int[dimAttrs.size()];
+			int i = 0;
+			for (Map.Entry<Integer,String> e : dimAttrs.entrySet())
+			{
+				int dim = e.getKey();
+				dims[i++] = dim;
+				dimensionAttrs.put(dim, e.getValue());
+				RoaringBitmap items = dimensionItems.get(dim);
+				if (items == null)
+				{
+					items = new RoaringBitmap();
+					dimensionItems.put(dim, items);
+				}
+				items.add(ordinal);
+			}
+			itemDimensions.set(ordinal, dims);
+		}
+		finally
+		{
+			lock.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * Start indexing a tag attribute. Its tags are then set with {@link #setTags(int, long, String)}.
+	 */
+	public void addTagAttr(int tagAttrId)
+	{
+		lock.writeLock().lock();
+		try
+		{
+			if (!tagIndexes.containsKey(tagAttrId))
+				tagIndexes.put(tagAttrId, new TagIndex());
+			requestedTagAttrs.remove(tagAttrId);
+		}
+		finally
+		{
+			lock.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * Set the tags of an item already added for an indexed tag attribute.
+	 * @param tags comma separated, compared ignoring case
+	 */
+	public void setTags(int tagAttrId, long itemId, String tags)
+	{
+		lock.writeLock().lock();
+		try
+		{
+			TagIndex index = tagIndexes.get(tagAttrId);
+			int ordinal = ordinals.get(itemId);
+			if (index != null && ordinal >= 0)
+			{
+				index.remove(ordinal);
+				if (tags != null)
+					index.add(ordinal, tags);
+			}
+		}
+		finally
+		{
+			lock.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * @return tag attributes asked for that are not yet indexed
+	 */
+	public Set<Integer> getRequestedTagAttrs()
+	{
+		return new HashSet<>(requestedTagAttrs);
+	}
+
+	public Set<Integer> getTagAttrs()
+	{
+		lock.readLock().lock();
+		try
+		{
+			return new HashSet<>(tagIndexes.keySet());
+		}
+		finally
+		{
+			lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * @return most recent items in any of the dimensions, or in any dimension for the default dimension
+	 */
+	public List<Long> getRecentItemIds(Set<Integer> dimensions, int limit)
+	{
+		lock.readLock().lock();
+		try
+		{
+			if (isDefault(dimensions))
+			{
+				List<Long> res = new ArrayList<>(Math.min(limit, itemIds.size()));
+				for (int ordinal = itemIds.size() - 1; ordinal >= 0 && res.size() < limit; ordinal--)
+					res.add(itemIds.getLong(ordinal));
+				return res;
+			}
+			return recent(union(dimensions), limit);
+		}
+		finally
+		{
+			lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * @return most recent items in dimension2 and any of the dimensions, or just in dimension2 for the default dimension
+	 */
+	public List<Long> getRecentItemIdsTwoDimensions(Set<Integer> dimensions, int dimension2, int limit)
+	{
+		lock.readLock().lock();
+		try
+		{
+			RoaringBitmap items2 = dimensionItems.get(dimension2);
+			if (items2 == null)
+				return new ArrayList<>();
+			if (isDefault(dimensions))
+				return recent(items2, limit);
+			RoaringBitmap items = union(dimensions);
+			items.and(items2);
+			return recent(items, limit);
+		}
+		finally
+		{
+			lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * Of the most recent items with a value for the tag attribute, those with any of the tags.
+	 * @param tags lower case
+	 * @return the matching items, or null if the attribute is not yet indexed
+	 */
+	public List<Long> getRecentItemIdsWithTags(int tagAttrId, Set<String> tags, int limit)
+	{
+		lock.readLock().lock();
+		try
+		{
+			TagIndex index = tagIndexes.get(tagAttrId);
+			if (index == null)
+			{
+				requestedTagAttrs.add(tagAttrId);
+				return null;
+			}
+			RoaringBitmap matching = new RoaringBitmap();
+			for (String tag : tags)
+			{
+				RoaringBitmap items = index.tagItems.get(tag);
+				if (items != null)
+					matching.or(items);
+			}
+			List<Long> res = new ArrayList<>();
+			IntIterator it = index.items.getReverseIntIterator();
+			for (int i = 0; i < limit && it.hasNext(); i++)
+			{
+				int ordinal = it.next();
+				if (matching.contains(ordinal))
+					res.add(itemIds.getLong(ordinal));
+			}
+			return res;
+		}
+		finally
+		{
+			lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * @return dimension id by attribute name, or null if the item isn't indexed
+	 */
+	public Map<String,Integer> getDimensionIdsForItem(long itemId)
+	{
+		lock.readLock().lock();
+		try
+		{
+			int ordinal = ordinals.get(itemId);
+			if (ordinal < 0)
+				return null;
+			Map<String,Integer> res = new HashMap<>();
+			for (int dim : itemDimensions.get(ordinal))
+				res.put(dimensionAttrs.get(dim), dim);
+			return res;
+		}
+		finally
+		{
+			lock.readLock().unlock();
+		}
+	}
+
+	public long getMaxItemId()
+	{
+		lock.readLock().lock();
+		try
+		{
+			return maxItemId;
+		}
+		finally
+		{
+			lock.readLock().unlock();
+		}
+	}
+
+	public int size()
+	{
+		lock.readLock().lock();
+		try
+		{
+			return itemIds.size();
+		}
+		finally
+		{
+			lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * Compact the bitmaps once loading has finished.
+	 */
+	public void optimize()
+	{
+		lock.writeLock().lock();
+		try
+		{
+			for (RoaringBitmap items : dimensionItems.values())
+				items.runOptimize();
+			for (TagIndex index : tagIndexes.values())
+			{
+				index.items.runOptimize();
+				for (RoaringBitmap items : index.tagItems.values())
+					items.runOptimize();
+			}
+		}
+		finally
+		{
+			lock.writeLock().unlock();
+		}
+	}
+
+	private static boolean isDefault(Set<Integer> dimensions)
+	{
+		return dimensions.isEmpty() || (dimensions.size() == 1 && dimensions.iterator().next() == Constants.DEFAULT_DIMENSION);
+	}
+
+	private RoaringBitmap union(Set<Integer> dimensions)
+	{
+		RoaringBitmap res = new RoaringBitmap();
+		for (Integer dim : dimensions)
+		{
+			RoaringBitmap items = dimensionItems.get(dim);
+			if (items != null)
+				res.or(items);
+		}
+		return res;
+	}
+
+	private List<Long> recent(RoaringBitmap items, int limit)
+	{
+		List<Long> res = new ArrayList<>(Math.min(limit, items.getCardinality()));
+		IntIterator it = items.getReverseIntIterator();
+		while (it.hasNext() && res.size() < limit)
+			res.add(itemIds.getLong(it.next()));
+		return res;
+	}
+
+	private static class TagIndex
+	{
+		final Map<String,RoaringBitmap> tagItems = new HashMap<>();
+		final RoaringBitmap items = new RoaringBitmap();
+		final Int2ObjectOpenHashMap<String[]> ordinalTags = new Int2ObjectOpenHashMap<>();
+
+		void add(int ordinal, String tags)
+		{
+			String[] parts = tags.split(",");
+			List<String> added = new ArrayList<>(parts.length);
+			for (String part : parts)
+			{
+				String tag = part.toLowerCase().trim();
+				if (tag.isEmpty())
+					continue;
+				RoaringBitmap tagged = tagItems.get(tag);
+				if (tagged == null)
+				{
+					tagged = new RoaringBitmap();
+					tagItems.put(tag, tagged);
+				}
+				tagged.add(ordinal);
+				added.add(tag);
+			}
+			items.add(ordinal);
+			ordinalTags.put(ordinal, added.toArray(new String[added.size()]));
+		}
+
+		void remove(int ordinal)
+		{
+			String[] tags = ordinalTags.remove(ordinal);
+			if (tags != null)
+			{
+				for (String tag : tags)
+					tagItems.get(tag).remove(ordinal);
+				items.remove(ordinal);
+			}
+		}
+	}
+}
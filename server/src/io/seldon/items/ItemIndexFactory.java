@@ -0,0 +1,203 @@
+/*
+ * Seldon -- open source prediction engine
+ * =======================================
+ *
+ * Copyright 2011-2015 Seldon Technologies Ltd and Rummble Ltd (http://www.seldon.io/)
+ *
+ * ********************************************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * ********************************************************************************************
+ */
+
+
+package io.seldon.items;
+
+import io.seldon.db.jdbc.JDBCConnectionFactory;
+import io.seldon.db.jdo.DbConfigHandler;
+import io.seldon.db.jdo.DbConfigListener;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.concurrent.ConcurrentHashMap;
+
+import javax.annotation.PreDestroy;
+
+import org.apache.log4j.Logger;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+/**
+ * Builds an in-memory {@link ItemIndex} per client when enabled. The index is loaded from the items,
+ * item_map_enum and dimension tables when the client's database is set up and then periodically refreshed with
+ * items added or updated since, along with any tag attributes that have been asked for.
+ */
+@Component
+public class ItemIndexFactory implements DbConfigListener {
+
+	private static Logger logger = Logger.getLogger(ItemIndexFactory.class.getName());
+
+	private static final String DIMENSIONS_SQL = "select i.item_id,ia.name,d.dim_id from items i "
+			+ "left join item_map_enum ime on (i.item_id=ime.item_id) "
+			+ "left join item_attr ia on (ia.attr_id=ime.attr_id) "
+			+ "left join dimension d on (ime.attr_id=d.attr_id and ime.value_id=d.value_id and i.type=d.item_type) "
+			+ "where i.item_id > ? or i.last_op >= ? order by i.item_id";
+	private static final String TAGS_SQL = "select v.item_id,v.value from item_map_varchar v join items i on (i.item_id=v.item_id) "
+			+ "where v.attr_id=? and (i.item_id > ? or i.last_op >= ?) order by v.item_id";
+
+	private final ConcurrentHashMap<String,ItemIndex> indexes = new ConcurrentHashMap<>();
+	private final ConcurrentHashMap<String,Timer> timers = new ConcurrentHashMap<>();
+
+	@Value("${items.index.enabled:false}")
+	boolean enabled;
+
+	@Value("${items.index.refresh.secs:60}")
+	int refreshSecs = 60;
+
+	@Autowired
+	public ItemIndexFactory(DbConfigHandler dbConfigHandler)
+	{
+		dbConfigHandler.addDbConfigListener(this);
+	}
+
+	/**
+	 * @return the client's index, or null if not enabled or not yet loaded
+	 */
+	public ItemIndex get(String client)
+	{
+		return indexes.get(client);
+	}
+
+	@Override
+	public void dbConfigInitialised(final String client) {
+		if (!enabled || timers.containsKey(client))
+			return;
+		Timer timer = new Timer(true);
+		if (timers.putIfAbsent(client, timer) != null)
+		{
+			timer.cancel();
+			return;
+		}
+		final ItemIndex index = new ItemIndex(client);
+		timer.schedule(new TimerTask() {
+			// refreshes overlap by a period so updates committed while one runs aren't missed
+			long lastRefresh = 0;
+
+			public void run()
+			{
+				long start = System.currentTimeMillis();
+				try
+				{
+					boolean loaded = indexes.get(client) == index;
+					refresh(index, loaded ? index.getMaxItemId() : 0, new Timestamp(lastRefresh - refreshSecs * 1000L));
+					lastRefresh = start;
+					if (!loaded)
+					{
+						index.optimize();
+						indexes.put(client, index);
+						logger.info("Loaded item index for client "+client+" with "+index.size()+" items in "+(System.currentTimeMillis()-start)+" msec");
+					}
+				}
+				catch (Exception e)
+				{
+					logger.error("Failed to refresh item index for client "+client, e);
+				}
+			}
+		}, 0, refreshSecs * 1000L);
+	}
+
+	@PreDestroy
+	public void shutdown()
+	{
+		for (Timer timer : timers.values())
+			timer.cancel();
+	}
+
+	void refresh(ItemIndex index, long afterItemId, Timestamp since) throws SQLException
+	{
+		Connection connection = JDBCConnectionFactory.get().getConnection(index.getClient());
+		try
+		{
+			PreparedStatement statement = connection.prepareStatement(DIMENSIONS_SQL);
+			try
+			{
+				statement.setLong(1, afterItemId);
+				statement.setTimestamp(2, since);
+				ResultSet rs = statement.executeQuery();
+				long lastItem = -1;
+				Map<Integer,String> dimAttrs = new HashMap<>();
+				while (rs.next())
+				{
+					long itemId = rs.getLong(1);
+					if (itemId != lastItem && lastItem != -1)
+					{
+						index.setItem(lastItem, dimAttrs);
+						dimAttrs = new HashMap<>();
+					}
+					int dim = rs.getInt(3);
+					if (!rs.wasNull())
+						dimAttrs.put(dim, rs.getString(2));
+					lastItem = itemId;
+				}
+				if (lastItem != -1)
+					index.setItem(lastItem, dimAttrs);
+				rs.close();
+			}
+			finally
+			{
+				statement.close();
+			}
+			// existing tag attributes only need changed items, newly asked for ones need everything
+			for (int tagAttrId : index.getTagAttrs())
+				loadTags(connection, index, tagAttrId, afterItemId, since);
+			for (int tagAttrId : index.getRequestedTagAttrs())
+			{
+				logger.info("Indexing tag attribute "+tagAttrId+" for client "+index.getClient());
+				index.addTagAttr(tagAttrId);
+				loadTags(connection, index, tagAttrId, 0, new Timestamp(0));
+			}
+		}
+		finally
+		{
+			connection.close();
+		}
+	}
+
+	private void loadTags(Connection connection, ItemIndex index, int tagAttrId, long afterItemId, Timestamp since) throws SQLException
+	{
+		PreparedStatement statement = connection.prepareStatement(TAGS_SQL);
+		try
+		{
+			statement.setInt(1, tagAttrId);
+			statement.setLong(2, afterItemId);
+			statement.setTimestamp(3, since);
+			ResultSet rs = statement.executeQuery();
+			while (rs.next())
+				index.setTags(tagAttrId, rs.getLong(1), rs.getString(2));
+			rs.close();
+		}
+		finally
+		{
+			statement.close();
+		}
+	}
+}
@@ -23,18 +23,22 @@
 
 package io.seldon.memcache;
 
+import java.util.concurrent.Callable;
+import java.util.concurrent.atomic.AtomicBoolean;
+
 import org.apache.log4j.Logger;
-import org.springframework.beans.factory.annotation.Autowired;
-import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Component;
 
-import java.util.concurrent.ConcurrentHashMap;
-
+/**
+ * Lets one caller at a time refresh a cached value once it is close to expiring, while other callers carry on
+ * with the cached value. Refresh state is kept per key in a bounded {@link NearCache} so cold keys age out.
+ */
 @Component
 public class DogpileHandler {
 	private static Logger logger = Logger.getLogger(DogpileHandler.class.getName());
 	
 	private static final float DEF_EXPIRE_FACTOR = 0.75f;
+	private static final int DEF_MAX_KEYS = 100000;
 	public static final String DOGPILE_EXPIRE_PROP = "io.seldon.dogpile.expire.factor";
 	public static final String DOGPILE_ACTIVE = "io.seldon.dogpile.active";
 	
@@ -42,8 +46,7 @@ public class DogpileHandler {
 
     public  DogpileHandler ()
     {
-		expireFactor = DEF_EXPIRE_FACTOR;
-		active = true;
+		this(DEF_EXPIRE_FACTOR, true);
 		logger.info("Creating dogpile cache handler with active: "+active+" and expire factor "+expireFactor);
 		peer = this;
     }
@@ -53,25 +56,46 @@ public class DogpileHandler {
 		return peer;
 	}
 	
-	ConcurrentHashMap<String,Long> expireMap = new ConcurrentHashMap<>();
-	ConcurrentHashMap<String,Boolean> updatingMap = new ConcurrentHashMap<>();
+	private static class RefreshState {
+		volatile long refreshAt = 0;
+		final AtomicBoolean updating = new AtomicBoolean(false);
+	}
+	
+	private static final Callable<Object> NEW_STATE = new Callable<Object>() {
+		@Override
+		public Object call() {
+			return new RefreshState();
+		}
+	};
+	
+	final NearCache states;
 	float expireFactor;
 	boolean active = false;
 	private DogpileHandler(float expireFactor,boolean active)
 	{
 		this.expireFactor = expireFactor;
 		this.active = active;
+		this.states = new NearCache(DEF_MAX_KEYS);
+	}
+	
+	private RefreshState getState(String key)
+	{
+		try
+		{
+			return (RefreshState) states.getOrCreate(key, 0, NEW_STATE);
+		}
+		catch (Exception e)
+		{
+			// creating the state can't fail
+			throw new IllegalStateException(e);
+		}
 	}
 	
-	private boolean setUpdating(String key)
+	private boolean setUpdating(RefreshState state, String key)
 	{
-		if (updatingMap.putIfAbsent(key, true) == null)
+		if (state.updating.compareAndSet(false, true))
 		{
 			// if there was not updating flag then return true to tell caller an update is needed
-			//
-			// There is a possibility of a race condition of 1 (or more) thread checks expire then gets stopped and another updates
-			// then first (or more) thread(s) comes back in and set updateingMap successfully. However this should only happen under extreme load
-			// and will cause a few extra updates
 			logger.info("Returning true for memcache key "+key);
 			return true;
 		}
@@ -93,18 +117,12 @@ public class DogpileHandler {
 	}
 
 	public <T> boolean updateIsRequired(String key, T cachedItem, int expireSecs){
-		boolean continueWithUpdate = false;
 		if (key == null || !active) return false;
-		if (cachedItem==null) {
-			continueWithUpdate = setUpdating(key);
-		} else {
-			Long expire = expireMap.get(key);
-			if (expire == null || (expire !=null && System.currentTimeMillis() > expire))
-			{
-				continueWithUpdate = setUpdating(key);
-			}
-		}
-		return continueWithUpdate;
+		RefreshState state = getState(key);
+		if (cachedItem == null || System.currentTimeMillis() > state.refreshAt)
+			return setUpdating(state, key);
+		else
+			return false;
 	}
 
 	public void updated(String key,int expireSecs)
@@ -112,13 +130,13 @@ public class DogpileHandler {
 		if (!active) return;
 		logger.info("Updating key "+key);
 		int expireDeltaMilisecs = Math.round((expireSecs * 1000) * expireFactor);
-		expireMap.put(key, System.currentTimeMillis() + expireDeltaMilisecs);
-		updatingMap.remove(key);
+		RefreshState state = getState(key);
+		state.refreshAt = System.currentTimeMillis() + expireDeltaMilisecs;
+		state.updating.set(false);
 	}
 	
 	public void clear(String key)
 	{
-		expireMap.remove(key);
-		updatingMap.remove(key);
+		states.invalidate(key);
 	}
 }
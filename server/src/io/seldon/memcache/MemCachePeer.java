@@ -25,7 +25,10 @@ package io.seldon.memcache;
 
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.Future;
 import java.util.concurrent.ThreadLocalRandom;
@@ -52,6 +55,36 @@ public class MemCachePeer {
 	// a single instance
 	protected static List<MemcachedClient> clients;
 	protected static MemcachedClient theClient =  null;
+	private static volatile NearCache nearCache = null;
+	private static volatile Set<String> nearCacheFamilies = Collections.emptySet();
+	private static volatile int nearCacheMaxTTL = 0;
+
+	/**
+	 * Keep values for the given key families in an in-process cache in front of memcache.
+	 * @param cache the cache, or null to stop using one
+	 * @param families key families (the part of a key before the first ':') to cache
+	 * @param maxTTLSecs longest time a value is kept, as other servers may change it in memcache
+	 */
+	public static void setNearCache(NearCache cache,Set<String> families,int maxTTLSecs)
+	{
+		nearCacheFamilies = families;
+		nearCacheMaxTTL = maxTTLSecs;
+		nearCache = cache;
+	}
+
+	public static NearCache getNearCache()
+	{
+		return nearCache;
+	}
+
+	private static NearCache nearCacheFor(String key)
+	{
+		NearCache cache = nearCache;
+		if (cache != null && nearCacheFamilies.contains(NearCache.family(key)))
+			return cache;
+		else
+			return null;
+	}
 
     public static void initialise(String serverList,int  numClients) {
         try
@@ -96,6 +129,9 @@ public class MemCachePeer {
 
 	public static void delete(String key)
 	{
+		NearCache cache = nearCacheFor(key);
+		if (cache != null)
+			cache.invalidate(key);
 		MemcachedClient client = getClient();
 		if (client != null)
 		try
@@ -110,6 +146,9 @@ public class MemCachePeer {
 	
 	public static void put(String key,Object obj)
 	{
+		NearCache cache = nearCacheFor(key);
+		if (cache != null)
+			cache.put(key, obj, nearCacheMaxTTL);
 		MemcachedClient client = getClient();
 		if (client != null)
 		try
@@ -127,6 +166,9 @@ public class MemCachePeer {
 	 */
 	public static void put(String key,Object obj,int expireSeconds)
 	{
+		NearCache cache = nearCacheFor(key);
+		if (cache != null)
+			cache.put(key, obj, expireSeconds > 0 ? Math.min(expireSeconds, nearCacheMaxTTL) : nearCacheMaxTTL);
 		MemcachedClient client = getClient();
 		if (client != null)
 			try
@@ -139,7 +181,29 @@ public class MemCachePeer {
 			}
 	}
 	
-	public static Object get(String key)
+	public static Object get(final String key)
+	{
+		NearCache cache = nearCacheFor(key);
+		if (cache != null)
+		{
+			try
+			{
+				return cache.get(key, nearCacheMaxTTL, new Callable<Object>() {
+					@Override
+					public Object call() {
+						return getFromMemcache(key);
+					}
+				});
+			}
+			catch (Exception e)
+			{
+				logger.error("Near cache exception in get ",e);
+			}
+		}
+		return getFromMemcache(key);
+	}
+
+	private static Object getFromMemcache(String key)
 	{
 		MemcachedClient client = getClient();
 		Object myObj=null;
@@ -197,6 +261,9 @@ public class MemCachePeer {
 	 */
 	public static <T> T cas(String key,CASMutation<T> mutation,T value,int expireSecs)
 	{
+		NearCache cache = nearCacheFor(key);
+		if (cache != null)
+			cache.invalidate(key);
 		MemcachedClient client = getClient();
 		 if (client != null)
 		 {
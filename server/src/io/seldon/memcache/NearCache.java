@@ -0,0 +1,497 @@
+/*
+ * Seldon -- open source prediction engine
+ * =======================================
+ *
+ * Copyright 2011-2015 Seldon Technologies Ltd and Rummble Ltd (http://www.seldon.io/)
+ *
+ * ********************************************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * ********************************************************************************************
+ */
+
+package io.seldon.memcache;
+
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A bounded in-process cache of memcache values.
+ * <p>
+ * Eviction follows W-TinyLFU: new entries go into a small LRU window and, when they leave it, only displace
+ * the least recently used entry of the main segmented LRU if a count-min sketch says they are used more often.
+ * Capacity is in weight units, see {@link #weigh(Object)}. Each entry expires after the time it was put with.
+ * Concurrent misses on the same key share a single load. Values are shared between callers so must be treated
+ * as read only. Hits, misses and evictions are counted per key family, the part of the key before the first ':'.
+ */
+public class NearCache {
+
+	/**
+	 * Values that know their own approximate size.
+	 */
+	public static interface Weighted {
+		public int getCacheWeight();
+	}
+
+	public static class FamilyStats {
+		final AtomicLong hits = new AtomicLong();
+		final AtomicLong misses = new AtomicLong();
+		final AtomicLong evictions = new AtomicLong();
+		public long getHits() { return hits.get(); }
+		public long getMisses() { return misses.get(); }
+		public long getEvictions() { return evictions.get(); }
+		@Override
+		public String toString() {
+			long h = hits.get();
+			long m = misses.get();
+			return "hits:"+h+" misses:"+m+" evictions:"+evictions.get()+" hit rate:"+(h+m > 0 ? String.format("%.3f", h/(double)(h+m)) : "-");
+		}
+	}
+
+	private static final int NUM_SEGMENTS = 16;
+
+	private final Segment[] segments;
+	private final ConcurrentHashMap<String,FamilyStats> stats = new ConcurrentHashMap<>();
+	private final ConcurrentHashMap<String,FutureTask<Object>> loading = new ConcurrentHashMap<>();
+
+	/**
+	 * @param capacity maximum total weight held
+	 */
+	public NearCache(long capacity)
+	{
+		int n = capacity >= NUM_SEGMENTS * 64 ? NUM_SEGMENTS : 1;
+		segments = new Segment[n];
+		for (int i = 0; i < n; i++)
+			segments[i] = new Segment(Math.max(capacity / n, 1));
+	}
+
+	public Object get(String key)
+	{
+		Object value = segmentFor(key).get(key, System.currentTimeMillis());
+		FamilyStats s = statsFor(key);
+		if (value != null)
+			s.hits.incrementAndGet();
+		else
+			s.misses.incrementAndGet();
+		return value;
+	}
+
+	/**
+	 * Get a value, loading it on a miss. Only one caller loads a given key at a time; others missing on it wait
+	 * for that load. A null result is returned but not cached.
+	 */
+	public Object get(String key, int ttlSecs, Callable<Object> loader) throws Exception
+	{
+		Object value = get(key);
+		if (value != null)
+			return value;
+		FutureTask<Object> task = new FutureTask<>(loader);
+		FutureTask<Object> existing = loading.putIfAbsent(key, task);
+		if (existing == null)
+		{
+			try
+			{
+				task.run();
+				value = task.get();
+				if (value != null)
+					put(key, value, ttlSecs);
+			}
+			finally
+			{
+				loading.remove(key, task);
+			}
+			return value;
+		}
+		try
+		{
+			return existing.get();
+		}
+		catch (ExecutionException e)
+		{
+			if (e.getCause() instanceof Exception)
+				throw (Exception) e.getCause();
+			throw e;
+		}
+	}
+
+	public void put(String key, Object value, int ttlSecs)
+	{
+		if (value == null || ttlSecs <= 0)
+		{
+			invalidate(key);
+			return;
+		}
+		int evicted = segmentFor(key).put(key, value, weigh(value), System.currentTimeMillis() + ttlSecs * 1000L);
+		if (evicted > 0)
+			statsFor(key).evictions.addAndGet(evicted);
+	}
+
+	/**
+	 * Atomically get the value for a key or create and add it if absent.
+	 */
+	public Object getOrCreate(String key, int ttlSecs, Callable<Object> factory) throws Exception
+	{
+		return segmentFor(key).getOrCreate(key, ttlSecs, factory, System.currentTimeMillis());
+	}
+
+	public void invalidate(String key)
+	{
+		segmentFor(key).remove(key);
+	}
+
+	public long size()
+	{
+		long size = 0;
+		for (Segment s : segments)
+			size += s.size();
+		return size;
+	}
+
+	public long weight()
+	{
+		long weight = 0;
+		for (Segment s : segments)
+			weight += s.weight();
+		return weight;
+	}
+
+	public Map<String,FamilyStats> getStats()
+	{
+		return stats;
+	}
+
+	/**
+	 * Approximate weight of a value: one plus the number of elements of collections and maps, or per 64 chars of strings.
+	 */
+	public static int weigh(Object value)
+	{
+		if (value instanceof Weighted)
+			return Math.max(((Weighted) value).getCacheWeight(), 1);
+		else if (value instanceof Collection)
+			return 1 + ((Collection<?>) value).size();
+		else if (value instanceof Map)
+			return 1 + ((Map<?,?>) value).size();
+		else if (value instanceof CharSequence)
+			return 1 + ((CharSequence) value).length() / 64;
+		else
+			return 1;
+	}
+
+	static String family(String key)
+	{
+		int i = key.indexOf(':');
+		return i >= 0 ? key.substring(0, i) : key;
+	}
+
+	private FamilyStats statsFor(String key)
+	{
+		String family = family(key);
+		FamilyStats s = stats.get(family);
+		if (s == null)
+		{
+			stats.putIfAbsent(family, new FamilyStats());
+			s = stats.get(family);
+		}
+		return s;
+	}
+
+	private Segment segmentFor(String key)
+	{
+		int h = key.hashCode();
+		h ^= (h >>> 16);
+		return segments[(h & Integer.MAX_VALUE) % segments.length];
+	}
+
+	private static final int WINDOW = 0;
+	private static final int PROBATION = 1;
+	private static final int PROTECTED = 2;
+
+	private static class Node {
+		final String key;
+		Object value;
+		int weight;
+		long expireAt;
+		int queue;
+		Node prev;
+		Node next;
+		Node(String key)
+		{
+			this.key = key;
+		}
+	}
+
+	/**
+	 * Doubly linked LRU list, least recent at the head.
+	 */
+	private static class Queue {
+		final Node head = new Node(null);
+		long weight;
+		Queue()
+		{
+			head.prev = head;
+			head.next = head;
+		}
+		void addLast(Node n)
+		{
+			n.prev = head.prev;
+			n.next = head;
+			head.prev.next = n;
+			head.prev = n;
+			weight += n.weight;
+		}
+		void remove(Node n)
+		{
+			n.prev.next = n.next;
+			n.next.prev = n.prev;
+			n.prev = null;
+			n.next = null;
+			weight -= n.weight;
+		}
+		Node first()
+		{
+			return head.next == head ? null : head.next;
+		}
+	}
+
+	/**
+	 * Count-min sketch of 4 bit counters which are halved after a sample of increments, so frequencies age.
+	 */
+	static class FrequencySketch {
+		private final long[] table;
+		private final int mask;
+		private final int sampleSize;
+		private int additions;
+
+		FrequencySketch(long maxEntries)
+		{
+			int size = Integer.highestOneBit((int) Math.max(Math.min(maxEntries, 1 << 24), 16) - 1) << 1;
+			table = new long[size];
+			mask = size - 1;
+			sampleSize = 10 * size;
+		}
+
+		int frequency(String key)
+		{
+			int hash = spread(key.hashCode());
+			int min = 15;
+			for (int i = 0; i < 4; i++)
+			{
+				int h = rehash(hash, i);
+				int count = (int) ((table[h & mask] >>> ((h >>> 28) & 15) * 4) & 15);
+				min = Math.min(min, count);
+			}
+			return min;
+		}
+
+		void increment(String key)
+		{
+			int hash = spread(key.hashCode());
+			boolean added = false;
+			for (int i = 0; i < 4; i++)
+			{
+				int h = rehash(hash, i);
+				int index = h & mask;
+				int shift = ((h >>> 28) & 15) * 4;
+				if (((table[index] >>> shift) & 15) < 15)
+				{
+					table[index] += 1L << shift;
+					added = true;
+				}
+			}
+			if (added && ++additions == sampleSize)
+				reset();
+		}
+
+		private void reset()
+		{
+			for (int i = 0; i < table.length; i++)
+				table[i] = (table[i] >>> 1) & 0x7777777777777777L;
+			additions /= 2;
+		}
+
+		private static int spread(int x)
+		{
+			x = ((x >>> 16) ^ x) * 0x45d9f3b;
+			return (x >>> 16) ^ x;
+		}
+
+		private static int rehash(int hash, int i)
+		{
+			int h = hash * (0x9E3779B9 + 2 * i + 1);
+			return h ^ (h >>> 15);
+		}
+	}
+
+	private static class Segment {
+		final long capacity;
+		final long windowCapacity;
+		final long protectedCapacity;
+		final HashMap<String,Node> nodes = new HashMap<>();
+		final Queue[] queues = new Queue[] { new Queue(), new Queue(), new Queue() };
+		final FrequencySketch sketch;
+
+		Segment(long capacity)
+		{
+			this.capacity = capacity;
+			this.windowCapacity = Math.max(capacity / 100, 1);
+			this.protectedCapacity = (long) ((capacity - windowCapacity) * 0.8);
+			this.sketch = new FrequencySketch(capacity);
+		}
+
+		synchronized Object get(String key, long now)
+		{
+			sketch.increment(key);
+			Node n = nodes.get(key);
+			if (n == null)
+				return null;
+			if (now > n.expireAt)
+			{
+				removeNode(n);
+				return null;
+			}
+			onAccess(n);
+			return n.value;
+		}
+
+		synchronized Object getOrCreate(String key, int ttlSecs, Callable<Object> factory, long now) throws Exception
+		{
+			Object value = get(key, now);
+			if (value == null)
+			{
+				value = factory.call();
+				put(key, value, weigh(value), ttlSecs > 0 ? now + ttlSecs * 1000L : Long.MAX_VALUE);
+			}
+			return value;
+		}
+
+		/**
+		 * @return number of entries evicted, which may include this one
+		 */
+		synchronized int put(String key, Object value, int weight, long expireAt)
+		{
+			Node n = nodes.get(key);
+			if (n != null)
+			{
+				queues[n.queue].remove(n);
+				n.value = value;
+				n.weight = weight;
+				n.expireAt = expireAt;
+				queues[n.queue].addLast(n);
+				onAccess(n);
+			}
+			else
+			{
+				if (weight > capacity)
+					return 0;
+				sketch.increment(key);
+				n = new Node(key);
+				n.value = value;
+				n.weight = weight;
+				n.expireAt = expireAt;
+				n.queue = WINDOW;
+				nodes.put(key, n);
+				queues[WINDOW].addLast(n);
+			}
+			return evict();
+		}
+
+		synchronized void remove(String key)
+		{
+			Node n = nodes.get(key);
+			if (n != null)
+				removeNode(n);
+		}
+
+		synchronized int size()
+		{
+			return nodes.size();
+		}
+
+		synchronized long weight()
+		{
+			return queues[WINDOW].weight + queues[PROBATION].weight + queues[PROTECTED].weight;
+		}
+
+		private void removeNode(Node n)
+		{
+			queues[n.queue].remove(n);
+			nodes.remove(n.key);
+		}
+
+		private void onAccess(Node n)
+		{
+			Queue q = queues[n.queue];
+			q.remove(n);
+			if (n.queue == PROBATION)
+			{
+				n.queue = PROTECTED;
+				queues[PROTECTED].addLast(n);
+				// demote the least recent protected entries back to probation
+				while (queues[PROTECTED].weight > protectedCapacity)
+				{
+					Node d = queues[PROTECTED].first();
+					if (d == n)
+						break;
+					queues[PROTECTED].remove(d);
+					d.queue = PROBATION;
+					queues[PROBATION].addLast(d);
+				}
+			}
+			else
+				q.addLast(n);
+		}
+
+		/**
+		 * Move entries that overflow the window into probation and, while over capacity, evict whichever of
+		 * the candidate from the window and the main LRU victim is used less often.
+		 */
+		private int evict()
+		{
+			int evicted = 0;
+			Queue window = queues[WINDOW];
+			while (window.weight > windowCapacity && window.first() != null)
+			{
+				Node candidate = window.first();
+				window.remove(candidate);
+				candidate.queue = PROBATION;
+				queues[PROBATION].addLast(candidate);
+				while (weight() > capacity)
+				{
+					Node victim = queues[PROBATION].first();
+					if (victim == candidate)
+						victim = queues[PROTECTED].first() != null ? queues[PROTECTED].first() : candidate;
+					Node loser = victim == candidate || sketch.frequency(candidate.key) > sketch.frequency(victim.key) ? victim : candidate;
+					removeNode(loser);
+					evicted++;
+					if (loser == candidate)
+						break;
+				}
+			}
+			// the window itself can hold more than the segment's capacity with very heavy entries
+			while (weight() > capacity)
+			{
+				Node n = window.first() != null ? window.first() : queues[PROBATION].first() != null ? queues[PROBATION].first() : queues[PROTECTED].first();
+				removeNode(n);
+				evicted++;
+			}
+			return evicted;
+		}
+	}
+}
@@ -0,0 +1,96 @@
+/*
+ * Seldon -- open source prediction engine
+ * =======================================
+ *
+ * Copyright 2011-2015 Seldon Technologies Ltd and Rummble Ltd (http://www.seldon.io/)
+ *
+ * ********************************************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * ********************************************************************************************
+ */
+
+package io.seldon.memcache;
+
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.Timer;
+import java.util.TimerTask;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+
+import org.apache.commons.lang3.StringUtils;
+import org.apache.log4j.Logger;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+/**
+ * Sets up the in-process {@link NearCache} in front of {@link MemCachePeer} for hot, read-only key families.
+ * A near cached value is one object shared by every request, so a family should only be listed once all
+ * the code reading it has been checked not to modify what it gets back.
+ */
+@Component
+public class NearCacheInitialiser {
+
+	private static Logger logger = Logger.getLogger(NearCacheInitialiser.class.getName());
+
+	private static final long STATS_INTERVAL_MSECS = 300000;
+
+	@Value("${memcache.nearcache.enabled:false}")
+	private boolean enabled;
+
+	@Value("${memcache.nearcache.capacity:200000}")
+	private long capacity;
+
+	@Value("${memcache.nearcache.max.ttl.secs:30}")
+	private int maxTTLSecs;
+
+	@Value("${memcache.nearcache.families:PopularItemsJSON,TopClusterCounts,TopGlobalClusterCounts,TopClusterCountsForDimension,TopClusterCountsForTag}")
+	private String families;
+
+	private Timer timer;
+
+	@PostConstruct
+	public void init()
+	{
+		if (!enabled)
+			return;
+		Set<String> familySet = new HashSet<>();
+		for (String family : StringUtils.split(families, ','))
+			familySet.add(family.trim());
+		final NearCache cache = new NearCache(capacity);
+		MemCachePeer.setNearCache(cache, familySet, maxTTLSecs);
+		logger.info("Near cache enabled with capacity "+capacity+" max ttl "+maxTTLSecs+" secs for "+familySet);
+		timer = new Timer(true);
+		timer.scheduleAtFixedRate(new TimerTask() {
+			@Override
+			public void run() {
+				StringBuilder sb = new StringBuilder("Near cache entries:").append(cache.size()).append(" weight:").append(cache.weight());
+				for (Map.Entry<String,NearCache.FamilyStats> e : cache.getStats().entrySet())
+					sb.append(' ').append(e.getKey()).append(" [").append(e.getValue()).append(']');
+				logger.info(sb.toString());
+			}
+		}, STATS_INTERVAL_MSECS, STATS_INTERVAL_MSECS);
+	}
+
+	@PreDestroy
+	public void shutdown()
+	{
+		if (timer != null)
+			timer.cancel();
+		MemCachePeer.setNearCache(null, new HashSet<String>(), 0);
+	}
+}
@@ -0,0 +1,125 @@
+/*
+ * Seldon -- open source prediction engine
+ * =======================================
+ *
+ * Copyright 2011-2015 Seldon Technologies Ltd and Rummble Ltd (http://www.seldon.io/)
+ *
+ * ********************************************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * ********************************************************************************************
+ */
+
+package io.seldon.mf;
+
+import io.seldon.clustering.recommender.ItemRecommendationResultSet.ItemRecommendationResult;
+import it.unimi.dsi.fastutil.longs.LongSet;
+
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.apache.log4j.Logger;
+
+/**
+ * An {@link IvfVectorIndex} built off the request path. The first query starts the build on a background
+ * thread and queries are answered exactly from the {@link FactorMatrix} until the index is ready, so models
+ * never pay for an index nobody queries and requests never wait on k-means. Small matrices are always
+ * searched exactly.
+ */
+public class BackgroundVectorIndex implements VectorIndex {
+
+    private static Logger logger = Logger.getLogger(BackgroundVectorIndex.class.getName());
+    private static final int MIN_ROWS_FOR_ANN = 10000;
+    private static final int KMEANS_ITERATIONS = 10;
+    private static final int PROBES = 16;
+    private static final int RECALL_QUERIES = 100;
+    private static final int RECALL_K = 50;
+
+    private static final ExecutorService builder = Executors.newSingleThreadExecutor(new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread t = new Thread(r, "VectorIndexBuilder");
+            t.setDaemon(true);
+            t.setPriority(Thread.MIN_PRIORITY);
+            return t;
+        }
+    });
+
+    private final FactorMatrix vectors;
+    private final FactorMatrix recallQueries;
+    private final int minRows;
+    private final Executor executor;
+    private final AtomicBoolean started = new AtomicBoolean();
+    private volatile VectorIndex index;
+
+    /**
+     * @param vectors the rows to search
+     * @param recallQueries vectors used to measure the recall of the built index, may be null to skip
+     */
+    public BackgroundVectorIndex(FactorMatrix vectors, FactorMatrix recallQueries) {
+        this(vectors, recallQueries, MIN_ROWS_FOR_ANN, builder);
+    }
+
+    BackgroundVectorIndex(FactorMatrix vectors, FactorMatrix recallQueries, int minRows, Executor executor) {
+        this.vectors = vectors;
+        this.recallQueries = recallQueries;
+        this.minRows = minRows;
+        this.executor = executor;
+    }
+
+    @Override
+    public List<ItemRecommendationResult> topK(float[] query, LongSet excluded, int k) {
+        return current().topK(query, excluded, k);
+    }
+
+    /**
+     * @return true once queries are answered by the approximate index
+     */
+    public boolean isReady() {
+        return index != null;
+    }
+
+    private VectorIndex current() {
+        VectorIndex built = index;
+        if (built != null)
+            return built;
+        if (vectors.size() >= minRows && started.compareAndSet(false, true))
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    build();
+                }
+            });
+        return vectors;
+    }
+
+    private void build() {
+        try {
+            Random random = new Random(vectors.size());
+            IvfVectorIndex ivf = IvfVectorIndex.build(vectors, IvfVectorIndex.defaultNumLists(vectors.size()),
+                    KMEANS_ITERATIONS, PROBES, random);
+            if (recallQueries != null)
+                ivf.measureRecall(recallQueries, RECALL_QUERIES, RECALL_K, random);
+            index = ivf;
+        } catch (Exception e) {
+            // keep answering exactly rather than retrying a build that fails
+            logger.error("Failed to build vector index over " + vectors.size() + " rows, will keep using exact search", e);
+        }
+    }
+}
@@ -0,0 +1,254 @@
+/*
+ * Seldon -- open source prediction engine
+ * =======================================
+ *
+ * Copyright 2011-2015 Seldon Technologies Ltd and Rummble Ltd (http://www.seldon.io/)
+ *
+ * ********************************************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * ********************************************************************************************
+ */
+
+
+package io.seldon.mf;
+
+import io.seldon.clustering.recommender.ItemRecommendationResultSet.ItemRecommendationResult;
+import io.seldon.recommendation.model.BinaryModelFile;
+import it.unimi.dsi.fastutil.longs.Long2IntOpenHashMap;
+import it.unimi.dsi.fastutil.longs.LongSet;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.FloatBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * Latent factor vectors for a set of users or items held in row-major buffers with a primitive
+ * id to row index. The buffers may be wrapped heap arrays or direct/mapped buffers; either way scoring
+ * walks them sequentially and allocates nothing per row. A single buffer can't address more than 2 GB so
+ * large matrices are split into chunks of whole rows.
+ */
+public class FactorMatrix implements VectorIndex {
+
+    // largest mapped chunk, a whole number of rows no bigger than this is mapped per buffer
+    static final long MAX_CHUNK_BYTES = Integer.MAX_VALUE;
+
+    private final long[] ids;
+    private final Long2IntOpenHashMap index;
+    private final FloatBuffer[] chunks;
+    private final int rowsPerChunk;
+    private final int rank;
+
+    public FactorMatrix(long[] ids, FloatBuffer factors, int rank) {
+        this(ids, new FloatBuffer[] {factors}, Math.max(ids.length, 1), rank);
+        if ((long) ids.length * rank != factors.limit())
+            throw new IllegalArgumentException("Expected "+((long) ids.length * rank)+" factors for "+ids.length+" rows at rank "+rank+" but got "+factors.limit());
+    }
+
+    private FactorMatrix(long[] ids, FloatBuffer[] chunks, int rowsPerChunk, int rank) {
+        this.ids = ids;
+        this.chunks = chunks;
+        this.rowsPerChunk = rowsPerChunk;
+        this.rank = rank;
+        this.index = new Long2IntOpenHashMap(ids.length);
+        this.index.defaultReturnValue(-1);
+        for (int row = 0; row < ids.length; row++)
+            index.put(ids[row], row);
+    }
+
+    /**
+     * Create a matrix from a binary model buffer (see {@link BinaryModelFile}). The factors are
+     * used in place so a mapped buffer keeps them off the heap; only the ids are copied to build the index.
+     */
+    public static FactorMatrix fromBuffer(ByteBuffer buffer) throws IOException {
+        BinaryModelFile.Header header = BinaryModelFile.readHeader(buffer, BinaryModelFile.TYPE_FACTOR_MATRIX);
+        if (header.rows * header.width > Integer.MAX_VALUE)
+            throw new IOException("Factor matrix too large for one buffer: "+header.rows+" rows at rank "+header.width);
+        int rows = checkRows(header);
+        long idsLength = 8L * rows;
+        long factorsLength = 4L * rows * header.width;
+        long[] ids = new long[rows];
+        BinaryModelFile.section(buffer, BinaryModelFile.HEADER_SIZE, idsLength).asLongBuffer().get(ids);
+        FloatBuffer factors = BinaryModelFile.section(buffer, BinaryModelFile.HEADER_SIZE + idsLength, factorsLength).asFloatBuffer();
+        return new FactorMatrix(ids, factors, header.width);
+    }
+
+    /**
+     * Memory map a binary model file (see {@link BinaryModelFile}) of any size. The factors are mapped
+     * read only in chunks of whole rows; only the ids are copied to the heap. The channel may be
+     * closed once this returns.
+     */
+    public static FactorMatrix fromChannel(FileChannel channel) throws IOException {
+        return fromChannel(channel, MAX_CHUNK_BYTES);
+    }
+
+    static FactorMatrix fromChannel(FileChannel channel, long maxChunkBytes) throws IOException {
+        if (channel.size() < BinaryModelFile.HEADER_SIZE)
+            throw new IOException("Binary model too small for header: "+channel.size()+" bytes");
+        BinaryModelFile.Header header = BinaryModelFile.readHeader(
+                channel.map(FileChannel.MapMode.READ_ONLY, 0, BinaryModelFile.HEADER_SIZE), BinaryModelFile.TYPE_FACTOR_MATRIX);
+        int rows = checkRows(header);
+        int rank = header.width;
+        long idsOffset = BinaryModelFile.HEADER_SIZE;
+        long factorsOffset = idsOffset + 8L * rows;
+        long end = factorsOffset + 4L * rows * rank;
+        if (end > channel.size())
+            throw new IOException("Binary model truncated, needed "+end+" bytes but has "+channel.size());
+
+        long[] ids = new long[rows];
+        int idsPerChunk = (int) Math.min(rows, maxChunkBytes / 8);
+        for (int start = 0; start < rows; start += idsPerChunk) {
+            int n = Math.min(idsPerChunk, rows - start);
+            map(channel, idsOffset + 8L * start, 8L * n).asLongBuffer().get(ids, start, n);
+        }
+
+        long rowBytes = 4L * Math.max(rank, 1);
+        if (rowBytes > maxChunkBytes)
+            throw new IOException("Factor matrix rank too large: "+rank);
+        int rowsPerChunk = (int) Math.max(1, Math.min(rows, maxChunkBytes / rowBytes));
+        int numChunks = Math.max(1, (rows + rowsPerChunk - 1) / rowsPerChunk);
+        FloatBuffer[] chunks = new FloatBuffer[numChunks];
+        for (int c = 0; c < numChunks; c++) {
+            long firstRow = (long) c * rowsPerChunk;
+            long n = Math.min(rowsPerChunk, rows - firstRow);
+            chunks[c] = map(channel, factorsOffset + firstRow * 4L * rank, n * 4L * rank).asFloatBuffer();
+        }
+        return new FactorMatrix(ids, chunks, rowsPerChunk, rank);
+    }
+
+    private static ByteBuffer map(FileChannel channel, long offset, long length) throws IOException {
+        return channel.map(FileChannel.MapMode.READ_ONLY, offset, length).order(BinaryModelFile.ORDER);
+    }
+
+    private static int checkRows(BinaryModelFile.Header header) throws IOException {
+        if (header.rows > Integer.MAX_VALUE - 8)
+            throw new IOException("Factor matrix has too many rows: "+header.rows);
+        return (int) header.rows;
+    }
+
+    public int size() {
+        return ids.length;
+    }
+
+    public int rank() {
+        return rank;
+    }
+
+    public long getId(int row) {
+        return ids[row];
+    }
+
+    /**
+     * @return the row holding the given id or -1 if it is not present
+     */
+    public int getRow(long id) {
+        return index.get(id);
+    }
+
+    public boolean contains(long id) {
+        return index.containsKey(id);
+    }
+
+    public float get(int row, int feature) {
+        return chunks[row / rowsPerChunk].get((row % rowsPerChunk) * rank + feature);
+    }
+
+    /**
+     * @return a copy of the vector for the given id or null if it is not present
+     */
+    public float[] getVector(long id) {
+        int row = index.get(id);
+        if (row < 0)
+            return null;
+        float[] vector = new float[rank];
+        copyRow(row, vector);
+        return vector;
+    }
+
+    /**
+     * Copy the vector at the given row into dest, which must be of length rank.
+     */
+    public void copyRow(int row, float[] dest) {
+        FloatBuffer factors = chunks[row / rowsPerChunk];
+        int offset = (row % rowsPerChunk) * rank;
+        for (int j = 0; j < rank; j++)
+            dest[j] = factors.get(offset + j);
+    }
+
+    /**
+     * Add the vector at the given row into an accumulator of length rank.
+     */
+    public void addTo(int row, double[] acc) {
+        FloatBuffer factors = chunks[row / rowsPerChunk];
+        int offset = (row % rowsPerChunk) * rank;
+        for (int j = 0; j < rank; j++)
+            acc[j] += factors.get(offset + j);
+    }
+
+    public float dot(int row, float[] vector) {
+        FloatBuffer factors = chunks[row / rowsPerChunk];
+        int offset = (row % rowsPerChunk) * rank;
+        float sum = 0;
+        for (int j = 0; j < rank; j++)
+            sum += factors.get(offset + j) * vector[j];
+        return sum;
+    }
+
+    /**
+     * Score every row against the vector and return the highest scoring ids, best first.
+     * @param vector query vector of length rank
+     * @param excluded ids that must not be returned
+     * @param k max number of results
+     */
+    @Override
+    public List<ItemRecommendationResult> topK(float[] vector, LongSet excluded, int k) {
+        TopItemsHeap heap = new TopItemsHeap(k);
+        boolean checkExcluded = !excluded.isEmpty();
+        FloatBuffer factors = null;
+        int offset = 0;
+        for (int row = 0; row < ids.length; row++, offset += rank) {
+            if (row % rowsPerChunk == 0) {
+                factors = chunks[row / rowsPerChunk];
+                offset = 0;
+            }
+            long id = ids[row];
+            if (checkExcluded && excluded.contains(id))
+                continue;
+            float sum = 0;
+            for (int j = 0; j < rank; j++)
+                sum += factors.get(offset + j) * vector[j];
+            heap.offer(id, sum);
+        }
+        return heap.drain();
+    }
+
+    /**
+     * Score only the given candidate ids against the vector. Candidates without a vector are ignored.
+     */
+    public List<ItemRecommendationResult> topK(float[] vector, Collection<Long> candidates, LongSet excluded, int k) {
+        TopItemsHeap heap = new TopItemsHeap(k);
+        for (Long candidate : candidates) {
+            long id = candidate;
+            if (excluded.contains(id))
+                continue;
+            int row = index.get(id);
+            if (row >= 0)
+                heap.offer(id, dot(row, vector));
+        }
+        return heap.drain();
+    }
+}
@@ -0,0 +1,253 @@
+/*
+ * Seldon -- open source prediction engine
+ * =======================================
+ *
+ * Copyright 2011-2015 Seldon Technologies Ltd and Rummble Ltd (http://www.seldon.io/)
+ *
+ * ********************************************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * ********************************************************************************************
+ */
+
+
+package io.seldon.mf;
+
+import io.seldon.clustering.recommender.ItemRecommendationResultSet.ItemRecommendationResult;
+import it.unimi.dsi.fastutil.longs.LongSet;
+import it.unimi.dsi.fastutil.longs.LongSets;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Approximate inner product search over a {@link FactorMatrix} using an inverted file index.
+ * Rows are partitioned by k-means into lists; a query scores the list centroids and then only
+ * the rows in the best few lists, so a request touches a fraction of the catalogue.
+ */
+public class IvfVectorIndex implements VectorIndex {
+
+    private static Logger logger = Logger.getLogger(IvfVectorIndex.class.getName());
+    private static final int MAX_TRAINING_ROWS = 100000;
+    private static final int MAX_LISTS = 1024;
+
+    private final FactorMatrix vectors;
+    private final int rank;
+    private final int numLists;
+    private final float[] centroids;
+    // rows of list i are listRows[listStarts[i]] .. listRows[listStarts[i+1]-1]
+    private final int[] listStarts;
+    private final int[] listRows;
+    private final int probes;
+    private volatile double recall = Double.NaN;
+
+    private IvfVectorIndex(FactorMatrix vectors, float[] centroids, int numLists, int[] assignments, int probes) {
+        this.vectors = vectors;
+        this.rank = vectors.rank();
+        this.centroids = centroids;
+        this.numLists = numLists;
+        this.probes = probes;
+        this.listStarts = new int[numLists + 1];
+        for (int assignment : assignments)
+            listStarts[assignment + 1]++;
+        for (int i = 0; i < numLists; i++)
+            listStarts[i + 1] += listStarts[i];
+        this.listRows = new int[assignments.length];
+        int[] next = new int[numLists];
+        for (int row = 0; row < assignments.length; row++) {
+            int list = assignments[row];
+            listRows[listStarts[list] + next[list]++] = row;
+        }
+    }
+
+    /**
+     * A list count of roughly the square root of the number of rows balances centroid and list scans.
+     */
+    public static int defaultNumLists(int rows) {
+        return (int) Math.max(1, Math.min(MAX_LISTS, Math.sqrt(rows)));
+    }
+
+    /**
+     * Build an index by running k-means over (a sample of) the rows.
+     * @param numLists number of k-means partitions
+     * @param iterations k-means iterations
+     * @param probes default number of lists scanned per query
+     */
+    public static IvfVectorIndex build(FactorMatrix vectors, int numLists, int iterations, int probes, Random random) {
+        long start = System.currentTimeMillis();
+        int rows = vectors.size();
+        int rank = vectors.rank();
+        numLists = Math.max(1, Math.min(numLists, rows));
+        int[] sample = sampleRows(rows, Math.min(rows, MAX_TRAINING_ROWS), random);
+
+        float[] centroids = new float[numLists * rank];
+        float[] row = new float[rank];
+        for (int c = 0; c < numLists; c++) {
+            vectors.copyRow(sample[c], row);
+            System.arraycopy(row, 0, centroids, c * rank, rank);
+        }
+
+        float[] halfNorms = new float[numLists];
+        double[] sums = new double[numLists * rank];
+        int[] counts = new int[numLists];
+        for (int iter = 0; iter < iterations; iter++) {
+            computeHalfNorms(centroids, rank, halfNorms);
+            Arrays.fill(sums, 0);
+            Arrays.fill(counts, 0);
+            for (int r : sample) {
+                vectors.copyRow(r, row);
+                int c = nearest(row, centroids, halfNorms, rank);
+                counts[c]++;
+                int offset = c * rank;
+                for (int j = 0; j < rank; j++)
+                    sums[offset + j] += row[j];
+            }
+            for (int c = 0; c < numLists; c++) {
+                int offset = c * rank;
+                if (counts[c] == 0) {
+                    // restart empty partitions from a random sample row
+                    vectors.copyRow(sample[random.nextInt(sample.length)], row);
+                    System.arraycopy(row, 0, centroids, offset, rank);
+                } else {
+                    for (int j = 0; j < rank; j++)
+                        centroids[offset + j] = (float) (sums[offset + j] / counts[c]);
+                }
+            }
+        }
+
+        computeHalfNorms(centroids, rank, halfNorms);
+        int[] assignments = new int[rows];
+        for (int r = 0; r < rows; r++) {
+            vectors.copyRow(r, row);
+            assignments[r] = nearest(row, centroids, halfNorms, rank);
+        }
+        IvfVectorIndex index = new IvfVectorIndex(vectors, centroids, numLists, assignments, Math.max(1, probes));
+        logger.info("Built IVF index over " + rows + " vectors with " + numLists + " lists in "
+                + (System.currentTimeMillis() - start) + "ms");
+        return index;
+    }
+
+    private static int[] sampleRows(int rows, int sampleSize, Random random) {
+        int[] all = new int[rows];
+        for (int i = 0; i < rows; i++)
+            all[i] = i;
+        // partial Fisher-Yates shuffle
+        for (int i = 0; i < sampleSize; i++) {
+            int j = i + random.nextInt(rows - i);
+            int tmp = all[i];
+            all[i] = all[j];
+            all[j] = tmp;
+        }
+        return sampleSize == rows ? all : Arrays.copyOf(all, sampleSize);
+    }
+
+    private static void computeHalfNorms(float[] centroids, int rank, float[] halfNorms) {
+        for (int c = 0; c < halfNorms.length; c++) {
+            float sum = 0;
+            int offset = c * rank;
+            for (int j = 0; j < rank; j++)
+                sum += centroids[offset + j] * centroids[offset + j];
+            halfNorms[c] = sum / 2;
+        }
+    }
+
+    // min ||x-c||^2 is max x.c - ||c||^2/2
+    private static int nearest(float[] row, float[] centroids, float[] halfNorms, int rank) {
+        int best = 0;
+        float bestScore = Float.NEGATIVE_INFINITY;
+        for (int c = 0; c < halfNorms.length; c++) {
+            int offset = c * rank;
+            float dot = 0;
+            for (int j = 0; j < rank; j++)
+                dot += row[j] * centroids[offset + j];
+            float score = dot - halfNorms[c];
+            if (score > bestScore) {
+                bestScore = score;
+                best = c;
+            }
+        }
+        return best;
+    }
+
+    @Override
+    public List<ItemRecommendationResult> topK(float[] query, LongSet excluded, int k) {
+        return topK(query, excluded, k, probes);
+    }
+
+    public List<ItemRecommendationResult> topK(float[] query, LongSet excluded, int k, int probes) {
+        TopItemsHeap bestLists = new TopItemsHeap(Math.min(probes, numLists));
+        for (int c = 0; c < numLists; c++) {
+            int offset = c * rank;
+            float dot = 0;
+            for (int j = 0; j < rank; j++)
+                dot += query[j] * centroids[offset + j];
+            bestLists.offer(c, dot);
+        }
+        TopItemsHeap heap = new TopItemsHeap(k);
+        boolean checkExcluded = !excluded.isEmpty();
+        for (ItemRecommendationResult list : bestLists.drain()) {
+            int c = list.item.intValue();
+            for (int i = listStarts[c]; i < listStarts[c + 1]; i++) {
+                int row = listRows[i];
+                long id = vectors.getId(row);
+                if (checkExcluded && excluded.contains(id))
+                    continue;
+                heap.offer(id, vectors.dot(row, query));
+            }
+        }
+        return heap.drain();
+    }
+
+    /**
+     * Measure recall@k of this index against exact search using rows of the given matrix as queries.
+     * The result is kept and available from {@link #getRecall()}.
+     */
+    public double measureRecall(FactorMatrix queries, int numQueries, int k, Random random) {
+        if (queries.size() == 0 || queries.rank() != rank)
+            return Double.NaN;
+        float[] query = new float[rank];
+        long found = 0;
+        long expected = 0;
+        for (int q = 0; q < numQueries; q++) {
+            queries.copyRow(random.nextInt(queries.size()), query);
+            Set<Long> exact = new HashSet<>();
+            for (ItemRecommendationResult r : vectors.topK(query, LongSets.EMPTY_SET, k))
+                exact.add(r.item);
+            for (ItemRecommendationResult r : topK(query, LongSets.EMPTY_SET, k))
+                if (exact.contains(r.item))
+                    found++;
+            expected += exact.size();
+        }
+        recall = expected == 0 ? Double.NaN : (double) found / expected;
+        logger.info("IVF index recall@" + k + " over " + numQueries + " queries with " + probes + " probes is " + recall);
+        return recall;
+    }
+
+    public double getRecall() {
+        return recall;
+    }
+
+    public int getNumLists() {
+        return numLists;
+    }
+
+    public int getProbes() {
+        return probes;
+    }
+}
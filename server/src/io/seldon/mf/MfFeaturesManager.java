@@ -30,6 +30,8 @@ import java.io.BufferedReader;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStreamReader;
+import java.nio.FloatBuffer;
+import java.nio.channels.FileChannel;
 import java.util.*;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
@@ -40,6 +42,8 @@ import io.seldon.api.state.ClientAlgorithmStore;
 import io.seldon.recommendation.model.ModelManager;
 import io.seldon.resources.external.ExternalResourceStreamer;
 import io.seldon.resources.external.NewResourceNotifier;
+import it.unimi.dsi.fastutil.floats.FloatArrayList;
+import it.unimi.dsi.fastutil.longs.LongArrayList;
 import org.apache.commons.math.linear.Array2DRowRealMatrix;
 import org.apache.commons.math.linear.InvalidMatrixException;
 import org.apache.commons.math.linear.LUDecompositionImpl;
@@ -79,21 +83,19 @@ public class MfFeaturesManager extends ModelManager<MfFeaturesManager.ClientMfFe
         logger.info("Reloading matrix factorization features for client: "+ client);
 
         try {
+            ClientMfFeaturesStore binaryStore = loadBinaryModel(location, client);
+            if (binaryStore != null)
+                return binaryStore;
             BufferedReader userFeaturesReader = new BufferedReader(new InputStreamReader(
                     featuresFileHandler.getResourceStream(location + "/userFeatures.txt.gz")
             ));
-            Map<Long, float[]> userFeatures = readFeatures(userFeaturesReader);
-            int rank= 0;
-            if(!userFeatures.isEmpty()){
-                Long firstUser = userFeatures.keySet().iterator().next();
-                rank = userFeatures.get(firstUser).length;
-            }
+            FactorMatrix userFeatures = readFeatures(userFeaturesReader);
             BufferedReader productFeaturesReader = new BufferedReader(new InputStreamReader(
                     featuresFileHandler.getResourceStream(location + "/productFeatures.txt.gz")
             ));
-            Map<Long, float[]> productFeatures = readFeatures(productFeaturesReader);
+            FactorMatrix productFeatures = readFeatures(productFeaturesReader);
             logger.info("Finished loading MF features ("+userFeatures.size()+" users and "+productFeatures.size() +
-                    " products at rank " + rank +") for " + client);
+                    " products at rank " + productFeatures.rank() +") for " + client);
             userFeaturesReader.close();
             productFeaturesReader.close();
             return new ClientMfFeaturesStore(userFeatures, productFeatures);
@@ -108,21 +110,51 @@ public class MfFeaturesManager extends ModelManager<MfFeaturesManager.ClientMfFe
 
 
 
-    private Map<Long,float[]> readFeatures(BufferedReader reader) throws IOException {
-        Map<Long, float[]> toReturn = new HashMap<>();
+    /**
+     * Map the binary userFeatures.bin/productFeatures.bin written by the offline job if present.
+     * @return the store or null if there is no usable binary model at this location, in which case
+     * the text model is loaded instead
+     */
+    private ClientMfFeaturesStore loadBinaryModel(String location, String client) {
+        try {
+            FactorMatrix userFeatures = mapFeatures(location + "/userFeatures.bin");
+            FactorMatrix productFeatures = mapFeatures(location + "/productFeatures.bin");
+            logger.info("Finished mapping binary MF features ("+userFeatures.size()+" users and "+productFeatures.size() +
+                    " products at rank " + productFeatures.rank() +") for " + client);
+            return new ClientMfFeaturesStore(userFeatures, productFeatures);
+        } catch (FileNotFoundException e) {
+            logger.info("No binary MF model at "+location+" for client "+client+", falling back to text");
+        } catch (Exception e) {
+            logger.warn("Failed to load binary MF model at "+location+" for client "+client+", falling back to text", e);
+        }
+        return null;
+    }
+
+    private FactorMatrix mapFeatures(String reference) throws IOException {
+        try (FileChannel channel = featuresFileHandler.getResourceChannel(reference)) {
+            return FactorMatrix.fromChannel(channel);
+        }
+    }
+
+    private FactorMatrix readFeatures(BufferedReader reader) throws IOException {
+        LongArrayList ids = new LongArrayList();
+        FloatArrayList factors = new FloatArrayList();
+        int rank = 0;
         String line;
         while((line = reader.readLine()) !=null){
             String[] userAndFeatures = line.split("\\|");
-            Long item = Long.parseLong(userAndFeatures[0]);
+            ids.add(Long.parseLong(userAndFeatures[0]));
             String[] features = userAndFeatures[1].split(",");
-
-            float[] featuresList = new float[features.length];
-            for (int i = 0; i < featuresList.length; i++){
-                featuresList[i]= Float.parseFloat(features[i]);
+            if (rank == 0)
+                rank = features.length;
+            else if (features.length != rank)
+                throw new IOException("Inconsistent rank "+features.length+" for id "+userAndFeatures[0]+" expected "+rank);
+            for (int i = 0; i < features.length; i++){
+                factors.add(Float.parseFloat(features[i]));
             }
-            toReturn.put(item, featuresList);
         }
-        return toReturn;
+        factors.trim();
+        return new FactorMatrix(ids.toLongArray(), FloatBuffer.wrap(factors.elements()), rank);
     }
 
 //
@@ -138,49 +170,58 @@ public class MfFeaturesManager extends ModelManager<MfFeaturesManager.ClientMfFe
 
     public static class ClientMfFeaturesStore {
 
-        public final Map<Long, float[]> userFeatures;
-        public final Map<Long, float[]> productFeatures;
-        public final double[][] productFeaturesInverse;
-        public final Map<Long,Integer> idMap;
+        public final FactorMatrix userFeatures;
+        public final FactorMatrix productFeatures;
+        // (Y^T Y)^-1 for the product matrix Y, rank x rank. Folding in a user is then
+        // (sum of their item vectors) * foldInMatrix
+        public final double[][] foldInMatrix;
+        // approximate index over the products, built in the background on first use by a strategy with ann enabled
+        private final VectorIndex productIndex;
         
-        public ClientMfFeaturesStore(Map<Long, float[]> userFeatures,
-                                     Map<Long, float[]> productFeatures){
+        public ClientMfFeaturesStore(FactorMatrix userFeatures,
+                                     FactorMatrix productFeatures){
             this.userFeatures = userFeatures;
             this.productFeatures = productFeatures;
-
-            int numProducts = productFeatures.size();
-            int numLatentFactors = productFeatures.values().iterator().next().length;
-            idMap = new HashMap<>();
-        	double[][] itemFactorsDouble  = new double[numProducts][numLatentFactors];            
-        	int i = 0;
-        	for(Map.Entry<Long, float[]> e : productFeatures.entrySet())
-        	{
-        		idMap.put(e.getKey(), i);
-        		for(int j=0;j<numLatentFactors;j++)
-        			itemFactorsDouble[i][j] = e.getValue()[j];
-        		i++;
-        	}
-        	productFeaturesInverse = computeUserFoldInMatrix(itemFactorsDouble);
-        	if (productFeaturesInverse != null)
+        	foldInMatrix = computeUserFoldInMatrix(productFeatures);
+        	if (foldInMatrix != null)
         		logger.info("Successfully created inverse of product feature matrix for fold in");
+        	productIndex = new BackgroundVectorIndex(productFeatures, userFeatures);
+        }
+
+        /**
+         * @return an approximate index over the products once it has been built in the background, the exact
+         * productFeatures until then or for small catalogues
+         */
+        public VectorIndex getProductIndex()
+        {
+        	return productIndex;
         }
         
         /**
          * http://www.slideshare.net/fullscreen/srowen/matrix-factorization/16 
-         * @param recentitemInteractions
-         * @param productFeaturesInverse
-         * @param idMap
+         * @param itemFactors
          * @return
          */
-        private double[][] computeUserFoldInMatrix(double[][] itemFactors) 
+        private double[][] computeUserFoldInMatrix(FactorMatrix itemFactors) 
         {
+        	int rank = itemFactors.rank();
+        	if (rank == 0 || itemFactors.size() == 0)
+        		return null;
         	try
         	{
-        		RealMatrix Y = new Array2DRowRealMatrix(itemFactors);
-        		RealMatrix YTY = Y.transpose().multiply(Y);
-        		RealMatrix YTYInverse = new LUDecompositionImpl(YTY).getSolver().getInverse();
-
-        		return Y.multiply(YTYInverse).getData();
+        		double[][] yty = new double[rank][rank];
+        		for (int row = 0; row < itemFactors.size(); row++)
+        			for (int a = 0; a < rank; a++)
+        			{
+        				double fa = itemFactors.get(row, a);
+        				for (int b = a; b < rank; b++)
+        					yty[a][b] += fa * itemFactors.get(row, b);
+        			}
+        		for (int a = 0; a < rank; a++)
+        			for (int b = 0; b < a; b++)
+        				yty[a][b] = yty[b][a];
+        		RealMatrix YTY = new Array2DRowRealMatrix(yty, false);
+        		return new LUDecompositionImpl(YTY).getSolver().getInverse().getData();
         	}
         	catch (InvalidMatrixException e)
         	{
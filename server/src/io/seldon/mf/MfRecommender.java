@@ -27,19 +27,18 @@ import io.seldon.clustering.recommender.ItemRecommendationAlgorithm;
 import io.seldon.clustering.recommender.ItemRecommendationResultSet;
 import io.seldon.clustering.recommender.ItemRecommendationResultSet.ItemRecommendationResult;
 import io.seldon.clustering.recommender.RecommendationContext;
+import it.unimi.dsi.fastutil.longs.LongOpenHashSet;
+import it.unimi.dsi.fastutil.longs.LongSet;
+import it.unimi.dsi.fastutil.longs.LongSets;
 
 import java.util.Collections;
-import java.util.HashSet;
 import java.util.List;
-import java.util.Map;
 import java.util.Set;
 
 import org.apache.log4j.Logger;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Component;
 
-import com.google.common.collect.Ordering;
-
 /**
  * @author firemanphil
  *         Date: 29/09/2014
@@ -49,6 +48,7 @@ import com.google.common.collect.Ordering;
 public class MfRecommender implements ItemRecommendationAlgorithm {
     private static Logger logger = Logger.getLogger(MfRecommender.class.getName());
 	private static final String name = MfRecommender.class.getSimpleName();
+	static final String ANN_OPTION_NAME = "io.seldon.algorithm.mf.ann";
     private final MfFeaturesManager store;
 
     @Autowired
@@ -59,51 +59,30 @@ public class MfRecommender implements ItemRecommendationAlgorithm {
     @Override
     public ItemRecommendationResultSet recommend(String client, Long user, Set<Integer> dimensions, int maxRecsCount,
             RecommendationContext ctxt, List<Long> recentitemInteractions) {
-        MfFeaturesManager.ClientMfFeaturesStore clientStore = this.store.getClientStore(client,ctxt.getOptsHolder());
+        RecommendationContext.OptionsHolder opts = ctxt.getOptsHolder();
+        MfFeaturesManager.ClientMfFeaturesStore clientStore = this.store.getClientStore(client,opts);
 
-        if(clientStore==null || clientStore.userFeatures.get(user)==null) {
+        float[] userVector = clientStore == null || user == null ? null : clientStore.userFeatures.getVector(user);
+        if(userVector==null) {
             logger.debug("Couldn't find a matrix factorization store for this client or this user");
             return new ItemRecommendationResultSet(Collections.<ItemRecommendationResult>emptyList(), name);
         }
 
-        float[] userVector =  clientStore.userFeatures.get(user);
-        Set<ItemRecommendationResult> recs = new HashSet<>();
+        LongSet excluded = recentitemInteractions == null ? LongSets.EMPTY_SET : new LongOpenHashSet(recentitemInteractions);
+        List<ItemRecommendationResult> recsList;
         if(ctxt.getMode()== RecommendationContext.MODE.INCLUSION){
             // special case for INCLUSION as it's easier on the cpu.
-            for (Long item : ctxt.getContextItems()){
-            	if (!recentitemInteractions.contains(item))
-            	{
-            		float[] features = clientStore.productFeatures.get(item);
-            		if(features!=null)
-            			recs.add(new ItemRecommendationResult(item, dot(features,userVector)));
-            	}
-            }
-
+            recsList = clientStore.productFeatures.topK(userVector, ctxt.getContextItems(), excluded, maxRecsCount);
         } else {
-           for (Map.Entry<Long, float[]> productFeatures : clientStore.productFeatures.entrySet()) {
-        	   Long item = productFeatures.getKey().longValue();
-        	   if (!recentitemInteractions.contains(item))
-          		{
-        		   recs.add(new ItemRecommendationResult(item,dot(productFeatures.getValue(),userVector)));
-          		}
-           }
+            VectorIndex index = opts.getBooleanOption(ANN_OPTION_NAME) ? clientStore.getProductIndex() : clientStore.productFeatures;
+            recsList = index.topK(userVector, excluded, maxRecsCount);
         }
 
-        List<ItemRecommendationResult> recsList = Ordering.natural().greatestOf(recs, maxRecsCount);
         if (logger.isDebugEnabled())
         	logger.debug("Created "+recsList.size() + " recs");
         return new ItemRecommendationResultSet(recsList, name);
     }
 
-
-    private static float dot(float[] vec1, float[] vec2){
-        float sum = 0;
-        for (int i = 0; i < vec1.length; i++){
-            sum += vec1[i] * vec2[i];
-        }
-        return sum;
-    }
-
     @Override
     public String name() {
         return name;
@@ -27,22 +27,18 @@ import io.seldon.clustering.recommender.ItemRecommendationAlgorithm;
 import io.seldon.clustering.recommender.ItemRecommendationResultSet;
 import io.seldon.clustering.recommender.ItemRecommendationResultSet.ItemRecommendationResult;
 import io.seldon.clustering.recommender.RecommendationContext;
+import it.unimi.dsi.fastutil.longs.LongOpenHashSet;
+import it.unimi.dsi.fastutil.longs.LongSet;
 
 import java.util.ArrayList;
 import java.util.Collections;
-import java.util.HashSet;
 import java.util.List;
-import java.util.Map;
 import java.util.Set;
 
-import org.apache.commons.math.linear.ArrayRealVector;
-import org.apache.commons.math.linear.RealVector;
 import org.apache.log4j.Logger;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Component;
 
-import com.google.common.collect.Ordering;
-
 @Component
 public class RecentMfRecommender implements ItemRecommendationAlgorithm {
  	private static Logger logger = Logger.getLogger(RecentMfRecommender.class.getName());
@@ -64,7 +60,7 @@ public class RecentMfRecommender implements ItemRecommendationAlgorithm {
 
 		RecommendationContext.OptionsHolder opts = ctxt.getOptsHolder();
 		int numRecentActionsToUse = opts.getIntegerOption(RECENT_ACTIONS_PROPERTY_NAME);
-        MfFeaturesManager.ClientMfFeaturesStore clientStore = this.store.getClientStore(client, ctxt.getOptsHolder());
+        MfFeaturesManager.ClientMfFeaturesStore clientStore = this.store.getClientStore(client, opts);
 
         if(clientStore==null) {
             logger.debug("Couldn't find a matrix factorization store for this client");
@@ -83,12 +79,12 @@ public class RecentMfRecommender implements ItemRecommendationAlgorithm {
 		if (logger.isDebugEnabled())
 			logger.debug("Recent items of size "+itemsToScore.size()+" -> "+itemsToScore.toString());
 
-        double[] userVector;
-        if (clientStore.productFeaturesInverse != null)
+        float[] userVector;
+        if (clientStore.foldInMatrix != null)
         {
         	//fold in user data from their recent history of item interactions
         	logger.debug("Creating user vector by folding in features");
-        	userVector = foldInUser(itemsToScore, clientStore.productFeaturesInverse, clientStore.idMap);
+        	userVector = foldInUser(itemsToScore, clientStore.productFeatures, clientStore.foldInMatrix);
         }
         else
         {
@@ -96,88 +92,69 @@ public class RecentMfRecommender implements ItemRecommendationAlgorithm {
         	userVector = createAvgProductVector(itemsToScore, clientStore.productFeatures);
         }
         
-        Set<ItemRecommendationResult> recs = new HashSet<>();
+        LongSet excluded = new LongOpenHashSet(recentItemInteractions);
+        List<ItemRecommendationResult> recsList;
         if(ctxt.getMode()== RecommendationContext.MODE.INCLUSION){
             // special case for INCLUSION as it's easier on the cpu.
-            for (Long item : ctxt.getContextItems()){
-            	if (!recentItemInteractions.contains(item))
-            	{
-            		float[] features = clientStore.productFeatures.get(item);
-            		if(features!=null)
-            			recs.add(new ItemRecommendationResult(item, dot(features,userVector)));
-            	}
-            }
-
+            recsList = clientStore.productFeatures.topK(userVector, ctxt.getContextItems(), excluded, maxRecsCount);
         } else {
-           for (Map.Entry<Long, float[]> productFeatures : clientStore.productFeatures.entrySet()) {
-                Long item = productFeatures.getKey().longValue();
-            	if (!recentItemInteractions.contains(item))
-            	{
-            		recs.add(new ItemRecommendationResult(item,dot(productFeatures.getValue(),userVector)));
-            	}
-           }
+            VectorIndex index = opts.getBooleanOption(MfRecommender.ANN_OPTION_NAME) ? clientStore.getProductIndex() : clientStore.productFeatures;
+            recsList = index.topK(userVector, excluded, maxRecsCount);
         }
 
-        List<ItemRecommendationResult> recsList = Ordering.natural().greatestOf(recs, maxRecsCount);
         if (logger.isDebugEnabled())
         	logger.debug("Created "+recsList.size() + " recs");
         return new ItemRecommendationResultSet(recsList, name);
     }
 
-    public double[] createAvgProductVector(List<Long> recentitemInteractions,Map<Long,float[]> productFeatures)
+    public float[] createAvgProductVector(List<Long> recentitemInteractions,FactorMatrix productFeatures)
     {
-    	int numLatentFactors = productFeatures.values().iterator().next().length;
+    	int numLatentFactors = productFeatures.rank();
     	double[] userFeatures = new double[numLatentFactors];
     	for (Long item : recentitemInteractions) 
 		{
-    		float[] productFactors = productFeatures.get(item);
-    		if (productFactors != null)
-    		{
-    			for (int feature = 0; feature < numLatentFactors; feature++) 
-    			{
-    				userFeatures[feature] += productFactors[feature];
-    			}
-    		}
+    		int row = productFeatures.getRow(item);
+    		if (row >= 0)
+    			productFeatures.addTo(row, userFeatures);
 		}
-    	RealVector  userFeaturesAsVector = new ArrayRealVector(userFeatures);
-    	RealVector normalised =  userFeaturesAsVector.mapDivide(userFeaturesAsVector.getL1Norm());
-
-    	return normalised.getData();
+    	double l1Norm = 0;
+    	for (int feature = 0; feature < numLatentFactors; feature++)
+    		l1Norm += Math.abs(userFeatures[feature]);
+    	float[] normalised = new float[numLatentFactors];
+    	if (l1Norm > 0)
+    		for (int feature = 0; feature < numLatentFactors; feature++)
+    			normalised[feature] = (float) (userFeatures[feature] / l1Norm);
+    	return normalised;
     }
     
     /**
      * http://www.slideshare.net/fullscreen/srowen/matrix-factorization/16 
      * @param recentitemInteractions
-     * @param productFeaturesInverse
-     * @param idMap
+     * @param productFeatures
+     * @param foldInMatrix (Y^T Y)^-1 for the product matrix Y
      * @return
      */
-    public double[] foldInUser(List<Long> recentitemInteractions,double[][] productFeaturesInverse,Map<Long,Integer> idMap) {
+    public float[] foldInUser(List<Long> recentitemInteractions,FactorMatrix productFeatures,double[][] foldInMatrix) {
 
-    	int numLatentFactors = productFeaturesInverse[0].length;
-	    double[] userFeatures = new double[numLatentFactors];
+    	int numLatentFactors = productFeatures.rank();
+	    double[] itemSum = new double[numLatentFactors];
 	    for (Long item : recentitemInteractions) 
 	    {
-	    	Integer id = idMap.get(item);
-	    	if (id != null)
-	    	{
-	    		for (int feature = 0; feature < numLatentFactors; feature++) 
-	    		{
-	    			userFeatures[feature] += productFeaturesInverse[id][feature];
-	    		}
-	    	}
+	    	int row = productFeatures.getRow(item);
+	    	if (row >= 0)
+	    		productFeatures.addTo(row, itemSum);
+	    }
+	    float[] userFeatures = new float[numLatentFactors];
+	    for (int feature = 0; feature < numLatentFactors; feature++)
+	    {
+	    	double sum = 0;
+	    	for (int j = 0; j < numLatentFactors; j++)
+	    		sum += itemSum[j] * foldInMatrix[j][feature];
+	    	userFeatures[feature] = (float) sum;
 	    }
 	    return userFeatures;
 	  }
 
-    private static float dot(float[] vec1, double[] vec2){
-        float sum = 0;
-        for (int i = 0; i < vec1.length; i++){
-            sum += vec1[i] * vec2[i];
-        }
-        return sum;
-    }
-
 	@Override
 	public String name() {
 		return name;
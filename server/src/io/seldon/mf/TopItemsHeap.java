@@ -0,0 +1,111 @@
+/*
+ * Seldon -- open source prediction engine
+ * =======================================
+ *
+ * Copyright 2011-2015 Seldon Technologies Ltd and Rummble Ltd (http://www.seldon.io/)
+ *
+ * ********************************************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * ********************************************************************************************
+ */
+
+
+package io.seldon.mf;
+
+import io.seldon.clustering.recommender.ItemRecommendationResultSet.ItemRecommendationResult;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Bounded min-heap over primitive item/score arrays used to keep the top K scoring items
+ * while scanning a catalogue. Only the final K results are boxed.
+ */
+public class TopItemsHeap {
+
+    private final long[] items;
+    private final float[] scores;
+    private int size = 0;
+
+    public TopItemsHeap(int capacity) {
+        this.items = new long[Math.max(capacity, 0)];
+        this.scores = new float[Math.max(capacity, 0)];
+    }
+
+    public int size() {
+        return size;
+    }
+
+    /**
+     * @return the lowest score currently held, or negative infinity if the heap is not yet full
+     */
+    public float threshold() {
+        return size < items.length ? Float.NEGATIVE_INFINITY : scores[0];
+    }
+
+    public void offer(long item, float score) {
+        if (size < items.length) {
+            int i = size++;
+            while (i > 0) {
+                int parent = (i - 1) >>> 1;
+                if (scores[parent] <= score)
+                    break;
+                items[i] = items[parent];
+                scores[i] = scores[parent];
+                i = parent;
+            }
+            items[i] = item;
+            scores[i] = score;
+        } else if (size > 0 && score > scores[0]) {
+            siftDown(item, score);
+        }
+    }
+
+    private void siftDown(long item, float score) {
+        int i = 0;
+        int half = size >>> 1;
+        while (i < half) {
+            int child = 2 * i + 1;
+            int right = child + 1;
+            if (right < size && scores[right] < scores[child])
+                child = right;
+            if (score <= scores[child])
+                break;
+            items[i] = items[child];
+            scores[i] = scores[child];
+            i = child;
+        }
+        items[i] = item;
+        scores[i] = score;
+    }
+
+    /**
+     * Empty the heap returning its contents in descending score order.
+     */
+    public List<ItemRecommendationResult> drain() {
+        if (size == 0)
+            return Collections.emptyList();
+        ItemRecommendationResult[] res = new ItemRecommendationResult[size];
+        while (size > 0) {
+            res[size - 1] = new ItemRecommendationResult(items[0], scores[0]);
+            size--;
+            if (size > 0)
+                siftDown(items[size], scores[size]);
+        }
+        return new ArrayList<>(Arrays.asList(res));
+    }
+}
@@ -0,0 +1,45 @@
+/*
+ * Seldon -- open source prediction engine
+ * =======================================
+ *
+ * Copyright 2011-2015 Seldon Technologies Ltd and Rummble Ltd (http://www.seldon.io/)
+ *
+ * ********************************************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * ********************************************************************************************
+ */
+
+
+package io.seldon.mf;
+
+import io.seldon.clustering.recommender.ItemRecommendationResultSet.ItemRecommendationResult;
+import it.unimi.dsi.fastutil.longs.LongSet;
+
+import java.util.List;
+
+/**
+ * Retrieves the ids whose vectors have the highest inner product with a query vector.
+ * {@link FactorMatrix} is the exact implementation, {@link IvfVectorIndex} an approximate one.
+ */
+public interface VectorIndex {
+
+    /**
+     * @param query vector of the same rank as the indexed vectors
+     * @param excluded ids that must not be returned
+     * @param k max number of results
+     * @return best scoring ids, best first
+     */
+    List<ItemRecommendationResult> topK(float[] query, LongSet excluded, int k);
+}
@@ -68,24 +68,18 @@ public class PredictionService {
 			ClassificationReply res = algStr.algorithm.predictFromProto(client, request, optsHolder);
 			if (res != null && res.getPredictionsList() != null && res.getPredictionsCount() > 0)
 			{
-				if (res.getMeta() == null)
-				{
-					ClassificationReplyMeta meta = ClassificationReplyMeta.newBuilder().setVariation(strategy.label).setPuid(SecurityHashPeer.getNewId()).setModelName(algStr.name).build();
+				ClassificationReplyMeta.Builder metaBuilder = ClassificationReplyMeta.newBuilder();
+				if (!request.hasMeta() || StringUtils.isEmpty(request.getMeta().getPuid()))
+					metaBuilder.setPuid(SecurityHashPeer.getNewId());
+				else
+					metaBuilder.setPuid(request.getMeta().getPuid());
+				// algorithms replying without meta, such as VW, are named by their strategy
+				String modelName = res.hasMeta() ? res.getMeta().getModelName() : algStr.name;
+				ClassificationReplyMeta meta = 	metaBuilder.setVariation(strategy.label).setModelName(modelName).build();
+				if (res.hasCustom()) 
 					return ClassificationReply.newBuilder().setCustom(res.getCustom()).setMeta(meta).addAllPredictions(res.getPredictionsList()).build();
-				}
 				else
-				{
-					ClassificationReplyMeta.Builder metaBuilder = ClassificationReplyMeta.newBuilder();
-					if (!request.hasMeta() || StringUtils.isEmpty(request.getMeta().getPuid()))
-						metaBuilder.setPuid(SecurityHashPeer.getNewId());
-					else
-						metaBuilder.setPuid(request.getMeta().getPuid());
-					ClassificationReplyMeta meta = 	metaBuilder.setVariation(strategy.label).setModelName(res.getMeta().getModelName()).build();
-					if (res.hasCustom()) 
-						return ClassificationReply.newBuilder().setCustom(res.getCustom()).setMeta(meta).addAllPredictions(res.getPredictionsList()).build();
-					else
-						return ClassificationReply.newBuilder().setMeta(meta).addAllPredictions(res.getPredictionsList()).build();
-				}
+					return ClassificationReply.newBuilder().setMeta(meta).addAllPredictions(res.getPredictionsList()).build();
 			}
 		}
 		
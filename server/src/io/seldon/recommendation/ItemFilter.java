@@ -23,6 +23,7 @@
 
 package io.seldon.recommendation;
 
+import io.seldon.api.caching.RequestActionHistory;
 import io.seldon.clustering.recommender.RecommendationContext;
 
 import java.util.List;
@@ -35,5 +36,6 @@ import java.util.List;
 public interface ItemFilter {
 
     List<Long> produceExcludedItems(String client, Long user, String clientUserId, RecommendationContext.OptionsHolder optsHolder,
-                                    Long currentItem,String lastRecListUUID, int numRecommendations);
+                                    Long currentItem,String lastRecListUUID, int numRecommendations,
+                                    RequestActionHistory actionHistory);
 }
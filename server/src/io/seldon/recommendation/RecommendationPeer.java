@@ -26,11 +26,14 @@ package io.seldon.recommendation;
 import io.seldon.api.APIException;
 import io.seldon.api.Constants;
 import io.seldon.api.caching.ActionHistoryProvider;
+import io.seldon.api.caching.RequestActionHistory;
 import io.seldon.api.state.ClientAlgorithmStore;
 import io.seldon.api.state.options.DefaultOptions;
+import io.seldon.api.statsd.StatsdPeer;
 import io.seldon.clustering.recommender.ItemRecommendationResultSet;
 import io.seldon.clustering.recommender.RecommendationContext;
 import io.seldon.clustering.recommender.jdo.JdoCountRecommenderUtils;
+import io.seldon.db.jdo.JDOFactory;
 import io.seldon.recommendation.combiner.AlgorithmResultsCombiner;
 import io.seldon.recommendation.filters.ExplicitItemsIncluder;
 import io.seldon.recommendation.filters.FilteredItems;
@@ -41,11 +44,23 @@ import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
 
 import org.apache.commons.lang3.StringUtils;
 import org.apache.commons.lang3.tuple.ImmutablePair;
 import org.apache.log4j.Logger;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Component;
 
 /**
@@ -80,6 +95,20 @@ public class RecommendationPeer {
 	
     private boolean debugging = false;
 
+	private static final String ALGORITHM_TIMEOUT_OPTION_NAME = "io.seldon.algorithm.general.timeoutms";
+	private static final int DEFAULT_ALGORITHM_TIMEOUT_MS = 500;
+
+	@Value("${recommendation.parallel.enabled:false}")
+	boolean parallelAlgorithms;
+
+	@Value("${recommendation.parallel.threads:32}")
+	int parallelThreads;
+
+	@Value("${recommendation.parallel.queuesize:256}")
+	int parallelQueueSize;
+
+	private ThreadPoolExecutor algorithmExecutor;
+
 	@Autowired
     public RecommendationPeer(ClientAlgorithmStore algStore, DefaultOptions defaultOptions) {
         this.algStore = algStore;
@@ -119,10 +148,13 @@ public class RecommendationPeer {
 			numRecommendations = numRecommendationsAsked;
 
 		List<Long> recentActions = null;
+		RequestActionHistory actionHistory = null;
 		if (user != Constants.ANONYMOUS_USER) // only can get recent actions for non anonymous user
 		{
+			// shared by the filters and algorithms below so each history lookup is made at most once per request
+			actionHistory = new RequestActionHistory(actionProvider, client, user);
 			//TODO - fix limit
-			recentActions = actionProvider.getRecentActions(client,user, 100);
+			recentActions = actionHistory.getRecentActions(100);
 			numRecentActions = recentActions.size();
 			if (debugging)
 				logger.debug("RecentActions for user with client "+client+" internal user id "+user+" num." + numRecentActions);
@@ -135,35 +167,25 @@ public class RecommendationPeer {
 		List<String> algsUsed = new ArrayList<>();
 		List<RecResultContext> resultSets = new ArrayList<>();
 		AlgorithmResultsCombiner combiner = strategy.getAlgorithmResultsCombiner(clientUserId, recTag);
-		for(AlgorithmStrategy algStr : strategy.getAlgorithms(clientUserId, recTag))
+		List<AlgorithmStrategy> algorithms = strategy.getAlgorithms(clientUserId, recTag);
+		if (parallelAlgorithms && algorithms.size() > 1)
 		{
-	        long startTime = System.currentTimeMillis();
-			if (logger.isDebugEnabled())
-				logger.debug("Using recommender class " + algStr.name);
-
-			List<Long> recentItemInteractions;
-			// add items from recent history if there are any and algorithm options says to use them
-			if (recentActions != null && recentActions.size() > 0)
-				recentItemInteractions = new ArrayList<>(recentActions);
-			else
-				recentItemInteractions = new ArrayList<>();
-
-			// add current item id if not in recent actions
-			if (currentItemId != null && !recentItemInteractions.contains(currentItemId))
-				recentItemInteractions.add(0,currentItemId);
-			FilteredItems explicitItems = null;
-			if (scoreItems != null)
-				explicitItems = explicitItemsIncluder.create(client, scoreItems);
-			RecommendationContext ctxt = RecommendationContext.buildContext(client,
-					algStr,user,clientUserId,currentItemId, dimensions, lastRecListUUID, numRecommendations,defaultOptions,explicitItems);
-			ItemRecommendationResultSet results = algStr.algorithm.recommend(client, user, dimensions,
-					numRecommendations, ctxt, recentItemInteractions);
-			if (logger.isDebugEnabled())
-				logger.debug("Recommender "+algStr.name+" returned "+results.getResults().size()+" results, took "+(System.currentTimeMillis()-startTime) + "ms");
-		    resultSets.add(new RecResultContext(results, results.getRecommenderName()));
-			if(combiner.isEnoughResults(numRecommendationsAsked, resultSets))
-				break;
+			runAlgorithmsInParallel(algorithms, combiner, resultSets, user, client, clientUserId, dimensions,
+					numRecommendations, numRecommendationsAsked, lastRecListUUID, currentItemId, recentActions, actionHistory, scoreItems);
 		}
+		else
+		{
+			for(AlgorithmStrategy algStr : algorithms)
+			{
+				resultSets.add(runAlgorithm(algStr, user, client, clientUserId, dimensions, numRecommendations, lastRecListUUID,
+						currentItemId, recentActions, actionHistory, scoreItems));
+				if(combiner.isEnoughResults(numRecommendationsAsked, resultSets))
+					break;
+			}
+		}
+		if (actionHistory != null && logger.isDebugEnabled())
+			logger.debug("Action history for user "+user+" with client "+client+" made "+actionHistory.getBackendCalls()+
+					" backend calls and saved "+actionHistory.getBackendCallsSaved());
         RecResultContext combinedResults = combiner.combine(numRecommendations, resultSets);
         if (logger.isDebugEnabled())
         	logger.debug("After combining, we have "+combinedResults.resultSet.getResults().size()+
@@ -207,6 +229,145 @@ public class RecommendationPeer {
 	}
 
 
+	private RecResultContext runAlgorithm(AlgorithmStrategy algStr, long user, String client, String clientUserId,
+			Set<Integer> dimensions, int numRecommendations, String lastRecListUUID, Long currentItemId,
+			List<Long> recentActions, RequestActionHistory actionHistory, Set<Long> scoreItems)
+	{
+        long startTime = System.currentTimeMillis();
+		if (logger.isDebugEnabled())
+			logger.debug("Using recommender class " + algStr.name);
+
+		List<Long> recentItemInteractions;
+		// add items from recent history if there are any and algorithm options says to use them
+		if (recentActions != null && recentActions.size() > 0)
+			recentItemInteractions = new ArrayList<>(recentActions);
+		else
+			recentItemInteractions = new ArrayList<>();
+
+		// add current item id if not in recent actions
+		if (currentItemId != null && !recentItemInteractions.contains(currentItemId))
+			recentItemInteractions.add(0,currentItemId);
+		FilteredItems explicitItems = null;
+		if (scoreItems != null)
+			explicitItems = explicitItemsIncluder.create(client, scoreItems);
+		RecommendationContext ctxt = RecommendationContext.buildContext(client,
+				algStr,user,clientUserId,currentItemId, dimensions, lastRecListUUID, numRecommendations,defaultOptions,explicitItems,actionHistory);
+		ItemRecommendationResultSet results = algStr.algorithm.recommend(client, user, dimensions,
+				numRecommendations, ctxt, recentItemInteractions);
+		if (logger.isDebugEnabled())
+			logger.debug("Recommender "+algStr.name+" returned "+results.getResults().size()+" results, took "+(System.currentTimeMillis()-startTime) + "ms");
+	    return new RecResultContext(results, results.getRecommenderName());
+	}
+
+	/**
+	 * Run all algorithms concurrently, each with its own time budget from the algorithm options. Results are
+	 * added in strategy order so the combiner sees the same ordering as a sequential run; algorithms that miss
+	 * their deadline, or that can't be queued because the pool is full, are left out and counted in the client's
+	 * timeout metrics.
+	 */
+	void runAlgorithmsInParallel(List<AlgorithmStrategy> algorithms, AlgorithmResultsCombiner combiner,
+			List<RecResultContext> resultSets, final long user, final String client, final String clientUserId,
+			final Set<Integer> dimensions, final int numRecommendations, int numRecommendationsAsked,
+			final String lastRecListUUID, final Long currentItemId, final List<Long> recentActions, final RequestActionHistory actionHistory,
+			final Set<Long> scoreItems)
+	{
+		long startTime = System.currentTimeMillis();
+		List<Future<RecResultContext>> futures = new ArrayList<>(algorithms.size());
+		for (final AlgorithmStrategy algStr : algorithms)
+		{
+			try
+			{
+				futures.add(algorithmExecutor.submit(new Callable<RecResultContext>() {
+					@Override
+					public RecResultContext call() throws Exception {
+						return runAlgorithm(algStr, user, client, clientUserId, dimensions, numRecommendations, lastRecListUUID,
+								currentItemId, recentActions, actionHistory, scoreItems);
+					}
+				}));
+			}
+			catch (RejectedExecutionException e)
+			{
+				// the pool is overloaded so treat it as a timeout rather than run it without a deadline on this thread
+				logger.warn("Recommender "+algStr.name+" for client "+client+" rejected as the algorithm pool is full");
+				StatsdPeer.logAlgorithmTimeout(client, algStr.name);
+				futures.add(null);
+			}
+		}
+		try
+		{
+			for (int i = 0; i < futures.size(); i++)
+			{
+				if (futures.get(i) == null)
+					continue;
+				AlgorithmStrategy algStr = algorithms.get(i);
+				long deadline = startTime + getAlgorithmTimeout(algStr);
+				try
+				{
+					resultSets.add(futures.get(i).get(Math.max(0, deadline - System.currentTimeMillis()), TimeUnit.MILLISECONDS));
+				}
+				catch (TimeoutException e)
+				{
+					logger.warn("Recommender "+algStr.name+" for client "+client+" timed out after "+(System.currentTimeMillis()-startTime)+"ms");
+					StatsdPeer.logAlgorithmTimeout(client, algStr.name);
+					continue;
+				}
+				catch (InterruptedException e)
+				{
+					Thread.currentThread().interrupt();
+					throw new APIException(APIException.GENERIC_ERROR);
+				}
+				catch (ExecutionException e)
+				{
+					if (e.getCause() instanceof RuntimeException)
+						throw (RuntimeException) e.getCause();
+					throw new RuntimeException(e.getCause());
+				}
+				if(combiner.isEnoughResults(numRecommendationsAsked, resultSets))
+					break;
+			}
+		}
+		finally
+		{
+			// drop anything not yet started; running algorithms are not interrupted as they may be mid way
+			// through a db or cache call
+			for (Future<RecResultContext> future : futures)
+				if (future != null)
+					future.cancel(false);
+		}
+	}
+
+	private int getAlgorithmTimeout(AlgorithmStrategy algStr)
+	{
+		Integer timeout = new RecommendationContext.OptionsHolder(defaultOptions, algStr.config).getIntegerOption(ALGORITHM_TIMEOUT_OPTION_NAME);
+		return timeout == null || timeout <= 0 ? DEFAULT_ALGORITHM_TIMEOUT_MS : timeout;
+	}
+
+	@PostConstruct
+	public void initialise()
+	{
+		if (parallelAlgorithms)
+		{
+			logger.info("Running recommendation algorithms in parallel with "+parallelThreads+" threads");
+			algorithmExecutor = new ThreadPoolExecutor(parallelThreads, parallelThreads, 60, TimeUnit.SECONDS,
+					new ArrayBlockingQueue<Runnable>(parallelQueueSize), new ThreadPoolExecutor.AbortPolicy()) {
+				@Override
+				protected void afterExecute(Runnable runnable, Throwable throwable)
+				{
+					JDOFactory jdoFactory = JDOFactory.get();
+					if (jdoFactory != null)
+						jdoFactory.cleanupPM();
+				}
+			};
+		}
+	}
+
+	@PreDestroy
+	public void shutdown()
+	{
+		if (algorithmExecutor != null)
+			algorithmExecutor.shutdownNow();
+	}
+
     private RecommendationResult createFinalRecResult(int numRecommendationsAsked, String client, String clientUserId,
 													  Set<Integer> dimensions,String currentRecUUID,List<Long> recs,String algKey,
 													  Long currentItemId,int numRecentActions, Double diversityLevel,
@@ -107,12 +107,11 @@ public class RecommendationUtils {
 		try
 		{
 			userRecCounter++;
-			String recsList = CollectionTools.join(recs, ":");
 			String abTestingKey = strat.getName(userId, recTag);
 			// TODO ab testing and recTag
 //			if (algorithm != null)
 //				abTestingKey = algorithm.getAbTestingKey();
-			CtrLogger.log(false,client, algKey, -1, userId,""+userRecCounter,currentItemId,numRecentActions,recsList,abTestingKey,recTag);
+			CtrLogger.log(false,client, algKey, -1, userId,""+userRecCounter,currentItemId,numRecentActions,recs,abTestingKey,recTag);
 			MemCachePeer.put(MemCacheKeys.getRecommendationListUUID(client,userId,userRecCounter, recTag),new LastRecommendationBean(algKey, recs),MEMCACHE_EXCLUSIONS_EXPIRE_SECS);
 			MemCachePeer.put(counterKey, userRecCounter,MEMCACHE_EXCLUSIONS_EXPIRE_SECS);
 		}
@@ -23,6 +23,7 @@
 
 package io.seldon.recommendation.baseline;
 
+import java.util.HashMap;
 import java.util.Map;
 import java.util.Set;
 
@@ -53,10 +54,13 @@ public class BaselineRecommender {
 			res = utils.getPopularItems(dimension, numRecommendations+MIN_RECS);
 			MemCachePeer.put(mkey, res,CACHE_EXPIRE_SECS);
 		}
-		// remove excluded items
-		if (exclusions != null)
+		// remove excluded items from a copy as the cached map may be shared with other requests
+		if (exclusions != null && !exclusions.isEmpty())
+		{
+			res = new HashMap<>(res);
 			for (Long e : exclusions)
 				res.remove(e);
+		}
 		return RecommendationUtils.rescaleScoresToOne(res, numRecommendations);
 	}
 
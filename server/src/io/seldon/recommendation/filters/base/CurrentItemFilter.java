@@ -23,6 +23,7 @@
 
 package io.seldon.recommendation.filters.base;
 
+import io.seldon.api.caching.RequestActionHistory;
 import io.seldon.clustering.recommender.RecommendationContext;
 import io.seldon.recommendation.ItemFilter;
 
@@ -41,7 +42,8 @@ import org.springframework.stereotype.Component;
 public class CurrentItemFilter implements ItemFilter {
     @Override
     public List<Long> produceExcludedItems(String client, Long user, String clientUserId, RecommendationContext.OptionsHolder optsHolder,
-                                           Long currentItem,String lastRecListUUID, int numRecommendations) {
+                                           Long currentItem,String lastRecListUUID, int numRecommendations,
+                                           RequestActionHistory actionHistory) {
     	if (currentItem != null)
     		return Collections.singletonList(currentItem);
     	else
@@ -23,6 +23,7 @@
 
 package io.seldon.recommendation.filters.base;
 
+import io.seldon.api.caching.RequestActionHistory;
 import io.seldon.clustering.recommender.RecommendationContext;
 import io.seldon.general.ItemStorage;
 import io.seldon.recommendation.ItemFilter;
@@ -53,7 +54,8 @@ public class IgnoredRecsFilter implements ItemFilter {
 
     @Override
     public List<Long> produceExcludedItems(String client, Long user, String clientUserId,RecommendationContext.OptionsHolder optsHolder,
-                                           Long currentItem, String lastRecListUUID, int numRecommendations) {
+                                           Long currentItem, String lastRecListUUID, int numRecommendations,
+                                           RequestActionHistory actionHistory) {
         Set<Long> alreadyRecommendedAndViewedItems = itemStorage.retrieveIgnoredItems(client, clientUserId);
 
         return new ArrayList<>(alreadyRecommendedAndViewedItems);
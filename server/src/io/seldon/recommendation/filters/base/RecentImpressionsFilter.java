@@ -25,6 +25,7 @@ package io.seldon.recommendation.filters.base;
 
 import io.seldon.api.Constants;
 import io.seldon.api.caching.ActionHistoryProvider;
+import io.seldon.api.caching.RequestActionHistory;
 import io.seldon.clustering.recommender.RecommendationContext;
 import io.seldon.recommendation.ItemFilter;
 
@@ -51,12 +52,15 @@ public class RecentImpressionsFilter implements ItemFilter {
     
     @Override
     public List<Long> produceExcludedItems(String client, Long user, String clientUserId, RecommendationContext.OptionsHolder optsHolder,
-                                           Long currentItem,String lastRecListUUID, int numRecommendations) {
+                                           Long currentItem,String lastRecListUUID, int numRecommendations,
+                                           RequestActionHistory actionHistory) {
         if (user != Constants.ANONYMOUS_USER) // only can get recent actions for non anonymous user
         {
             // get recent actions for user
             int recentActionsNum = optsHolder.getIntegerOption(RECENT_ACTIONS_NUM);
-            List<Long> recentActions = actionProvider.getRecentActions(client,user, recentActionsNum >0 ? recentActionsNum : numRecommendations);
+            int numActions = recentActionsNum >0 ? recentActionsNum : numRecommendations;
+            List<Long> recentActions = actionHistory != null ? actionHistory.getRecentActions(numActions) :
+                    actionProvider.getRecentActions(client,user, numActions);
             if (logger.isDebugEnabled())
             	logger.debug("RecentActions for user with client "+client+" internal user id "+user+" num." + recentActions.size());
             return recentActions;
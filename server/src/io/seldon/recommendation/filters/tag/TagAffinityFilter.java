@@ -21,6 +21,7 @@
 */
 package io.seldon.recommendation.filters.tag;
 
+import io.seldon.api.caching.RequestActionHistory;
 import io.seldon.clustering.recommender.RecommendationContext.OptionsHolder;
 import io.seldon.general.ItemStorage;
 import io.seldon.recommendation.ItemFilter;
@@ -64,7 +65,8 @@ public class TagAffinityFilter implements ItemFilter {
 	@Override
 	public List<Long> produceExcludedItems(String client, Long user,
 			String clientUserId, OptionsHolder optsHolder, Long currentItem,
-			String lastRecListUUID, int numRecommendations) {
+			String lastRecListUUID, int numRecommendations,
+			RequestActionHistory actionHistory) {
 
 		TagAffinityFilterModel model = modelManager.getClientStore(client, optsHolder);
 
@@ -0,0 +1,105 @@
+/*
+ * Seldon -- open source prediction engine
+ * =======================================
+ *
+ * Copyright 2011-2015 Seldon Technologies Ltd and Rummble Ltd (http://www.seldon.io/)
+ *
+ * ********************************************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * ********************************************************************************************
+ */
+
+
+package io.seldon.recommendation.model;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * Versioned binary layout for models produced by the offline jobs. Files are a fixed 32 byte
+ * little-endian header followed by fixed-width arrays, so a model can be memory mapped and used
+ * in place without parsing.
+ *
+ * <pre>
+ *  0  int   magic ("SLDN")
+ *  4  int   version
+ *  8  int   model type
+ * 12  int   width (e.g. rank of a factor matrix)
+ * 16  long  rows
+ * 24  long  reserved
+ * 32  ...   type specific arrays
+ * </pre>
+ *
+ * A factor matrix stores long[rows] ids followed by float[rows * width] row-major factors.
+ */
+public class BinaryModelFile {
+
+    public static final int MAGIC = 0x534C444E;
+    public static final int VERSION = 1;
+    public static final int HEADER_SIZE = 32;
+    public static final ByteOrder ORDER = ByteOrder.LITTLE_ENDIAN;
+
+    public static final int TYPE_FACTOR_MATRIX = 1;
+
+    public static class Header {
+        public final int version;
+        public final int type;
+        public final int width;
+        public final long rows;
+
+        public Header(int version, int type, int width, long rows) {
+            this.version = version;
+            this.type = type;
+            this.width = width;
+            this.rows = rows;
+        }
+    }
+
+    /**
+     * Read and validate the header at the start of the buffer. The buffer's position is not changed.
+     * @param expectedType the model type the caller can handle
+     * @throws IOException if the buffer is not a model of a supported version and the expected type
+     */
+    public static Header readHeader(ByteBuffer buffer, int expectedType) throws IOException {
+        ByteBuffer b = buffer.duplicate().order(ORDER);
+        if (b.limit() < HEADER_SIZE)
+            throw new IOException("Binary model too small for header: "+b.limit()+" bytes");
+        int magic = b.getInt(0);
+        if (magic != MAGIC)
+            throw new IOException("Not a binary model file, bad magic "+Integer.toHexString(magic));
+        int version = b.getInt(4);
+        if (version > VERSION)
+            throw new IOException("Unsupported binary model version "+version+" (max supported "+VERSION+")");
+        Header header = new Header(version, b.getInt(8), b.getInt(12), b.getLong(16));
+        if (header.type != expectedType)
+            throw new IOException("Expected binary model of type "+expectedType+" but found "+header.type);
+        if (header.rows < 0 || header.width < 0)
+            throw new IOException("Corrupt binary model header rows:"+header.rows+" width:"+header.width);
+        return header;
+    }
+
+    /**
+     * Return a view of length bytes starting at offset with the model byte order set.
+     */
+    public static ByteBuffer section(ByteBuffer buffer, long offset, long length) throws IOException {
+        if (offset + length > buffer.limit())
+            throw new IOException("Binary model truncated, needed "+(offset + length)+" bytes but has "+buffer.limit());
+        ByteBuffer b = buffer.duplicate();
+        b.position((int) offset);
+        b.limit((int) (offset + length));
+        return b.slice().order(ORDER);
+    }
+}
@@ -29,6 +29,7 @@ import org.springframework.stereotype.Component;
 
 import java.io.IOException;
 import java.io.InputStream;
+import java.nio.channels.FileChannel;
 
 /**
  *
@@ -61,4 +62,20 @@ public class ExternalResourceStreamer {
             throw new IOException("Unknown external resource format: " + reference);
         }
     }
+
+    /**
+     * Returns an external resource as a read only file channel that can be memory mapped. Remote
+     * resources are copied to local disk first. The caller closes the channel.
+     * @throws java.io.FileNotFoundException if the resource does not exist
+     */
+    public FileChannel getResourceChannel(String reference) throws IOException {
+        if(reference.startsWith("s3n://")){
+            return s3Streamer.getResourceChannel(reference.replace("s3n://",""));
+        } else if(reference.startsWith("local:/") || reference.startsWith("/")){
+            return localStreamer.getResourceChannel(reference.replace("local:/",""));
+        } else {
+            logger.warn("Couldn't decode the format in message: "+reference);
+            throw new IOException("Unknown external resource format: " + reference);
+        }
+    }
 }
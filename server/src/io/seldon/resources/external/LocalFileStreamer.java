@@ -24,6 +24,7 @@
 package io.seldon.resources.external;
 
 import java.io.*;
+import java.nio.channels.FileChannel;
 import java.util.zip.GZIPInputStream;
 
 import org.apache.log4j.Logger;
@@ -51,4 +52,19 @@ public class LocalFileStreamer {
 
         //return LocalFileStreamer.class.getResourceAsStream(reference);
     }
+
+    /**
+     * Open a local file read only so it can be memory mapped. Mappings stay valid after the channel is closed.
+     */
+    public FileChannel getResourceChannel(String reference) throws IOException {
+        logger.info("Mapping file from local://"+reference);
+        File f = new File(reference);
+        if (!f.isFile())
+            throw new FileNotFoundException(reference);
+        return openReadOnly(f);
+    }
+
+    static FileChannel openReadOnly(File f) throws IOException {
+        return new RandomAccessFile(f, "r").getChannel();
+    }
 }
\ No newline at end of file
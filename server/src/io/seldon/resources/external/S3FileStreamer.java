@@ -26,6 +26,7 @@ package io.seldon.resources.external;
 import com.amazonaws.auth.AWSCredentials;
 import com.amazonaws.auth.BasicAWSCredentials;
 import com.amazonaws.services.s3.AmazonS3Client;
+import com.amazonaws.services.s3.model.AmazonS3Exception;
 import com.amazonaws.services.s3.model.GetObjectRequest;
 import com.amazonaws.services.s3.model.S3Object;
 import com.amazonaws.services.s3.model.S3ObjectInputStream;
@@ -34,9 +35,14 @@ import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Component;
 
+import java.io.File;
+import java.io.FileNotFoundException;
 import java.io.FilterInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
 import java.util.zip.GZIPInputStream;
 
 /**
@@ -85,6 +91,35 @@ public class S3FileStreamer  {
         }
     }
 
+    /**
+     * Download the object to a temporary local file and open it for memory mapping. The temporary file is
+     * removed once opened and its space is freed when the channel and any mappings are released.
+     */
+    public FileChannel getResourceChannel(String reference) throws IOException {
+        File tmp = File.createTempFile("seldon-model", ".bin");
+        try {
+            InputStream in;
+            try {
+                in = getResourceStream(reference);
+            } catch (AmazonS3Exception e) {
+                if (e.getStatusCode() == 404)
+                    throw new FileNotFoundException(reference);
+                throw e;
+            }
+            if (in == null)
+                throw new FileNotFoundException(reference);
+            try {
+                Files.copy(in, tmp.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            } finally {
+                in.close();
+            }
+            return LocalFileStreamer.openReadOnly(tmp);
+        } finally {
+            if (!tmp.delete())
+                tmp.deleteOnExit();
+        }
+    }
+
     // to fix a bug in the S3 lib where if the client gets GCed before the data is read, everything breaks
     public class S3ObjectInputStreamWrapper extends FilterInputStream {
 
@@ -13,13 +13,12 @@ import org.apache.log4j.Logger;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Component;
 
-import com.fasterxml.jackson.core.JsonFactory;
 import com.fasterxml.jackson.core.JsonParseException;
-import com.fasterxml.jackson.core.JsonParser;
 import com.fasterxml.jackson.databind.JsonMappingException;
 import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.google.protobuf.Any;
 import com.google.protobuf.InvalidProtocolBufferException;
 import com.google.protobuf.Message;
 import com.google.protobuf.util.JsonFormat;
@@ -41,6 +40,12 @@ public class ClientRpcStore implements ClientConfigUpdateListener  {
 
      
     ConcurrentHashMap<String,RPCConfig> services = new ConcurrentHashMap<String, ClientRpcStore.RPCConfig>();
+    
+    private static final ObjectMapper mapper = new ObjectMapper();
+    private static final JsonFormat.Printer printer = JsonFormat.printer();
+    private static final JsonFormat.Parser parser = JsonFormat.parser();
+    private static final JsonFormat.Printer defaultRequestPrinter = printer.usingTypeRegistry(typeRegistry(DefaultCustomPredictRequest.getDefaultInstance()));
+    private static final JsonFormat.Parser defaultRequestParser = parser.usingTypeRegistry(typeRegistry(DefaultCustomPredictRequest.getDefaultInstance()));
 
     @Autowired
     public ClientRpcStore(ClientConfigHandler configHandler) {
@@ -60,43 +65,17 @@ public class ClientRpcStore implements ClientConfigUpdateListener  {
     
    
    
-    private JsonNode getJSONFromMethod(Method m,Message msg,String fieldname) throws IllegalAccessException, IllegalArgumentException, InvocationTargetException, JsonParseException, IOException
+    private static JsonNode getJSON(JsonFormat.Printer jPrinter,Message msg,String fieldname) throws InvalidProtocolBufferException, IOException
     {
-    	Message.Builder o2 = (Message.Builder) m.invoke(null);
-    	TypeRegistry registry = TypeRegistry.newBuilder().add(o2.getDescriptorForType()).build();
-    	
-    	JsonFormat.Printer jPrinter = JsonFormat.printer();
-    	String result = jPrinter.usingTypeRegistry(registry).print(msg);
-    	ObjectMapper mapper = new ObjectMapper();
-    	JsonFactory factory = mapper.getFactory();
-    	JsonParser parser = factory.createParser(result);
-    	JsonNode jNode = mapper.readTree(parser);
+    	JsonNode jNode = mapper.readTree(jPrinter.print(msg));
     	if (jNode.has(fieldname) && jNode.get(fieldname).has("@type"))
     		((ObjectNode) jNode.get(fieldname)).remove("@type");
     	return jNode;
     }
-
-    private JsonNode getJSON(Message msg,String fieldname) throws IllegalAccessException, IllegalArgumentException, InvocationTargetException, JsonParseException, IOException
-    {
-    	JsonFormat.Printer jPrinter = JsonFormat.printer();
-    	String result = jPrinter.print(msg);
-    	ObjectMapper mapper = new ObjectMapper();
-    	JsonFactory factory = mapper.getFactory();
-    	JsonParser parser = factory.createParser(result);
-    	JsonNode jNode = mapper.readTree(parser);
-    	return jNode;
-    }
     
-    private JsonNode getDefaultRequestJSON(Message msg) throws JsonParseException, IOException
+    private static JsonNode getDefaultRequestJSON(Message msg) throws InvalidProtocolBufferException, IOException
     {
-    	Message.Builder o2 = DefaultCustomPredictRequest.newBuilder();
-    	TypeRegistry registry = TypeRegistry.newBuilder().add(o2.getDescriptorForType()).build();
-    	JsonFormat.Printer jPrinter = JsonFormat.printer();
-    	String result = jPrinter.usingTypeRegistry(registry).print(msg);
-    	ObjectMapper mapper = new ObjectMapper();
-    	JsonFactory factory = mapper.getFactory();
-    	JsonParser parser = factory.createParser(result);
-    	JsonNode jNode = mapper.readTree(parser);
+    	JsonNode jNode = mapper.readTree(defaultRequestPrinter.print(msg));
     	if (jNode.has(PredictionBusinessServiceImpl.REQUEST_CUSTOM_DATA_FIELD))
     	{
     		JsonNode values = jNode.get(PredictionBusinessServiceImpl.REQUEST_CUSTOM_DATA_FIELD).get("values");
@@ -105,6 +84,31 @@ public class ClientRpcStore implements ClientConfigUpdateListener  {
     	return jNode;
     }
     
+    /**
+     * Unpack the custom data of a request as the client's request message, or the default request if the client has
+     * none, so prediction algorithms can read its fields without going through JSON.
+     * @return the custom data or null if there is none or it is not of the client's type
+     */
+    public Message getRequestData(String client,ClassificationRequest request)
+    {
+    	if (!request.hasData())
+    		return null;
+    	RPCConfig config = services.get(client);
+    	Message prototype = config != null && config.requestPrototype != null ? config.requestPrototype : DefaultCustomPredictRequest.getDefaultInstance();
+    	Any data = request.getData();
+    	if (!data.getTypeUrl().endsWith("/" + prototype.getDescriptorForType().getFullName()))
+    	{
+    		logger.warn("Request data of type "+data.getTypeUrl()+" is not "+prototype.getDescriptorForType().getFullName()+" for client "+client);
+    		return null;
+    	}
+    	try
+    	{
+    		return prototype.getParserForType().parseFrom(data.getValue());
+    	} catch (InvalidProtocolBufferException e) {
+    		logger.error("Failed to unpack request data for client "+client,e);
+    		return null;
+    	}
+    }
     
     public JsonNode getJSONForRequest(String client,ClassificationRequest request)
     {
@@ -114,10 +118,7 @@ public class ClientRpcStore implements ClientConfigUpdateListener  {
     		try
     		{
     			if (config.requestClass != null)
-    			{
-    				Method m = config.requestBuilder;
-    				return getJSONFromMethod(m, request, PredictionBusinessServiceImpl.REQUEST_CUSTOM_DATA_FIELD);
-    			}
+    				return getJSON(config.requestPrinter, request, PredictionBusinessServiceImpl.REQUEST_CUSTOM_DATA_FIELD);
     			else
     				return getDefaultRequestJSON(request);
     		} catch (Exception e) {
@@ -143,12 +144,9 @@ public class ClientRpcStore implements ClientConfigUpdateListener  {
     	try
     	{
     		if (config != null && config.replyClass != null)
-    		{
-    			Method m = config.replyBuilder;
-    			return getJSONFromMethod(m, request, PredictionBusinessServiceImpl.REPLY_CUSTOM_DATA_FIELD);
-    		}
+    			return getJSON(config.replyPrinter, request, PredictionBusinessServiceImpl.REPLY_CUSTOM_DATA_FIELD);
     		else
-    			return getJSON(request, PredictionBusinessServiceImpl.REPLY_CUSTOM_DATA_FIELD);
+    			return getJSON(printer, request, PredictionBusinessServiceImpl.REPLY_CUSTOM_DATA_FIELD);
     	} catch (Exception e) {
     		logger.error("Failed to create JSON reply for client "+client,e);
     		return null;
@@ -160,19 +158,14 @@ public class ClientRpcStore implements ClientConfigUpdateListener  {
     	RPCConfig config = services.get(client);
     	try
     	{
-    		TypeRegistry registry = null;
+    		JsonFormat.Parser jFormatter = parser;
     		if (config != null && config.replyClass != null && json.has(PredictionBusinessServiceImpl.REPLY_CUSTOM_DATA_FIELD))
     		{
     			if (!json.get(PredictionBusinessServiceImpl.REPLY_CUSTOM_DATA_FIELD).has("@type"))
     				((ObjectNode) json.get(PredictionBusinessServiceImpl.REPLY_CUSTOM_DATA_FIELD)).put("@type", "type.googleapis.com/" + config.replyClass.getName());
-    			Method m = config.replyBuilder;
-    			Message.Builder o = (Message.Builder) m.invoke(null);
-    			registry = TypeRegistry.newBuilder().add(o.getDescriptorForType()).build();
+    			jFormatter = config.replyParser;
     		}
     		ClassificationReply.Builder builder = ClassificationReply.newBuilder();
-    		JsonFormat.Parser jFormatter = JsonFormat.parser();
-    		if (registry != null)
-    			jFormatter = jFormatter.usingTypeRegistry(registry);
     		jFormatter.merge(json.toString(), builder);
     		ClassificationReply reply = builder.build();
     		return reply;
@@ -184,18 +177,12 @@ public class ClientRpcStore implements ClientConfigUpdateListener  {
     
     private ClassificationRequest getPredictRequestWithCustomDefaultFromJSON(JsonNode json) throws InvalidProtocolBufferException
     {
-    	ObjectMapper mapper = new ObjectMapper();
     	ObjectNode data = mapper.createObjectNode();
     	data.put("@type", "type.googleapis.com/" + DefaultCustomPredictRequest.class.getName());
     	data.put("values", json.get(PredictionBusinessServiceImpl.REQUEST_CUSTOM_DATA_FIELD));
     	((ObjectNode) json).put(PredictionBusinessServiceImpl.REQUEST_CUSTOM_DATA_FIELD, data);
-		Message.Builder o = DefaultCustomPredictRequest.newBuilder();
-		TypeRegistry registry = TypeRegistry.newBuilder().add(o.getDescriptorForType()).build();
 		ClassificationRequest.Builder builder = ClassificationRequest.newBuilder();
-		JsonFormat.Parser jFormatter = JsonFormat.parser();
-		if (registry != null)
-			jFormatter = jFormatter.usingTypeRegistry(registry);
-		jFormatter.merge(json.toString(), builder);
+		defaultRequestParser.merge(json.toString(), builder);
 		ClassificationRequest request = builder.build();
 		return request;
     }
@@ -207,19 +194,14 @@ public class ClientRpcStore implements ClientConfigUpdateListener  {
     	{
     		try
     		{
-    			TypeRegistry registry = null;
+    			JsonFormat.Parser jFormatter = parser;
     			if (config.requestClass != null && json.has(PredictionBusinessServiceImpl.REQUEST_CUSTOM_DATA_FIELD))
     			{
     				if (!json.get(PredictionBusinessServiceImpl.REQUEST_CUSTOM_DATA_FIELD).has("@type"))
     					((ObjectNode) json.get(PredictionBusinessServiceImpl.REQUEST_CUSTOM_DATA_FIELD)).put("@type", "type.googleapis.com/" + config.requestClass.getName());
-    				Method m = config.requestBuilder;
-    				Message.Builder o = (Message.Builder) m.invoke(null);
-    				registry = TypeRegistry.newBuilder().add(o.getDescriptorForType()).build();
+    				jFormatter = config.requestParser;
     			}
 				ClassificationRequest.Builder builder = ClassificationRequest.newBuilder();
-    			JsonFormat.Parser jFormatter = JsonFormat.parser();
-    			if (registry != null)
-    				jFormatter = jFormatter.usingTypeRegistry(registry);
     			jFormatter.merge(json.toString(), builder);
     			ClassificationRequest request = builder.build();
     			return request;
@@ -240,6 +222,10 @@ public class ClientRpcStore implements ClientConfigUpdateListener  {
     	}
     }
     
+    /**
+     * Register a client's custom messages. The builder methods are called once here so the message descriptors and
+     * the JSON printers and parsers that depend on them are not recreated on every call.
+     */
     void add(String client,Class<?> requestClass,Class<?> responseClass,Method requestBuilder,Method replyBuilder)
     {
     	RPCConfig config = new RPCConfig();
@@ -247,15 +233,31 @@ public class ClientRpcStore implements ClientConfigUpdateListener  {
     	config.replyClass = responseClass;
     	config.requestBuilder = requestBuilder;
     	config.replyBuilder = replyBuilder;
+    	try
+    	{
+    		if (requestBuilder != null)
+    			config.requestPrototype = ((Message.Builder) requestBuilder.invoke(null)).getDefaultInstanceForType();
+    		if (replyBuilder != null)
+    			config.replyPrototype = ((Message.Builder) replyBuilder.invoke(null)).getDefaultInstanceForType();
+    	} catch (IllegalAccessException | InvocationTargetException e) {
+    		logger.error("Failed to create messages for client "+client,e);
+    	}
+    	config.requestPrinter = config.requestPrototype != null ? printer.usingTypeRegistry(typeRegistry(config.requestPrototype)) : printer;
+    	config.requestParser = config.requestPrototype != null ? parser.usingTypeRegistry(typeRegistry(config.requestPrototype)) : parser;
+    	config.replyPrinter = config.replyPrototype != null ? printer.usingTypeRegistry(typeRegistry(config.replyPrototype)) : printer;
+    	config.replyParser = config.replyPrototype != null ? parser.usingTypeRegistry(typeRegistry(config.replyPrototype)) : parser;
     	services.put(client, config);
     }
     
+    private static TypeRegistry typeRegistry(Message prototype)
+    {
+    	return TypeRegistry.newBuilder().add(prototype.getDescriptorForType()).build();
+    }
     
     private void createClientConfig(String client,String data) 
     {
     	try
     	{
-    		ObjectMapper mapper = new ObjectMapper();
     		RPCZkConfig config = mapper.readValue(data, RPCZkConfig.class);
 
     		File f = new File(config.jarFilename);
@@ -276,7 +278,7 @@ public class ClientRpcStore implements ClientConfigUpdateListener  {
     			if (org.apache.commons.lang.StringUtils.isNotEmpty(config.replyClassName))
     			{
     				responseClass = Class.forName(config.replyClassName,true,cLoader);
-    				replyBuilder = requestClass.getMethod("newBuilder");
+    				replyBuilder = responseClass.getMethod("newBuilder");
     			}
     			this.add(client, requestClass, responseClass,requestBuilder,replyBuilder);
     		} catch (MalformedURLException e) 
@@ -343,6 +345,12 @@ public class ClientRpcStore implements ClientConfigUpdateListener  {
 		public Method requestBuilder;
 		public Class<?> replyClass;
 		public Method replyBuilder;
+		public Message requestPrototype;
+		public Message replyPrototype;
+		public JsonFormat.Printer requestPrinter;
+		public JsonFormat.Parser requestParser;
+		public JsonFormat.Printer replyPrinter;
+		public JsonFormat.Parser replyParser;
 	}
 	
 	public static class RPCZkConfig {
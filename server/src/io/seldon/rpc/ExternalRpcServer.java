@@ -140,6 +140,49 @@ public class ExternalRpcServer extends SeldonGrpc.SeldonImplBase implements Serv
 		}
 	}
 	
+	/**
+	 * Classify each request of a stream as it arrives, replying in order, so clients can send many requests over one
+	 * call without a round trip each.
+	 */
+	@Override
+	public StreamObserver<ClassificationRequest> classifyStream(final StreamObserver<ClassificationReply> responseObserver)
+	{
+		return new StreamObserver<ClassificationRequest>() {
+			boolean failed = false;
+			
+			@Override
+			public void onNext(ClassificationRequest request) {
+				if (failed)
+					return;
+				final String client = clientThreadLocal.get();
+				if (StringUtils.notEmpty(client))
+				{
+					clientThreadLocal.set(null);
+					ClassificationReply reply = predictionService.predict(client, request);
+					responseObserver.onNext(reply);
+					predictLogger.log(client, request, reply);
+				}
+				else
+				{
+					logger.info("Failed to get token");
+					failed = true;
+					responseObserver.onError(new StatusException(io.grpc.Status.PERMISSION_DENIED.withDescription("Could not determine client from oauth_token")));
+				}
+			}
+
+			@Override
+			public void onError(Throwable t) {
+				logger.warn("Classify stream failed ",t);
+			}
+
+			@Override
+			public void onCompleted() {
+				if (!failed)
+					responseObserver.onCompleted();
+			}
+		};
+	}
+	
 	 /** Start serving requests. */
 	  public void start() throws IOException {
 	    server.start();
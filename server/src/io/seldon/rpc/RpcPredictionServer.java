@@ -27,6 +27,7 @@ public class RpcPredictionServer implements PredictionAlgorithm {
 	private static final String name = RpcPredictionServer.class.getName();
 	private static final String HOST_PROPERTY_NAME="io.seldon.rpc.microservice.host";
 	private static final String PORT_PROPERTY_NAME="io.seldon.rpc.microservice.port";
+	private static final ObjectReader resultReader = new ObjectMapper().reader(PredictionServiceResult.class);
 
 	final ClientRpcStore rpcStore;
 	RpcChannelHandler channelHandler;
@@ -50,9 +51,7 @@ public class RpcPredictionServer implements PredictionAlgorithm {
 			ClassificationReply reply = predictFromProto(client, request, options);
 			JsonNode actualObj = rpcStore.getJSONForReply(client, reply);
 			PredictionServiceResult res = null;
-			ObjectMapper mapper = new ObjectMapper();
-			ObjectReader reader = mapper.reader(PredictionServiceResult.class);
-			res = reader.readValue(actualObj);
+			res = resultReader.readValue(actualObj);
 			return res;
 			
 		} catch (JsonProcessingException e) {
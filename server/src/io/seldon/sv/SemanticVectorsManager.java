@@ -27,7 +27,9 @@ import java.io.BufferedReader;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStreamReader;
+import java.nio.FloatBuffer;
 import java.util.Collections;
+import java.util.Enumeration;
 import java.util.HashSet;
 import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
@@ -35,10 +37,13 @@ import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.Executor;
 import java.util.concurrent.Executors;
 
+import io.seldon.mf.FactorMatrix;
 import io.seldon.mf.PerClientExternalLocationListener;
 import io.seldon.recommendation.model.ModelManager;
 import io.seldon.resources.external.ExternalResourceStreamer;
 import io.seldon.resources.external.NewResourceNotifier;
+import it.unimi.dsi.fastutil.floats.FloatArrayList;
+import it.unimi.dsi.fastutil.longs.LongArrayList;
 import org.apache.log4j.Logger;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Component;
@@ -46,6 +51,7 @@ import org.springframework.stereotype.Component;
 import pitt.search.semanticvectors.FlagConfig;
 import pitt.search.semanticvectors.ObjectVector;
 import pitt.search.semanticvectors.VectorStoreRAM;
+import pitt.search.semanticvectors.vectors.RealVector;
 
 @Component
 public class SemanticVectorsManager extends ModelManager<SemanticVectorsStore> {
@@ -95,8 +101,10 @@ public class SemanticVectorsManager extends ModelManager<SemanticVectorsStore> {
 			docVectorsReader.close();
 			logger.info("Loaded " + client + " docstore with " + docStore.getNumVectors() + " vectors");
 
+			FactorMatrix docVectors = createDocVectors(docStore);
+
 			logger.info("finished load of semantic vector features for client "+client);
-			return new SemanticVectorsStore(termStore, docStore);
+			return new SemanticVectorsStore(termStore, docStore, docVectors);
 
 
 		} catch (FileNotFoundException e) {
@@ -110,6 +118,54 @@ public class SemanticVectorsManager extends ModelManager<SemanticVectorsStore> {
 
 
 
+	/**
+	 * Copy real valued doc vectors with numeric ids into a {@link FactorMatrix}, normalised so that
+	 * inner product equals the cosine similarity used by the semantic vectors searchers.
+	 * @return the matrix or null if the store has other vector types or non numeric doc names
+	 */
+	private FactorMatrix createDocVectors(VectorStoreRAM docStore)
+	{
+		LongArrayList ids = new LongArrayList();
+		FloatArrayList factors = new FloatArrayList();
+		int rank = -1;
+		Enumeration<ObjectVector> vectors = docStore.getAllVectors();
+		while (vectors.hasMoreElements())
+		{
+			ObjectVector objectVector = vectors.nextElement();
+			if (!(objectVector.getVector() instanceof RealVector))
+			{
+				logger.info("Not indexing doc vectors as they are of type "+objectVector.getVector().getClass().getSimpleName());
+				return null;
+			}
+			float[] coords = ((RealVector) objectVector.getVector()).getCoordinates();
+			if (rank == -1)
+				rank = coords.length;
+			else if (rank != coords.length)
+				return null;
+			long id;
+			try
+			{
+				id = Long.parseLong(objectVector.getObject().toString());
+			}
+			catch (NumberFormatException e)
+			{
+				logger.info("Not indexing doc vectors as doc name "+objectVector.getObject()+" is not numeric");
+				return null;
+			}
+			double norm = 0;
+			for (float c : coords)
+				norm += c * c;
+			norm = Math.sqrt(norm);
+			ids.add(id);
+			for (float c : coords)
+				factors.add(norm > 0 ? (float) (c / norm) : 0f);
+		}
+		if (rank <= 0)
+			return null;
+		factors.trim();
+		return new FactorMatrix(ids.toLongArray(), FloatBuffer.wrap(factors.elements()), rank);
+	}
+
 	private VectorStoreRAM createSVPeer(BufferedReader reader) throws IOException
 	{
 		FlagConfig flagConfig = FlagConfig.getFlagConfig(null);
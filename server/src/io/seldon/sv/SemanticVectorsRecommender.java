@@ -48,6 +48,7 @@ public class SemanticVectorsRecommender implements ItemRecommendationAlgorithm {
     private static Logger logger = Logger.getLogger(SemanticVectorsRecommender.class.getName());
     private static final String IGNORE_PEFECT_MATCH_OPTION_NAME = "io.seldon.algorithm.semantic.ignoreperfectsvmatches";
     private static final String SV_PREFIX_OPTION_NAME = "io.seldon.algorithm.semantic.prefix";
+    private static final String ANN_OPTION_NAME = "io.seldon.algorithm.semantic.ann";
     private static final String RECENT_ACTIONS_PROPERTY_NAME = "io.seldon.algorithm.general.numrecentactionstouse";
     private static final String name = SemanticVectorsRecommender.class.getSimpleName();
     SemanticVectorsManager svManager;
@@ -112,7 +113,10 @@ public class SemanticVectorsRecommender implements ItemRecommendationAlgorithm {
             Set<Long> itemExclusions = ctxt.getContextItems();
             if (logger.isDebugEnabled())
             	logger.debug("exclusion mode "+" num exclusions : "+itemExclusions.size());
-            recommendations = svPeer.recommendDocsUsingDocQuery(itemsToScore, new LongIdTransform(), maxRecsCount, itemExclusions, null,isIgnorePerfectSvMatches);
+            if (svPeer.hasDocIndex() && options.getBooleanOption(ANN_OPTION_NAME))
+                recommendations = svPeer.recommendDocsUsingDocIndex(itemsToScore, maxRecsCount, itemExclusions, isIgnorePerfectSvMatches);
+            else
+                recommendations = svPeer.recommendDocsUsingDocQuery(itemsToScore, new LongIdTransform(), maxRecsCount, itemExclusions, null,isIgnorePerfectSvMatches);
         }
         List<ItemRecommendationResultSet.ItemRecommendationResult> results = new ArrayList<>();
         for(Map.Entry<Long, Double> e : recommendations.entrySet())
@@ -23,12 +23,19 @@
 
 package io.seldon.sv;
 
+import io.seldon.clustering.recommender.ItemRecommendationResultSet.ItemRecommendationResult;
+import io.seldon.mf.BackgroundVectorIndex;
+import io.seldon.mf.FactorMatrix;
+import io.seldon.mf.VectorIndex;
 import io.seldon.recommendation.RecommendationUtils;
 import io.seldon.semvec.QueryTransform;
 import io.seldon.semvec.SemVectorResult;
 import io.seldon.semvec.VectorStorePredictor;
 import io.seldon.semvec.VectorStoreRecommender;
 import io.seldon.util.CollectionTools;
+import it.unimi.dsi.fastutil.longs.LongOpenHashSet;
+import it.unimi.dsi.fastutil.longs.LongSet;
+import it.unimi.dsi.fastutil.longs.LongSets;
 
 import java.util.ArrayList;
 import java.util.HashMap;
@@ -66,17 +73,40 @@ public class SemanticVectorsStore {
 	boolean useRamStores = true;
 	String[] predictionSuffixes = new String[] {"1","2","3","4","5" };
 	FlagConfig flagConfig = FlagConfig.getFlagConfig(null);
+	// normalised float vectors of identical docs can fall just short of 1
+	private static final float PERFECT_MATCH_SCORE = 0.99999f;
+	
+	private FactorMatrix docVectors;
+	// built in the background on first use by a strategy with ann enabled
+	private VectorIndex docIndex;
 	
 	public SemanticVectorsStore(VectorStoreRAM termStore,VectorStoreRAM docStore)
+	{
+		this(termStore, docStore, null);
+	}
+	
+	/**
+	 * @param docVectors normalised copies of the doc vectors keyed by numeric id, may be null
+	 */
+	public SemanticVectorsStore(VectorStoreRAM termStore,VectorStoreRAM docStore,FactorMatrix docVectors)
 	{
 		this.termVecReader = termStore;
 		this.docVecReader = docStore;
 		this.useRamStores = true;
+		this.docVectors = docVectors;
+		if (docVectors != null)
+			this.docIndex = new BackgroundVectorIndex(docVectors, docVectors);
+	}
+	
+	public boolean hasDocIndex()
+	{
+		return docVectors != null;
 	}
 	
 	
 	
 	
+	
 	public <T extends Comparable<T>>void searchTermsUsingTermQuery(T termQuery,ArrayList<SemVectorResult<T>> docResult,QueryTransform<T> termTransform,int numResults)
 	{
 		String query = termTransform.toSV(termQuery);
@@ -496,6 +526,44 @@ public class SemanticVectorsStore {
 	
 	
 	
+	/**
+	 * Recommend a set of documents based on some recent viewed documents using the doc vector index
+	 * rather than a scan of the whole doc store. Scores are summed cosine similarities as in
+	 * {@link #recommendDocsUsingDocQuery(List, QueryTransform, int, Set, Comparable, boolean)}.
+	 * @param recentItems : items to use as comparison
+	 * @param numResults : max number of recommendations to return
+	 * @param exclusions : items to exclude from returned recommendations
+	 * @return
+	 */
+	public Map<Long,Double> recommendDocsUsingDocIndex(List<Long> recentItems,int numResults,Set<Long> exclusions,boolean ignorePerfectMatches)
+	{
+		Map<Long,Double> scores = new HashMap<>();
+		LongSet excluded = exclusions == null ? LongSets.EMPTY_SET : new LongOpenHashSet(exclusions);
+		for(Long recent : recentItems)
+		{
+			float[] query = docVectors.getVector(recent);
+			if (query == null)
+			{
+				logger.warn("Can't get vector for recent item "+recent);
+				continue;
+			}
+			for(ItemRecommendationResult r : docIndex.topK(query, excluded, numResults*10))
+			{
+				if (ignorePerfectMatches && r.score >= PERFECT_MATCH_SCORE)
+				{
+					if (logger.isDebugEnabled())
+						logger.debug("Ignoring perfect match between "+recent+" and "+r.item+" overlap "+r.score);
+				}
+				else
+				{
+					Double score = scores.get(r.item);
+					scores.put(r.item, score == null ? r.score : score + r.score);
+				}
+			}
+		}
+		return RecommendationUtils.rescaleScoresToOne(scores, numResults);
+	}
+	
 	/**
 	 * Find similar users by querying the docstore using a query from the terms passed in
 	 * @param <T>
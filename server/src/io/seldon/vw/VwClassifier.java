@@ -30,13 +30,16 @@ import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Component;
 
 import com.fasterxml.jackson.databind.JsonNode;
+import com.google.protobuf.Message;
 
 import io.seldon.api.rpc.ClassificationReply;
 import io.seldon.api.rpc.ClassificationRequest;
+import io.seldon.api.rpc.ClassificationResult;
 import io.seldon.clustering.recommender.RecommendationContext.OptionsHolder;
 import io.seldon.prediction.PredictionAlgorithm;
 import io.seldon.prediction.PredictionResult;
 import io.seldon.prediction.PredictionServiceResult;
+import io.seldon.rpc.ClientRpcStore;
 import io.seldon.vw.VwFeatureExtractor.Namespace;
 import io.seldon.vw.VwModelManager.VwModel;
 
@@ -45,12 +48,14 @@ public class VwClassifier implements PredictionAlgorithm {
 	private static Logger logger = Logger.getLogger(VwClassifier.class.getName());
 	VwModelManager modelManager;
 	VwFeatureExtractor featureExtractor;
+	ClientRpcStore rpcStore;
 	
 	@Autowired
-    public VwClassifier(VwModelManager modelManager,VwFeatureExtractor featureExtractor)
+    public VwClassifier(VwModelManager modelManager,VwFeatureExtractor featureExtractor,ClientRpcStore rpcStore)
     {
 		this.modelManager = modelManager;
 		this.featureExtractor = featureExtractor;
+		this.rpcStore = rpcStore;
     }
 	
 	private double sigmoid(double val)
@@ -68,6 +73,34 @@ public class VwClassifier implements PredictionAlgorithm {
 		return scores;
 	}
 	
+	/**
+	 * Feature base hashes and values of one example, which are the same for every class and model.
+	 */
+	static class HashedFeatures
+	{
+		final int[] hashes;
+		final float[] values;
+		
+		HashedFeatures(List<Namespace> namespaces)
+		{
+			int size = 0;
+			for(Namespace n : namespaces)
+				size += n.features.size();
+			hashes = new int[size];
+			values = new float[size];
+			int i = 0;
+			for(Namespace n : namespaces)
+			{
+				int nsHash = VwFeatureHash.getNamespaceHash(n.name);
+				for(Map.Entry<String, Float> e : n.features.entrySet())
+				{
+					hashes[i] = VwFeatureHash.getFeatureBaseHash(nsHash, e.getKey());
+					values[i++] = e.getValue();
+				}
+			}
+		}
+	}
+	
 	@Override
 	public PredictionServiceResult predictFromJSON(String client, JsonNode jsonNode,OptionsHolder options) {
 
@@ -78,47 +111,79 @@ public class VwClassifier implements PredictionAlgorithm {
 			return null;
 		}
 		else
+			return predict(model, new HashedFeatures(featureExtractor.extract(jsonNode)));
+	}
+	
+	/**
+	 * Score many examples against one lookup of the client's model.
+	 * @return results in the same order as the examples, or null if the client has no model
+	 */
+	public List<PredictionServiceResult> predictFromJSON(String client, List<JsonNode> jsonNodes,OptionsHolder options) {
+
+		VwModel model = modelManager.getClientStore(client,options);
+		if (model == null)
 		{
-			List<Namespace> namespaces = featureExtractor.extract(jsonNode);
-			List<PredictionResult> predictions = new ArrayList<PredictionResult>();
-			for(int i=0;i<model.oaa;i++)
-			{
-				float score = 0;
-				for(Namespace n : namespaces)
-				{
-					for(Map.Entry<String, Float> e : n.features.entrySet())
-					{
-						Integer index = model.hasher.getFeatureHash(i+1, n.name, e.getKey());
-						Float weight = model.weights.get(index);
-						if (weight != null)
-							score = score + (e.getValue() * weight);
-					}
-				}
-				Integer constantIndex = model.hasher.getConstantHash(i+1);
-				Float weight = model.weights.get(constantIndex);
-				if (weight != null)
-					score = score + weight;
-				String classId = ""+(i+1);
-				if (model.classIdMap.containsKey(i+1))
-					classId = model.classIdMap.get(i+1);
-				predictions.add(new PredictionResult((double)score, classId, sigmoid(score)));
-			}
-			//aribrary decision point at 0.0 for binary classification
-			if (model.oaa == 1 && predictions.get(0).prediction < 0)
-				if (model.classIdMap.containsKey(-1))
-					predictions.get(0).predictedClass = model.classIdMap.get(-1);
-				else
-					predictions.get(0).predictedClass = "-1";
-					
-			
-			return new PredictionServiceResult(null,normalise(predictions),null);
+			logger.warn("No model found for client"+client);
+			return null;
+		}
+		else
+		{
+			List<PredictionServiceResult> results = new ArrayList<PredictionServiceResult>(jsonNodes.size());
+			for(JsonNode jsonNode : jsonNodes)
+				results.add(predict(model, new HashedFeatures(featureExtractor.extract(jsonNode))));
+			return results;
+		}
+	}
+	
+	PredictionServiceResult predict(VwModel model,HashedFeatures features)
+	{
+		final float[] weights = model.weights;
+		List<PredictionResult> predictions = new ArrayList<PredictionResult>(model.oaa);
+		for(int i=0;i<model.oaa;i++)
+		{
+			float score = 0;
+			for(int j=0;j<features.hashes.length;j++)
+				score = score + (features.values[j] * weights[model.hasher.getIndex(features.hashes[j], i+1)]);
+			score = score + weights[model.hasher.getConstantHash(i+1)];
+			String classId = ""+(i+1);
+			if (model.classIdMap.containsKey(i+1))
+				classId = model.classIdMap.get(i+1);
+			predictions.add(new PredictionResult((double)score, classId, sigmoid(score)));
 		}
+		//aribrary decision point at 0.0 for binary classification
+		if (model.oaa == 1 && predictions.get(0).prediction < 0)
+			if (model.classIdMap.containsKey(-1))
+				predictions.get(0).predictedClass = model.classIdMap.get(-1);
+			else
+				predictions.get(0).predictedClass = "-1";
+				
+		
+		return new PredictionServiceResult(null,normalise(predictions),null);
 	}
 
 	@Override
 	public ClassificationReply predictFromProto(String client, ClassificationRequest request, OptionsHolder options) {
-		// TODO Auto-generated method stub
-		return null;
+		
+		VwModel model = modelManager.getClientStore(client,options);
+		if (model == null)
+		{
+			logger.warn("No model found for client"+client);
+			return null;
+		}
+		else
+			return predictFromProto(client, model, request);
+	}
+	
+	private ClassificationReply predictFromProto(String client, VwModel model, ClassificationRequest request)
+	{
+		Message data = rpcStore.getRequestData(client, request);
+		if (data == null)
+			return ClassificationReply.getDefaultInstance();
+		PredictionServiceResult res = predict(model, new HashedFeatures(featureExtractor.extract(data)));
+		ClassificationReply.Builder reply = ClassificationReply.newBuilder();
+		for(PredictionResult p : res.predictions)
+			reply.addPredictions(ClassificationResult.newBuilder().setPrediction(p.prediction).setPredictedClass(p.predictedClass).setConfidence(p.confidence));
+		return reply.build();
 	}
 
 }
@@ -30,6 +30,10 @@ import java.util.Map;
 import org.springframework.stereotype.Component;
 
 import com.fasterxml.jackson.databind.JsonNode;
+import com.google.protobuf.Descriptors.FieldDescriptor;
+import com.google.protobuf.Message;
+
+import io.seldon.api.resource.service.business.PredictionBusinessServiceImpl;
 
 @Component
 public class VwFeatureExtractor {
@@ -58,6 +62,24 @@ public class VwFeatureExtractor {
 		return namespaces;
 	}
 	
+	/**
+	 * Features of the custom data of a protobuf request, read from the message itself. These are the same features
+	 * the JSON form of the request gives: its numeric fields in the namespace the data field is printed as.
+	 */
+	public List<Namespace> extract(Message data)
+	{
+		Map<String,Float> features = new HashMap<String,Float>();
+		for(Map.Entry<FieldDescriptor, Object> e : data.getAllFields().entrySet())
+		{
+			// 64 bit ints are printed to JSON as strings so are not features there either
+			if (!e.getKey().isRepeated() && e.getValue() instanceof Number && !(e.getValue() instanceof Long))
+				features.put(e.getKey().getJsonName(), ((Number) e.getValue()).floatValue());
+		}
+		List<Namespace> namespaces = new ArrayList<Namespace>(1);
+		namespaces.add(new Namespace(PredictionBusinessServiceImpl.REQUEST_CUSTOM_DATA_FIELD, features));
+		return namespaces;
+	}
+	
 	private Namespace extractNamespace(String name,JsonNode json)
 	{
 		Map<String,Float> features = new HashMap<String,Float>();
@@ -29,14 +29,15 @@ import com.google.common.hash.Hashing;
 public class VwFeatureHash {
 
 	final static int VW_CONSTANT_HASH = 11650396;
+	private final static HashFunction NAMESPACE_HASH = Hashing.murmur3_32(0);
 	final int mask;
 	final int stride;
 	
 	public VwFeatureHash(int bits,int oaa)
 	{
-		mask = Math.round((float)Math.pow(2, bits) - 1);
+		// exact for any number of bits, a float power of two loses the low bits from 25 bits up
+		mask = (int) ((1L << bits) - 1);
 		stride = Math.round((float)Math.pow(2,Math.ceil(log2(oaa,2))));
-		System.out.println("Stide is "+stride);
 	}
 	
 	private double log2(int val,int base)
@@ -44,11 +45,11 @@ public class VwFeatureHash {
 		return Math.log(val) / Math.log(base);
 	}
 	
-	private boolean isInteger(String s) {
+	private static boolean isInteger(String s) {
 	    return isInteger(s,10);
 	}
 
-	private boolean isInteger(String s, int radix) {
+	private static boolean isInteger(String s, int radix) {
 	    if(s.isEmpty()) return false;
 	    for(int i = 0; i < s.length(); i++) {
 	        if(i == 0 && s.charAt(i) == '-') {
@@ -61,31 +62,44 @@ public class VwFeatureHash {
 	}
 	
 	
-	public Integer getFeatureHash(int label,String namespace,String feature)
+	/**
+	 * @return the seed for hashing features in the namespace
+	 */
+	public static int getNamespaceHash(String namespace)
+	{
+		if (StringUtils.isEmpty(namespace))
+			return 0;
+		else
+			return NAMESPACE_HASH.hashBytes(namespace.getBytes()).asInt();
+	}
+	
+	/**
+	 * @return the hash of a feature before it is placed for a label, which is the same for every model
+	 */
+	public static int getFeatureBaseHash(int nsHash,String feature)
 	{
-		int nsHash = 0;
-		if (!StringUtils.isEmpty(namespace))
-		{
-			HashFunction h = Hashing.murmur3_32(0);
-			nsHash = h.hashBytes(namespace.getBytes()).asInt();
-		}
-		int hcl = 0;
 		if (isInteger(feature))
-			hcl = Integer.parseInt(feature) + nsHash;
+			return Integer.parseInt(feature) + nsHash;
 		else
-		{
-			HashFunction h = Hashing.murmur3_32(nsHash);
-			hcl = (h.hashBytes(feature.getBytes()).asInt());
-		}
-		int f = ((hcl * stride) + label - 1) & mask;
-		return f;
+			return Hashing.murmur3_32(nsHash).hashBytes(feature.getBytes()).asInt();
+	}
+	
+	/**
+	 * @return the weight index of a feature base hash for a label
+	 */
+	public int getIndex(int baseHash,int label)
+	{
+		return ((baseHash * stride) + label - 1) & mask;
+	}
+	
+	public Integer getFeatureHash(int label,String namespace,String feature)
+	{
+		return getIndex(getFeatureBaseHash(getNamespaceHash(namespace), feature), label);
 	}
 	
 	public Integer getConstantHash(int label)
 	{
-		int hash_oaa = VW_CONSTANT_HASH * stride;
-		int f = (hash_oaa + label - 1) & mask;
-		return f;
+		return getIndex(VW_CONSTANT_HASH, label);
 	}
 	
 	public static void main(String[] args)
@@ -40,6 +40,7 @@ public class VwModelManager extends ModelManager<VwModelManager.VwModel> {
     private static Logger logger = Logger.getLogger(VwModelManager.class.getName());
     private final ExternalResourceStreamer featuresFileHandler;
     private static final String MF_NEW_LOC_PATTERN = "vw";
+    private static final int MAX_BITS = 30;
 
 
     @Autowired
@@ -67,7 +68,8 @@ public class VwModelManager extends ModelManager<VwModelManager.VwModel> {
 
 
     private VwModel loadModel(BufferedReader reader, Map<Integer, String> classIdMap) throws IOException {
-        Map<Integer, Float> weights = new HashMap<Integer, Float>();
+        float[] weights = null;
+        int numWeights = 0;
         int oaa = 1;
         int bits = 18;
         String line;
@@ -90,15 +92,21 @@ public class VwModelManager extends ModelManager<VwModelManager.VwModel> {
                     }
                 } else if (line.startsWith(":0")) {
                     insideFeatures = true;
+                    if (bits > MAX_BITS)
+                        throw new IOException("VW models with more than " + MAX_BITS + " bits are not supported, model has " + bits);
+                    weights = new float[1 << bits];
                 }
             } else {
-                String[] featureAndWeight = line.split(":");
-                int feature = Integer.parseInt(featureAndWeight[0]);
-                float weight = Float.parseFloat(featureAndWeight[1]);
-                weights.put(feature, weight);
+                int colon = line.indexOf(':');
+                int feature = Integer.parseInt(line.substring(0, colon));
+                float weight = Float.parseFloat(line.substring(colon + 1));
+                weights[feature & (weights.length - 1)] = weight;
+                numWeights++;
             }
         }
-        return new VwModel(bits, oaa, weights, classIdMap);
+        if (weights == null)
+            weights = new float[1 << Math.min(bits, MAX_BITS)];
+        return new VwModel(bits, oaa, weights, numWeights, classIdMap);
     }
 
     @Override
@@ -126,7 +134,7 @@ public class VwModelManager extends ModelManager<VwModelManager.VwModel> {
             VwModel model = loadModel(modelReader, classIdMap);
 
 
-            logger.info("Loaded VW model from " + location + " for " + client + " with " + model.weights.size() + " weights and " + model.classIdMap.size() + " classes");
+            logger.info("Loaded VW model from " + location + " for " + client + " with " + model.numWeights + " weights and " + model.classIdMap.size() + " classes");
 
             return model;
         } catch (FileNotFoundException e) {
@@ -142,14 +150,19 @@ public class VwModelManager extends ModelManager<VwModelManager.VwModel> {
         public final int bits;
         public final int oaa;
         public final Map<Integer, String> classIdMap;
-        public final Map<Integer, Float> weights;
+        /**
+         * Dense weights indexed by feature hash, zero for features the model does not have
+         */
+        public final float[] weights;
+        public final int numWeights;
         public final VwFeatureHash hasher;
 
-        public VwModel(int bits, int oaa, Map<Integer, Float> weights, Map<Integer, String> classIdMap) {
+        public VwModel(int bits, int oaa, float[] weights, int numWeights, Map<Integer, String> classIdMap) {
             super();
             this.bits = bits;
             this.oaa = oaa;
             this.weights = weights;
+            this.numWeights = numWeights;
             this.hasher = new VwFeatureHash(bits, oaa);
             this.classIdMap = classIdMap;
         }
@@ -157,7 +170,7 @@ public class VwModelManager extends ModelManager<VwModelManager.VwModel> {
         @Override
         public String toString() {
             return "VwModel [bits=" + bits + ", oaa=" + oaa + ", weights="
-                    + weights + "]";
+                    + numWeights + "]";
         }
 
 
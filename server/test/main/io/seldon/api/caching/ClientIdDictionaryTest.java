@@ -0,0 +1,96 @@
+/*
+ * Seldon -- open source prediction engine
+ * =======================================
+ *
+ * Copyright 2011-2015 Seldon Technologies Ltd and Rummble Ltd (http://www.seldon.io/)
+ *
+ * ********************************************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * ********************************************************************************************
+ */
+
+
+package io.seldon.api.caching;
+
+import java.util.Arrays;
+import java.util.Map;
+
+import junit.framework.Assert;
+
+import org.junit.Test;
+
+public class ClientIdDictionaryTest {
+
+	@Test
+	public void putGetAndReverse()
+	{
+		ClientIdDictionary d = new ClientIdDictionary(false);
+		d.put("a", 1);
+		d.put("é-item", 2);
+		Assert.assertEquals(1, d.get("a"));
+		Assert.assertEquals(2, d.get("é-item"));
+		Assert.assertEquals(ClientIdDictionary.NOT_FOUND, d.get("b"));
+		Assert.assertEquals("a", d.reverse(1));
+		Assert.assertEquals("é-item", d.reverse(2));
+		Assert.assertNull(d.reverse(3));
+		Assert.assertEquals(2, d.size());
+	}
+
+	@Test
+	public void updateChangesBothDirections()
+	{
+		ClientIdDictionary d = new ClientIdDictionary(false);
+		d.put("a", 1);
+		d.put("a", 5);
+		Assert.assertEquals(5, d.get("a"));
+		Assert.assertEquals("a", d.reverse(5));
+		Assert.assertNull(d.reverse(1));
+		Assert.assertEquals(1, d.size());
+	}
+
+	@Test
+	public void bulkLookups()
+	{
+		ClientIdDictionary d = new ClientIdDictionary(false);
+		d.put("x", 10);
+		d.put("y", 20);
+		Map<String,Long> ids = d.resolve(Arrays.asList("x", "missing", "y"));
+		Assert.assertEquals(2, ids.size());
+		Assert.assertEquals(Long.valueOf(10), ids.get("x"));
+		Assert.assertEquals(Long.valueOf(20), ids.get("y"));
+		String[] clientIds = d.reverse(new long[] {20, 30, 10});
+		Assert.assertEquals("y", clientIds[0]);
+		Assert.assertNull(clientIds[1]);
+		Assert.assertEquals("x", clientIds[2]);
+	}
+
+	@Test
+	public void growsOnAndOffHeap()
+	{
+		for (boolean offHeap : new boolean[] {false, true})
+		{
+			ClientIdDictionary d = new ClientIdDictionary(offHeap);
+			final int n = 50000;
+			for (int i = 0; i < n; i++)
+				d.put("http://example.com/articles/" + i, i * 7L);
+			Assert.assertEquals(n, d.size());
+			for (int i = 0; i < n; i++)
+			{
+				Assert.assertEquals(i * 7L, d.get("http://example.com/articles/" + i));
+				Assert.assertEquals("http://example.com/articles/" + i, d.reverse(i * 7L));
+			}
+		}
+	}
+}
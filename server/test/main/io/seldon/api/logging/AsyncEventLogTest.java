@@ -0,0 +1,187 @@
+/*
+ * Seldon -- open source prediction engine
+ * =======================================
+ *
+ * Copyright 2011-2015 Seldon Technologies Ltd and Rummble Ltd (http://www.seldon.io/)
+ *
+ * ********************************************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * ********************************************************************************************
+ */
+
+
+package io.seldon.api.logging;
+
+import io.seldon.api.statsd.StatsdKeys;
+import io.seldon.api.statsd.StatsdPeer;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+
+import junit.framework.Assert;
+
+import org.apache.log4j.Logger;
+import org.junit.Test;
+
+public class AsyncEventLogTest {
+
+	private static final Logger target = Logger.getLogger("AsyncEventLogTest");
+	
+	private static final AsyncEventLog.Encoder encoder = new AsyncEventLog.Encoder() {
+		@Override
+		public void encode(AsyncEventLog.Event e, StringBuilder line) {
+			line.append(e.str1).append(':').append(e.int1);
+		}
+	};
+	
+	private static class CapturingLog extends AsyncEventLog {
+		final List<String> lines = new ArrayList<>();
+		
+		CapturingLog(int capacity) {
+			super(capacity);
+		}
+		
+		@Override
+		void write(Logger logger, String line) {
+			synchronized (lines) {
+				lines.add(line);
+			}
+		}
+	}
+	
+	private static void log(AsyncEventLog log, String name, int n)
+	{
+		AsyncEventLog.Event e = log.claim();
+		if (e != null)
+		{
+			e.target = target;
+			e.encoder = encoder;
+			e.str1 = name;
+			e.int1 = n;
+			log.publish(e);
+		}
+	}
+	
+	private static void waitForWritten(AsyncEventLog log, long n) throws InterruptedException
+	{
+		long end = System.currentTimeMillis() + 5000;
+		while (log.getWritten() < n && System.currentTimeMillis() < end)
+			Thread.sleep(1);
+		Assert.assertEquals(n, log.getWritten());
+	}
+	
+	@Test
+	public void writesEachThreadsEventsInOrder() throws InterruptedException
+	{
+		final CapturingLog log = new CapturingLog(64);
+		final int threads = 4;
+		final int perThread = 5000;
+		final CountDownLatch start = new CountDownLatch(1);
+		List<Thread> ts = new ArrayList<>();
+		for (int t = 0; t < threads; t++)
+		{
+			final String name = "t" + t;
+			Thread th = new Thread() {
+				@Override
+				public void run() {
+					try {
+						start.await();
+					} catch (InterruptedException e) {
+						return;
+					}
+					for (int i = 0; i < perThread; i++)
+						log(log, name, i);
+				}
+			};
+			th.start();
+			ts.add(th);
+		}
+		start.countDown();
+		for (Thread th : ts)
+			th.join();
+		long expected = threads * perThread - log.getDropped();
+		waitForWritten(log, expected);
+		int[] last = new int[threads];
+		Arrays.fill(last, -1);
+		for (String line : log.lines)
+		{
+			String[] parts = line.split(":");
+			int t = Integer.parseInt(parts[0].substring(1));
+			int n = Integer.parseInt(parts[1]);
+			Assert.assertTrue(line, n > last[t]);
+			last[t] = n;
+		}
+		Assert.assertEquals(expected, log.lines.size());
+		log.shutdown();
+	}
+	
+	@Test
+	public void dropsWhenFull() throws InterruptedException
+	{
+		CapturingLog log = new CapturingLog(4);
+		List<AsyncEventLog.Event> claimed = new ArrayList<>();
+		for (int i = 0; i < 4; i++)
+			claimed.add(log.claim());
+		Assert.assertNull(log.claim());
+		Assert.assertEquals(1, log.getDropped());
+		for (int i = 0; i < claimed.size(); i++)
+		{
+			AsyncEventLog.Event e = claimed.get(i);
+			e.target = target;
+			e.encoder = encoder;
+			e.str1 = "a";
+			e.int1 = i;
+			log.publish(e);
+		}
+		waitForWritten(log, 4);
+		Assert.assertEquals(Arrays.asList("a:0", "a:1", "a:2", "a:3"), log.lines);
+		log(log, "b", 0);
+		waitForWritten(log, 5);
+		Assert.assertEquals("b:0", log.lines.get(4));
+		log.shutdown();
+	}
+	
+	@Test
+	public void countsAreInTheMetrics()
+	{
+		AsyncEventLog.get();
+		Map<String, Object> values = StatsdPeer.getMetrics().getValues("anyClient");
+		Assert.assertTrue(values.containsKey(StatsdKeys.getServerCount("eventlog.dropped")));
+		Assert.assertTrue(values.containsKey(StatsdKeys.getServerCount("eventlog.written")));
+	}
+
+	@Test
+	public void ctrLineMatchesFormat() throws Exception
+	{
+		AsyncEventLog.Event e = new AsyncEventLog.Event();
+		e.flag = false;
+		e.str1 = "client";
+		e.str2 = "alg";
+		e.int1 = -1;
+		e.str3 = "user";
+		e.str4 = "3";
+		e.obj1 = null;
+		e.int2 = 2;
+		e.obj2 = Arrays.asList(1L, null, 3L);
+		e.str6 = "A";
+		e.str7 = "tag";
+		StringBuilder line = new StringBuilder();
+		CtrLogger.encoder.encode(e, line);
+		Assert.assertEquals(String.format("%s,%s,%s,%d,%s,%s,%s,%d,%s,%s,%s", "IMP", "client", "alg", -1, "user", "3", null, 2, "1::3", "A", "tag"), line.toString());
+	}
+}
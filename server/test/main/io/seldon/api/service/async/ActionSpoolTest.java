@@ -0,0 +1,138 @@
+/*
+ * Seldon -- open source prediction engine
+ * =======================================
+ *
+ * Copyright 2011-2015 Seldon Technologies Ltd and Rummble Ltd (http://www.seldon.io/)
+ *
+ * ********************************************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * ********************************************************************************************
+ */
+
+package io.seldon.api.service.async;
+
+import io.seldon.general.Action;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+
+import junit.framework.Assert;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class ActionSpoolTest {
+
+	private File dir;
+
+	@Before
+	public void createDir()
+	{
+		dir = new File(System.getProperty("java.io.tmpdir"), "action-spool-test-" + System.nanoTime());
+	}
+
+	@After
+	public void deleteDir()
+	{
+		File[] files = dir.listFiles();
+		if (files != null)
+			for (File f : files)
+				f.delete();
+		dir.delete();
+	}
+
+	@Test
+	public void rolledFilesReplayActions() throws IOException
+	{
+		ActionSpool spool = new ActionSpool(dir, "client1");
+		Action a1 = new Action(null, 1L, 2L, 3, 1, new Date(1000L), 2.5, "u1", "i1");
+		Action a2 = new Action(null, 0L, 0L, 1, null, null, null, "u2", "i2");
+		spool.append(Arrays.asList(a1, a2));
+		Assert.assertEquals(2, spool.getOpenCount());
+		Assert.assertTrue(spool.getSpooledFiles().isEmpty());
+
+		spool.roll();
+		Assert.assertEquals(0, spool.getOpenCount());
+		List<File> files = spool.getSpooledFiles();
+		Assert.assertEquals(1, files.size());
+
+		List<Action> actions = ActionSpool.read(files.get(0));
+		Assert.assertEquals(2, actions.size());
+		Action r1 = actions.get(0);
+		Assert.assertEquals(1L, r1.getUserId());
+		Assert.assertEquals(2L, r1.getItemId());
+		Assert.assertEquals(3, (int) r1.getType());
+		Assert.assertEquals(new Date(1000L), r1.getDate());
+		Assert.assertEquals(2.5, r1.getValue(), 0);
+		Assert.assertEquals("u1", r1.getClientUserId());
+		Assert.assertEquals("i1", r1.getClientItemId());
+		Action r2 = actions.get(1);
+		Assert.assertNull(r2.getTimes());
+		Assert.assertNull(r2.getDate());
+		Assert.assertNull(r2.getValue());
+		Assert.assertEquals("i2", r2.getClientItemId());
+	}
+
+	@Test
+	public void openFilesAreRecoveredAndTruncatedRecordDropped() throws IOException
+	{
+		ActionSpool spool = new ActionSpool(dir, "client1");
+		spool.append(Arrays.asList(new Action(null, 1L, 2L, 3, 1, new Date(), null, "u1", "i1"),
+				new Action(null, 4L, 5L, 3, 1, new Date(), null, "u4", "i5")));
+		spool.flush();
+		File[] open = dir.listFiles();
+		Assert.assertEquals(1, open.length);
+		RandomAccessFile raf = new RandomAccessFile(open[0], "rw");
+		raf.setLength(raf.length() - 3);
+		raf.close();
+
+		// a new spool, as after a restart, makes the unclosed file available for replay
+		ActionSpool recovered = new ActionSpool(dir, "client1");
+		List<File> files = recovered.getSpooledFiles();
+		Assert.assertEquals(1, files.size());
+		List<Action> actions = ActionSpool.read(files.get(0));
+		Assert.assertEquals(1, actions.size());
+		Assert.assertEquals("u1", actions.get(0).getClientUserId());
+		Assert.assertTrue(new ActionSpool(dir, "client2").getSpooledFiles().isEmpty());
+	}
+
+	@Test
+	public void quarantinedActionsAreNotReplayed() throws IOException
+	{
+		ActionSpool spool = new ActionSpool(dir, "client1");
+		spool.append(Arrays.asList(new Action(null, 1L, 2L, 3, 1, new Date(), null, "u1", "i1")));
+		spool.roll();
+		spool.append(Arrays.asList(new Action(null, 4L, 5L, 3, 1, new Date(), null, "u4", "i5")));
+		spool.roll();
+		List<File> files = spool.getSpooledFiles();
+		Assert.assertEquals(2, files.size());
+
+		spool.quarantine(files.get(0));
+		spool.quarantine(Arrays.asList(new Action(null, 6L, 7L, 3, 1, new Date(), null, "u6", "i7")));
+
+		files = spool.getSpooledFiles();
+		Assert.assertEquals(1, files.size());
+		Assert.assertEquals("u4", ActionSpool.read(files.get(0)).get(0).getClientUserId());
+		List<File> bad = spool.getQuarantinedFiles();
+		Assert.assertEquals(2, bad.size());
+		Assert.assertEquals("u1", ActionSpool.read(bad.get(0)).get(0).getClientUserId());
+		Assert.assertEquals("u6", ActionSpool.read(bad.get(1)).get(0).getClientUserId());
+	}
+}
@@ -0,0 +1,80 @@
+/*
+ * Seldon -- open source prediction engine
+ * =======================================
+ *
+ * Copyright 2011-2015 Seldon Technologies Ltd and Rummble Ltd (http://www.seldon.io/)
+ *
+ * ********************************************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * ********************************************************************************************
+ */
+package io.seldon.api.service.async;
+
+import io.seldon.general.Action;
+
+import java.io.File;
+import java.sql.SQLException;
+import java.sql.SQLIntegrityConstraintViolationException;
+import java.sql.SQLNonTransientConnectionException;
+import java.sql.SQLRecoverableException;
+import java.sql.SQLSyntaxErrorException;
+import java.sql.SQLTransactionRollbackException;
+import java.util.Date;
+
+import junit.framework.Assert;
+
+import org.junit.Test;
+
+public class PipelinedAsyncActionQueueTest {
+
+	@Test
+	public void connectionFailuresAndDeadlocksAreTransient()
+	{
+		Assert.assertTrue(PipelinedAsyncActionQueue.isTransient(new SQLRecoverableException("link failure", "08S01")));
+		Assert.assertTrue(PipelinedAsyncActionQueue.isTransient(new SQLNonTransientConnectionException("gone away", "08003")));
+		Assert.assertTrue(PipelinedAsyncActionQueue.isTransient(new SQLTransactionRollbackException("deadlock", "40001")));
+		Assert.assertTrue(PipelinedAsyncActionQueue.isTransient(new SQLException("link failure", "08S01")));
+		Assert.assertTrue(PipelinedAsyncActionQueue.isTransient(new SQLException("unknown")));
+	}
+
+	@Test
+	public void rejectedDataIsNotTransient()
+	{
+		Assert.assertFalse(PipelinedAsyncActionQueue.isTransient(new SQLIntegrityConstraintViolationException("duplicate", "23000")));
+		Assert.assertFalse(PipelinedAsyncActionQueue.isTransient(new SQLSyntaxErrorException("bad sql", "42000")));
+		Assert.assertFalse(PipelinedAsyncActionQueue.isTransient(new SQLException("data too long", "22001")));
+	}
+
+	@Test
+	public void multiRowStatement()
+	{
+		Assert.assertEquals("insert into t values (?,?),(?,?),(?,?)", PipelinedAsyncActionQueue.multiRow("insert into t values ", "(?,?)", 3));
+	}
+
+	@Test
+	public void overflowIsQueuedBeforeItIsSpooled()
+	{
+		File dir = new File(System.getProperty("java.io.tmpdir"), "async-q-test-" + System.nanoTime());
+		// writers aren't started so nothing is drained
+		PipelinedAsyncActionQueue q = new PipelinedAsyncActionQueue("client1", 1, 10, 4, 1, 1, false, false, true, dir);
+		for (int i = 0; i < 10; i++)
+			q.put(new Action(null, 1L, 2L, 3, 1, new Date(), null, "u"+i, "i"+i));
+		Assert.assertEquals(8, q.getQueueDepth());
+		Assert.assertEquals(2, q.getActionsSpooled());
+		for (File f : dir.listFiles())
+			f.delete();
+		dir.delete();
+	}
+}
@@ -0,0 +1,116 @@
+/*
+ * Seldon -- open source prediction engine
+ * =======================================
+ *
+ * Copyright 2011-2015 Seldon Technologies Ltd and Rummble Ltd (http://www.seldon.io/)
+ *
+ * ********************************************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * ********************************************************************************************
+ */
+
+package io.seldon.api.service.async;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import junit.framework.Assert;
+
+import org.junit.Test;
+
+public class RingBufferTest {
+
+	@Test
+	public void capacityIsRoundedToPowerOfTwo()
+	{
+		Assert.assertEquals(8, new RingBuffer<Integer>(5).capacity());
+		Assert.assertEquals(16, new RingBuffer<Integer>(16).capacity());
+	}
+
+	@Test
+	public void offerFailsWhenFullAndPollIsFifo()
+	{
+		RingBuffer<Integer> b = new RingBuffer<>(4);
+		for (int i = 0; i < 4; i++)
+			Assert.assertTrue(b.offer(i));
+		Assert.assertFalse(b.offer(4));
+		Assert.assertEquals(4, b.size());
+		Assert.assertEquals(0, (int) b.poll());
+		Assert.assertTrue(b.offer(4));
+		List<Integer> drained = new ArrayList<>();
+		Assert.assertEquals(3, b.drainTo(drained, 3));
+		Assert.assertEquals(java.util.Arrays.asList(1, 2, 3), drained);
+		Assert.assertEquals(4, (int) b.poll());
+		Assert.assertNull(b.poll());
+		Assert.assertEquals(0, b.size());
+	}
+
+	@Test
+	public void concurrentProducersAndConsumersSeeEveryElementOnce() throws InterruptedException
+	{
+		final RingBuffer<Integer> b = new RingBuffer<>(64);
+		final int producers = 4;
+		final int perProducer = 20000;
+		final CountDownLatch done = new CountDownLatch(producers);
+		final AtomicInteger consumed = new AtomicInteger();
+		final List<Integer> seen = Collections.synchronizedList(new ArrayList<Integer>());
+		for (int p = 0; p < producers; p++)
+		{
+			final int base = p * perProducer;
+			new Thread(new Runnable() {
+				@Override
+				public void run() {
+					for (int i = 0; i < perProducer; i++)
+						while (!b.offer(base + i))
+							Thread.yield();
+					done.countDown();
+				}
+			}).start();
+		}
+		Thread[] consumers = new Thread[2];
+		for (int c = 0; c < consumers.length; c++)
+		{
+			consumers[c] = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					List<Integer> batch = new ArrayList<>();
+					while (consumed.get() < producers * perProducer)
+					{
+						batch.clear();
+						int n = b.drainTo(batch, 16);
+						seen.addAll(batch);
+						consumed.addAndGet(n);
+						if (n == 0)
+							Thread.yield();
+					}
+				}
+			});
+			consumers[c].start();
+		}
+		done.await();
+		for (Thread t : consumers)
+			t.join();
+		Assert.assertEquals(producers * perProducer, seen.size());
+		boolean[] found = new boolean[producers * perProducer];
+		for (Integer i : seen)
+		{
+			Assert.assertFalse(found[i]);
+			found[i] = true;
+		}
+	}
+}
@@ -0,0 +1,191 @@
+/*
+ * Seldon -- open source prediction engine
+ * =======================================
+ *
+ * Copyright 2011-2015 Seldon Technologies Ltd and Rummble Ltd (http://www.seldon.io/)
+ *
+ * ********************************************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * ********************************************************************************************
+ */
+
+
+package io.seldon.api.statsd;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+import junit.framework.Assert;
+
+import org.junit.Test;
+
+public class MetricsRegistryTest {
+
+	@Test
+	public void histogramBucketsCoverValues()
+	{
+		for (int v : new int[] {0, 1, 15, 16, 17, 31, 32, 33, 1000, 123456, Integer.MAX_VALUE})
+		{
+			int index = LatencyHistogram.indexOf(v);
+			Assert.assertTrue("" + v, index < LatencyHistogram.BUCKETS);
+			Assert.assertTrue("" + v, LatencyHistogram.lowestValue(index) <= v);
+			Assert.assertTrue("" + v, LatencyHistogram.highestValue(index) >= v);
+			Assert.assertTrue("" + v, LatencyHistogram.highestValue(index) - LatencyHistogram.lowestValue(index) <= v / 16);
+		}
+	}
+
+	@Test
+	public void histogramPercentiles()
+	{
+		LatencyHistogram h = new LatencyHistogram();
+		for (int i = 1; i <= 100; i++)
+			h.record(i);
+		long[] counts = h.getCounts();
+		Assert.assertEquals(5050, h.getSum());
+		long p50 = LatencyHistogram.percentile(counts, 0.5);
+		Assert.assertTrue("" + p50, p50 >= 50 && p50 <= 53);
+		long p99 = LatencyHistogram.percentile(counts, 0.99);
+		Assert.assertTrue("" + p99, p99 >= 99 && p99 <= 103);
+		Assert.assertEquals(0, LatencyHistogram.percentile(new long[LatencyHistogram.BUCKETS], 0.5));
+	}
+
+	@Test
+	public void ctrCountersUseStatsdNames()
+	{
+		MetricsRegistry metrics = new MetricsRegistry();
+		metrics.logCTR("c1", "ALG", false, "A", null);
+		metrics.logCTR("c1", "ALG", true, "A", null);
+		metrics.logCTR("c1", "ALG", true, "B", "tag");
+		metrics.logCTR("c1", null, true, "B", "tag");
+
+		List<String> lines = metrics.getStatsdLines();
+		Assert.assertTrue(lines.contains(StatsdKeys.getClick("c1", "ALG") + ":3|c"));
+		Assert.assertTrue(lines.contains(StatsdKeys.getPositiveClick("c1", "ALG") + ":2|c"));
+		Assert.assertTrue(lines.contains(StatsdKeys.getClickABTesting("c1", "ALG", "A") + ":2|c"));
+		Assert.assertTrue(lines.contains(StatsdKeys.getPositiveClickABTesting("c1", "ALG", "A") + ":1|c"));
+		Assert.assertTrue(lines.contains(StatsdKeys.getClickABTesting("c1", "ALG", "B", "tag") + ":1|c"));
+		Assert.assertEquals(6, lines.size());
+	}
+
+	@Test
+	public void flushSendsOnlyChanges()
+	{
+		MetricsRegistry metrics = new MetricsRegistry();
+		metrics.logClick("c1", null);
+		metrics.logImpression("c1", "tag");
+		metrics.logImpression("c1", "tag");
+		Assert.assertEquals(2, metrics.getStatsdLines().size());
+		Assert.assertTrue(metrics.getStatsdLines().isEmpty());
+
+		metrics.logImpression("c1", "tag");
+		Assert.assertEquals(Arrays.asList(StatsdKeys.getImpression("c1", "tag") + ":1|c"), metrics.getStatsdLines());
+		Assert.assertEquals(3L, metrics.getValues().get(StatsdKeys.getImpression("c1", "tag")));
+	}
+
+	@Test
+	public void clicksWithRecTagUseClickTotalName()
+	{
+		MetricsRegistry metrics = new MetricsRegistry();
+		metrics.logClick("c1", "Tag");
+		Assert.assertEquals(Arrays.asList(StatsdKeys.getClick("c1", "Tag") + ":1|c"), metrics.getStatsdLines());
+	}
+
+	@Test
+	public void manyCallsInOneFlushKeepTheirCount()
+	{
+		MetricsRegistry metrics = new MetricsRegistry();
+		for (int i = 0; i < 3000000; i++)
+			metrics.logAPICall("c1", "key", "get", 10);
+		String base = StatsdKeys.getAPIKey("c1", "key", "get");
+		List<String> lines = metrics.getStatsdLines();
+		Assert.assertTrue(lines.contains(base + ".count:3000000|c"));
+		Assert.assertTrue(lines.contains(base + ".time:10|ms"));
+		for (String line : lines)
+			Assert.assertFalse(line, line.contains("|@"));
+	}
+
+	@Test
+	public void algorithmTimeoutsCounted()
+	{
+		MetricsRegistry metrics = new MetricsRegistry();
+		metrics.logAlgorithmTimeout("c1", "mostPopular");
+		metrics.logAlgorithmTimeout("c1", "mostPopular");
+		Assert.assertEquals(Arrays.asList(StatsdKeys.getAlgorithmTimeout("c1", "mostPopular") + ":2|c"), metrics.getStatsdLines());
+	}
+
+	@Test
+	public void valuesForOneClient()
+	{
+		MetricsRegistry metrics = new MetricsRegistry();
+		metrics.logClick("c1", null);
+		metrics.logClick("c2", null);
+		metrics.logAPICall("c2", "key", "get", 10);
+		Map<String, Object> c1 = metrics.getValues("c1");
+		Assert.assertEquals(1, c1.size());
+		Assert.assertEquals(1L, c1.get(StatsdKeys.getClick("c1")));
+		Assert.assertEquals(3, metrics.getValues("c2").size());
+		Assert.assertEquals(4, metrics.getValues().size());
+	}
+
+	@Test
+	public void serverCountsAreReportedForEveryClient()
+	{
+		MetricsRegistry metrics = new MetricsRegistry();
+		final long[] dropped = {3};
+		metrics.registerServerCount("eventlog.dropped", new MetricsRegistry.Count() {
+			@Override
+			public long get() {
+				return dropped[0];
+			}
+		});
+		metrics.logClick("c1", null);
+		Assert.assertEquals(3L, metrics.getValues("c1").get(StatsdKeys.getServerCount("eventlog.dropped")));
+		Assert.assertEquals(3L, metrics.getValues("c2").get(StatsdKeys.getServerCount("eventlog.dropped")));
+		Assert.assertTrue(metrics.getStatsdLines().contains(StatsdKeys.getServerCount("eventlog.dropped") + ":3|c"));
+		dropped[0] = 5;
+		Assert.assertEquals(Arrays.asList(StatsdKeys.getServerCount("eventlog.dropped") + ":2|c"), metrics.getStatsdLines());
+	}
+
+	@Test
+	public void apiCallsAreTimed()
+	{
+		MetricsRegistry metrics = new MetricsRegistry();
+		for (int i = 0; i < 10; i++)
+			metrics.logAPICall("c1", "key", "get", 10);
+		String base = StatsdKeys.getAPIKey("c1", "key", "get");
+		List<String> lines = metrics.getStatsdLines();
+		Assert.assertTrue(lines.contains(base + ".count:10|c"));
+		Assert.assertTrue(lines.contains(base + ".time:10|ms"));
+		Assert.assertTrue(lines.contains(base + ".time.p99:10|g"));
+		Assert.assertTrue(lines.contains(base + ".time.max:10|g"));
+
+		metrics.logAPICall("c1", "key", "get", 40);
+		lines = metrics.getStatsdLines();
+		Assert.assertTrue(lines.contains(base + ".time:40|ms"));
+
+		Map<?, ?> timer = (Map<?, ?>) metrics.getValues().get(base + ".time");
+		Assert.assertEquals(11L, timer.get("count"));
+		Assert.assertEquals(140 / 11.0, (Double) timer.get("mean"), 1e-9);
+	}
+
+	@Test
+	public void packsStatsIntoPackets()
+	{
+		List<String> packets = StatsdClient.pack(Arrays.asList("aaaa:1|c", "bbbb:1|c", "cccc:1|c"), 17);
+		Assert.assertEquals(Arrays.asList("aaaa:1|c\nbbbb:1|c", "cccc:1|c"), packets);
+		Assert.assertTrue(StatsdClient.pack(Arrays.<String>asList(), 17).isEmpty());
+	}
+}
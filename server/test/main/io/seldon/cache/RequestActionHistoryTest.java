@@ -0,0 +1,120 @@
+/*
+ * Seldon -- open source prediction engine
+ * =======================================
+ *
+ * Copyright 2011-2015 Seldon Technologies Ltd and Rummble Ltd (http://www.seldon.io/)
+ *
+ * ********************************************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * ********************************************************************************************
+ */
+
+package io.seldon.cache;
+
+import static org.easymock.EasyMock.createMock;
+import static org.easymock.EasyMock.expect;
+import static org.easymock.EasyMock.replay;
+import static org.easymock.EasyMock.verify;
+import io.seldon.api.caching.ActionHistory;
+import io.seldon.api.caching.RequestActionHistory;
+import io.seldon.api.statsd.StatsdKeys;
+import io.seldon.api.statsd.StatsdPeer;
+import io.seldon.general.Action;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import junit.framework.Assert;
+
+import org.junit.Before;
+import org.junit.Test;
+
+public class RequestActionHistoryTest {
+
+	private ActionHistory mockActionHistory;
+
+	@Before
+	public void createMocks()
+	{
+		this.mockActionHistory = createMock(ActionHistory.class);
+	}
+
+	@Test
+	public void smallerLimitIsServedFromCache()
+	{
+		expect(mockActionHistory.getRecentActions("client1", 1L, 100)).andReturn(Arrays.asList(5L, 4L, 3L, 2L, 1L)).once();
+		replay(mockActionHistory);
+
+		RequestActionHistory history = new RequestActionHistory(mockActionHistory, "client1", 1L);
+		Assert.assertEquals(Arrays.asList(5L, 4L, 3L, 2L, 1L), history.getRecentActions(100));
+		Assert.assertEquals(Arrays.asList(5L, 4L), history.getRecentActions(2));
+		// user has fewer actions than the first limit so a larger limit can't return any more
+		Assert.assertEquals(5, history.getRecentActions(200).size());
+
+		verify(mockActionHistory);
+		Assert.assertEquals(1, history.getBackendCalls());
+		Assert.assertEquals(2, history.getBackendCallsSaved());
+	}
+
+	@Test
+	public void largerLimitGoesToBackend()
+	{
+		expect(mockActionHistory.getRecentActions("client1", 1L, 2)).andReturn(Arrays.asList(5L, 4L)).once();
+		expect(mockActionHistory.getRecentActions("client1", 1L, 10)).andReturn(Arrays.asList(5L, 4L, 3L)).once();
+		replay(mockActionHistory);
+
+		RequestActionHistory history = new RequestActionHistory(mockActionHistory, "client1", 1L);
+		history.getRecentActions(2);
+		Assert.assertEquals(3, history.getRecentActions(10).size());
+		Assert.assertEquals(Arrays.asList(5L), history.getRecentActions(1));
+
+		verify(mockActionHistory);
+		Assert.assertEquals(2, history.getBackendCalls());
+		Assert.assertEquals(1, history.getBackendCallsSaved());
+	}
+
+	@Test
+	public void returnedListsCanBeModified()
+	{
+		List<Action> actions = new ArrayList<>();
+		actions.add(new Action());
+		actions.add(new Action());
+		expect(mockActionHistory.getRecentFullActions("client1", 1L, 10)).andReturn(actions).once();
+		replay(mockActionHistory);
+
+		RequestActionHistory history = new RequestActionHistory(mockActionHistory, "client1", 1L);
+		history.getRecentFullActions(10).clear();
+		Assert.assertEquals(2, history.getRecentFullActions(10).size());
+
+		verify(mockActionHistory);
+	}
+
+	@Test
+	public void lookupsAreCountedInMetrics()
+	{
+		expect(mockActionHistory.getRecentActions("metricsClient", 1L, 10)).andReturn(Arrays.asList(5L, 4L)).once();
+		replay(mockActionHistory);
+
+		RequestActionHistory history = new RequestActionHistory(mockActionHistory, "metricsClient", 1L);
+		history.getRecentActions(10);
+		history.getRecentActions(5);
+		history.getRecentActions(1);
+
+		verify(mockActionHistory);
+		Assert.assertEquals(1L, StatsdPeer.getMetrics().getValues("metricsClient").get(StatsdKeys.getActionHistoryLookups("metricsClient", true)));
+		Assert.assertEquals(2L, StatsdPeer.getMetrics().getValues("metricsClient").get(StatsdKeys.getActionHistoryLookups("metricsClient", false)));
+	}
+}
@@ -28,24 +28,32 @@ import io.seldon.api.caching.redis.RedisActionHistory;
 import io.seldon.db.redis.RedisPoolManager;
 import io.seldon.general.Action;
 
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Date;
 import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
 
 import junit.framework.Assert;
 
+import org.easymock.Capture;
 import org.easymock.EasyMock;
 import org.junit.Before;
 import org.junit.Test;
 
 import redis.clients.jedis.Jedis;
 import redis.clients.jedis.JedisPool;
+import redis.clients.jedis.Pipeline;
+import redis.clients.jedis.Response;
 
 public class RedisActionHistoryTest {
 
 	private RedisPoolManager mockRedisPoolManager;
 	private JedisPool mockJedisPool;
 	private Jedis mockJedis;
+	private Pipeline mockPipeline;
 	
 	@Before
 	public void createMocks()
@@ -53,6 +61,7 @@ public class RedisActionHistoryTest {
 		this.mockRedisPoolManager = createMock(RedisPoolManager.class);
 		this.mockJedisPool = createMock(JedisPool.class);
 		this.mockJedis = createMock(Jedis.class);
+		this.mockPipeline = createMock(Pipeline.class);
 	}
 
 	@Test
@@ -65,14 +74,14 @@ public class RedisActionHistoryTest {
 		String client = "client1";
 		
 		String redisActionEntry = "{\"client\":\"testclient\",\"rectag\":\"default\",\"userid\":1,\"itemid\":3,\"type\":1,\"value\":\"0.0\",\"client_userid\":\"test_user1\",\"client_itemid\":\"item2\"}";
-		Set<String> res = new LinkedHashSet<String>();
-		res.add(redisActionEntry);
+		Set<byte[]> res = new LinkedHashSet<byte[]>();
+		res.add(redisActionEntry.getBytes(StandardCharsets.UTF_8));
 		
 		mockJedisPool.getResource();
 		EasyMock.expectLastCall().andReturn(mockJedis).once();
 		replay(mockJedisPool);
 		
-		mockJedis.zrange((String) EasyMock.anyObject(),EasyMock.anyInt(),EasyMock.anyInt());
+		mockJedis.zrevrange((byte[]) EasyMock.anyObject(),EasyMock.eq(0L),EasyMock.eq(9L));
 		EasyMock.expectLastCall().andReturn(res).once();
 		mockJedis.close();
 		EasyMock.expectLastCall().once();
@@ -99,11 +108,11 @@ public class RedisActionHistoryTest {
 		EasyMock.expectLastCall().andReturn(mockJedis).once();
 		replay(mockJedisPool);
 		
+		// only the most recent entry is fetched
 		Set<String> res = new LinkedHashSet<String>();
-		res.add("1");
 		res.add("2");
 		
-		mockJedis.zrange((String) EasyMock.anyObject(),EasyMock.anyInt(),EasyMock.anyInt());
+		mockJedis.zrevrange((String) EasyMock.anyObject(),EasyMock.eq(0L),EasyMock.eq(0L));
 		EasyMock.expectLastCall().andReturn(res).once();
 		mockJedis.close();
 		EasyMock.expectLastCall().once();
@@ -118,4 +127,119 @@ public class RedisActionHistoryTest {
 		
 	}
 	
+	@Test
+	public void test_add_action_trims_and_expires_in_one_pipeline()
+	{
+		mockRedisPoolManager.get((String) EasyMock.anyObject());
+		EasyMock.expectLastCall().andReturn(mockJedisPool).once();
+		replay(mockRedisPoolManager);
+		
+		mockJedisPool.getResource();
+		EasyMock.expectLastCall().andReturn(mockJedis).once();
+		replay(mockJedisPool);
+		
+		mockJedis.pipelined();
+		EasyMock.expectLastCall().andReturn(mockPipeline).once();
+		mockJedis.close();
+		EasyMock.expectLastCall().once();
+		replay(mockJedis);
+		
+		EasyMock.expect(mockPipeline.zadd((String) EasyMock.anyObject(), EasyMock.anyDouble(), EasyMock.eq("3"))).andReturn(null).once();
+		EasyMock.expect(mockPipeline.zremrangeByRank((String) EasyMock.anyObject(), EasyMock.eq(0L), EasyMock.eq(-101L))).andReturn(null).once();
+		EasyMock.expect(mockPipeline.expire((String) EasyMock.anyObject(), EasyMock.eq(60))).andReturn(null).once();
+		mockPipeline.sync();
+		EasyMock.expectLastCall().once();
+		replay(mockPipeline);
+		
+		RedisActionHistory rah = new RedisActionHistory(mockRedisPoolManager);
+		rah.setMaxActions(100);
+		rah.setTtlSecs(60);
+		rah.addAction("client", 1L, 3L);
+		verify(mockPipeline);
+		verify(mockJedis);
+	}
+	
+	@Test
+	public void test_full_action_binary_round_trip()
+	{
+		mockRedisPoolManager.get((String) EasyMock.anyObject());
+		EasyMock.expectLastCall().andReturn(mockJedisPool).times(2);
+		replay(mockRedisPoolManager);
+		
+		mockJedisPool.getResource();
+		EasyMock.expectLastCall().andReturn(mockJedis).times(2);
+		replay(mockJedisPool);
+		
+		Capture<byte[]> member = new Capture<byte[]>();
+		mockJedis.pipelined();
+		EasyMock.expectLastCall().andReturn(mockPipeline).once();
+		EasyMock.expect(mockPipeline.zadd((byte[]) EasyMock.anyObject(), EasyMock.eq(1000.0), EasyMock.capture(member))).andReturn(null).once();
+		EasyMock.expect(mockPipeline.zremrangeByRank((byte[]) EasyMock.anyObject(), EasyMock.eq(0L), EasyMock.anyLong())).andReturn(null).once();
+		EasyMock.expect(mockPipeline.expire((byte[]) EasyMock.anyObject(), EasyMock.anyInt())).andReturn(null).once();
+		mockPipeline.sync();
+		EasyMock.expectLastCall().once();
+		replay(mockPipeline);
+		
+		final Set<byte[]> stored = new LinkedHashSet<byte[]>();
+		EasyMock.expect(mockJedis.zrevrange((byte[]) EasyMock.anyObject(), EasyMock.eq(0L), EasyMock.eq(4L))).andReturn(stored).once();
+		mockJedis.close();
+		EasyMock.expectLastCall().times(2);
+		replay(mockJedis);
+		
+		RedisActionHistory rah = new RedisActionHistory(mockRedisPoolManager);
+		Action a = new Action(null, 1L, 3L, 2, 1, new Date(1000000L), 0.5, "user1", "item3");
+		rah.addFullAction("client", a);
+		stored.add(member.getValue());
+		
+		List<Action> actions = rah.getRecentFullActions("client", 1L, 5);
+		Assert.assertEquals(1, actions.size());
+		Action r = actions.get(0);
+		Assert.assertEquals(1L, r.getUserId());
+		Assert.assertEquals(3L, r.getItemId());
+		Assert.assertEquals(2, (int) r.getType());
+		Assert.assertEquals(0.5, r.getValue(), 0);
+		Assert.assertEquals(new Date(1000000L), r.getDate());
+		Assert.assertEquals("user1", r.getClientUserId());
+		Assert.assertEquals("item3", r.getClientItemId());
+		Assert.assertTrue(member.getValue().length < 64);
+		verify(mockPipeline);
+		verify(mockJedis);
+	}
+	
+	@SuppressWarnings("unchecked")
+	@Test
+	public void test_get_actions_for_many_users_in_one_pipeline()
+	{
+		mockRedisPoolManager.get((String) EasyMock.anyObject());
+		EasyMock.expectLastCall().andReturn(mockJedisPool).once();
+		replay(mockRedisPoolManager);
+		
+		mockJedisPool.getResource();
+		EasyMock.expectLastCall().andReturn(mockJedis).once();
+		replay(mockJedisPool);
+		
+		mockJedis.pipelined();
+		EasyMock.expectLastCall().andReturn(mockPipeline).once();
+		mockJedis.close();
+		EasyMock.expectLastCall().once();
+		replay(mockJedis);
+		
+		Response<Set<String>> r1 = createMock(Response.class);
+		Response<Set<String>> r2 = createMock(Response.class);
+		EasyMock.expect(r1.get()).andReturn(new LinkedHashSet<String>(Arrays.asList("5", "4"))).once();
+		EasyMock.expect(r2.get()).andReturn(new LinkedHashSet<String>()).once();
+		replay(r1, r2);
+		EasyMock.expect(mockPipeline.zrevrange(EasyMock.contains(":1"), EasyMock.eq(0L), EasyMock.eq(1L))).andReturn(r1).once();
+		EasyMock.expect(mockPipeline.zrevrange(EasyMock.contains(":2"), EasyMock.eq(0L), EasyMock.eq(1L))).andReturn(r2).once();
+		mockPipeline.sync();
+		EasyMock.expectLastCall().once();
+		replay(mockPipeline);
+		
+		RedisActionHistory rah = new RedisActionHistory(mockRedisPoolManager);
+		Map<Long,List<Long>> res = rah.getRecentActions("client", Arrays.asList(1L, 2L), 2);
+		Assert.assertEquals(Arrays.asList(5L, 4L), res.get(1L));
+		Assert.assertTrue(res.get(2L).isEmpty());
+		verify(mockPipeline);
+	}
+	
 }
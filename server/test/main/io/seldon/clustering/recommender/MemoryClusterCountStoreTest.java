@@ -0,0 +1,234 @@
+/*
+ * Seldon -- open source prediction engine
+ * =======================================
+ *
+ * Copyright 2011-2015 Seldon Technologies Ltd and Rummble Ltd (http://www.seldon.io/)
+ *
+ * ********************************************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * ********************************************************************************************
+ */
+
+package io.seldon.clustering.recommender;
+
+import io.seldon.clustering.recommender.jdo.AsyncClusterCountStore.ClusterCount;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import junit.framework.Assert;
+
+import org.junit.Test;
+
+public class MemoryClusterCountStoreTest {
+
+	private static final double ALPHA = 3600;
+
+	private static class TestStore extends MemoryClusterCountStore {
+		long time = 1000000;
+		Map<Long,Collection<Integer>> dimensions = new HashMap<>();
+		Map<Long,List<String>> tags = new HashMap<>();
+		int dimensionLookups = 0;
+
+		TestStore(int topK)
+		{
+			super("test", ALPHA, topK);
+		}
+
+		@Override
+		protected long currentTime() {
+			return time;
+		}
+
+		@Override
+		protected Collection<Integer> loadItemDimensions(long itemId) {
+			dimensionLookups++;
+			Collection<Integer> dims = dimensions.get(itemId);
+			return dims == null ? Collections.<Integer>emptyList() : dims;
+		}
+
+		@Override
+		protected Map<Long, List<String>> loadItemTags(Set<Long> itemIds, int tagAttrId) {
+			Map<Long,List<String>> res = new HashMap<>();
+			for (Long id : itemIds)
+				if (tags.containsKey(id))
+					res.put(id, tags.get(id));
+			return res;
+		}
+	}
+
+	private static Set<Integer> dims(Integer... d)
+	{
+		return new HashSet<>(Arrays.asList(d));
+	}
+
+	@Test
+	public void countsDecayLazily()
+	{
+		TestStore store = new TestStore(10);
+		store.add(1, 100L, 1.0, 0, store.time);
+		store.resolveDimensions();
+		store.time += ALPHA;
+		store.add(1, 100L, 1.0, 0, store.time);
+		store.resolveDimensions();
+		Assert.assertEquals(1.0 + Math.exp(-1), store.getCount(1, 100L, 0), 1e-9);
+		store.time += ALPHA;
+		Assert.assertEquals((1.0 + Math.exp(-1)) * Math.exp(-1), store.getCount(1, 100L, 0), 1e-9);
+		// item was looked up once
+		Assert.assertEquals(1, store.dimensionLookups);
+	}
+
+	@Test
+	public void topKFollowsAdds()
+	{
+		TestStore store = new TestStore(2);
+		store.add(1, 1L, 1.0, 0, store.time);
+		store.add(1, 2L, 2.0, 0, store.time);
+		store.add(1, 3L, 3.0, 0, store.time);
+		Assert.assertEquals(2, store.getTopCounts(1, 0, 2, ALPHA).size());
+		Assert.assertTrue(store.getTopCounts(1, 0, 2, ALPHA).keySet().containsAll(Arrays.asList(2L, 3L)));
+
+		// later actions on an older item outweigh decayed counts
+		store.time += ALPHA;
+		store.add(1, 1L, 2.0, 0, store.time);
+		Map<Long,Double> top = store.getTopCounts(1, 0, 1, ALPHA);
+		Assert.assertEquals(1, top.size());
+		Assert.assertEquals(2.0 + Math.exp(-1), top.get(1L), 1e-9);
+
+		// global counts sum over clusters
+		store.add(2, 2L, 5.0, 0, store.time);
+		Assert.assertTrue(store.getTopCounts(1, ALPHA).containsKey(2L));
+	}
+
+	@Test
+	public void negativeWeightRebuildsTop()
+	{
+		TestStore store = new TestStore(1);
+		store.add(1, 1L, 3.0, 0, store.time);
+		store.add(1, 2L, 2.0, 0, store.time);
+		store.add(1, 1L, -2.0, 0, store.time);
+		Map<Long,Double> top = store.getTopCounts(1, 0, 1, ALPHA);
+		Assert.assertEquals(2.0, top.get(2L), 1e-9);
+	}
+
+	@Test
+	public void dimensionQueries()
+	{
+		TestStore store = new TestStore(10);
+		store.dimensions.put(1L, Arrays.asList(10));
+		store.dimensions.put(2L, Arrays.asList(10, 20));
+		store.dimensions.put(3L, Arrays.asList(30));
+		store.add(1, 1L, 1.0, 0, store.time);
+		store.add(1, 2L, 2.0, 0, store.time);
+		store.add(1, 3L, 3.0, 0, store.time);
+		store.resolveDimensions();
+
+		Assert.assertEquals(2, store.getTopCountsByDimension(1, dims(10), 0, 5, ALPHA).size());
+		// dimension top is maintained after it was first built
+		store.add(1, 1L, 5.0, 0, store.time);
+		Map<Long,Double> top = store.getTopCountsByDimension(1, dims(10, 30), 0, 1, ALPHA);
+		Assert.assertEquals(6.0, top.get(1L), 1e-9);
+
+		top = store.getTopCountsByTwoDimensions(dims(10), 20, 5, ALPHA);
+		Assert.assertEquals(1, top.size());
+		Assert.assertTrue(top.containsKey(2L));
+	}
+
+	@Test
+	public void dimensionsResolvedOffAddPath()
+	{
+		TestStore store = new TestStore(10);
+		store.dimensions.put(1L, Arrays.asList(10));
+		store.dimensions.put(2L, Arrays.asList(10));
+		store.add(1, 1L, 1.0, 0, store.time);
+		store.resolveDimensions();
+		Assert.assertEquals(1, store.getTopCountsByDimension(1, dims(10), 0, 5, ALPHA).size());
+
+		// a new item is counted without a lookup and joins the built dimension top once resolved
+		store.add(1, 2L, 2.0, 0, store.time);
+		Assert.assertEquals(1, store.dimensionLookups);
+		Assert.assertEquals(2.0, store.getCount(1, 2L, 0), 1e-9);
+		Assert.assertFalse(store.getTopCountsByDimension(1, dims(10), 0, 5, ALPHA).containsKey(2L));
+		Assert.assertEquals(1, store.resolveDimensions());
+		Assert.assertEquals(2, store.dimensionLookups);
+		Map<Long,Double> top = store.getTopCountsByDimension(1, dims(10), 0, 5, ALPHA);
+		Assert.assertEquals(2.0, top.get(2L), 1e-9);
+		Assert.assertEquals(2.0, store.getTopCountsByDimension(dims(10), 5, ALPHA).get(2L), 1e-9);
+		Assert.assertEquals(0, store.resolveDimensions());
+	}
+
+	@Test
+	public void tagQueries()
+	{
+		TestStore store = new TestStore(10);
+		store.dimensions.put(1L, Arrays.asList(10));
+		store.dimensions.put(2L, Arrays.asList(20));
+		store.tags.put(1L, Arrays.asList("sport", "football"));
+		store.tags.put(2L, Arrays.asList("Sport"));
+		store.add(1, 1L, 1.0, 0, store.time);
+		store.add(1, 2L, 2.0, 0, store.time);
+		store.add(1, 3L, 4.0, 0, store.time);
+		store.resolveDimensions();
+
+		Assert.assertEquals(2, store.getTopCountsByTag("sport", 5, 10, ALPHA).size());
+		Map<Long,Double> top = store.getTopCountsByTagAndDimension("sport", 5, dims(10), 10, ALPHA);
+		Assert.assertEquals(1, top.size());
+		Assert.assertTrue(top.containsKey(1L));
+		Assert.assertTrue(store.getTopCountsByTag("football", 5, 10, ALPHA).containsKey(1L));
+	}
+
+	@Test
+	public void pendingCountsDrainOnce()
+	{
+		TestStore store = new TestStore(10);
+		store.add(1, 1L, 1.0, 0, store.time);
+		store.add(1, 1L, 1.0, 0, store.time);
+		store.add(2, 1L, 1.0, 0, store.time);
+		store.restore(3, 1L, 10.0, store.time);
+
+		List<ClusterCount> pending = store.drainPending(store.time + (long) ALPHA);
+		Assert.assertEquals(2, pending.size());
+		for (ClusterCount c : pending)
+			Assert.assertEquals(c.clusterId == 1 ? 2 * Math.exp(-1) : Math.exp(-1), c.weight, 1e-9);
+		Assert.assertTrue(store.drainPending(store.time).isEmpty());
+
+		store.restorePending(pending, store.time + (long) ALPHA);
+		Assert.assertEquals(2, store.drainPending(store.time + (long) ALPHA).size());
+	}
+
+	@Test
+	public void landmarkMovesWithoutChangingCounts()
+	{
+		TestStore store = new TestStore(10);
+		store.add(1, 1L, 1.0, 0, store.time);
+		store.time += (long) (ALPHA * 29);
+		store.add(1, 2L, 1.0, 0, store.time);
+		store.time += (long) (ALPHA * 2);
+		// counts still to be checkpointed are never dropped
+		store.drainPending(store.time);
+		// past the rescale point
+		store.add(1, 2L, 1.0, 0, store.time);
+		Assert.assertEquals(Math.exp(-2) + 1, store.getCount(1, 2L, 0), 1e-9);
+		// item 1 has decayed to nothing and been dropped
+		Assert.assertEquals(0D, store.getCount(1, 1L, 0), 1e-12);
+		Assert.assertEquals(1, store.getTopCounts(1, 0, 10, ALPHA).size());
+	}
+}
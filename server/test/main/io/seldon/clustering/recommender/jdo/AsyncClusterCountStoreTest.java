@@ -0,0 +1,155 @@
+/*
+ * Seldon -- open source prediction engine
+ * =======================================
+ *
+ * Copyright 2011-2015 Seldon Technologies Ltd and Rummble Ltd (http://www.seldon.io/)
+ *
+ * ********************************************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * ********************************************************************************************
+ */
+
+package io.seldon.clustering.recommender.jdo;
+
+import io.seldon.clustering.recommender.jdo.AsyncClusterCountStore.ClusterCount;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+
+import junit.framework.Assert;
+
+import org.junit.Test;
+
+public class AsyncClusterCountStoreTest {
+
+	/**
+	 * Collects written counts instead of going to the database, failing the first writes if asked to.
+	 */
+	private static class TestStore extends AsyncClusterCountStore {
+
+		final Map<String,Double> written = new HashMap<>();
+		int failures;
+		int writes;
+
+		TestStore(int maxSize, int shards, int failures)
+		{
+			super("test", 5, 1000, maxSize, 2, 3600, true, shards);
+			this.failures = failures;
+		}
+
+		@Override
+		protected Connection getConnection() throws SQLException {
+			return null;
+		}
+
+		@Override
+		protected synchronized void write(Connection connection, Batch batch) throws SQLException {
+			writes++;
+			if (failures > 0)
+			{
+				failures--;
+				throw new SQLException("down");
+			}
+			for (int i = 0; i < batch.size; i++)
+			{
+				String key = batch.clusters[i] + ":" + batch.items[i];
+				Double c = written.get(key);
+				written.put(key, c == null ? batch.counts[i] : c + batch.counts[i]);
+			}
+		}
+	}
+
+	@Test
+	public void countsForSameClusterAndItemAreAggregated()
+	{
+		TestStore store = new TestStore(1000, 4, 0);
+		store.put(new ClusterCount(1, 10L, 1.0));
+		store.put(new ClusterCount(1, 10L, 2.0));
+		store.put(new ClusterCount(2, 10L, 1.0));
+		store.put(new ClusterCount(-3, 11L, 0.5));
+		Assert.assertEquals(3, store.getQSize());
+		Assert.assertEquals(4, store.getActionsAdded());
+
+		Assert.assertTrue(store.flush());
+		Assert.assertEquals(0, store.getQSize());
+		Assert.assertEquals(3, store.getRowsWritten());
+		Assert.assertEquals(3.0, store.written.get("1:10"), 1e-9);
+		Assert.assertEquals(1.0, store.written.get("2:10"), 1e-9);
+		Assert.assertEquals(0.5, store.written.get("-3:11"), 1e-9);
+	}
+
+	@Test
+	public void failedWritesAreKeptForNextFlush()
+	{
+		// both retries of the first flush fail
+		TestStore store = new TestStore(1000, 1, 2);
+		store.put(new ClusterCount(1, 10L, 1.0));
+		Assert.assertFalse(store.flush());
+		Assert.assertEquals(1, store.getQSize());
+		store.put(new ClusterCount(1, 10L, 2.0));
+
+		Assert.assertTrue(store.flush());
+		Assert.assertEquals(3, store.writes);
+		Assert.assertEquals(3.0, store.written.get("1:10"), 1e-9);
+	}
+
+	@Test
+	public void newPairsAreDroppedWhenShardIsFull()
+	{
+		TestStore store = new TestStore(2, 1, 0);
+		store.put(new ClusterCount(1, 10L, 1.0));
+		store.put(new ClusterCount(1, 11L, 1.0));
+		store.put(new ClusterCount(1, 12L, 1.0));
+		store.put(new ClusterCount(1, 10L, 1.0));
+		Assert.assertEquals(2, store.getQSize());
+		Assert.assertEquals(1, store.getDroppedCounts());
+		store.flush();
+		Assert.assertEquals(2.0, store.written.get("1:10"), 1e-9);
+		Assert.assertNull(store.written.get("1:12"));
+	}
+
+	@Test
+	public void concurrentProducersLoseNoCounts() throws InterruptedException
+	{
+		final TestStore store = new TestStore(100000, 4, 0);
+		final int threads = 8;
+		final int perThread = 10000;
+		final CountDownLatch done = new CountDownLatch(threads);
+		for (int t = 0; t < threads; t++)
+		{
+			new Thread(new Runnable() {
+				@Override
+				public void run() {
+					for (int i = 0; i < perThread; i++)
+						store.put(new ClusterCount(i % 16, i % 100, 1.0));
+					done.countDown();
+				}
+			}).start();
+		}
+		// flush while producers are still adding
+		while (done.getCount() > 0)
+			store.flush();
+		done.await();
+		store.flush();
+		double total = 0;
+		for (Double c : store.written.values())
+			total += c;
+		Assert.assertEquals(threads * perThread, total, 1e-6);
+		Assert.assertEquals(threads * perThread, store.getActionsAdded());
+	}
+}
@@ -0,0 +1,46 @@
+/*
+ * Seldon -- open source prediction engine
+ * =======================================
+ *
+ * Copyright 2011-2015 Seldon Technologies Ltd and Rummble Ltd (http://www.seldon.io/)
+ *
+ * ********************************************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * ********************************************************************************************
+ */
+
+
+package io.seldon.external;
+
+import junit.framework.Assert;
+
+import org.junit.Test;
+
+public class ExternalHttpClientTest {
+
+	@Test
+	public void circuitOpensAfterFailuresAndLetsOneTrialThrough() throws Exception
+	{
+		ExternalHttpClient.Endpoint endpoint = new ExternalHttpClient.Endpoint("http://server/predict", 10, 2, 1000);
+		endpoint.failure(0);
+		Assert.assertTrue(endpoint.allow(0));
+		endpoint.failure(0);
+		Assert.assertFalse(endpoint.allow(500));
+		Assert.assertTrue(endpoint.allow(1000));
+		Assert.assertFalse(endpoint.allow(1001));
+		endpoint.success();
+		Assert.assertTrue(endpoint.allow(1001));
+	}
+}
@@ -0,0 +1,124 @@
+/*
+ * Seldon -- open source prediction engine
+ * =======================================
+ *
+ * Copyright 2011-2015 Seldon Technologies Ltd and Rummble Ltd (http://www.seldon.io/)
+ *
+ * ********************************************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * ********************************************************************************************
+ */
+
+
+package io.seldon.external;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import junit.framework.Assert;
+
+import org.junit.Test;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.node.IntNode;
+
+public class PredictionBatcherTest {
+
+	/**
+	 * Answers each input with its value plus 100 and counts the calls made.
+	 */
+	private static class CountingSender implements PredictionBatcher.Sender {
+		final AtomicInteger calls = new AtomicInteger();
+		final List<Integer> sizes = Collections.synchronizedList(new ArrayList<Integer>());
+
+		@Override
+		public List<JsonNode> send(String client, String url, List<JsonNode> inputs) throws IOException {
+			calls.incrementAndGet();
+			sizes.add(inputs.size());
+			List<JsonNode> res = new ArrayList<>();
+			for (JsonNode input : inputs)
+				res.add(new IntNode(input.asInt() + 100));
+			return res;
+		}
+	}
+
+	@Test
+	public void concurrentRequestsShareOneCall() throws Exception
+	{
+		final CountingSender sender = new CountingSender();
+		final PredictionBatcher batcher = new PredictionBatcher(sender, 1000);
+		final int n = 8;
+		ExecutorService executor = Executors.newFixedThreadPool(n);
+		List<Future<JsonNode>> results = new ArrayList<>();
+		for (int i = 0; i < n; i++)
+		{
+			final int value = i;
+			results.add(executor.submit(new Callable<JsonNode>() {
+				@Override
+				public JsonNode call() throws Exception {
+					return batcher.predict("client", "http://server/predict", new IntNode(value), 500, n);
+				}
+			}));
+		}
+		for (int i = 0; i < n; i++)
+			Assert.assertEquals(i + 100, results.get(i).get().asInt());
+		executor.shutdown();
+		Assert.assertTrue(sender.calls.get() < n);
+		int total = 0;
+		for (int size : sender.sizes)
+			total += size;
+		Assert.assertEquals(n, total);
+	}
+
+	@Test
+	public void fullBatchIsSentWithoutWaitingForWindow() throws Exception
+	{
+		CountingSender sender = new CountingSender();
+		PredictionBatcher batcher = new PredictionBatcher(sender, 1000);
+		long start = System.currentTimeMillis();
+		Assert.assertEquals(101, batcher.predict("client", "http://server/predict", new IntNode(1), 10000, 1).asInt());
+		Assert.assertTrue(System.currentTimeMillis() - start < 5000);
+		Assert.assertEquals(1, sender.calls.get());
+	}
+
+	@Test(expected=IOException.class)
+	public void senderFailureIsReported() throws Exception
+	{
+		PredictionBatcher batcher = new PredictionBatcher(new PredictionBatcher.Sender() {
+			@Override
+			public List<JsonNode> send(String client, String url, List<JsonNode> inputs) throws IOException {
+				throw new IOException("down");
+			}
+		}, 1000);
+		batcher.predict("client", "http://server/predict", new IntNode(1), 1, 10);
+	}
+
+	@Test
+	public void nonPositiveMaxBatchSendsEachRequestAlone() throws Exception
+	{
+		CountingSender sender = new CountingSender();
+		PredictionBatcher batcher = new PredictionBatcher(sender, 1000);
+		Assert.assertEquals(101, batcher.predict("client", "http://server/predict", new IntNode(1), 10000, 0).asInt());
+		Assert.assertEquals(102, batcher.predict("client", "http://server/predict", new IntNode(2), 10000, -1).asInt());
+		Assert.assertEquals(2, sender.calls.get());
+	}
+}
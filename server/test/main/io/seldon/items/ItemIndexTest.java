@@ -0,0 +1,128 @@
+/*
+ * Seldon -- open source prediction engine
+ * =======================================
+ *
+ * Copyright 2011-2015 Seldon Technologies Ltd and Rummble Ltd (http://www.seldon.io/)
+ *
+ * ********************************************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * ********************************************************************************************
+ */
+
+
+package io.seldon.items;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+
+import junit.framework.Assert;
+
+import org.junit.Test;
+
+public class ItemIndexTest {
+
+	private static Map<Integer,String> dims(Object... dimAttrs)
+	{
+		Map<Integer,String> res = new HashMap<>();
+		for (int i = 0; i < dimAttrs.length; i += 2)
+			res.put((Integer) dimAttrs[i], (String) dimAttrs[i + 1]);
+		return res;
+	}
+
+	private ItemIndex createIndex()
+	{
+		ItemIndex index = new ItemIndex("test");
+		index.setItem(1, dims(10, "category", 20, "author"));
+		index.setItem(2, dims(11, "category", 20, "author"));
+		index.setItem(3, dims(10, "category", 21, "author"));
+		index.setItem(4, dims(11, "category"));
+		index.setItem(5, dims());
+		return index;
+	}
+
+	@Test
+	public void recentItemsByDimension()
+	{
+		ItemIndex index = createIndex();
+		Assert.assertEquals(Arrays.asList(5L, 4L, 3L), index.getRecentItemIds(Collections.<Integer>emptySet(), 3));
+		Assert.assertEquals(Arrays.asList(5L, 4L), index.getRecentItemIds(Collections.singleton(0), 2));
+		Assert.assertEquals(Arrays.asList(3L, 1L), index.getRecentItemIds(Collections.singleton(10), 10));
+		Assert.assertEquals(Arrays.asList(4L, 3L, 2L), index.getRecentItemIds(new HashSet<>(Arrays.asList(10, 11)), 3));
+		Assert.assertEquals(0, index.getRecentItemIds(Collections.singleton(99), 3).size());
+	}
+
+	@Test
+	public void recentItemsByTwoDimensions()
+	{
+		ItemIndex index = createIndex();
+		Assert.assertEquals(Arrays.asList(2L, 1L), index.getRecentItemIdsTwoDimensions(new HashSet<>(Arrays.asList(10, 11)), 20, 10));
+		Assert.assertEquals(Arrays.asList(1L), index.getRecentItemIdsTwoDimensions(Collections.singleton(10), 20, 10));
+		Assert.assertEquals(Arrays.asList(3L), index.getRecentItemIdsTwoDimensions(Collections.singleton(0), 21, 10));
+		Assert.assertEquals(0, index.getRecentItemIdsTwoDimensions(Collections.singleton(10), 99, 10).size());
+	}
+
+	@Test
+	public void updatingItemReplacesDimensions()
+	{
+		ItemIndex index = createIndex();
+		index.setItem(1, dims(11, "category"));
+		Assert.assertEquals(Arrays.asList(3L), index.getRecentItemIds(Collections.singleton(10), 10));
+		Assert.assertEquals(Arrays.asList(4L, 2L, 1L), index.getRecentItemIds(Collections.singleton(11), 10));
+		Map<String,Integer> expected = new HashMap<>();
+		expected.put("category", 11);
+		Assert.assertEquals(expected, index.getDimensionIdsForItem(1));
+		Assert.assertEquals(5, index.size());
+		Assert.assertEquals(5, index.getMaxItemId());
+	}
+
+	@Test
+	public void dimensionIdsForItem()
+	{
+		ItemIndex index = createIndex();
+		Map<String,Integer> expected = new HashMap<>();
+		expected.put("category", 10);
+		expected.put("author", 21);
+		Assert.assertEquals(expected, index.getDimensionIdsForItem(3));
+		Assert.assertEquals(0, index.getDimensionIdsForItem(5).size());
+		Assert.assertNull(index.getDimensionIdsForItem(6));
+	}
+
+	@Test
+	public void tagsAreIndexedOnceRequested()
+	{
+		ItemIndex index = createIndex();
+		Assert.assertNull(index.getRecentItemIdsWithTags(7, Collections.singleton("sport"), 10));
+		Assert.assertEquals(Collections.singleton(7), index.getRequestedTagAttrs());
+		index.addTagAttr(7);
+		Assert.assertTrue(index.getRequestedTagAttrs().isEmpty());
+		index.setTags(7, 1, "Sport, news");
+		index.setTags(7, 2, "music");
+		index.setTags(7, 3, "news,sport");
+		index.setTags(7, 4, "");
+		Assert.assertEquals(Arrays.asList(3L, 1L), index.getRecentItemIdsWithTags(7, Collections.singleton("sport"), 10));
+		Assert.assertEquals(Arrays.asList(3L, 2L, 1L), index.getRecentItemIdsWithTags(7, new HashSet<>(Arrays.asList("sport", "music")), 10));
+		// the limit is on the most recent items with tags before matching, as with the database query
+		Assert.assertEquals(Arrays.asList(3L), index.getRecentItemIdsWithTags(7, Collections.singleton("sport"), 2));
+
+		// reloading an item clears its tags until they are set again
+		index.setItem(3, dims(10, "category"));
+		Assert.assertEquals(Arrays.asList(1L), index.getRecentItemIdsWithTags(7, Collections.singleton("sport"), 10));
+		index.setTags(7, 3, "music");
+		Assert.assertEquals(Arrays.asList(3L, 2L), index.getRecentItemIdsWithTags(7, Collections.singleton("music"), 10));
+	}
+}
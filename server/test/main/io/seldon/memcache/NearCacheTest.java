@@ -0,0 +1,135 @@
+/*
+ * Seldon -- open source prediction engine
+ * =======================================
+ *
+ * Copyright 2011-2015 Seldon Technologies Ltd and Rummble Ltd (http://www.seldon.io/)
+ *
+ * ********************************************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * ********************************************************************************************
+ */
+
+package io.seldon.memcache;
+
+import java.util.Arrays;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import junit.framework.Assert;
+
+import org.junit.Test;
+
+public class NearCacheTest {
+
+	@Test
+	public void valuesExpireAfterTheirTTL() throws InterruptedException
+	{
+		NearCache cache = new NearCache(100);
+		cache.put("PopularItemsJSON:c1", "a", 1);
+		Assert.assertEquals("a", cache.get("PopularItemsJSON:c1"));
+		Thread.sleep(1100);
+		Assert.assertNull(cache.get("PopularItemsJSON:c1"));
+		NearCache.FamilyStats stats = cache.getStats().get("PopularItemsJSON");
+		Assert.assertEquals(1, stats.getHits());
+		Assert.assertEquals(1, stats.getMisses());
+	}
+
+	@Test
+	public void weightIsBounded()
+	{
+		NearCache cache = new NearCache(50);
+		for (int i = 0; i < 200; i++)
+			cache.put("TopClusterCounts:c1:"+i, Arrays.asList(1L, 2L, 3L, 4L), 60);
+		Assert.assertTrue(cache.weight() <= 50);
+		Assert.assertTrue(cache.size() > 0);
+		Assert.assertTrue(cache.getStats().get("TopClusterCounts").getEvictions() > 0);
+	}
+
+	@Test
+	public void frequentlyUsedEntriesSurviveAScan()
+	{
+		NearCache cache = new NearCache(100);
+		for (int i = 0; i < 20; i++)
+			cache.put("hot:"+i, i, 60);
+		for (int r = 0; r < 5; r++)
+			for (int i = 0; i < 20; i++)
+				cache.get("hot:"+i);
+		// a one off scan of many keys shouldn't flush the hot ones
+		for (int i = 0; i < 1000; i++)
+		{
+			cache.get("scan:"+i);
+			cache.put("scan:"+i, i, 60);
+		}
+		int hot = 0;
+		for (int i = 0; i < 20; i++)
+			if (cache.get("hot:"+i) != null)
+				hot++;
+		Assert.assertTrue("only "+hot+" hot entries kept", hot >= 18);
+	}
+
+	@Test
+	public void concurrentMissesLoadOnce() throws Exception
+	{
+		final NearCache cache = new NearCache(100);
+		final AtomicInteger loads = new AtomicInteger();
+		final CountDownLatch start = new CountDownLatch(1);
+		final CountDownLatch done = new CountDownLatch(8);
+		final Callable<Object> loader = new Callable<Object>() {
+			@Override
+			public Object call() throws Exception {
+				loads.incrementAndGet();
+				Thread.sleep(200);
+				return "v";
+			}
+		};
+		for (int i = 0; i < 8; i++)
+		{
+			new Thread(new Runnable() {
+				@Override
+				public void run() {
+					try
+					{
+						start.await();
+						Assert.assertEquals("v", cache.get("k", 60, loader));
+					}
+					catch (Exception e)
+					{
+						throw new RuntimeException(e);
+					}
+					finally
+					{
+						done.countDown();
+					}
+				}
+			}).start();
+		}
+		start.countDown();
+		done.await();
+		Assert.assertEquals(1, loads.get());
+		Assert.assertEquals("v", cache.get("k"));
+	}
+
+	@Test
+	public void invalidateRemoves()
+	{
+		NearCache cache = new NearCache(100);
+		cache.put("k", "v", 60);
+		cache.invalidate("k");
+		Assert.assertNull(cache.get("k"));
+		cache.put("k", "v", 0);
+		Assert.assertNull(cache.get("k"));
+	}
+}
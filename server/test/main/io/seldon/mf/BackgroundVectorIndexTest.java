@@ -0,0 +1,92 @@
+/*
+ * Seldon -- open source prediction engine
+ * =======================================
+ *
+ * Copyright 2011-2015 Seldon Technologies Ltd and Rummble Ltd (http://www.seldon.io/)
+ *
+ * ********************************************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * ********************************************************************************************
+ */
+
+package io.seldon.mf;
+
+import it.unimi.dsi.fastutil.longs.LongSets;
+
+import java.nio.FloatBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Executor;
+
+import junit.framework.Assert;
+
+import org.junit.Test;
+
+public class BackgroundVectorIndexTest {
+
+	private static class QueuedExecutor implements Executor {
+		final List<Runnable> tasks = new ArrayList<>();
+
+		@Override
+		public void execute(Runnable command) {
+			tasks.add(command);
+		}
+	}
+
+	private FactorMatrix createRandomMatrix(int rows, int rank, Random r)
+	{
+		long[] ids = new long[rows];
+		float[] factors = new float[rows * rank];
+		for (int i = 0; i < rows; i++)
+			ids[i] = 1000 + i;
+		for (int i = 0; i < factors.length; i++)
+			factors[i] = (float) r.nextGaussian();
+		return new FactorMatrix(ids, FloatBuffer.wrap(factors), rank);
+	}
+
+	@Test
+	public void queriesAreExactUntilTheBackgroundBuildCompletes()
+	{
+		Random r = new Random(1);
+		FactorMatrix m = createRandomMatrix(2000, 8, r);
+		QueuedExecutor executor = new QueuedExecutor();
+		BackgroundVectorIndex index = new BackgroundVectorIndex(m, m, 1000, executor);
+		float[] query = m.getVector(1000L);
+
+		// nothing is built until the index is first queried
+		Assert.assertTrue(executor.tasks.isEmpty());
+		Assert.assertEquals(m.topK(query, LongSets.EMPTY_SET, 10), index.topK(query, LongSets.EMPTY_SET, 10));
+		index.topK(query, LongSets.EMPTY_SET, 10);
+		Assert.assertEquals(1, executor.tasks.size());
+		Assert.assertFalse(index.isReady());
+
+		executor.tasks.get(0).run();
+		Assert.assertTrue(index.isReady());
+		Assert.assertEquals(10, index.topK(query, LongSets.EMPTY_SET, 10).size());
+	}
+
+	@Test
+	public void smallMatricesAreNeverIndexed()
+	{
+		Random r = new Random(1);
+		FactorMatrix m = createRandomMatrix(100, 8, r);
+		QueuedExecutor executor = new QueuedExecutor();
+		BackgroundVectorIndex index = new BackgroundVectorIndex(m, m, 1000, executor);
+		index.topK(m.getVector(1000L), LongSets.EMPTY_SET, 10);
+		Assert.assertTrue(executor.tasks.isEmpty());
+		Assert.assertFalse(index.isReady());
+	}
+}
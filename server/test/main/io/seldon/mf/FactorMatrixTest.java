@@ -0,0 +1,157 @@
+/*
+ * Seldon -- open source prediction engine
+ * =======================================
+ *
+ * Copyright 2011-2015 Seldon Technologies Ltd and Rummble Ltd (http://www.seldon.io/)
+ *
+ * ********************************************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * ********************************************************************************************
+ */
+
+
+package io.seldon.mf;
+
+import io.seldon.clustering.recommender.ItemRecommendationResultSet.ItemRecommendationResult;
+import io.seldon.recommendation.model.BinaryModelFile;
+import io.seldon.resources.external.LocalFileStreamer;
+import it.unimi.dsi.fastutil.longs.LongOpenHashSet;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.List;
+
+import junit.framework.Assert;
+
+import org.junit.Test;
+
+public class FactorMatrixTest {
+
+	private ByteBuffer createBinaryMatrix(long[] ids, float[] factors, int rank)
+	{
+		ByteBuffer b = ByteBuffer.allocate(BinaryModelFile.HEADER_SIZE + 8 * ids.length + 4 * factors.length).order(BinaryModelFile.ORDER);
+		b.putInt(BinaryModelFile.MAGIC).putInt(BinaryModelFile.VERSION).putInt(BinaryModelFile.TYPE_FACTOR_MATRIX)
+			.putInt(rank).putLong(ids.length).putLong(0);
+		for (long id : ids)
+			b.putLong(id);
+		for (float f : factors)
+			b.putFloat(f);
+		b.flip();
+		return b;
+	}
+
+	private File writeBinaryMatrix(long[] ids, float[] factors, int rank) throws IOException
+	{
+		File f = File.createTempFile("factors", ".bin");
+		f.deleteOnExit();
+		try (FileOutputStream out = new FileOutputStream(f))
+		{
+			out.write(createBinaryMatrix(ids, factors, rank).array());
+		}
+		return f;
+	}
+
+	@Test
+	public void testMappedBinaryMatrix() throws IOException
+	{
+		File f = writeBinaryMatrix(new long[] {5L, 7L}, new float[] {1.0f, 2.0f, 3.0f, 4.0f}, 2);
+
+		FactorMatrix m;
+		try (FileChannel channel = new LocalFileStreamer().getResourceChannel(f.getAbsolutePath()))
+		{
+			m = FactorMatrix.fromChannel(channel);
+		}
+		Assert.assertEquals(2, m.size());
+		Assert.assertEquals(2, m.rank());
+		Assert.assertEquals(1, m.getRow(7L));
+		Assert.assertEquals(-1, m.getRow(6L));
+		float[] v = m.getVector(7L);
+		Assert.assertEquals(3.0f, v[0]);
+		Assert.assertEquals(4.0f, v[1]);
+		Assert.assertEquals(11.0f, m.dot(1, new float[] {1.0f, 2.0f}));
+	}
+
+	@Test
+	public void testMappedInChunks() throws IOException
+	{
+		int rows = 7;
+		int rank = 3;
+		long[] ids = new long[rows];
+		float[] factors = new float[rows * rank];
+		for (int i = 0; i < rows; i++)
+		{
+			ids[i] = 100 + i;
+			for (int j = 0; j < rank; j++)
+				factors[i * rank + j] = i + j / 10.0f;
+		}
+		File f = writeBinaryMatrix(ids, factors, rank);
+
+		FactorMatrix m;
+		try (FileChannel channel = new LocalFileStreamer().getResourceChannel(f.getAbsolutePath()))
+		{
+			// two rows of 12 bytes per chunk, so rows are spread over four buffers
+			m = FactorMatrix.fromChannel(channel, 30);
+		}
+		Assert.assertEquals(rows, m.size());
+		for (int i = 0; i < rows; i++)
+		{
+			Assert.assertEquals(i, m.getRow(100 + i));
+			float[] v = m.getVector(100 + i);
+			for (int j = 0; j < rank; j++)
+			{
+				Assert.assertEquals(i + j / 10.0f, v[j]);
+				Assert.assertEquals(i + j / 10.0f, m.get(i, j));
+			}
+		}
+		List<ItemRecommendationResult> top = m.topK(new float[] {1.0f, 0.0f, 0.0f}, new LongOpenHashSet(), 3);
+		Assert.assertEquals(3, top.size());
+		Assert.assertEquals(106L, top.get(0).item.longValue());
+		Assert.assertEquals(105L, top.get(1).item.longValue());
+		Assert.assertEquals(104L, top.get(2).item.longValue());
+	}
+
+	@Test(expected=IOException.class)
+	public void testMappedTruncated() throws IOException
+	{
+		File f = writeBinaryMatrix(new long[] {5L, 7L}, new float[] {1.0f, 2.0f, 3.0f, 4.0f}, 2);
+		try (RandomAccessFile raf = new RandomAccessFile(f, "rw"))
+		{
+			raf.setLength(raf.length() - 4);
+		}
+		try (FileChannel channel = new LocalFileStreamer().getResourceChannel(f.getAbsolutePath()))
+		{
+			FactorMatrix.fromChannel(channel);
+		}
+	}
+
+	@Test(expected=IOException.class)
+	public void testBadMagic() throws IOException
+	{
+		ByteBuffer b = createBinaryMatrix(new long[] {5L}, new float[] {1.0f}, 1);
+		b.putInt(0, 0);
+		FactorMatrix.fromBuffer(b);
+	}
+
+	@Test(expected=IOException.class)
+	public void testTruncated() throws IOException
+	{
+		ByteBuffer b = createBinaryMatrix(new long[] {5L, 7L}, new float[] {1.0f, 2.0f}, 2);
+		FactorMatrix.fromBuffer(b);
+	}
+}
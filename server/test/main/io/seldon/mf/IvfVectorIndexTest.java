@@ -0,0 +1,88 @@
+/*
+ * Seldon -- open source prediction engine
+ * =======================================
+ *
+ * Copyright 2011-2015 Seldon Technologies Ltd and Rummble Ltd (http://www.seldon.io/)
+ *
+ * ********************************************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * ********************************************************************************************
+ */
+
+
+package io.seldon.mf;
+
+import io.seldon.clustering.recommender.ItemRecommendationResultSet.ItemRecommendationResult;
+import it.unimi.dsi.fastutil.longs.LongOpenHashSet;
+import it.unimi.dsi.fastutil.longs.LongSet;
+
+import java.nio.FloatBuffer;
+import java.util.List;
+import java.util.Random;
+
+import junit.framework.Assert;
+
+import org.junit.Test;
+
+public class IvfVectorIndexTest {
+
+	private FactorMatrix createRandomMatrix(int rows, int rank, Random r)
+	{
+		long[] ids = new long[rows];
+		float[] factors = new float[rows * rank];
+		for (int i = 0; i < rows; i++)
+			ids[i] = 1000 + i;
+		for (int i = 0; i < factors.length; i++)
+			factors[i] = (float) r.nextGaussian();
+		return new FactorMatrix(ids, FloatBuffer.wrap(factors), rank);
+	}
+
+	@Test
+	public void testProbingAllListsIsExact()
+	{
+		Random r = new Random(1);
+		FactorMatrix m = createRandomMatrix(2000, 8, r);
+		IvfVectorIndex index = IvfVectorIndex.build(m, 20, 5, 20, r);
+		Assert.assertEquals(1.0, index.measureRecall(m, 20, 10, r), 0.0001);
+	}
+
+	@Test
+	public void testPartialProbeRecall()
+	{
+		Random r = new Random(1);
+		FactorMatrix m = createRandomMatrix(5000, 8, r);
+		IvfVectorIndex index = IvfVectorIndex.build(m, IvfVectorIndex.defaultNumLists(m.size()), 10, 20, r);
+		double recall = index.measureRecall(m, 50, 10, r);
+		Assert.assertTrue("recall was " + recall, recall > 0.5);
+		Assert.assertEquals(recall, index.getRecall());
+	}
+
+	@Test
+	public void testExclusions()
+	{
+		Random r = new Random(1);
+		FactorMatrix m = createRandomMatrix(500, 4, r);
+		IvfVectorIndex index = IvfVectorIndex.build(m, 5, 5, 5, r);
+		float[] query = m.getVector(1000L);
+		List<ItemRecommendationResult> exact = m.topK(query, new LongOpenHashSet(), 3);
+		LongSet excluded = new LongOpenHashSet();
+		excluded.add(exact.get(0).item);
+		List<ItemRecommendationResult> res = index.topK(query, excluded, 3);
+		Assert.assertEquals(3, res.size());
+		for (ItemRecommendationResult result : res)
+			Assert.assertFalse(excluded.contains(result.item.longValue()));
+		Assert.assertEquals(exact.get(1).item, res.get(0).item);
+	}
+}
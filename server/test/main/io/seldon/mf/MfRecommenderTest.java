@@ -0,0 +1,150 @@
+/*
+ * Seldon -- open source prediction engine
+ * =======================================
+ *
+ * Copyright 2011-2015 Seldon Technologies Ltd and Rummble Ltd (http://www.seldon.io/)
+ *
+ * ********************************************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * ********************************************************************************************
+ */
+
+
+package io.seldon.mf;
+
+import static org.easymock.EasyMock.createMock;
+import static org.easymock.EasyMock.expect;
+import static org.easymock.EasyMock.replay;
+import static org.easymock.EasyMock.verify;
+import io.seldon.clustering.recommender.ItemRecommendationResultSet;
+import io.seldon.clustering.recommender.RecommendationContext;
+import io.seldon.mf.MfFeaturesManager.ClientMfFeaturesStore;
+
+import java.nio.FloatBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import junit.framework.Assert;
+
+import org.junit.Before;
+import org.junit.Test;
+
+public class MfRecommenderTest {
+
+	private MfFeaturesManager mockFeaturesManager;
+	private RecommendationContext mockCtxt;
+	private RecommendationContext.OptionsHolder mockOptions;
+
+	@Before
+	public void createMocks()
+	{
+		mockFeaturesManager = createMock(MfFeaturesManager.class);
+		mockCtxt = createMock(RecommendationContext.class);
+		mockOptions = createMock(RecommendationContext.OptionsHolder.class);
+	}
+
+	private ClientMfFeaturesStore createStore()
+	{
+		FactorMatrix users = new FactorMatrix(new long[] {1L}, FloatBuffer.wrap(new float[] {1.0f, 0.5f}), 2);
+		FactorMatrix products = new FactorMatrix(new long[] {10L, 11L, 12L, 13L},
+				FloatBuffer.wrap(new float[] {1.0f, 0.0f, 0.5f, 0.0f, 2.0f, 0.0f, 0.0f, 1.5f}), 2);
+		return new ClientMfFeaturesStore(users, products);
+	}
+
+	@Test
+	public void testNoUserFeatures()
+	{
+		final String client = "test";
+		Set<Integer> dimensions = new HashSet<Integer>();
+		expect(mockFeaturesManager.getClientStore(client, mockOptions)).andReturn(createStore());
+		replay(mockFeaturesManager);
+		expect(mockCtxt.getOptsHolder()).andReturn(mockOptions);
+		replay(mockCtxt, mockOptions);
+
+		MfRecommender r = new MfRecommender(mockFeaturesManager);
+		ItemRecommendationResultSet res = r.recommend(client, 2L, dimensions, 50, mockCtxt, new ArrayList<Long>());
+
+		verify(mockFeaturesManager, mockCtxt, mockOptions);
+		Assert.assertEquals(0, res.getResults().size());
+	}
+
+	@Test
+	public void testTopKWithExclusions()
+	{
+		final String client = "test";
+		Set<Integer> dimensions = new HashSet<Integer>();
+		expect(mockFeaturesManager.getClientStore(client, mockOptions)).andReturn(createStore());
+		replay(mockFeaturesManager);
+		expect(mockCtxt.getOptsHolder()).andReturn(mockOptions);
+		expect(mockCtxt.getMode()).andReturn(RecommendationContext.MODE.EXCLUSION);
+		expect(mockOptions.getBooleanOption(MfRecommender.ANN_OPTION_NAME)).andReturn(true);
+		replay(mockCtxt, mockOptions);
+
+		MfRecommender r = new MfRecommender(mockFeaturesManager);
+		List<Long> recent = new ArrayList<Long>();
+		recent.add(12L);
+		ItemRecommendationResultSet res = r.recommend(client, 1L, dimensions, 2, mockCtxt, recent);
+
+		verify(mockFeaturesManager, mockCtxt, mockOptions);
+		List<ItemRecommendationResultSet.ItemRecommendationResult> results = res.getResults();
+		Assert.assertEquals(2, results.size());
+		Assert.assertEquals(10L, results.get(0).item.longValue());
+		Assert.assertEquals(1.0f, results.get(0).score, 0.0001f);
+		Assert.assertEquals(13L, results.get(1).item.longValue());
+		Assert.assertEquals(0.75f, results.get(1).score, 0.0001f);
+	}
+
+	@Test
+	public void testInclusion()
+	{
+		final String client = "test";
+		Set<Integer> dimensions = new HashSet<Integer>();
+		expect(mockFeaturesManager.getClientStore(client, mockOptions)).andReturn(createStore());
+		replay(mockFeaturesManager);
+		expect(mockCtxt.getOptsHolder()).andReturn(mockOptions);
+		expect(mockCtxt.getMode()).andReturn(RecommendationContext.MODE.INCLUSION);
+		Set<Long> contextItems = new HashSet<Long>();
+		contextItems.add(11L);
+		contextItems.add(12L);
+		contextItems.add(99L);
+		expect(mockCtxt.getContextItems()).andReturn(contextItems);
+		replay(mockCtxt, mockOptions);
+
+		MfRecommender r = new MfRecommender(mockFeaturesManager);
+		ItemRecommendationResultSet res = r.recommend(client, 1L, dimensions, 50, mockCtxt, Collections.singletonList(12L));
+
+		verify(mockFeaturesManager, mockCtxt, mockOptions);
+		Assert.assertEquals(1, res.getResults().size());
+		Assert.assertEquals(11L, res.getResults().get(0).item.longValue());
+	}
+
+	@Test
+	public void testHeapKeepsHighestScoresInOrder()
+	{
+		TopItemsHeap heap = new TopItemsHeap(3);
+		float[] scores = {0.1f, 0.9f, 0.3f, 0.7f, 0.5f, 0.2f};
+		for (int i = 0; i < scores.length; i++)
+			heap.offer(i, scores[i]);
+		List<ItemRecommendationResultSet.ItemRecommendationResult> res = heap.drain();
+		Assert.assertEquals(3, res.size());
+		Assert.assertEquals(1L, res.get(0).item.longValue());
+		Assert.assertEquals(3L, res.get(1).item.longValue());
+		Assert.assertEquals(4L, res.get(2).item.longValue());
+		Assert.assertEquals(0, heap.size());
+	}
+}
@@ -0,0 +1,178 @@
+/*
+ * Seldon -- open source prediction engine
+ * =======================================
+ * Copyright 2011-2015 Seldon Technologies Ltd and Rummble Ltd (http://www.seldon.io/)
+ *
+ **********************************************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ **********************************************************************************************
+*/
+package io.seldon.recommendation;
+
+import io.seldon.api.state.options.DefaultOptions;
+import io.seldon.api.statsd.StatsdKeys;
+import io.seldon.api.statsd.StatsdPeer;
+import io.seldon.clustering.recommender.ItemRecommendationAlgorithm;
+import io.seldon.clustering.recommender.ItemRecommendationResultSet;
+import io.seldon.clustering.recommender.RecommendationContext;
+import io.seldon.recommendation.RecommendationPeer.RecResultContext;
+import io.seldon.recommendation.combiner.FirstSuccessfulCombiner;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import junit.framework.Assert;
+
+import org.junit.After;
+import org.junit.Test;
+
+public class RecommendationPeerTest {
+
+	private static final String TIMEOUT_OPTION = "io.seldon.algorithm.general.timeoutms";
+
+	private final Map<String,String> threads = new ConcurrentHashMap<>();
+	private RecommendationPeer peer;
+
+	private class TestAlgorithm implements ItemRecommendationAlgorithm {
+		final String name;
+		final long sleepMs;
+		final CountDownLatch waitFor;
+		final CountDownLatch release;
+
+		TestAlgorithm(String name, long sleepMs, CountDownLatch waitFor, CountDownLatch release)
+		{
+			this.name = name;
+			this.sleepMs = sleepMs;
+			this.waitFor = waitFor;
+			this.release = release;
+		}
+
+		@Override
+		public ItemRecommendationResultSet recommend(String client, Long user, Set<Integer> dimensions, int maxRecsCount,
+				RecommendationContext ctxt, List<Long> recentItemInteractions) {
+			threads.put(name, Thread.currentThread().getName());
+			try
+			{
+				if (release != null)
+					release.countDown();
+				if (waitFor != null && !waitFor.await(2, TimeUnit.SECONDS))
+					throw new IllegalStateException(name+" was not released");
+				if (sleepMs > 0)
+					Thread.sleep(sleepMs);
+			}
+			catch (InterruptedException e)
+			{
+				Thread.currentThread().interrupt();
+			}
+			return new ItemRecommendationResultSet(Arrays.asList(new ItemRecommendationResultSet.ItemRecommendationResult(1L, 1.0f)), name);
+		}
+
+		@Override
+		public String name() {
+			return name;
+		}
+	}
+
+	private RecommendationPeer createPeer(int threads, int queueSize)
+	{
+		peer = new RecommendationPeer(null, new DefaultOptions());
+		peer.parallelAlgorithms = true;
+		peer.parallelThreads = threads;
+		peer.parallelQueueSize = queueSize;
+		peer.initialise();
+		return peer;
+	}
+
+	@After
+	public void tearDown()
+	{
+		if (peer != null)
+			peer.shutdown();
+	}
+
+	private static AlgorithmStrategy strategy(ItemRecommendationAlgorithm algorithm, int timeoutMs)
+	{
+		Map<String,String> config = new HashMap<>();
+		config.put(TIMEOUT_OPTION, ""+timeoutMs);
+		return new AlgorithmStrategy(algorithm, null, null, config, algorithm.name());
+	}
+
+	private List<RecResultContext> run(String client, AlgorithmStrategy... algorithms)
+	{
+		List<RecResultContext> resultSets = new ArrayList<>();
+		peer.runAlgorithmsInParallel(Arrays.asList(algorithms), new FirstSuccessfulCombiner(), resultSets, 1L, client, "user",
+				Collections.<Integer>emptySet(), 10, 10, null, null, null, null, null);
+		return resultSets;
+	}
+
+	private static List<String> algKeys(List<RecResultContext> resultSets)
+	{
+		List<String> keys = new ArrayList<>();
+		for (RecResultContext r : resultSets)
+			keys.add(r.algKey);
+		return keys;
+	}
+
+	@Test
+	public void algorithmsRunConcurrentlyInStrategyOrder()
+	{
+		createPeer(4, 4);
+		// each algorithm only finishes once both have started so a sequential run would time out
+		CountDownLatch started = new CountDownLatch(2);
+		List<RecResultContext> resultSets = run("c1",
+				strategy(new TestAlgorithm("a", 50, started, started), 1000),
+				strategy(new TestAlgorithm("b", 0, started, started), 1000));
+		Assert.assertEquals(Arrays.asList("a", "b"), algKeys(resultSets));
+		Assert.assertFalse(threads.get("a").equals(Thread.currentThread().getName()));
+		Assert.assertFalse(threads.get("a").equals(threads.get("b")));
+	}
+
+	@Test
+	public void slowAlgorithmIsLeftOutAndCounted()
+	{
+		createPeer(4, 4);
+		String client = "timeoutTest";
+		long start = System.currentTimeMillis();
+		List<RecResultContext> resultSets = run(client,
+				strategy(new TestAlgorithm("slow", 1000, null, null), 50),
+				strategy(new TestAlgorithm("fast", 0, null, null), 1000));
+		Assert.assertTrue(System.currentTimeMillis() - start < 1000);
+		Assert.assertEquals(Arrays.asList("fast"), algKeys(resultSets));
+		Assert.assertEquals(1L, StatsdPeer.getMetrics().getValues(client).get(StatsdKeys.getAlgorithmTimeout(client, "slow")));
+	}
+
+	@Test
+	public void rejectedWhenPoolIsFull()
+	{
+		createPeer(1, 1);
+		// a holds the only thread and b waits in the queue so c is rejected rather than run on the caller
+		String client = "rejectTest";
+		List<RecResultContext> resultSets = run(client,
+				strategy(new TestAlgorithm("a", 100, null, null), 1000),
+				strategy(new TestAlgorithm("b", 0, null, null), 1000),
+				strategy(new TestAlgorithm("c", 0, null, null), 1000));
+		Assert.assertEquals(Arrays.asList("a", "b"), algKeys(resultSets));
+		Assert.assertNull(threads.get("c"));
+		Assert.assertEquals(1L, StatsdPeer.getMetrics().getValues(client).get(StatsdKeys.getAlgorithmTimeout(client, "c")));
+	}
+}
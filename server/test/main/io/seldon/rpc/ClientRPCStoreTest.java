@@ -239,6 +239,21 @@ public class ClientRPCStoreTest {
 		Assert.assertNotNull(json);
 		System.out.println(json);
 	}
-	
-	
+
+	@Test
+	public void testGetRequestDataForDefaultRequest()
+	{
+		mockClientConfigHandler.addListener((ClientConfigUpdateListener) EasyMock.anyObject());
+		EasyMock.expectLastCall().once();
+		replay(mockClientConfigHandler);
+		final String client = "test";
+		ClientRpcStore store = new ClientRpcStore(mockClientConfigHandler);
+		DefaultCustomPredictRequest data = DefaultCustomPredictRequest.newBuilder().addValues(1.0f).addValues(2.0f).build();
+		ClassificationRequest request = ClassificationRequest.newBuilder().setData(Any.pack(data)).build();
+		Assert.assertEquals(data, store.getRequestData(client, request));
+		// data of another type than the client's request, or none at all
+		ClassificationRequest other = ClassificationRequest.newBuilder().setData(Any.pack(CustomPredictRequest.newBuilder().addData(1.0f).build())).build();
+		Assert.assertNull(store.getRequestData(client, other));
+		Assert.assertNull(store.getRequestData(client, ClassificationRequest.getDefaultInstance()));
+	}
 }
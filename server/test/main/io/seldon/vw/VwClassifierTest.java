@@ -0,0 +1,131 @@
+/*
+ * Seldon -- open source prediction engine
+ * =======================================
+ *
+ * Copyright 2011-2015 Seldon Technologies Ltd and Rummble Ltd (http://www.seldon.io/)
+ *
+ * ********************************************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * ********************************************************************************************
+ */
+
+
+package io.seldon.vw;
+
+import io.seldon.prediction.PredictionResult;
+import io.seldon.prediction.PredictionServiceResult;
+import io.seldon.vw.VwFeatureExtractor.Namespace;
+import io.seldon.vw.VwModelManager.VwModel;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import junit.framework.Assert;
+
+import org.junit.Test;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+public class VwClassifierTest {
+
+	private static VwModel createModel(int bits,int oaa)
+	{
+		Random r = new Random(7);
+		float[] weights = new float[1 << bits];
+		for (int i = 0; i < weights.length; i++)
+			weights[i] = r.nextFloat() - 0.5f;
+		return new VwModel(bits, oaa, weights, weights.length, Collections.<Integer,String>emptyMap());
+	}
+
+	/**
+	 * Score as VW does, hashing every feature for every class.
+	 */
+	private static float[] score(VwModel model,List<Namespace> namespaces)
+	{
+		float[] scores = new float[model.oaa];
+		for (int i = 0; i < model.oaa; i++)
+		{
+			for (Namespace n : namespaces)
+				for (Map.Entry<String, Float> e : n.features.entrySet())
+					scores[i] += e.getValue() * model.weights[model.hasher.getFeatureHash(i+1, n.name, e.getKey())];
+			scores[i] += model.weights[model.hasher.getConstantHash(i+1)];
+		}
+		return scores;
+	}
+
+	@Test
+	public void scoresMatchPerClassHashing() throws IOException
+	{
+		VwFeatureExtractor extractor = new VwFeatureExtractor();
+		VwClassifier classifier = new VwClassifier(null, extractor, null);
+		JsonNode json = new ObjectMapper().readTree("{\"f1\":1.5,\"12\":2.0,\"ns\":{\"a\":0.5,\"7\":1.0}}");
+		for (int oaa : new int[] {1, 3, 4})
+		{
+			VwModel model = createModel(12, oaa);
+			List<Namespace> namespaces = extractor.extract(json);
+			float[] expected = score(model, namespaces);
+			PredictionServiceResult res = classifier.predict(model, new VwClassifier.HashedFeatures(namespaces));
+			Assert.assertEquals(oaa, res.predictions.size());
+			for (int i = 0; i < oaa; i++)
+			{
+				PredictionResult p = res.predictions.get(i);
+				Assert.assertEquals(expected[i], p.prediction, 1e-6);
+			}
+		}
+	}
+
+	@Test
+	public void binaryNegativeScorePredictsNegativeClass()
+	{
+		float[] weights = new float[1 << 4];
+		VwModel model = new VwModel(4, 1, weights, 1, Collections.<Integer,String>emptyMap());
+		weights[model.hasher.getConstantHash(1)] = -1;
+		VwClassifier classifier = new VwClassifier(null, new VwFeatureExtractor(), null);
+		PredictionServiceResult res = classifier.predict(model, new VwClassifier.HashedFeatures(Collections.<Namespace>emptyList()));
+		Assert.assertEquals("-1", res.predictions.get(0).predictedClass);
+	}
+
+	@Test
+	public void largeModelsIndexWithinWeights()
+	{
+		for (int bits = 18; bits <= 30; bits++)
+			Assert.assertEquals((1 << bits) - 1, new VwFeatureHash(bits, 3).mask);
+
+		int bits = 25;
+		float[] weights = new float[1 << bits];
+		VwModel model = new VwModel(bits, 3, weights, 0, Collections.<Integer,String>emptyMap());
+		for (int label = 1; label <= 3; label++)
+		{
+			Assert.assertTrue(model.hasher.getConstantHash(label) < weights.length);
+			Assert.assertTrue(model.hasher.getIndex(-1, label) < weights.length);
+			weights[model.hasher.getConstantHash(label)] = label;
+		}
+		VwClassifier classifier = new VwClassifier(null, new VwFeatureExtractor(), null);
+		// integer features hash to themselves so these reach the top of the weight array
+		Map<String,Float> features = new HashMap<>();
+		features.put("-1", 1.0f);
+		Random r = new Random(3);
+		for (int i = 0; i < 1000; i++)
+			features.put(Integer.toString(r.nextInt()), 1.0f);
+		PredictionServiceResult res = classifier.predict(model, new VwClassifier.HashedFeatures(Collections.singletonList(new Namespace(features))));
+		Assert.assertEquals(3, res.predictions.size());
+		Assert.assertEquals(3.0, res.predictions.get(2).prediction, 1e-6);
+	}
+}
@@ -0,0 +1,118 @@
+/*
+ * Seldon -- open source prediction engine
+ * =======================================
+ *
+ * Copyright 2011-2015 Seldon Technologies Ltd and Rummble Ltd (http://www.seldon.io/)
+ *
+ * ********************************************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * ********************************************************************************************
+ */
+
+
+package io.seldon.vw;
+
+import io.seldon.api.resource.service.business.PredictionBusinessServiceImpl;
+import io.seldon.vw.VwFeatureExtractor.Namespace;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import junit.framework.Assert;
+
+import org.junit.Test;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.google.protobuf.DescriptorProtos.DescriptorProto;
+import com.google.protobuf.DescriptorProtos.FieldDescriptorProto;
+import com.google.protobuf.DescriptorProtos.FileDescriptorProto;
+import com.google.protobuf.Descriptors.Descriptor;
+import com.google.protobuf.Descriptors.FileDescriptor;
+import com.google.protobuf.DynamicMessage;
+import com.google.protobuf.Message;
+import com.google.protobuf.util.JsonFormat;
+
+public class VwFeatureExtractorTest {
+
+	private static FieldDescriptorProto field(String name,int number,FieldDescriptorProto.Type type,FieldDescriptorProto.Label label)
+	{
+		return FieldDescriptorProto.newBuilder().setName(name).setNumber(number).setType(type).setLabel(label).build();
+	}
+
+	/**
+	 * A client request message with a field of each kind the extractor has to handle.
+	 */
+	private static Descriptor requestDescriptor() throws Exception
+	{
+		DescriptorProto message = DescriptorProto.newBuilder().setName("TestRequest")
+				.addField(field("item_count", 1, FieldDescriptorProto.Type.TYPE_INT32, FieldDescriptorProto.Label.LABEL_OPTIONAL))
+				.addField(field("score", 2, FieldDescriptorProto.Type.TYPE_FLOAT, FieldDescriptorProto.Label.LABEL_OPTIONAL))
+				.addField(field("big", 3, FieldDescriptorProto.Type.TYPE_INT64, FieldDescriptorProto.Label.LABEL_OPTIONAL))
+				.addField(field("values", 4, FieldDescriptorProto.Type.TYPE_FLOAT, FieldDescriptorProto.Label.LABEL_REPEATED))
+				.addField(field("ratio", 5, FieldDescriptorProto.Type.TYPE_DOUBLE, FieldDescriptorProto.Label.LABEL_OPTIONAL))
+				.addField(field("label", 6, FieldDescriptorProto.Type.TYPE_STRING, FieldDescriptorProto.Label.LABEL_OPTIONAL))
+				.addField(field("weight", 7, FieldDescriptorProto.Type.TYPE_DOUBLE, FieldDescriptorProto.Label.LABEL_OPTIONAL))
+				.build();
+		FileDescriptorProto file = FileDescriptorProto.newBuilder().setName("test_request.proto").setPackage("io.seldon.vw.test")
+				.setSyntax("proto3").addMessageType(message).build();
+		return FileDescriptor.buildFrom(file, new FileDescriptor[0]).findMessageTypeByName("TestRequest");
+	}
+
+	private static Map<String, Float> features(List<Namespace> namespaces,String name)
+	{
+		for (Namespace n : namespaces)
+			if (n.name.equals(name))
+				return n.features;
+		return null;
+	}
+
+	@Test
+	public void protoGivesSameFeaturesAsJson() throws Exception
+	{
+		Descriptor descriptor = requestDescriptor();
+		// ratio is left at its default so it isn't sent
+		DynamicMessage sent = DynamicMessage.newBuilder(descriptor)
+				.setField(descriptor.findFieldByName("item_count"), 3)
+				.setField(descriptor.findFieldByName("score"), 0.25f)
+				.setField(descriptor.findFieldByName("big"), 123456789012L)
+				.addRepeatedField(descriptor.findFieldByName("values"), 1.0f)
+				.addRepeatedField(descriptor.findFieldByName("values"), 2.0f)
+				.setField(descriptor.findFieldByName("label"), "x")
+				.setField(descriptor.findFieldByName("weight"), 1.5)
+				.build();
+		// read back from the wire as the rpc store does
+		Message data = DynamicMessage.parseFrom(descriptor, sent.toByteArray());
+
+		ObjectMapper mapper = new ObjectMapper();
+		ObjectNode json = mapper.createObjectNode();
+		json.set(PredictionBusinessServiceImpl.REQUEST_CUSTOM_DATA_FIELD, mapper.readTree(JsonFormat.printer().print(data)));
+
+		VwFeatureExtractor extractor = new VwFeatureExtractor();
+		List<Namespace> fromJson = extractor.extract(json);
+		List<Namespace> fromProto = extractor.extract(data);
+
+		Map<String, Float> expected = new HashMap<>();
+		expected.put("itemCount", 3.0f);
+		expected.put("score", 0.25f);
+		expected.put("weight", 1.5f);
+		Assert.assertEquals(expected, features(fromJson, PredictionBusinessServiceImpl.REQUEST_CUSTOM_DATA_FIELD));
+		Assert.assertEquals(expected, features(fromProto, PredictionBusinessServiceImpl.REQUEST_CUSTOM_DATA_FIELD));
+		// the JSON request has nothing else at the top level
+		Assert.assertTrue(features(fromJson, "").isEmpty());
+		Assert.assertEquals(1, fromProto.size());
+	}
+}
@@ -0,0 +1,51 @@
+/*
+ * Seldon -- open source prediction engine
+ * =======================================
+ * Copyright 2011-2015 Seldon Technologies Ltd and Rummble Ltd (http://www.seldon.io/)
+ *
+ **********************************************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at       
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ ********************************************************************************************** 
+*/
+package io.seldon.stream.analytics;
+
+import org.apache.kafka.clients.consumer.ConsumerRecord;
+import org.apache.kafka.streams.processor.TimestampExtractor;
+
+import com.fasterxml.jackson.databind.JsonNode;
+
+/**
+ * Timestamps JSON events with their "time" field, in secs, so they are aggregated into the window they
+ * happened in rather than the one they were consumed in. The same extractor is applied to the internal
+ * repartition topics read by groupByKey, whose values are the re-keyed POJOs rather than JSON; those records
+ * carry the event time they were produced with, so other records keep their own timestamp and only fall back
+ * to wall clock time if they have none.
+ */
+public class EventTimeExtractor implements TimestampExtractor {
+
+	@Override
+	public long extract(ConsumerRecord<Object, Object> record, long previousTimestamp) {
+		if (record.value() instanceof JsonNode)
+		{
+			JsonNode time = ((JsonNode) record.value()).get("time");
+			if (time != null && time.canConvertToLong())
+				return time.asLong() * 1000;
+		}
+		if (record.timestamp() >= 0)
+			return record.timestamp();
+		return System.currentTimeMillis();
+	}
+
+}
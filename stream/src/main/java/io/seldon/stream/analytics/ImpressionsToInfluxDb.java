@@ -22,7 +22,6 @@
 package io.seldon.stream.analytics;
 
 import java.util.Properties;
-import java.util.Random;
 import java.util.concurrent.TimeUnit;
 
 import org.apache.kafka.clients.consumer.ConsumerConfig;
@@ -38,7 +37,9 @@ import org.apache.kafka.streams.kstream.KStream;
 import org.apache.kafka.streams.kstream.KStreamBuilder;
 import org.apache.kafka.streams.kstream.KeyValueMapper;
 import org.apache.kafka.streams.kstream.Predicate;
-import org.apache.kafka.streams.processor.WallclockTimestampExtractor;
+import org.apache.kafka.streams.kstream.Reducer;
+import org.apache.kafka.streams.kstream.TimeWindows;
+import org.apache.kafka.streams.kstream.Windowed;
 import org.apache.log4j.Logger;
 import org.influxdb.InfluxDB;
 import org.influxdb.InfluxDBFactory;
@@ -64,13 +65,17 @@ public class ImpressionsToInfluxDb {
         //props.put(StreamsConfig.ZOOKEEPER_CONNECT_CONFIG, ns.getString("zookeeper"));
         props.put(StreamsConfig.KEY_SERDE_CLASS_CONFIG, Serdes.String().getClass().getName());
         props.put(StreamsConfig.VALUE_SERDE_CLASS_CONFIG, Serdes.String().getClass().getName());
-        props.put(StreamsConfig.TIMESTAMP_EXTRACTOR_CLASS_CONFIG, WallclockTimestampExtractor.class);
+        props.put(StreamsConfig.TIMESTAMP_EXTRACTOR_CLASS_CONFIG, EventTimeExtractor.class);
+        // window totals are cached and only sent on commit so each is written at most once per commit interval
+        props.put(StreamsConfig.COMMIT_INTERVAL_MS_CONFIG, ns.getInt("emit_secs") * 1000);
+        props.put(StreamsConfig.CACHE_MAX_BYTES_BUFFERING_CONFIG, 10 * 1024 * 1024);
 
         // setting offset reset to earliest so that we can re-run the demo code with the same pre-loaded data
         props.put(ConsumerConfig.AUTO_OFFSET_RESET_CONFIG, "earliest");
         
 		final InfluxDB influxDB = InfluxDBFactory.connect("http://"+ns.getString("influxdb"), ns.getString("influx_user"), ns.getString("influx_password"));
 		influxDB.enableBatch(50, 5, TimeUnit.SECONDS);
+		final long windowMs = ns.getInt("window_secs") * 1000L;
         
         KStreamBuilder builder = new KStreamBuilder();
         
@@ -97,15 +102,7 @@ public class ImpressionsToInfluxDb {
         			@Override
         			public boolean test(String key, JsonNode value)
         			{
-        				if (value.get("tag").asText().equals("restapi.ctralg"))
-        				{
-        					logger.info("found message with tag "+value.get("tag").asText());
-        					return true;
-        				}
-        				else
-        				{
-        					return false;
-        				}
+        				return value.get("tag").asText().equals("restapi.ctralg");
         			}
         			},
         			new Predicate<String, JsonNode>()
@@ -113,15 +110,7 @@ public class ImpressionsToInfluxDb {
         			@Override
         			public boolean test(String key, JsonNode value)
         			{
-        				if (value.get("tag").asText().equals("restapi.calls"))
-        				{
-        					logger.info("found message with tag "+value.get("tag").asText());
-        					return true;
-        				}
-        				else
-        				{
-        					return false;
-        				}
+        				return value.get("tag").asText().equals("restapi.calls");
         			}
         			}
         		);
@@ -138,26 +127,28 @@ public class ImpressionsToInfluxDb {
 
 			@Override
 			public KeyValue<String, Impression> apply(String key, JsonNode value) {
-
-				//Nasty hack until we get correct method to reduce and send non or final per second aggregations to influxdb
-				Random r = new Random();
 				Impression imp = new Impression(value);
-				String ikey = imp.consumer+"_"+imp.rectag+"_"+imp.variation+"_"+imp.time+"_"+r.nextInt();
-				return new KeyValue<String,Impression>(ikey,imp);
+				return new KeyValue<String,Impression>(imp.consumer+"_"+imp.rectag+"_"+imp.variation,imp);
 			}
         	
 		})
+		.groupByKey(stringSerde, impressionSerde)
+		.reduce(new Reducer<Impression>() {
+			
+			@Override
+			public Impression apply(Impression value1, Impression value2) {
+				return value1.add(value2);
+			}
+		}, TimeWindows.of(windowMs), "impressions-windowed")
+		.toStream()
 		.foreach(
-				new ForeachAction<String, Impression>() {
+				new ForeachAction<Windowed<String>, Impression>() {
 			@Override
-			public void apply(String key, Impression value) {
+			public void apply(Windowed<String> key, Impression value) {
 			
-				Random r = new Random();
-				long time = value.time * 1000000;
-				time = time + r.nextInt(1000000);
-				
+				// the running total for the window replaces any point written for it earlier
 				Point point = Point.measurement(ns.getString("influx_measurement_impressions"))
-                .time(time, TimeUnit.MICROSECONDS)
+                .time(key.window().start(), TimeUnit.MILLISECONDS)
                 .tag("client", value.consumer)
                 .tag("rectag", value.rectag)
                 .tag("variation", value.variation)
@@ -165,7 +156,8 @@ public class ImpressionsToInfluxDb {
                 .addField("clicks", value.click)
                 .build();
 				
-				logger.info(key+"Value is "+value.toString());
+				if (logger.isDebugEnabled())
+					logger.debug(key+" Value is "+value.toString());
 				influxDB.write(ns.getString("influx_database"), "default", point);				
 			}
 		});
@@ -175,27 +167,27 @@ public class ImpressionsToInfluxDb {
 
 			@Override
 			public KeyValue<String, Request> apply(String key, JsonNode value) {
-				//Nasty hack until we get correct method to reduce and send non or final per second aggregations to influxdb
-				Random r = new Random();
-
 				Request req = new Request(value);
-				String rkey = req.consumer+"_"+req.path+"_"+req.httpmethod+"_"+req.time+"_"+r.nextInt();
-				return new KeyValue<String,Request>(rkey,req);
+				return new KeyValue<String,Request>(req.consumer+"_"+req.path+"_"+req.httpmethod,req);
 			}
         	
 		})
-		.foreach(new ForeachAction<String, Request>() {
+		.groupByKey(stringSerde, requestSerde)
+		.reduce(new Reducer<Request>() {
 			
 			@Override
-			public void apply(String key, Request value) {
+			public Request apply(Request value1, Request value2) {
+				return value1.add(value2);
+			}
+		}, TimeWindows.of(windowMs), "requests-windowed")
+		.toStream()
+		.foreach(new ForeachAction<Windowed<String>, Request>() {
+			
+			@Override
+			public void apply(Windowed<String> key, Request value) {
 			
-
-				Random r = new Random();
-				long time = value.time * 1000000;
-				time = time + r.nextInt(1000000);
-
 				Point point = Point.measurement(ns.getString("influx_measurement_requests"))
-                .time(time, TimeUnit.MICROSECONDS)
+                .time(key.window().start(), TimeUnit.MILLISECONDS)
                 .tag("client", value.consumer)
                 .tag("path", value.path)
                 .tag("httpmethod", value.httpmethod)
@@ -203,8 +195,8 @@ public class ImpressionsToInfluxDb {
                 .addField("exectime", value.exectime/((float)value.count))
                 .build();
 
-				
-				logger.info("Value is "+value.toString());
+				if (logger.isDebugEnabled())
+					logger.debug(key+" Value is "+value.toString());
 				influxDB.write(ns.getString("influx_database"), "default", point);				
 			}
 		});
@@ -231,6 +223,8 @@ public class ImpressionsToInfluxDb {
     	parser.addArgument("-d", "--influx-database").setDefault("seldon").help("Influxdb database");
     	parser.addArgument("--influx-measurement-impressions").setDefault("impressions").help("Influxdb impressions measurement");
     	parser.addArgument("--influx-measurement-requests").setDefault("requests").help("Influxdb requests measurement");
+    	parser.addArgument("--window-secs").type(Integer.class).setDefault(1).help("aggregation window size in secs, one point is written per window for each tag set");
+    	parser.addArgument("--emit-secs").type(Integer.class).setDefault(10).help("secs between sending updated window totals");
         
         Namespace ns = null;
         try {
@@ -22,7 +22,6 @@
 package io.seldon.stream.analytics;
 
 import java.util.Properties;
-import java.util.Random;
 import java.util.concurrent.TimeUnit;
 
 import org.apache.kafka.clients.consumer.ConsumerConfig;
@@ -38,7 +37,9 @@ import org.apache.kafka.streams.kstream.KStream;
 import org.apache.kafka.streams.kstream.KStreamBuilder;
 import org.apache.kafka.streams.kstream.KeyValueMapper;
 import org.apache.kafka.streams.kstream.Predicate;
-import org.apache.kafka.streams.processor.WallclockTimestampExtractor;
+import org.apache.kafka.streams.kstream.Reducer;
+import org.apache.kafka.streams.kstream.TimeWindows;
+import org.apache.kafka.streams.kstream.Windowed;
 import org.apache.log4j.Logger;
 import org.influxdb.InfluxDB;
 import org.influxdb.InfluxDBFactory;
@@ -63,13 +64,17 @@ public class PredictionsToInfluxDb {
         //props.put(StreamsConfig.ZOOKEEPER_CONNECT_CONFIG, ns.getString("zookeeper"));
         props.put(StreamsConfig.KEY_SERDE_CLASS_CONFIG, Serdes.String().getClass().getName());
         props.put(StreamsConfig.VALUE_SERDE_CLASS_CONFIG, Serdes.String().getClass().getName());
-        props.put(StreamsConfig.TIMESTAMP_EXTRACTOR_CLASS_CONFIG, WallclockTimestampExtractor.class);
+        props.put(StreamsConfig.TIMESTAMP_EXTRACTOR_CLASS_CONFIG, EventTimeExtractor.class);
+        // window totals are cached and only sent on commit so each is written at most once per commit interval
+        props.put(StreamsConfig.COMMIT_INTERVAL_MS_CONFIG, ns.getInt("emit_secs") * 1000);
+        props.put(StreamsConfig.CACHE_MAX_BYTES_BUFFERING_CONFIG, 10 * 1024 * 1024);
 
         // setting offset reset to earliest so that we can re-run the demo code with the same pre-loaded data
         props.put(ConsumerConfig.AUTO_OFFSET_RESET_CONFIG, "earliest");
         
 		final InfluxDB influxDB = InfluxDBFactory.connect("http://"+ns.getString("influxdb"), ns.getString("influx_user"), ns.getString("influx_password"));
 		influxDB.enableBatch(50, 5, TimeUnit.SECONDS);
+		final long windowMs = ns.getInt("window_secs") * 1000L;
         
         KStreamBuilder builder = new KStreamBuilder();
         
@@ -93,15 +98,7 @@ public class PredictionsToInfluxDb {
     			@Override
     			public boolean test(String key, JsonNode value)
     			{
-    				if (value.get("tag").asText().equals("predict.live"))
-    				{
-        				logger.info("found message with tag "+value.get("tag").asText());
-    					return true;
-    				}
-    				else
-    				{
-    					return false;
-    				}
+    				return value.get("tag").asText().equals("predict.live");
     			}
     			}
         		)
@@ -109,26 +106,32 @@ public class PredictionsToInfluxDb {
 
 			@Override
 			public KeyValue<String, Prediction> apply(String key, JsonNode value) {
-				//Nasty hack until we get correct method to reduce and send non or final per second aggregations to influxdb
-				Random r = new Random();
 				Prediction pred = new Prediction();
 				pred.parse(value);
-				String ikey = pred.consumer+"_"+pred.variation+"_"+pred.model+"_"+pred.predictedClass+"_"+pred.time+"_"+r.nextInt();
+				String ikey = pred.consumer+"_"+pred.variation+"_"+pred.model+"_"+pred.predictedClass;
 				return new KeyValue<String,Prediction>(ikey,pred);
 			}
         	
 		})
-		.foreach(new ForeachAction<String, Prediction>() {
+		.groupByKey(stringSerde, predictionSerde)
+		.reduce(new Reducer<Prediction>() {
 			
 			@Override
-			public void apply(String key, Prediction value) {
+			public Prediction apply(Prediction value1, Prediction value2) {
+				return value1.add(value2);
+			}
+		}, TimeWindows.of(windowMs), "predictions-windowed")
+		.toStream()
+		.foreach(new ForeachAction<Windowed<String>, Prediction>() {
+			
+			@Override
+			public void apply(Windowed<String> key, Prediction value) {
 			
-				Random r = new Random();
-				long time = value.time * 1000000;
-				time = time + r.nextInt(1000000);
-				logger.info("Value is "+value.toString());
+				if (logger.isDebugEnabled())
+					logger.debug(key+" Value is "+value.toString());
+				// the running total for the window replaces any point written for it earlier
 				Point point = Point.measurement(ns.getString("influx_measurement"))
-                .time(time, TimeUnit.MICROSECONDS)
+                .time(key.window().start(), TimeUnit.MILLISECONDS)
                 .tag("client", value.consumer)
                 .tag("variation", value.variation)
                 .tag("model", value.model)
@@ -163,6 +166,8 @@ public class PredictionsToInfluxDb {
     	parser.addArgument("-p", "--influx-password").setDefault("root").help("Influxdb password");
     	parser.addArgument("-d", "--influx-database").setDefault("seldon").help("Influxdb database");
     	parser.addArgument("--influx-measurement").setDefault("predictions").help("Influxdb Predictions measurement");
+    	parser.addArgument("--window-secs").type(Integer.class).setDefault(1).help("aggregation window size in secs, one point is written per window for each tag set");
+    	parser.addArgument("--emit-secs").type(Integer.class).setDefault(10).help("secs between sending updated window totals");
         
         Namespace ns = null;
         try {
@@ -30,13 +30,13 @@ import com.fasterxml.jackson.databind.JsonNode;
 //Request(consumer: String, time : Long, httpmethod : String, path : String, exectime : Int, count : Int)
 public class Request {
 
-	Pattern recommendationPattern = Pattern.compile("(^/users/)([^/]+)(/recommendations)$");
-	Pattern actionPattern = Pattern.compile("^(/users/)([^/]+)(/actions)$");
-	Pattern actionPattern2 = Pattern.compile("^(/items/)([^/]+)(/actions)$");
-	Pattern actionPattern3 = Pattern.compile("^(/users/)([^/]+)(/actions/)([^/]+)$");
-	Pattern actionPattern4 = Pattern.compile("^(/items/)([^/]+)(/actions/)([^/]+)$");
-	Pattern actionPattern5 = Pattern.compile("^(/actions/)([^/]+)$");
-	Pattern itemPattern = Pattern.compile("^(/items/)([^/]+)$");
+	static final Pattern recommendationPattern = Pattern.compile("(^/users/)([^/]+)(/recommendations)$");
+	static final Pattern actionPattern = Pattern.compile("^(/users/)([^/]+)(/actions)$");
+	static final Pattern actionPattern2 = Pattern.compile("^(/items/)([^/]+)(/actions)$");
+	static final Pattern actionPattern3 = Pattern.compile("^(/users/)([^/]+)(/actions/)([^/]+)$");
+	static final Pattern actionPattern4 = Pattern.compile("^(/items/)([^/]+)(/actions/)([^/]+)$");
+	static final Pattern actionPattern5 = Pattern.compile("^(/actions/)([^/]+)$");
+	static final Pattern itemPattern = Pattern.compile("^(/items/)([^/]+)$");
 
 	String consumer;
 	Long time;
@@ -21,8 +21,12 @@
 */
 package io.seldon.stream.itemsim;
 
+import java.io.File;
+import java.io.IOException;
 import java.text.SimpleDateFormat;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Properties;
 import java.util.Timer;
 import java.util.TimerTask;
@@ -34,18 +38,24 @@ import net.sourceforge.argparse4j.inf.ArgumentParserException;
 import net.sourceforge.argparse4j.inf.Namespace;
 
 import org.apache.kafka.clients.consumer.ConsumerConfig;
+import org.apache.kafka.clients.consumer.KafkaConsumer;
+import org.apache.kafka.clients.consumer.OffsetAndMetadata;
 import org.apache.kafka.clients.producer.KafkaProducer;
 import org.apache.kafka.clients.producer.ProducerRecord;
+import org.apache.kafka.common.TopicPartition;
+import org.apache.kafka.common.serialization.ByteArrayDeserializer;
 import org.apache.kafka.common.serialization.Serde;
 import org.apache.kafka.common.serialization.Serdes;
 import org.apache.kafka.connect.json.JsonDeserializer;
 import org.apache.kafka.connect.json.JsonSerializer;
 import org.apache.kafka.streams.KafkaStreams;
 import org.apache.kafka.streams.StreamsConfig;
-import org.apache.kafka.streams.kstream.ForeachAction;
 import org.apache.kafka.streams.kstream.KStream;
 import org.apache.kafka.streams.kstream.KStreamBuilder;
 import org.apache.kafka.streams.kstream.Predicate;
+import org.apache.kafka.streams.processor.AbstractProcessor;
+import org.apache.kafka.streams.processor.Processor;
+import org.apache.kafka.streams.processor.ProcessorSupplier;
 import org.apache.kafka.streams.processor.WallclockTimestampExtractor;
 import org.joda.time.DateTime;
 
@@ -62,6 +72,10 @@ public class ItemSimilarityProcessor {
 	String outputTopic;
 	int count = 0;
 	final String kafkaServers;
+	final MinHashCheckpoint checkpoint;
+	long checkpointMs;
+	long lastCheckpoint = System.currentTimeMillis();
+	final Map<Integer,Long> offsets = new HashMap<>(); // next offset to consume by partition
 
 	public ItemSimilarityProcessor(final Namespace ns)
 	{
@@ -70,7 +84,11 @@ public class ItemSimilarityProcessor {
 		this.outputTopic = ns.getString("output_topic");
 		this.kafkaServers = ns.getString("kafka");
 		System.out.println(ns);
-		this.streamJaccard = new StreamingJaccardSimilarity(windowSecs, ns.getInt("hashes"), ns.getInt("min_activity"));
+		this.streamJaccard = new StreamingJaccardSimilarity(windowSecs, ns.getInt("hashes"), ns.getInt("min_activity"),
+				ns.getInt("lsh_bands"), ns.getFloat("threshold"), ns.getInt("top_n"), ns.getInt("threads"));
+		String checkpointDir = ns.getString("checkpoint_dir");
+		this.checkpoint = checkpointDir != null ? new MinHashCheckpoint(new File(checkpointDir, ns.getString("client")), ns.getInt("checkpoint_deltas")) : null;
+		this.checkpointMs = ns.getInt("checkpoint_secs") * 1000L;
 		//createOutputSimilaritiesTimer(ns);
 	}
 	
@@ -104,6 +122,63 @@ public class ItemSimilarityProcessor {
 	}
 	
 	
+	/**
+	 * Restore the min hashes from the latest checkpoint and rewind the consumer group to the offsets it was
+	 * taken at, so only events since the checkpoint are consumed again.
+	 */
+	public void restoreCheckpoint(String groupId,String topic)
+	{
+		try
+		{
+			Map<Integer,Long> restored = streamJaccard.restore(checkpoint);
+			if (restored == null)
+			{
+				System.out.println("No checkpoint to restore");
+				return;
+			}
+			offsets.putAll(restored);
+			if (restored.isEmpty())
+				return;
+			Properties props = new Properties();
+			props.put(ConsumerConfig.BOOTSTRAP_SERVERS_CONFIG, kafkaServers);
+			props.put(ConsumerConfig.GROUP_ID_CONFIG, groupId);
+			props.put(ConsumerConfig.ENABLE_AUTO_COMMIT_CONFIG, "false");
+			props.put(ConsumerConfig.KEY_DESERIALIZER_CLASS_CONFIG, ByteArrayDeserializer.class.getName());
+			props.put(ConsumerConfig.VALUE_DESERIALIZER_CLASS_CONFIG, ByteArrayDeserializer.class.getName());
+			Map<TopicPartition,OffsetAndMetadata> commit = new HashMap<>();
+			for (Map.Entry<Integer,Long> e : restored.entrySet())
+				commit.put(new TopicPartition(topic, e.getKey()), new OffsetAndMetadata(e.getValue()));
+			KafkaConsumer<byte[],byte[]> consumer = new KafkaConsumer<>(props);
+			try
+			{
+				consumer.assign(commit.keySet());
+				consumer.commitSync(commit);
+			}
+			finally
+			{
+				consumer.close();
+			}
+			System.out.println("Rewound "+groupId+" to checkpoint offsets "+restored);
+		}
+		catch (IOException e)
+		{
+			System.out.println("Unable to restore checkpoint, starting with empty state: "+e.getMessage());
+		}
+	}
+	
+	public void checkpoint()
+	{
+		try
+		{
+			streamJaccard.checkpoint(checkpoint, offsets);
+		}
+		catch (IOException e)
+		{
+			System.out.println("Failed to checkpoint: "+e.getMessage());
+		}
+		lastCheckpoint = System.currentTimeMillis();
+	}
+	
 	@SuppressWarnings("unchecked")
 	public void process(final Namespace ns) throws InterruptedException
 	{
@@ -128,6 +203,8 @@ public class ItemSimilarityProcessor {
         System.out.println("topic:"+topic);
         final String parseDateMethod = ns.getString("parse_date_method");
         KStream<byte[], JsonNode> source = builder.stream(Serdes.ByteArray(),jsonSerde,topic);
+        if (checkpoint != null)
+        	restoreCheckpoint(app_id, topic);
 
         source.filter(new Predicate<byte[], JsonNode>() {
 			
@@ -141,61 +218,81 @@ public class ItemSimilarityProcessor {
 					return false;
 			}
 		})
-        .foreach(new ForeachAction<byte[], JsonNode>() {
+        .process(new ProcessorSupplier<byte[], JsonNode>() {
 
 			@Override
-			public void apply(byte[] key, JsonNode value) {
-				Long user = value.get("userid").asLong();
-				Long item = value.get("itemid").asLong();
-				Long time;
-				if (parseDateMethod.equals("json-utc"))
-				{
-					//expected 2016-07-18T08:49:45Z
-					DateTime dtime = new DateTime(value.get("timestamp_utc").asText());
-					time = dtime.getMillis()/1000;
-				}
-				else if (parseDateMethod.equals("json-time"))
-					time = value.get("time").asLong();
-				else
-					time = System.currentTimeMillis()/1000;
+			public Processor<byte[], JsonNode> get() {
+				return new AbstractProcessor<byte[], JsonNode>() {
+
+					@Override
+					public void process(byte[] key, JsonNode value) {
+						Long user = value.get("userid").asLong();
+						Long item = value.get("itemid").asLong();
+						Long time;
+						if (parseDateMethod.equals("json-utc"))
+						{
+							//expected 2016-07-18T08:49:45Z
+							DateTime dtime = new DateTime(value.get("timestamp_utc").asText());
+							time = dtime.getMillis()/1000;
+						}
+						else if (parseDateMethod.equals("json-time"))
+							time = value.get("time").asLong();
+						else
+							time = System.currentTimeMillis()/1000;
 				
-				//System.out.println("User:"+user+"item:"+item+"time:"+time);
-				ItemSimilarityProcessor.this.streamJaccard.add(item, user, time);
+						//System.out.println("User:"+user+"item:"+item+"time:"+time);
+						ItemSimilarityProcessor.this.streamJaccard.add(item, user, time);
 				
-				//debugging only
-				if (ItemSimilarityProcessor.this.lastTime == 0)
-					ItemSimilarityProcessor.this.lastTime = time;
-				long diff = time - ItemSimilarityProcessor.this.lastTime;
-				if ((windowSecs > -1 && diff >= windowSecs) || (windowProcessed > -1 && ItemSimilarityProcessor.this.count % windowProcessed == 0))
-				{
-					//ItemSimilarityProcessor.this.outputSimilaritiesTime.compareAndSet(0, time);
-					//ItemSimilarityProcessor.this.lastTime = time;
+						//debugging only
+						if (ItemSimilarityProcessor.this.lastTime == 0)
+							ItemSimilarityProcessor.this.lastTime = time;
+						long diff = time - ItemSimilarityProcessor.this.lastTime;
+						if ((windowSecs > -1 && diff >= windowSecs) || (windowProcessed > -1 && ItemSimilarityProcessor.this.count % windowProcessed == 0))
+						{
+							//ItemSimilarityProcessor.this.outputSimilaritiesTime.compareAndSet(0, time);
+							//ItemSimilarityProcessor.this.lastTime = time;
 					
-					SimpleDateFormat sdf = new SimpleDateFormat("MMMM d, yyyy 'at' h:mm a");
-					String date = sdf.format(time*1000);
-					System.out.println("getting similarities at "+date);
-					List<JaccardSimilarity> res = streamJaccard.getSimilarity(time);
-					if (res.size() > 0)
-					{
-						System.out.println("Results size "+res.size()+" Sending messages..");
-						sendMessages(res, time);
-						System.out.println("Sent messages");
+							SimpleDateFormat sdf = new SimpleDateFormat("MMMM d, yyyy 'at' h:mm a");
+							String date = sdf.format(time*1000);
+							System.out.println("getting similarities at "+date);
+							List<JaccardSimilarity> res = streamJaccard.getSimilarity(time);
+							if (res.size() > 0)
+							{
+								System.out.println("Results size "+res.size()+" Sending messages..");
+								sendMessages(res, time);
+								System.out.println("Sent messages");
+							}
+							else
+								System.out.println("Results size "+res.size()+" Not sending messages");
+							ItemSimilarityProcessor.this.lastTime = time;
+						}
+						ItemSimilarityProcessor.this.count++;
+						if (ItemSimilarityProcessor.this.count % 1000 == 0)
+						{
+							System.out.println("Processed "+count+" time diff is "+diff+" window is "+windowSecs);
+						}
+						ItemSimilarityProcessor.this.offsets.put(context().partition(), context().offset() + 1);
+						if (checkpoint != null && System.currentTimeMillis() - lastCheckpoint >= checkpointMs)
+							ItemSimilarityProcessor.this.checkpoint();
 					}
-					else
-						System.out.println("Results size "+res.size()+" Not sending messages");
-					ItemSimilarityProcessor.this.lastTime = time;
-				}
-				ItemSimilarityProcessor.this.count++;
-				if (ItemSimilarityProcessor.this.count % 1000 == 0)
-				{
-					System.out.println("Processed "+count+" time diff is "+diff+" window is "+windowSecs);
-				}
+				};
 			}
 		});
     	
                
-        KafkaStreams streams = new KafkaStreams(builder, props);
+        final KafkaStreams streams = new KafkaStreams(builder, props);
         streams.start();
+        if (checkpoint != null)
+        {
+        	Runtime.getRuntime().addShutdownHook(new Thread() {
+        		public void run()
+        		{
+        			// nothing is added once the streams are closed
+        			streams.close();
+        			ItemSimilarityProcessor.this.checkpoint();
+        		}
+        	});
+        }
        
 	}
 	
@@ -239,6 +336,13 @@ public class ItemSimilarityProcessor {
     	parser.addArgument("--output-poll-secs").type(Integer.class).setDefault(60).help("output timer polling period in secs");
     	parser.addArgument("--hashes").type(Integer.class).setDefault(100).help("number of hashes");
     	parser.addArgument("-m", "--min-activity").type(Integer.class).setDefault(200).help("min activity");
+    	parser.addArgument("--lsh-bands").type(Integer.class).setDefault(0).help("LSH bands for candidate pairs, 0 compares all pairs, -1 chooses from the threshold");
+    	parser.addArgument("--threshold").type(Float.class).setDefault(0f).help("min jaccard similarity to output");
+    	parser.addArgument("--threads").type(Integer.class).setDefault(1).help("threads to update min hashes on, partitioned by item");
+    	parser.addArgument("--top-n").type(Integer.class).setDefault(0).help("max similar items to output per item, 0 means no limit");
+    	parser.addArgument("--checkpoint-dir").help("directory to checkpoint min hashes to and restore them from on start, unset means no checkpoints");
+    	parser.addArgument("--checkpoint-secs").type(Integer.class).setDefault(300).help("checkpoint period in secs");
+    	parser.addArgument("--checkpoint-deltas").type(Integer.class).setDefault(10).help("incremental checkpoints between full ones");
     	parser.addArgument("-p", "--parse-date-method").choices("json-time","json-utc","system").setDefault("json-time").help("min activity");
         
         Namespace ns = null;
@@ -0,0 +1,113 @@
+/*
+ * Seldon -- open source prediction engine
+ * =======================================
+ * Copyright 2011-2015 Seldon Technologies Ltd and Rummble Ltd (http://www.seldon.io/)
+ *
+ **********************************************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at       
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ ********************************************************************************************** 
+*/
+package io.seldon.stream.itemsim;
+
+import io.seldon.stream.itemsim.MinHashCollections.State;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Locality sensitive hashing over MinHash signatures. Each signature is split into bands of rows and each band is
+ * hashed into a bucket; only items sharing a bucket in at least one band become candidate pairs. Two items with
+ * Jaccard similarity s share a bucket with probability 1-(1-s^rows)^bands, an S-curve rising around (1/bands)^(1/rows).
+ */
+public class LSHBandingIndex {
+
+	final int bands;
+	final int rows;
+
+	public LSHBandingIndex(int bands, int rows)
+	{
+		if (bands <= 0 || rows <= 0)
+			throw new IllegalArgumentException("bands and rows must be positive, got "+bands+" and "+rows);
+		this.bands = bands;
+		this.rows = rows;
+	}
+
+	/**
+	 * Choose the number of bands for signatures of numHashes so the S-curve threshold is closest to the given
+	 * Jaccard threshold, erring low so that pairs above it are rarely missed.
+	 */
+	public static int bandsForThreshold(int numHashes, float threshold)
+	{
+		int bestBands = numHashes;
+		double bestDiff = Double.MAX_VALUE;
+		for (int r = 1; r <= numHashes; r++)
+		{
+			int b = numHashes / r;
+			double t = Math.pow(1.0 / b, 1.0 / r);
+			if (t > threshold)
+				break;
+			double diff = threshold - t;
+			if (diff < bestDiff)
+			{
+				bestDiff = diff;
+				bestBands = b;
+			}
+		}
+		return bestBands;
+	}
+
+	/**
+	 * @return indexes into states of candidate pairs, each encoded as (i << 32) | j with i < j
+	 */
+	public Set<Long> candidatePairs(List<State> states)
+	{
+		Set<Long> pairs = new HashSet<>();
+		for (int band = 0; band < bands; band++)
+		{
+			Map<Long,List<Integer>> buckets = new HashMap<>();
+			int start = band * rows;
+			for (int i = 0; i < states.size(); i++)
+			{
+				List<Long> minHashes = states.get(i).minHashes;
+				if (minHashes.size() < start + rows)
+					continue;
+				long h = 1;
+				for (int r = start; r < start + rows; r++)
+					h = h * 1000003 + minHashes.get(r);
+				List<Integer> bucket = buckets.get(h);
+				if (bucket == null)
+				{
+					bucket = new ArrayList<>(2);
+					buckets.put(h, bucket);
+				}
+				bucket.add(i);
+			}
+			for (List<Integer> bucket : buckets.values())
+				for (int x = 0; x < bucket.size(); x++)
+					for (int y = x + 1; y < bucket.size(); y++)
+						pairs.add(((long) bucket.get(x) << 32) | bucket.get(y));
+		}
+		return pairs;
+	}
+
+	@Override
+	public String toString() {
+		return "LSHBandingIndex [bands=" + bands + ", rows=" + rows + ", threshold~" + String.format("%.2f", Math.pow(1.0 / bands, 1.0 / rows)) + "]";
+	}
+}
@@ -0,0 +1,236 @@
+/*
+ * Seldon -- open source prediction engine
+ * =======================================
+ * Copyright 2011-2015 Seldon Technologies Ltd and Rummble Ltd (http://www.seldon.io/)
+ *
+ **********************************************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at       
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ ********************************************************************************************** 
+*/
+package io.seldon.stream.itemsim;
+
+import io.seldon.stream.itemsim.minhash.Hasher;
+import io.seldon.stream.itemsim.minhash.SimplePrimeHash;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Snapshots of the min hash state in a local directory so a restarted job can restore its window rather than
+ * rebuild it from the stream. A full base snapshot is followed by deltas holding only the items added to since
+ * the previous checkpoint; after a number of deltas a new base is written and older files removed. Each file
+ * also records the hash functions and the next offset to consume for each input partition at the time it was
+ * written.
+ */
+public class MinHashCheckpoint {
+
+	private static final int FORMAT_VERSION = 1;
+	private static final String PREFIX = "minhash-";
+	private static final String BASE_SUFFIX = ".base";
+	private static final String DELTA_SUFFIX = ".delta";
+	private static final String TMP_SUFFIX = ".tmp";
+
+	private final File dir;
+	private final int deltasPerBase;
+	private long seq = 0;
+	private int deltas = -1; // deltas since the last base, -1 when there is none
+
+	/**
+	 * @param deltasPerBase incremental checkpoints to write between full ones
+	 */
+	public MinHashCheckpoint(File dir, int deltasPerBase)
+	{
+		this.dir = dir;
+		this.deltasPerBase = deltasPerBase;
+		if (!dir.exists() && !dir.mkdirs())
+			System.out.println("Unable to create checkpoint directory "+dir);
+		// carry on numbering after existing files so they are replaced and never read in place of newer ones
+		List<File> files = listFiles();
+		if (files.size() > 0)
+			seq = seq(files.get(files.size() - 1));
+	}
+
+	/**
+	 * Write a checkpoint of the collections. Must not run concurrently with adds.
+	 * @param offsets next offset to consume by input partition
+	 */
+	public synchronized void write(MinHashCollections mhcs, Map<Integer,Long> offsets) throws IOException
+	{
+		boolean base = deltas < 0 || deltas >= deltasPerBase;
+		seq++;
+		File f = file(seq, base ? BASE_SUFFIX : DELTA_SUFFIX);
+		File tmp = new File(f.getPath() + TMP_SUFFIX);
+		long start = System.currentTimeMillis();
+		int written = 0;
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp), 65536));
+		try
+		{
+			out.writeInt(FORMAT_VERSION);
+			List<Hasher> hashers = hashers(mhcs);
+			out.writeInt(hashers.size());
+			for (Hasher h : hashers)
+			{
+				out.writeLong(((SimplePrimeHash) h).getCoefA());
+				out.writeLong(((SimplePrimeHash) h).getCoefB());
+			}
+			out.writeInt(offsets.size());
+			for (Map.Entry<Integer,Long> e : offsets.entrySet())
+			{
+				out.writeInt(e.getKey());
+				out.writeLong(e.getValue());
+			}
+			for (Map.Entry<Long,MinHashCollection> e : mhcs.mhcs.entrySet())
+			{
+				if (base || e.getValue().isDirty())
+				{
+					out.writeBoolean(true);
+					out.writeLong(e.getKey());
+					e.getValue().write(out);
+					written++;
+				}
+			}
+			out.writeBoolean(false);
+		}
+		finally
+		{
+			out.close();
+		}
+		Files.move(tmp.toPath(), f.toPath(), StandardCopyOption.ATOMIC_MOVE);
+		if (base)
+		{
+			deltas = 0;
+			for (File old : listFiles())
+				if (seq(old) < seq && !old.delete())
+					System.out.println("Unable to delete old checkpoint "+old);
+		}
+		else
+			deltas++;
+		System.out.println("Checkpointed "+written+" items to "+f+" in "+(System.currentTimeMillis()-start)+"ms");
+	}
+
+	/**
+	 * Replace the contents of the collections with the latest base and the deltas after it.
+	 * @return next offset to consume by input partition, or null if there is no checkpoint
+	 */
+	public synchronized Map<Integer,Long> restore(MinHashCollections mhcs) throws IOException
+	{
+		List<File> files = listFiles();
+		int baseIdx = -1;
+		for (int i = 0; i < files.size(); i++)
+			if (files.get(i).getName().endsWith(BASE_SUFFIX))
+				baseIdx = i;
+		if (baseIdx < 0)
+			return null;
+		long start = System.currentTimeMillis();
+		mhcs.mhcs.clear();
+		Map<Integer,Long> offsets = null;
+		try
+		{
+			for (int i = baseIdx; i < files.size(); i++)
+				offsets = read(files.get(i), mhcs);
+		}
+		catch (IOException e)
+		{
+			mhcs.mhcs.clear();
+			throw e;
+		}
+		File last = files.get(files.size() - 1);
+		deltas = files.size() - 1 - baseIdx;
+		System.out.println("Restored "+mhcs.mhcs.size()+" items from "+(deltas+1)+" checkpoint files up to "+last+" in "+(System.currentTimeMillis()-start)+"ms");
+		return offsets;
+	}
+
+	private Map<Integer,Long> read(File f, MinHashCollections mhcs) throws IOException
+	{
+		DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(f), 65536));
+		try
+		{
+			int version = in.readInt();
+			if (version != FORMAT_VERSION)
+				throw new IOException("Unsupported checkpoint version "+version+" in "+f);
+			int numHashes = in.readInt();
+			List<Hasher> hashers = new ArrayList<>(numHashes);
+			for (int i = 0; i < numHashes; i++)
+				hashers.add(new SimplePrimeHash(in.readLong(), in.readLong()));
+			if (numHashes != hashers(mhcs).size())
+				throw new IOException("Checkpoint "+f+" has "+numHashes+" hashes but "+hashers(mhcs).size()+" are configured");
+			// the restored items were hashed with the checkpointed functions so new items must be too
+			mhcs.mhFactory = new RollingWindowedMinHashFactory(hashers);
+			Map<Integer,Long> offsets = new HashMap<>();
+			int numOffsets = in.readInt();
+			for (int i = 0; i < numOffsets; i++)
+				offsets.put(in.readInt(), in.readLong());
+			while (in.readBoolean())
+			{
+				long item = in.readLong();
+				MinHashCollection mhc = new MinHashCollection(mhcs.mhFactory.create(mhcs.window));
+				mhc.read(in);
+				mhcs.mhcs.put(item, mhc);
+			}
+			return offsets;
+		}
+		finally
+		{
+			in.close();
+		}
+	}
+
+	private static List<Hasher> hashers(MinHashCollections mhcs)
+	{
+		return ((RollingWindowedMinHashFactory) mhcs.mhFactory).hashes;
+	}
+
+	private File file(long seq, String suffix)
+	{
+		return new File(dir, String.format("%s%019d%s", PREFIX, seq, suffix));
+	}
+
+	private static long seq(File f)
+	{
+		String name = f.getName();
+		return Long.parseLong(name.substring(PREFIX.length(), name.lastIndexOf('.')));
+	}
+
+	/**
+	 * @return base and delta files, oldest first
+	 */
+	private List<File> listFiles()
+	{
+		File[] files = dir.listFiles(new FilenameFilter() {
+			@Override
+			public boolean accept(File d, String name) {
+				return name.startsWith(PREFIX) && (name.endsWith(BASE_SUFFIX) || name.endsWith(DELTA_SUFFIX));
+			}
+		});
+		List<File> res = files == null ? new ArrayList<File>() : new ArrayList<>(Arrays.asList(files));
+		Collections.sort(res);
+		return res;
+	}
+}
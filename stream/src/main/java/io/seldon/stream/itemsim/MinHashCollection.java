@@ -21,24 +21,33 @@
 */
 package io.seldon.stream.itemsim;
 
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.List;
 
+/**
+ * The min hashers for one item. Access is synchronized here rather than in each min hasher so an add takes one
+ * lock for all of them.
+ */
 public class MinHashCollection {
 
 	List<MinHasher> minHashes = new ArrayList<>();
+	boolean dirty = false; // added to since last written
 	
 	public MinHashCollection(List<MinHasher> minHashes) {
 		this.minHashes = minHashes;
 	}
 
-	public void add(long id,long time)
+	public synchronized void add(long id,long time)
 	{
-		for(MinHasher mh : minHashes)
-			mh.add(id, time);
+		for(int i=0;i<minHashes.size();i++)
+			minHashes.get(i).add(id, time);
+		dirty = true;
 	}
 	
-	public List<Long> getMinHashes(long time)
+	public synchronized List<Long> getMinHashes(long time)
 	{
 		List<Long> res = new ArrayList<Long>();
 		for(MinHasher mh : minHashes)
@@ -51,11 +60,33 @@ public class MinHashCollection {
 		return res;
 	}
 	
-	public int getCount(long time)
+	public synchronized int getCount(long time)
 	{
 		return minHashes.get(0).getCount(time);
 	}
 	
+	public synchronized boolean isDirty()
+	{
+		return dirty;
+	}
+	
+	/**
+	 * Write the state of each min hasher for a checkpoint. Only {@link RollingWindowedMinHash} can be written.
+	 */
+	public synchronized void write(DataOutput out) throws IOException
+	{
+		for (MinHasher mh : minHashes)
+			((RollingWindowedMinHash) mh).write(out);
+		dirty = false;
+	}
+	
+	public synchronized void read(DataInput in) throws IOException
+	{
+		for (MinHasher mh : minHashes)
+			((RollingWindowedMinHash) mh).read(in);
+		dirty = false;
+	}
+	
 	
 
 
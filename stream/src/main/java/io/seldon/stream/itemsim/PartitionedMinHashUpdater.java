@@ -0,0 +1,128 @@
+/*
+ * Seldon -- open source prediction engine
+ * =======================================
+ * Copyright 2011-2015 Seldon Technologies Ltd and Rummble Ltd (http://www.seldon.io/)
+ *
+ **********************************************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at       
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ ********************************************************************************************** 
+*/
+package io.seldon.stream.itemsim;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Spreads min hash updates over worker threads partitioned by item, so each item's min hashes are only ever
+ * updated by one thread. Events are passed through a single producer, single consumer ring of primitive longs
+ * per partition so adding an event allocates nothing. Only one thread may call {@link #add(long, long, long)}.
+ */
+public class PartitionedMinHashUpdater {
+
+	private static final long IDLE_PARK_NANOS = 100000;
+
+	private final MinHashCollections mhcs;
+	private final Partition[] partitions;
+	private volatile boolean keepRunning = true;
+
+	public PartitionedMinHashUpdater(MinHashCollections mhcs, int numPartitions, int queueSize)
+	{
+		this.mhcs = mhcs;
+		int capacity = Integer.highestOneBit(Math.max(queueSize, 2) - 1) << 1;
+		this.partitions = new Partition[numPartitions];
+		for (int i = 0; i < numPartitions; i++)
+		{
+			partitions[i] = new Partition(capacity);
+			Thread t = new Thread(partitions[i], "minhash-partition-"+i);
+			t.setDaemon(true);
+			t.start();
+		}
+	}
+
+	public void add(long item, long user, long time)
+	{
+		long h = item * 0x9E3779B97F4A7C15L;
+		partitions[(int) ((h >>> 32) % partitions.length)].put(item, user, time);
+	}
+
+	/**
+	 * Wait until every event added so far has been applied.
+	 */
+	public void awaitDrained()
+	{
+		for (Partition p : partitions)
+			while (p.consumed.get() < p.produced.get())
+				LockSupport.parkNanos(IDLE_PARK_NANOS);
+	}
+
+	public void shutdown()
+	{
+		keepRunning = false;
+	}
+
+	private class Partition implements Runnable {
+
+		final long[] events;
+		final int mask;
+		final AtomicLong produced = new AtomicLong();
+		final AtomicLong consumed = new AtomicLong();
+
+		Partition(int capacity)
+		{
+			events = new long[capacity * 3];
+			mask = capacity - 1;
+		}
+
+		void put(long item, long user, long time)
+		{
+			long p = produced.get();
+			while (p - consumed.get() > mask)
+				Thread.yield();
+			int i = (int) (p & mask) * 3;
+			events[i] = item;
+			events[i + 1] = user;
+			events[i + 2] = time;
+			produced.lazySet(p + 1);
+		}
+
+		@Override
+		public void run()
+		{
+			while (keepRunning)
+			{
+				long c = consumed.get();
+				long p = produced.get();
+				if (c == p)
+				{
+					LockSupport.parkNanos(IDLE_PARK_NANOS);
+					continue;
+				}
+				for (; c < p; c++)
+				{
+					int i = (int) (c & mask) * 3;
+					try
+					{
+						mhcs.add(events[i], events[i + 1], events[i + 2]);
+					}
+					catch (RuntimeException e)
+					{
+						e.printStackTrace();
+					}
+					consumed.lazySet(c + 1);
+				}
+			}
+		}
+	}
+}
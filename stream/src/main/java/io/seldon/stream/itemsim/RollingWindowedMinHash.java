@@ -23,15 +23,32 @@ package io.seldon.stream.itemsim;
 
 import io.seldon.stream.itemsim.minhash.Hasher;
 
-import java.util.ArrayList;
-import java.util.List;
-import java.util.function.Predicate;
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
 
+/**
+ * Min hash of the ids added within a sliding time window.
+ * <p>
+ * Keeps a deque of candidate min hashes, increasing in hash and in time from front to back: an entry only
+ * needs to be kept while no smaller hash has been seen after it. The front is the current min hash and expired
+ * entries are dropped from the front. Each entry also counts the additions it absorbed so the number of
+ * additions in the window is known. The deque is held in parallel primitive ring buffers so adding allocates
+ * nothing once they have grown. Not thread safe, {@link MinHashCollection} synchronizes access.
+ */
 public class RollingWindowedMinHash implements MinHasher {
 	
-	List<MinHashEntry> hashes = new ArrayList<>();
-	Hasher hasher;
-	long window;
+	private static final int INITIAL_CAPACITY = 8;
+	
+	final Hasher hasher;
+	final long window;
+	long[] hashes = new long[INITIAL_CAPACITY];
+	long[] times = new long[INITIAL_CAPACITY];
+	int[] counts = new int[INITIAL_CAPACITY];
+	int head = 0; // index of the front entry
+	int size = 0;
+	int total = 0; // sum of counts
+	boolean outOfOrder = false; // an entry was given an earlier time than one before it
 	
 	public RollingWindowedMinHash(Hasher h,long window)
 	{
@@ -40,96 +57,177 @@ public class RollingWindowedMinHash implements MinHasher {
 	}
 		
 	@Override
-	public synchronized void add(long id,long time)
+	public void add(long id,long time)
 	{
 		long hash = hasher.hash(id);
-		int idx = hashes.size() - 1;
 		int cSum = 0;
-		while(idx >= 0 && hash < hashes.get(idx).minHash) 
+		while (size > 0 && hash < hashes[index(size - 1)])
 		{
-			cSum += hashes.get(idx).count;
-			hashes.remove(idx);
-			idx--;
+			cSum += counts[index(size - 1)];
+			size--;
 		}
-		if (idx > -1)
+		if (size > 0 && hash == hashes[index(size - 1)])
 		{
-			int lastIdx = hashes.size() - 1;
-			if (hash == hashes.get(lastIdx).minHash)
-			{
-				hashes.get(lastIdx).time = time;
-				hashes.get(lastIdx).count = hashes.get(lastIdx).count + cSum + 1;
-			}
-			else
-				hashes.add(new MinHashEntry(hash,time,cSum+1));
+			int last = index(size - 1);
+			if (time < times[last])
+				outOfOrder = true;
+			times[last] = time;
+			counts[last] += cSum + 1;
 		}
 		else
 		{
-			hashes = new ArrayList<>();
-			hashes.add(new MinHashEntry(hash,time,cSum + 1));
+			if (size > 0 && time < times[index(size - 1)])
+				outOfOrder = true;
+			if (size == hashes.length)
+				grow();
+			int last = index(size);
+			hashes[last] = hash;
+			times[last] = time;
+			counts[last] = cSum + 1;
+			size++;
 		}
+		total++;
 		this.removeOldEntries(time);
-		//System.out.println(hashes.size());
 	}
 	
-	private void removeOldEntries(long time)
+	private int index(int i)
 	{
-		final long start_t = time - window;
-		hashes.removeIf(new Predicate<MinHashEntry>() {
-			@Override
-			public boolean test(MinHashEntry t) {
-				return (t.time <= start_t);
-			}
-		});
+		return (head + i) & (hashes.length - 1);
 	}
 	
-	public static class MinHashEntry 
+	private void grow()
 	{
-		long minHash;
-		long time;
-		int count;
-		
-		public MinHashEntry(long minHash, long time, int count) {
-			super();
-			this.minHash = minHash;
-			this.time = time;
-			this.count = count;
+		int capacity = hashes.length * 2;
+		long[] newHashes = new long[capacity];
+		long[] newTimes = new long[capacity];
+		int[] newCounts = new int[capacity];
+		for (int i = 0; i < size; i++)
+		{
+			int j = index(i);
+			newHashes[i] = hashes[j];
+			newTimes[i] = times[j];
+			newCounts[i] = counts[j];
 		}
-
-		@Override
-		public String toString() {
-			return "MinHashEntry [minHash=" + minHash + ", time=" + time
-					+ ", count=" + count + "]";
+		hashes = newHashes;
+		times = newTimes;
+		counts = newCounts;
+		head = 0;
+	}
+	
+	private void removeOldEntries(long time)
+	{
+		final long start_t = time - window;
+		if (outOfOrder)
+		{
+			// times aren't increasing along the deque so check every entry
+			int kept = 0;
+			boolean ordered = true;
+			for (int i = 0; i < size; i++)
+			{
+				int j = index(i);
+				if (times[j] <= start_t)
+					total -= counts[j];
+				else
+				{
+					int k = index(kept);
+					hashes[k] = hashes[j];
+					times[k] = times[j];
+					counts[k] = counts[j];
+					if (kept > 0 && times[k] < times[index(kept - 1)])
+						ordered = false;
+					kept++;
+				}
+			}
+			size = kept;
+			outOfOrder = !ordered;
+		}
+		else
+		{
+			while (size > 0 && times[head] <= start_t)
+			{
+				total -= counts[head];
+				head = (head + 1) & (hashes.length - 1);
+				size--;
+			}
 		}
-		
-		
 	}
 
 	@Override
-	public synchronized Long getMinHash(long time) {
+	public Long getMinHash(long time) {
 		this.removeOldEntries(time);
-		if (hashes.size() > 0)
-			return hashes.get(0).minHash;
+		if (size > 0)
+			return hashes[head];
 		else
 			return null;
 	}
 
 	@Override
-	public synchronized int getCount(long time) {
+	public int getCount(long time) {
 		this.removeOldEntries(time);
-		int sum = 0;
-		for(MinHashEntry e : hashes)
+		return total;
+	}
+
+	/**
+	 * Write the held entries, front first, for a checkpoint.
+	 */
+	public void write(DataOutput out) throws IOException
+	{
+		out.writeInt(size);
+		for (int i = 0; i < size; i++)
 		{
-			sum += e.count;
+			int j = index(i);
+			out.writeLong(hashes[j]);
+			out.writeLong(times[j]);
+			out.writeInt(counts[j]);
 		}
-		return sum;
+	}
+	
+	/**
+	 * Replace the held entries with those written by {@link #write(DataOutput)}.
+	 */
+	public void read(DataInput in) throws IOException
+	{
+		int n = in.readInt();
+		int capacity = INITIAL_CAPACITY;
+		while (capacity < n)
+			capacity *= 2;
+		hashes = new long[capacity];
+		times = new long[capacity];
+		counts = new int[capacity];
+		head = 0;
+		size = n;
+		total = 0;
+		outOfOrder = false;
+		for (int i = 0; i < n; i++)
+		{
+			hashes[i] = in.readLong();
+			times[i] = in.readLong();
+			counts[i] = in.readInt();
+			total += counts[i];
+			if (i > 0 && times[i] < times[i - 1])
+				outOfOrder = true;
+		}
+	}
+
+	/**
+	 * @return number of candidate min hashes held
+	 */
+	public int size()
+	{
+		return size;
 	}
 
 	@Override
 	public String toString() {
-		return "RollingWindowedMinHash [hashes=" + hashes + ", window="
-				+ window + "]";
+		StringBuilder sb = new StringBuilder("RollingWindowedMinHash [hashes=[");
+		for (int i = 0; i < size; i++)
+		{
+			int j = index(i);
+			if (i > 0)
+				sb.append(", ");
+			sb.append("MinHashEntry [minHash=").append(hashes[j]).append(", time=").append(times[j]).append(", count=").append(counts[j]).append("]");
+		}
+		return sb.append("], window=").append(window).append("]").toString();
 	}
 	
-	
-	
 }
@@ -25,16 +25,43 @@ import io.seldon.stream.itemsim.MinHashCollections.State;
 import io.seldon.stream.itemsim.minhash.Hasher;
 import io.seldon.stream.itemsim.minhash.SimplePrimeHash;
 
+import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
 import java.util.Set;
 
 public class StreamingJaccardSimilarity {
 
+	private static final Comparator<JaccardSimilarity> BY_SIMILARITY = new Comparator<JaccardSimilarity>() {
+		@Override
+		public int compare(JaccardSimilarity o1, JaccardSimilarity o2) {
+			return Double.compare(o1.similarity, o2.similarity);
+		}
+	};
+
 	MinHashCollections mhcs;
+	final LSHBandingIndex lsh;
+	final float threshold;
+	final int topN;
+	final PartitionedMinHashUpdater updater;
 	
 	public StreamingJaccardSimilarity(int windowSizeSecs,int numHashes,int minActivity)
+	{
+		this(windowSizeSecs, numHashes, minActivity, 0, 0, 0, 1);
+	}
+	
+	/**
+	 * @param lshBands bands to split signatures into for candidate generation, 0 to compare every pair and -1 to choose from the threshold
+	 * @param threshold minimum estimated Jaccard similarity to output
+	 * @param topN maximum neighbours to output per item, 0 for no limit
+	 * @param numThreads threads to update min hashes on, partitioned by item; with 1 they are updated by the caller of add
+	 */
+	public StreamingJaccardSimilarity(int windowSizeSecs,int numHashes,int minActivity,int lshBands,float threshold,int topN,int numThreads)
 	{
 		Set<Hasher> existing = new HashSet<>();
 		for(int i=0;i<numHashes;i++)
@@ -45,28 +72,122 @@ public class StreamingJaccardSimilarity {
 		List<Hasher> hashes = new ArrayList<Hasher>(existing);
 		MinHasherFactory f = new RollingWindowedMinHashFactory(hashes);
 		this.mhcs = new MinHashCollections(f, windowSizeSecs, minActivity);
+		if (lshBands < 0)
+			lshBands = LSHBandingIndex.bandsForThreshold(numHashes, threshold);
+		this.lsh = lshBands > 0 ? new LSHBandingIndex(lshBands, numHashes / lshBands) : null;
+		this.threshold = threshold;
+		this.topN = topN;
+		this.updater = numThreads > 1 ? new PartitionedMinHashUpdater(mhcs, numThreads, 65536) : null;
+		if (lsh != null)
+			System.out.println("Using "+lsh+" with threshold "+threshold+" and top "+topN);
 	}
 	
 	public void add(long itemId,long userId,long timeSecs)
 	{
-		mhcs.add(itemId, userId, timeSecs);
+		if (updater != null)
+			updater.add(itemId, userId, timeSecs);
+		else
+			mhcs.add(itemId, userId, timeSecs);
 	}
 	
+	/**
+	 * With partitioned updates this must be called from the thread that adds.
+	 */
 	public List<JaccardSimilarity> getSimilarity(long timeSecs)
+	{
+		if (updater != null)
+			updater.awaitDrained();
+		return getSimilarity(mhcs.getAllMinHashes(timeSecs), lsh);
+	}
+	
+	/**
+	 * Write the min hash state. With partitioned updates this must be called from the thread that adds.
+	 * @param offsets next input offset to consume by partition, restored with the state
+	 */
+	public void checkpoint(MinHashCheckpoint checkpoint, Map<Integer,Long> offsets) throws IOException
+	{
+		if (updater != null)
+			updater.awaitDrained();
+		checkpoint.write(mhcs, offsets);
+	}
+	
+	/**
+	 * Replace the min hash state with the latest checkpoint. Must be called before anything is added.
+	 * @return next input offset to consume by partition, or null if there was no checkpoint
+	 */
+	public Map<Integer,Long> restore(MinHashCheckpoint checkpoint) throws IOException
+	{
+		return checkpoint.restore(mhcs);
+	}
+	
+	/**
+	 * Score candidate pairs of states, all pairs if there is no index, keeping those at or above the threshold
+	 * and within the top N of either item.
+	 */
+	List<JaccardSimilarity> getSimilarity(List<State> states, LSHBandingIndex index)
 	{
 		List<JaccardSimilarity> res = new ArrayList<>();
-		List<State> states = mhcs.getAllMinHashes(timeSecs);
-		for(State s1 : states)
-			for(State s2 : states)
+		if (index != null)
+		{
+			for (Long pair : index.candidatePairs(states))
 			{
-				if (s1.id < s2.id)
+				State s1 = states.get((int) (pair >>> 32));
+				State s2 = states.get((int) (pair & 0xFFFFFFFFL));
+				score(s1, s2, res);
+			}
+		}
+		else
+		{
+			for(State s1 : states)
+				for(State s2 : states)
 				{
-					float jaccard = s1.jaccardEstimate(s2);
-					if (jaccard > 0)
-						res.add(new JaccardSimilarity(s1.id, s2.id, jaccard));
+					if (s1.id < s2.id)
+						score(s1, s2, res);
 				}
-			}
+		}
+		return topN > 0 ? topN(res) : res;
+	}
+	
+	private void score(State s1, State s2, List<JaccardSimilarity> res)
+	{
+		float jaccard = s1.jaccardEstimate(s2);
+		if (jaccard > 0 && jaccard >= threshold)
+			res.add(s1.id < s2.id ? new JaccardSimilarity(s1.id, s2.id, jaccard) : new JaccardSimilarity(s2.id, s1.id, jaccard));
+	}
+	
+	private List<JaccardSimilarity> topN(List<JaccardSimilarity> all)
+	{
+		Map<Long,PriorityQueue<JaccardSimilarity>> neighbours = new HashMap<>();
+		for (JaccardSimilarity s : all)
+		{
+			offer(neighbours, s.item1, s);
+			offer(neighbours, s.item2, s);
+		}
+		Set<JaccardSimilarity> kept = new HashSet<>();
+		for (PriorityQueue<JaccardSimilarity> q : neighbours.values())
+			kept.addAll(q);
+		List<JaccardSimilarity> res = new ArrayList<>(kept.size());
+		for (JaccardSimilarity s : all)
+			if (kept.contains(s))
+				res.add(s);
 		return res;
 	}
 	
+	private void offer(Map<Long,PriorityQueue<JaccardSimilarity>> neighbours, long item, JaccardSimilarity s)
+	{
+		PriorityQueue<JaccardSimilarity> q = neighbours.get(item);
+		if (q == null)
+		{
+			q = new PriorityQueue<>(topN + 1, BY_SIMILARITY);
+			neighbours.put(item, q);
+		}
+		if (q.size() < topN)
+			q.add(s);
+		else if (q.peek().similarity < s.similarity)
+		{
+			q.poll();
+			q.add(s);
+		}
+	}
+	
 }
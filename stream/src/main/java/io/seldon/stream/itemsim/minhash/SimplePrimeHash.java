@@ -41,6 +41,16 @@ public class SimplePrimeHash implements Hasher {
 	}
 
 
+	public long getCoefA() {
+		return coefA;
+	}
+
+
+	public long getCoefB() {
+		return coefB;
+	}
+
+
 	@Override
 	public long hash(long in) {
 		return (coefA * in + coefB) % PRIME;
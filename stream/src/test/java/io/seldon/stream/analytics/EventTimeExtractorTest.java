@@ -0,0 +1,50 @@
+package io.seldon.stream.analytics;
+
+import java.io.IOException;
+
+import org.apache.kafka.clients.consumer.ConsumerRecord;
+import org.apache.kafka.common.record.TimestampType;
+import org.junit.Test;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import junit.framework.Assert;
+
+public class EventTimeExtractorTest {
+
+	private static <V> ConsumerRecord<Object,Object> record(String topic, V value, long timestamp)
+	{
+		return new ConsumerRecord<Object,Object>(topic, 0, 0, timestamp, TimestampType.CREATE_TIME, 0, 0, 0, "key", value);
+	}
+
+	@Test
+	public void jsonEventsUseTheirTimeField() throws IOException
+	{
+		JsonNode json = new ObjectMapper().readTree("{\"consumer\":\"c1\",\"rectag\":\"default\",\"abkey\":\"-\",\"click\":\"IMP\",\"time\":1400000000}");
+		EventTimeExtractor extractor = new EventTimeExtractor();
+		Assert.assertEquals(1400000000000L, extractor.extract(record("impressions", json, 1500000000000L), -1));
+	}
+
+	@Test
+	public void repartitionedEventsKeepTheirEventTime() throws IOException
+	{
+		EventTimeExtractor extractor = new EventTimeExtractor();
+		JsonNode json = new ObjectMapper().readTree("{\"consumer\":\"c1\",\"rectag\":\"default\",\"abkey\":\"-\",\"click\":\"IMP\",\"time\":1400000000}");
+		long eventTime = extractor.extract(record("impressions", json, 1500000000000L), -1);
+
+		// map() re-keys to an Impression so groupByKey reads it back from a repartition topic, where the
+		// sink has stamped it with the timestamp extracted from the source record
+		Impression impression = new Impression(json);
+		ConsumerRecord<Object,Object> repartitioned = record("app-KSTREAM-MAP-0000000002-repartition", impression, eventTime);
+		Assert.assertEquals(1400000000000L, extractor.extract(repartitioned, -1));
+	}
+
+	@Test
+	public void recordsWithoutTimeFallBackToWallClock()
+	{
+		long before = System.currentTimeMillis();
+		long t = new EventTimeExtractor().extract(new ConsumerRecord<Object,Object>("t", 0, 0, "key", "value"), -1);
+		Assert.assertTrue(t >= before && t <= System.currentTimeMillis());
+	}
+}
@@ -0,0 +1,162 @@
+/*
+ * Seldon -- open source prediction engine
+ * =======================================
+ * Copyright 2011-2015 Seldon Technologies Ltd and Rummble Ltd (http://www.seldon.io/)
+ *
+ **********************************************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at       
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ ********************************************************************************************** 
+*/
+package io.seldon.stream.itemsim;
+
+import io.seldon.stream.itemsim.MinHashCollections.State;
+import io.seldon.stream.itemsim.minhash.Hasher;
+import io.seldon.stream.itemsim.minhash.SimplePrimeHash;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class LSHBandingIndexTest {
+
+	private static List<Hasher> createHashes(int numHashes)
+	{
+		Set<Hasher> existing = new HashSet<>();
+		for(int i=0;i<numHashes;i++)
+			existing.add(SimplePrimeHash.create(existing));
+		return new ArrayList<>(existing);
+	}
+
+	private static State signature(long id, Set<Long> users, List<Hasher> hashes)
+	{
+		List<Long> minHashes = new ArrayList<>(hashes.size());
+		for (Hasher h : hashes)
+		{
+			long min = Long.MAX_VALUE;
+			for (Long u : users)
+				min = Math.min(min, h.hash(u));
+			minHashes.add(min);
+		}
+		return new State(id, minHashes);
+	}
+
+	/**
+	 * Items in groups of 10 sharing a core of users, plus users of their own, so items in a group have a
+	 * Jaccard similarity of around 0.6 and items in different groups almost none.
+	 */
+	private static List<State> createStates(int numItems, List<Hasher> hashes, Random r)
+	{
+		List<State> states = new ArrayList<>(numItems);
+		Set<Long> core = null;
+		for (int i = 0; i < numItems; i++)
+		{
+			if (i % 10 == 0)
+			{
+				core = new HashSet<>();
+				for (int u = 0; u < 60; u++)
+					core.add((long) r.nextInt(Integer.MAX_VALUE - 1));
+			}
+			Set<Long> users = new HashSet<>(core);
+			for (int u = 0; u < 20; u++)
+				users.add((long) r.nextInt(Integer.MAX_VALUE - 1));
+			states.add(signature(i, users, hashes));
+		}
+		return states;
+	}
+
+	private static Set<Long> pairs(List<JaccardSimilarity> sims)
+	{
+		Set<Long> pairs = new HashSet<>();
+		for (JaccardSimilarity s : sims)
+			pairs.add((s.item1 << 32) | s.item2);
+		return pairs;
+	}
+
+	@Test
+	public void bandsForThresholdGivesCurveAtOrBelowThreshold()
+	{
+		int bands = LSHBandingIndex.bandsForThreshold(100, 0.5f);
+		int rows = 100 / bands;
+		double t = Math.pow(1.0 / bands, 1.0 / rows);
+		Assert.assertTrue(t <= 0.5);
+		Assert.assertTrue(t > 0.3);
+	}
+
+	@Test
+	public void identicalSignaturesAreCandidates()
+	{
+		List<Long> mh = new ArrayList<>();
+		List<Long> other = new ArrayList<>();
+		for (long i = 0; i < 20; i++)
+		{
+			mh.add(i);
+			other.add(i + 100);
+		}
+		List<State> states = new ArrayList<>();
+		states.add(new State(1, mh));
+		states.add(new State(2, other));
+		states.add(new State(3, new ArrayList<>(mh)));
+		Set<Long> candidates = new LSHBandingIndex(5, 4).candidatePairs(states);
+		Assert.assertEquals(1, candidates.size());
+		Assert.assertTrue(candidates.contains((0L << 32) | 2));
+	}
+
+	@Test
+	public void topNLimitsNeighboursPerItem()
+	{
+		StreamingJaccardSimilarity sim = new StreamingJaccardSimilarity(3600, 50, 0, 0, 0.3f, 2, 1);
+		List<State> states = createStates(10, createHashes(50), new Random(1));
+		List<JaccardSimilarity> res = sim.getSimilarity(states, null);
+		// each item keeps its best 2, and a pair is output if it is in the top 2 of either item
+		Assert.assertTrue(res.size() <= 10 * 2);
+		Assert.assertTrue(res.size() >= 10);
+	}
+
+	/**
+	 * Compares recall and runtime of LSH candidate generation against scoring every pair.
+	 */
+	@Test
+	public void benchmarkAgainstExhaustive()
+	{
+		final int numHashes = 100;
+		final float threshold = 0.5f;
+		final int numItems = 5000;
+		List<Hasher> hashes = createHashes(numHashes);
+		List<State> states = createStates(numItems, hashes, new Random(7));
+		StreamingJaccardSimilarity sim = new StreamingJaccardSimilarity(3600, numHashes, 0, -1, threshold, 0, 1);
+
+		long t1 = System.currentTimeMillis();
+		List<JaccardSimilarity> exhaustive = sim.getSimilarity(states, null);
+		long t2 = System.currentTimeMillis();
+		List<JaccardSimilarity> banded = sim.getSimilarity(states, sim.lsh);
+		long t3 = System.currentTimeMillis();
+
+		Set<Long> expected = pairs(exhaustive);
+		Set<Long> found = pairs(banded);
+		int hits = 0;
+		for (Long p : found)
+			if (expected.contains(p))
+				hits++;
+		double recall = expected.isEmpty() ? 1 : hits / (double) expected.size();
+		System.out.println(sim.lsh+" items:"+numItems+" exhaustive pairs:"+expected.size()+" in "+(t2-t1)+"ms, lsh pairs:"+found.size()+" in "+(t3-t2)+"ms, recall:"+recall);
+		Assert.assertEquals(hits, found.size());
+		Assert.assertTrue("recall "+recall, recall >= 0.95);
+	}
+}
@@ -0,0 +1,117 @@
+/*
+ * Seldon -- open source prediction engine
+ * =======================================
+ * Copyright 2011-2015 Seldon Technologies Ltd and Rummble Ltd (http://www.seldon.io/)
+ *
+ **********************************************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at       
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ ********************************************************************************************** 
+*/
+package io.seldon.stream.itemsim;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+public class MinHashCheckpointTest {
+
+	File dir;
+	
+	@Before
+	public void setUp() throws IOException
+	{
+		dir = Files.createTempDirectory("minhash-checkpoint").toFile();
+	}
+	
+	@After
+	public void tearDown()
+	{
+		for (File f : dir.listFiles())
+			f.delete();
+		dir.delete();
+	}
+	
+	private void add(StreamingJaccardSimilarity sim, Random r, int from, int to)
+	{
+		for (int i = from; i < to; i++)
+			sim.add(r.nextInt(50), r.nextInt(1000), i);
+	}
+	
+	private void assertSameState(StreamingJaccardSimilarity expected, StreamingJaccardSimilarity actual, long time)
+	{
+		Assert.assertEquals(expected.mhcs.mhcs.keySet(), actual.mhcs.mhcs.keySet());
+		for (Long item : expected.mhcs.mhcs.keySet())
+		{
+			Assert.assertEquals(expected.mhcs.mhcs.get(item).getCount(time), actual.mhcs.mhcs.get(item).getCount(time));
+			Assert.assertEquals(expected.mhcs.mhcs.get(item).getMinHashes(time), actual.mhcs.mhcs.get(item).getMinHashes(time));
+		}
+	}
+	
+	@Test
+	public void restoresBaseAndDeltas() throws IOException
+	{
+		StreamingJaccardSimilarity sim = new StreamingJaccardSimilarity(500, 20, 0);
+		MinHashCheckpoint checkpoint = new MinHashCheckpoint(dir, 2);
+		Random r = new Random(1);
+		Map<Integer,Long> offsets = new HashMap<>();
+		for (int c = 0; c < 5; c++)
+		{
+			add(sim, r, c * 1000, (c + 1) * 1000);
+			offsets.put(0, (c + 1) * 1000L);
+			sim.checkpoint(checkpoint, offsets);
+		}
+		// base, delta, delta, base, delta with the older files removed
+		Assert.assertEquals(2, dir.listFiles().length);
+		
+		StreamingJaccardSimilarity restored = new StreamingJaccardSimilarity(500, 20, 0);
+		Map<Integer,Long> restoredOffsets = restored.restore(new MinHashCheckpoint(dir, 2));
+		Assert.assertEquals(offsets, restoredOffsets);
+		assertSameState(sim, restored, 5000);
+		
+		// the restored hash functions carry on giving the same signatures
+		add(sim, new Random(2), 5000, 6000);
+		add(restored, new Random(2), 5000, 6000);
+		assertSameState(sim, restored, 6000);
+		List<JaccardSimilarity> expected = sim.getSimilarity(6000);
+		List<JaccardSimilarity> actual = restored.getSimilarity(6000);
+		Assert.assertEquals(expected.size(), actual.size());
+	}
+	
+	@Test
+	public void noCheckpoint() throws IOException
+	{
+		StreamingJaccardSimilarity sim = new StreamingJaccardSimilarity(500, 20, 0);
+		Assert.assertNull(sim.restore(new MinHashCheckpoint(dir, 2)));
+	}
+	
+	@Test(expected=IOException.class)
+	public void differentNumberOfHashes() throws IOException
+	{
+		StreamingJaccardSimilarity sim = new StreamingJaccardSimilarity(500, 20, 0);
+		add(sim, new Random(1), 0, 100);
+		sim.checkpoint(new MinHashCheckpoint(dir, 2), new HashMap<Integer,Long>());
+		new StreamingJaccardSimilarity(500, 10, 0).restore(new MinHashCheckpoint(dir, 2));
+	}
+	
+}
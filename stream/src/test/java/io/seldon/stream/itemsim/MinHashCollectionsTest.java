@@ -116,4 +116,31 @@ public class MinHashCollectionsTest {
 		double reqPerSec = timeSteps/(t/1000.0);
 		System.out.println("time:"+t+" per sec "+reqPerSec);
 	}
+	
+	@Test
+	public void partitionedUpdatesMatchSingleThreaded()
+	{
+		Set<Hasher> existing = new HashSet<>();
+		for(int i=0;i<20;i++)
+			existing.add(SimplePrimeHash.create(existing));
+		List<Hasher> hashes = new ArrayList<Hasher>(existing);
+		MinHashCollections single = new MinHashCollections(new RollingWindowedMinHashFactory(hashes), 1000, 0);
+		MinHashCollections partitioned = new MinHashCollections(new RollingWindowedMinHashFactory(hashes), 1000, 0);
+		PartitionedMinHashUpdater updater = new PartitionedMinHashUpdater(partitioned, 4, 64);
+		Random r = new Random(3);
+		for(int i=1;i<20000;i++)
+		{
+			int itemId = r.nextInt(100);
+			int userId = r.nextInt(5000);
+			single.add(itemId, userId, i);
+			updater.add(itemId, userId, i);
+		}
+		updater.awaitDrained();
+		updater.shutdown();
+		for (long item = 0; item < 100; item++)
+		{
+			Assert.assertEquals(single.mhcs.get(item).getCount(20000), partitioned.mhcs.get(item).getCount(20000));
+			Assert.assertEquals(single.mhcs.get(item).getMinHashes(20000), partitioned.mhcs.get(item).getMinHashes(20000));
+		}
+	}
 }
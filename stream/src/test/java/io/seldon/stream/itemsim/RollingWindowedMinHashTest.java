@@ -24,6 +24,8 @@ package io.seldon.stream.itemsim;
 import io.seldon.stream.itemsim.minhash.Hasher;
 import io.seldon.stream.itemsim.minhash.SimplePrimeHash;
 
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Random;
 
 import org.junit.Assert;
@@ -40,7 +42,7 @@ public class RollingWindowedMinHashTest {
 		{
 			mh.add(i, 11-i);
 		}
-		Assert.assertEquals(1, mh.hashes.size());
+		Assert.assertEquals(1, mh.size());
 		Assert.assertEquals(10, mh.getCount(10));
 	}
 	
@@ -53,7 +55,7 @@ public class RollingWindowedMinHashTest {
 		{
 			mh.add(i, i);
 		}
-		Assert.assertEquals(10, mh.hashes.size());
+		Assert.assertEquals(10, mh.size());
 		Assert.assertEquals(10, mh.getCount(10));
 	}
 	
@@ -69,7 +71,83 @@ public class RollingWindowedMinHashTest {
 			int id = r.nextInt(2000);
 			mh.add(id, i);
 		}
-		System.out.println(mh.hashes.size());
+		System.out.println(mh.size());
+	}
+	
+	/**
+	 * The list based implementation the ring buffers replaced
+	 */
+	private static class ListMinHash
+	{
+		List<long[]> entries = new ArrayList<>(); // hash, time, count
+		Hasher h;
+		long window;
+		
+		ListMinHash(Hasher h,long window)
+		{
+			this.h = h;
+			this.window = window;
+		}
+		
+		void add(long id,long time)
+		{
+			long hash = h.hash(id);
+			int cSum = 0;
+			while (!entries.isEmpty() && hash < entries.get(entries.size()-1)[0])
+				cSum += entries.remove(entries.size()-1)[2];
+			if (!entries.isEmpty() && hash == entries.get(entries.size()-1)[0])
+			{
+				long[] last = entries.get(entries.size()-1);
+				last[1] = time;
+				last[2] += cSum + 1;
+			}
+			else
+				entries.add(new long[] {hash,time,cSum+1});
+			removeOld(time);
+		}
+		
+		void removeOld(long time)
+		{
+			for (java.util.Iterator<long[]> it = entries.iterator();it.hasNext();)
+				if (it.next()[1] <= time - window)
+					it.remove();
+		}
+		
+		Long getMinHash(long time)
+		{
+			removeOld(time);
+			return entries.isEmpty() ? null : entries.get(0)[0];
+		}
+		
+		int getCount(long time)
+		{
+			removeOld(time);
+			int sum = 0;
+			for (long[] e : entries)
+				sum += e[2];
+			return sum;
+		}
+	}
+	
+	@Test
+	public void matchesListImplementation()
+	{
+		Hasher h = new SimplePrimeHash(7,3);
+		final int window = 50;
+		RollingWindowedMinHash mh = new RollingWindowedMinHash(h, window);
+		ListMinHash expected = new ListMinHash(h, window);
+		Random r = new Random(1);
+		for(int i=1;i<5000;i++)
+		{
+			// mostly increasing times with some out of order
+			long time = r.nextInt(10) == 0 ? Math.max(1, i - r.nextInt(20)) : i;
+			long id = r.nextInt(500);
+			mh.add(id, time);
+			expected.add(id, time);
+			Assert.assertEquals(expected.getMinHash(i), mh.getMinHash(i));
+			Assert.assertEquals(expected.getCount(i), mh.getCount(i));
+			Assert.assertEquals(expected.entries.size(), mh.size());
+		}
 	}
 	
 }